@@ -33,6 +33,18 @@ public class FileProperties {
      * 视频转码后的缓存目录, 位于 ${chunkFileDir}/${username}/${videoTranscodeCache}
      */
     private String videoTranscodeCache = "videoTranscodeCache";
+    /**
+     * 缩略图目录, 位于 ${chunkFileDir}/${thumbnailCache}
+     */
+    private String thumbnailCache = "thumbnailCache";
+    /**
+     * 派生图片(剪裁、webp)的缓存目录, 位于 ${chunkFileDir}/${imageCache}
+     */
+    private String imageCache = "imageCache";
+    /**
+     * 派生图片缓存的最大容量(MB), 超过后淘汰最近最少访问的
+     */
+    private Integer imageCacheMaxSize = 1024;
     /***
      * 用户头像默认存储路径
      */
@@ -70,6 +82,70 @@ public class FileProperties {
      * 文件监控扫描时间间隔(秒)
      */
     private Long timeInterval = 10L;
+    /***
+     * 文件监控模式
+     * poll: 定时遍历整个目录树(默认)
+     * watch: 基于WatchService(Linux下为inotify)的事件驱动, 文件数量很多时建议使用, 注册失败时回退到poll
+     */
+    private String monitorMode = "poll";
+    /***
+     * 图片转webp的方式
+     * sync: 上传时转换(默认)
+     * deferred: 先保留原图, 后台转换完成后替换原图并更新文件信息
+     */
+    private String webpMode = "sync";
+    /***
+     * lucene索引的内存缓冲区大小(MB), 超过后写入新的段
+     */
+    private Double luceneRamBufferSize = 64D;
+    /***
+     * lucene合并后的段的最大大小(MB)
+     */
+    private Double luceneMaxMergedSegmentSize = 5120D;
+    /***
+     * lucene每一层允许的段数, 越小搜索越快, 合并越频繁
+     */
+    private Double luceneSegmentsPerTier = 10D;
+    /***
+     * 分片上传会话的有效期(天), 超过这个时间没有上传分片的会话连同临时文件一起清理
+     */
+    private Integer uploadSessionExpireDays = 7;
+    /***
+     * 每个连接的下载速度上限(KB/s), 0表示不限速, 限速时不使用sendfile
+     */
+    private Integer downloadRateLimit = 0;
+    /***
+     * 解压后的最大总大小(MB), 0表示只受用户空间配额限制
+     */
+    private Integer extractMaxSize = 0;
+    /***
+     * 压缩包中最多的条目数
+     */
+    private Integer extractMaxEntries = 100000;
+    /***
+     * 最大压缩比(解压后的大小/压缩后的大小), 超过时视为压缩炸弹, 不解压
+     */
+    private Integer extractMaxRatio = 100;
+    /***
+     * oss目录列表缓存超过该时间(秒)后, 先返回缓存的列表, 同时在后台重新获取
+     */
+    private Long ossCacheRefreshAfter = 60L;
+    /***
+     * oss目录列表缓存的最长有效期(秒), 超过后同步重新获取
+     */
+    private Long ossCacheTtl = 3600L;
+    /***
+     * 每个bucket最多缓存的oss元数据条目数
+     */
+    private Long ossCacheMaxSize = 200000L;
+    /***
+     * 每个bucket同时上传(写回)临时文件的线程数
+     */
+    private Integer ossUploadConcurrency = 4;
+    /***
+     * oss大文件分段并行下载时, 每个文件同时获取的分段数, 为1时不分段
+     */
+    private Integer ossDownloadConcurrency = 4;
     /***
      * webDAV协议前缀
      */
@@ -4,6 +4,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.cn.smart.SmartChineseAnalyzer;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SearcherFactory;
@@ -56,8 +57,15 @@ public class LuceneConfig {
      * @return IndexWriter
      */
     @Bean
-    public IndexWriter indexWriter(Directory directory, Analyzer analyzer) throws IOException {
+    public IndexWriter indexWriter(Directory directory, Analyzer analyzer, FileProperties fileProperties) throws IOException {
         IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
+        // 内存缓冲区满了才写入新的段, 不按文档数刷新
+        indexWriterConfig.setRAMBufferSizeMB(fileProperties.getLuceneRamBufferSize());
+        indexWriterConfig.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setMaxMergedSegmentMB(fileProperties.getLuceneMaxMergedSegmentSize());
+        mergePolicy.setSegmentsPerTier(fileProperties.getLuceneSegmentsPerTier());
+        indexWriterConfig.setMergePolicy(mergePolicy);
         IndexWriter indexWriter = new IndexWriter(directory, indexWriterConfig);
 
         // 清空索引
@@ -73,15 +81,24 @@ public class LuceneConfig {
      */
     @Bean
     public SearcherManager searcherManager(IndexWriter indexWriter) throws IOException {
-        SearcherManager searcherManager = new SearcherManager(indexWriter, false, false, new SearcherFactory());
-        cRTReopenThead = new ControlledRealTimeReopenThread<IndexSearcher>(indexWriter, searcherManager,
+        return new SearcherManager(indexWriter, false, false, new SearcherFactory());
+    }
+
+    /**
+     * 近实时搜索, 最多5秒刷新一次IndexReader, 有线程等待某个generation时25毫秒内刷新
+     *
+     * @return ControlledRealTimeReopenThread
+     */
+    @Bean
+    public ControlledRealTimeReopenThread<IndexSearcher> controlledRealTimeReopenThread(IndexWriter indexWriter, SearcherManager searcherManager) {
+        cRTReopenThead = new ControlledRealTimeReopenThread<>(indexWriter, searcherManager,
                 5.0, 0.025);
         cRTReopenThead.setDaemon(true);
         //线程名称
         cRTReopenThead.setName("更新IndexReader线程");
         // 开启线程
         cRTReopenThead.start();
-        return searcherManager;
+        return cRTReopenThead;
     }
 
     @PreDestroy
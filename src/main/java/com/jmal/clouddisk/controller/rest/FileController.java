@@ -7,15 +7,21 @@ import com.jmal.clouddisk.annotation.Permission;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.interceptor.AuthInterceptor;
+import com.jmal.clouddisk.model.ExtractJobVO;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.FileIntroVO;
 import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.model.ShareDO;
+import com.jmal.clouddisk.model.SubtreeJobVO;
 import com.jmal.clouddisk.model.UploadApiParamDTO;
 import com.jmal.clouddisk.oss.web.WebOssCommonService;
 import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.IShareService;
 import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.ExtractJobService;
+import com.jmal.clouddisk.service.impl.SubtreeService;
 import com.jmal.clouddisk.service.impl.UserLoginHolder;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import com.jmal.clouddisk.util.ResponseResult;
@@ -64,6 +70,15 @@ public class FileController {
     @Autowired
     IUserService service;
 
+    @Autowired
+    ExtractJobService extractJobService;
+
+    @Autowired
+    SubtreeService subtreeService;
+
+    @Autowired
+    IShareService shareService;
+
     @Operation(summary = "根据id获取文件信息")
     @GetMapping("/file_info")
     @Permission("cloud:file:list")
@@ -354,6 +369,28 @@ public class FileController {
         }
     }
 
+    @Operation(summary = "重命名、移动、复制任务的进度")
+    @GetMapping("/operation/job")
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> operationJob(@RequestParam String jobId) {
+        SubtreeJobVO job = subtreeService.getJob(jobId);
+        if (job != null && !job.getUsername().equals(userLoginHolder.getUsername())) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        return ResultUtil.success(job);
+    }
+
+    @Operation(summary = "取消重命名、移动、复制任务")
+    @DeleteMapping("/operation/job")
+    @LogOperatingFun
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> cancelOperationJob(@RequestParam String jobId) {
+        if (!subtreeService.cancel(jobId, userLoginHolder.getUsername())) {
+            return ResultUtil.warning("任务不存在或已结束");
+        }
+        return ResultUtil.success();
+    }
+
     @Operation(summary = "创建副本")
     @GetMapping("/duplicate")
     @LogOperatingFun
@@ -370,6 +407,48 @@ public class FileController {
         return fileService.unzip(fileId, destFileId);
     }
 
+    @Operation(summary = "解压任务的进度")
+    @GetMapping("/unzip/job")
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> unzipJob(@RequestParam String jobId) {
+        ExtractJobVO job = extractJobService.getJob(jobId);
+        if (job != null && !job.getUsername().equals(userLoginHolder.getUsername())) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        return ResultUtil.success(job);
+    }
+
+    @Operation(summary = "取消解压")
+    @DeleteMapping("/unzip/job")
+    @LogOperatingFun
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> cancelUnzipJob(@RequestParam String jobId) {
+        if (!extractJobService.cancel(jobId, userLoginHolder.getUsername())) {
+            return ResultUtil.warning("解压任务不存在或已结束");
+        }
+        return ResultUtil.success();
+    }
+
+    @Operation(summary = "读取压缩包中的文件")
+    @GetMapping("/unzip/entry")
+    @Permission("cloud:file:download")
+    public void previewArchiveEntry(HttpServletRequest request, HttpServletResponse response, @RequestParam String fileId, @RequestParam String entryName, String shareId) {
+        ShareDO shareDO = null;
+        if (CharSequenceUtil.isNotBlank(shareId)) {
+            // 分享里的压缩包
+            shareDO = shareService.getShare(shareId);
+            if (shareDO == null) {
+                throw new CommonException(ExceptionType.WARNING.getCode(), Constants.LINK_FAILED);
+            }
+            String shareToken = request.getHeader(Constants.SHARE_TOKEN);
+            if (CharSequenceUtil.isBlank(shareToken)) {
+                shareToken = request.getParameter(Constants.SHARE_TOKEN);
+            }
+            shareService.validShare(shareToken, shareDO);
+        }
+        fileService.previewArchiveEntry(fileId, URLUtil.decode(entryName), shareDO, response);
+    }
+
     @Operation(summary = "获取目录下的文件")
     @GetMapping("/listfiles")
     @Permission("cloud:file:list")
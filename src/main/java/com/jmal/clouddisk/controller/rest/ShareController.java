@@ -144,10 +144,14 @@ public class ShareController {
     @GetMapping("/public/s/packageDownload")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
     public void publicPackageDownload(HttpServletRequest request, HttpServletResponse response, @RequestParam String shareId, @RequestParam String[] fileIds) {
-        shareService.validShare(request.getParameter(Constants.SHARE_TOKEN), shareId);
+        ShareDO shareDO = shareService.getShare(shareId);
+        if (shareDO == null) {
+            throw new CommonException(ExceptionType.WARNING.getCode(), Constants.LINK_FAILED);
+        }
+        shareService.validShare(request.getParameter(Constants.SHARE_TOKEN), shareDO);
         if (fileIds != null && fileIds.length > 0) {
             List<String> fileIdList = Arrays.asList(fileIds);
-            fileService.publicPackageDownload(request, response, fileIdList);
+            fileService.publicPackageDownload(request, response, shareDO, fileIdList);
         } else {
             throw new CommonException(ExceptionType.MISSING_PARAMETERS.getCode(), ExceptionType.MISSING_PARAMETERS.getMsg());
         }
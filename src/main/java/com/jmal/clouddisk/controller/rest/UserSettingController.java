@@ -1,10 +1,16 @@
 package com.jmal.clouddisk.controller.rest;
 
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
 import com.jmal.clouddisk.annotation.LogOperatingFun;
 import com.jmal.clouddisk.annotation.Permission;
+import com.jmal.clouddisk.listener.FileEventQueue;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.UserAccessTokenDTO;
 import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.FileResyncService;
+import com.jmal.clouddisk.service.impl.FolderSizeService;
+import com.jmal.clouddisk.service.impl.LuceneService;
 import com.jmal.clouddisk.service.impl.SettingService;
 import com.jmal.clouddisk.service.impl.UserLoginHolder;
 import com.jmal.clouddisk.util.ResponseResult;
@@ -15,6 +21,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -35,6 +42,18 @@ public class UserSettingController {
     @Autowired
     private UserLoginHolder userLoginHolder;
 
+    @Autowired
+    private FolderSizeService folderSizeService;
+
+    @Autowired
+    private FileEventQueue fileEventQueue;
+
+    @Autowired
+    private FileResyncService fileResyncService;
+
+    @Autowired
+    private LuceneService luceneService;
+
     @Operation(summary = "生成accessToken")
     @PutMapping("/user/setting/generateAccessToken")
     @Permission("sys:user:update")
@@ -68,6 +87,50 @@ public class UserSettingController {
         return settingService.sync(username);
     }
 
+    @Operation(summary = "全量同步")
+    @PutMapping("/user/setting/resync")
+    @Permission(value = "cloud:set:sync")
+    @LogOperatingFun
+    public ResponseResult<Object> resync(@RequestParam String username, @RequestParam(required = false) Boolean dryRun) {
+        if (!fileResyncService.start(username, BooleanUtil.isTrue(dryRun))) {
+            return ResultUtil.warning("正在同步中");
+        }
+        return ResultUtil.success();
+    }
+
+    @Operation(summary = "全量同步的进度和结果")
+    @GetMapping("/user/setting/resync_report")
+    @Permission(value = "cloud:set:sync")
+    public ResponseResult<Object> resyncReport(@RequestParam String username) {
+        return ResultUtil.success(fileResyncService.getReport(username));
+    }
+
+    @Operation(summary = "重建文件夹大小索引")
+    @PutMapping("/user/setting/rebuild_folder_size")
+    @Permission(value = "cloud:set:sync")
+    @LogOperatingFun
+    public ResponseResult<Object> rebuildFolderSize() {
+        if (folderSizeService.isRebuilding()) {
+            return ResultUtil.warning("正在重建中");
+        }
+        ThreadUtil.execute(folderSizeService::rebuild);
+        return ResultUtil.success();
+    }
+
+    @Operation(summary = "文件监控事件队列指标")
+    @GetMapping("/user/setting/file_event_metrics")
+    @Permission(value = "cloud:set:sync")
+    public ResponseResult<Object> fileEventMetrics() {
+        return ResultUtil.success(fileEventQueue.getMetrics());
+    }
+
+    @Operation(summary = "全文索引状态")
+    @GetMapping("/user/setting/lucene_index_stats")
+    @Permission(value = "cloud:set:sync")
+    public ResponseResult<Object> luceneIndexStats() throws IOException {
+        return ResultUtil.success(luceneService.getIndexStats());
+    }
+
     @Operation(summary = "上传网盘logo")
     @PostMapping("/user/setting/upload_logo")
     @Permission(value = "cloud:set:sync")
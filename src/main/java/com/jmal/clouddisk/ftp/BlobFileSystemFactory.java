@@ -0,0 +1,214 @@
+package com.jmal.clouddisk.ftp;
+
+import com.jmal.clouddisk.service.impl.BlobService;
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * @author jmal
+ * @Description FTP文件系统, 在NativeFileSystem的基础上写入前断开与blob共享的硬链接(写时复制)
+ * @date 2024/2/9 10:20
+ */
+public class BlobFileSystemFactory implements FileSystemFactory {
+
+    private final NativeFileSystemFactory nativeFileSystemFactory = new NativeFileSystemFactory();
+
+    private final BlobService blobService;
+
+    public BlobFileSystemFactory(BlobService blobService) {
+        this.blobService = blobService;
+    }
+
+    @Override
+    public FileSystemView createFileSystemView(User user) throws FtpException {
+        return new BlobFileSystemView(nativeFileSystemFactory.createFileSystemView(user));
+    }
+
+    private class BlobFileSystemView implements FileSystemView {
+
+        private final FileSystemView fileSystemView;
+
+        BlobFileSystemView(FileSystemView fileSystemView) {
+            this.fileSystemView = fileSystemView;
+        }
+
+        @Override
+        public FtpFile getHomeDirectory() throws FtpException {
+            return wrap(fileSystemView.getHomeDirectory());
+        }
+
+        @Override
+        public FtpFile getWorkingDirectory() throws FtpException {
+            return wrap(fileSystemView.getWorkingDirectory());
+        }
+
+        @Override
+        public boolean changeWorkingDirectory(String dir) throws FtpException {
+            return fileSystemView.changeWorkingDirectory(dir);
+        }
+
+        @Override
+        public FtpFile getFile(String file) throws FtpException {
+            return wrap(fileSystemView.getFile(file));
+        }
+
+        @Override
+        public boolean isRandomAccessible() throws FtpException {
+            return fileSystemView.isRandomAccessible();
+        }
+
+        @Override
+        public void dispose() {
+            fileSystemView.dispose();
+        }
+    }
+
+    private FtpFile wrap(FtpFile ftpFile) {
+        return ftpFile == null ? null : new BlobFtpFile(ftpFile);
+    }
+
+    private class BlobFtpFile implements FtpFile {
+
+        private final FtpFile ftpFile;
+
+        BlobFtpFile(FtpFile ftpFile) {
+            this.ftpFile = ftpFile;
+        }
+
+        /***
+         * NativeFtpFile在原文件上写入(RandomAccessFile), 文件是blob的硬链接时会修改所有引用, 写入前先断开
+         * offset > 0 时是断点续传, 需要保留已有内容
+         */
+        @Override
+        public OutputStream createOutputStream(long offset) throws IOException {
+            if (ftpFile.getPhysicalFile() instanceof File file) {
+                blobService.beforeWrite(file.toPath(), offset > 0);
+            }
+            return ftpFile.createOutputStream(offset);
+        }
+
+        @Override
+        public boolean move(FtpFile destination) {
+            // NativeFtpFile.move 要求目标也是NativeFtpFile
+            FtpFile target = destination instanceof BlobFtpFile blobFtpFile ? blobFtpFile.ftpFile : destination;
+            return ftpFile.move(target);
+        }
+
+        @Override
+        public List<? extends FtpFile> listFiles() {
+            List<? extends FtpFile> files = ftpFile.listFiles();
+            return files == null ? null : files.stream().map(BlobFileSystemFactory.this::wrap).toList();
+        }
+
+        @Override
+        public InputStream createInputStream(long offset) throws IOException {
+            return ftpFile.createInputStream(offset);
+        }
+
+        @Override
+        public String getAbsolutePath() {
+            return ftpFile.getAbsolutePath();
+        }
+
+        @Override
+        public String getName() {
+            return ftpFile.getName();
+        }
+
+        @Override
+        public boolean isHidden() {
+            return ftpFile.isHidden();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return ftpFile.isDirectory();
+        }
+
+        @Override
+        public boolean isFile() {
+            return ftpFile.isFile();
+        }
+
+        @Override
+        public boolean doesExist() {
+            return ftpFile.doesExist();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return ftpFile.isReadable();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return ftpFile.isWritable();
+        }
+
+        @Override
+        public boolean isRemovable() {
+            return ftpFile.isRemovable();
+        }
+
+        @Override
+        public String getOwnerName() {
+            return ftpFile.getOwnerName();
+        }
+
+        @Override
+        public String getGroupName() {
+            return ftpFile.getGroupName();
+        }
+
+        @Override
+        public int getLinkCount() {
+            return ftpFile.getLinkCount();
+        }
+
+        @Override
+        public long getLastModified() {
+            return ftpFile.getLastModified();
+        }
+
+        @Override
+        public boolean setLastModified(long time) {
+            return ftpFile.setLastModified(time);
+        }
+
+        @Override
+        public long getSize() {
+            return ftpFile.getSize();
+        }
+
+        @Override
+        public Object getPhysicalFile() {
+            return ftpFile.getPhysicalFile();
+        }
+
+        @Override
+        public boolean mkdir() {
+            return ftpFile.mkdir();
+        }
+
+        @Override
+        public boolean delete() {
+            return ftpFile.delete();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BlobFtpFile blobFtpFile ? ftpFile.equals(blobFtpFile.ftpFile) : ftpFile.equals(obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return ftpFile.hashCode();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import cn.hutool.extra.ftp.SimpleFtpServer;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.model.rbac.ConsumerDTO;
 import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.BlobService;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ftpserver.usermanager.impl.BaseUser;
@@ -28,10 +29,13 @@ public class FTPServerConfig {
 
     private final MyPropertiesUserManager myPropertiesUserManager;
 
-    public FTPServerConfig(FileProperties fileProperties, IUserService userService, MyPropertiesUserManager myPropertiesUserManager) {
+    private final BlobService blobService;
+
+    public FTPServerConfig(FileProperties fileProperties, IUserService userService, MyPropertiesUserManager myPropertiesUserManager, BlobService blobService) {
         this.fileProperties = fileProperties;
         this.userService = userService;
         this.myPropertiesUserManager = myPropertiesUserManager;
+        this.blobService = blobService;
     }
 
     @PostConstruct
@@ -42,6 +46,7 @@ public class FTPServerConfig {
         SimpleFtpServer ftpServer = SimpleFtpServer.create();
         ftpServer.setUserManager(myPropertiesUserManager);
         ftpServer.setPort(fileProperties.getFtpServerPort());
+        ftpServer.getServerFactory().setFileSystem(new BlobFileSystemFactory(blobService));
 
         userList.forEach(consumerDTO -> {
             BaseUser user = new BaseUser();
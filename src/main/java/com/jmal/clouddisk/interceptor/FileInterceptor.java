@@ -12,6 +12,9 @@ import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.IShareService;
+import com.jmal.clouddisk.service.impl.FileDownloadService;
+import com.jmal.clouddisk.service.impl.ImageCacheService;
+import com.jmal.clouddisk.service.impl.ThumbnailService;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import com.jmal.clouddisk.util.FileContentTypeUtils;
 import com.luciad.imageio.webp.WebPWriteParam;
@@ -27,6 +30,7 @@ import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.util.UriUtils;
 
@@ -34,15 +38,23 @@ import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileCacheImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author jmal
@@ -86,6 +98,13 @@ public class FileInterceptor implements HandlerInterceptor {
      * 路径最小层级
      */
     private static final int MIN_COUNT = 2;
+    /***
+     * Tomcat sendfile
+     */
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 
     private final FileProperties fileProperties;
 
@@ -97,6 +116,12 @@ public class FileInterceptor implements HandlerInterceptor {
 
     private final WebOssService webOssService;
 
+    private final ThumbnailService thumbnailService;
+
+    private final ImageCacheService imageCacheService;
+
+    private final FileDownloadService fileDownloadService;
+
     @Override
     public boolean preHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Object handler) {
         if (fileAuthError(request, response)) {
@@ -119,15 +144,48 @@ public class FileInterceptor implements HandlerInterceptor {
                 case PREVIEW -> {
                     if (previewOssFile(request, response, path, encodedFilename)) return false;
                 }
-                case CROP -> handleCrop(request, response);
-                case THUMBNAIL -> thumbnail(request, response);
-                case WEBP -> webp(request, response);
+                case CROP -> {
+                    if (handleCrop(request, response)) return false;
+                }
+                case THUMBNAIL -> {
+                    if (thumbnail(request, response)) return false;
+                }
+                case WEBP -> {
+                    if (webp(request, response)) return false;
+                }
                 default -> {
-                    return true;
+                    return !responseLocalFile(request, response);
                 }
             }
         } else {
-            return !previewOssFile(request, response, path, encodedFilename);
+            if (previewOssFile(request, response, path, encodedFilename)) {
+                return false;
+            }
+        }
+        return !responseLocalFile(request, response);
+    }
+
+    /***
+     * 本地文件由FileDownloadService发送, 支持Range、ETag和sendfile, 不存在时交给静态资源处理
+     * @return 是否已响应
+     */
+    private boolean responseLocalFile(HttpServletRequest request, HttpServletResponse response) {
+        Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
+        if (uriPath.getNameCount() < MIN_COUNT) {
+            return false;
+        }
+        Path rootPath = Paths.get(fileProperties.getRootDir());
+        Path filePath = rootPath.resolve(uriPath.subpath(1, uriPath.getNameCount()).toString()).normalize();
+        if (!filePath.startsWith(rootPath) || !Files.isRegularFile(filePath)) {
+            return false;
+        }
+        // 与原来的静态资源配置一致, Image目录缓存30天, 其他3小时
+        boolean image = uriPath.getNameCount() > MIN_COUNT + 1 && "Image".equals(uriPath.getName(MIN_COUNT).toString());
+        String cacheControl = "max-age=" + (image ? TimeUnit.DAYS.toSeconds(30) : TimeUnit.HOURS.toSeconds(3));
+        try {
+            fileDownloadService.download(request, response, filePath.toFile(), cacheControl);
+        } catch (IOException e) {
+            log.warn("响应文件失败, {}, {}", filePath, e.getMessage());
         }
         return true;
     }
@@ -240,47 +298,74 @@ public class FileInterceptor implements HandlerInterceptor {
         return false;
     }
 
-    private void webp(HttpServletRequest request, HttpServletResponse response) {
+    /***
+     * webp, 转换后的图片缓存在磁盘上
+     * @return 是否已响应
+     */
+    private boolean webp(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         uriPath = uriPath.subpath(1, uriPath.getNameCount());
-        try {
-            File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
-            // 从某处获取图像进行编码
-            BufferedImage image = ImageIO.read(file);
+        File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
+        if (!file.isFile()) {
+            return false;
+        }
+        String key = ImageCacheService.getKey(file, WEBP);
+        return responseCachedImage(request, response, key, file.getName() + ".webp", outputStream -> imageToWebp(file, outputStream));
+    }
 
-            // 获取一个WebP ImageWriter实例
-            ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/webp").next();
-            responseHeader(response, file.getName() + ".webp", new byte[1]);
+    private static boolean imageToWebp(File file, OutputStream outputStream) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            return false;
+        }
+        // 获取一个WebP ImageWriter实例
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/webp").next();
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(outputStream)) {
             // 配置编码参数
             WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
             writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
-            // 在ImageWriter上配置输出
-            FileCacheImageOutputStream output = new FileCacheImageOutputStream(response.getOutputStream(), null);
             writer.setOutput(output);
             // 编码
             writer.write(null, new IIOImage(image, null, null), writeParam);
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
+        } finally {
+            writer.dispose();
         }
-
+        return true;
     }
 
-    private void thumbnail(HttpServletRequest request, HttpServletResponse response) {
+    /***
+     * 缩略图
+     * @return 是否已响应
+     */
+    private boolean thumbnail(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         if (uriPath.getNameCount() < MIN_COUNT) {
-            return;
+            return false;
         }
         FileDocument fileDocument = getFileDocument(uriPath);
-        Path relativePath = uriPath.subpath(1, uriPath.getNameCount());
-        if (fileDocument != null) {
-            if (fileDocument.getContent() == null) {
-                File file = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
-                if (file.exists()) {
-                    fileDocument.setContent(FileUtil.readBytes(file));
-                }
-            }
+        if (fileDocument == null) {
+            return false;
+        }
+        if (fileDocument.getContent() != null) {
             responseWritImage(response, fileDocument.getName(), fileDocument.getContent());
+            return true;
         }
+        File thumbnailFile = thumbnailService.getThumbnailPath(fileDocument.getId()).toFile();
+        if (thumbnailFile.isFile()) {
+            return responseFile(request, response, thumbnailFile, fileDocument.getName(), ImageCacheService.getKey(thumbnailFile, THUMBNAIL), true);
+        }
+        Path relativePath = uriPath.subpath(1, uriPath.getNameCount());
+        File file = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
+        if (!file.isFile()) {
+            return false;
+        }
+        if (ThumbnailService.isThumbnailType(FileUtil.extName(file))) {
+            thumbnailService.generateAsync(fileDocument.getId(), file);
+        }
+        // 缩略图还没有生成, 与FileServiceImpl.thumbnail一样返回404, 不返回原图, 也不让浏览器缓存
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return true;
     }
 
     private FileDocument getFileDocument(Path uriPath) {
@@ -293,17 +378,75 @@ public class FileInterceptor implements HandlerInterceptor {
         return fileService.getFileDocumentByPathAndName(path, name, username);
     }
 
-    private void handleCrop(HttpServletRequest request, HttpServletResponse response) {
+    /***
+     * 剪裁图片, 剪裁后的图片缓存在磁盘上
+     * @return 是否已响应
+     */
+    private boolean handleCrop(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         uriPath = uriPath.subpath(1, uriPath.getNameCount());
         File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
+        if (!file.isFile()) {
+            return false;
+        }
         String q = request.getParameter("q");
         String w = request.getParameter("w");
         String h = request.getParameter("h");
-        byte[] img = imageCrop(file, q, w, h);
-        if (img.length > 0) {
-            responseWritImage(response, file.getName(), img);
+        String key = ImageCacheService.getKey(file, CROP, Convert.toDouble(q, 0.8), Convert.toInt(w, -1), Convert.toInt(h, -1));
+        return responseCachedImage(request, response, key, file.getName(), outputStream -> imageCrop(file, q, w, h, outputStream));
+    }
+
+    /***
+     * 响应缓存的图片, 没有缓存时先生成
+     * @param key 缓存key
+     * @param generator 生成图片
+     * @return 是否已响应
+     */
+    private boolean responseCachedImage(HttpServletRequest request, HttpServletResponse response, String key, String fileName, ImageCacheService.Generator generator) {
+        // 浏览器已有缓存时不需要生成
+        if (new ServletWebRequest(request, response).checkNotModified(key)) {
+            return true;
         }
+        Path cachePath = imageCacheService.get(key, generator);
+        if (cachePath == null) {
+            return false;
+        }
+        return responseFile(request, response, cachePath.toFile(), fileName, key, true);
+    }
+
+    /***
+     * 响应文件, 支持ETag/304
+     * Tomcat支持sendfile时由容器直接发送文件, 否则通过FileChannel.transferTo发送
+     * @param etag ETag
+     * @param cacheable 是否允许浏览器缓存
+     * @return 是否已响应
+     */
+    private boolean responseFile(HttpServletRequest request, HttpServletResponse response, File file, String fileName, String etag, boolean cacheable) {
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return true;
+        }
+        long size = file.length();
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "fileName=" + ContentDisposition.builder("attachment")
+                .filename(UriUtils.encode(fileName, StandardCharsets.UTF_8)));
+        response.setHeader(HttpHeaders.CONTENT_TYPE, FileContentTypeUtils.getContentType(FileUtil.extName(fileName)));
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheable ? "max-age=2592000" : "no-cache");
+        response.setContentLengthLong(size);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, size);
+            return true;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel outputChannel = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < size) {
+                position += fileChannel.transferTo(position, size - position, outputChannel);
+            }
+        } catch (IOException e) {
+            log.warn("响应文件失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+        }
+        return true;
     }
 
     private void responseWritImage(HttpServletResponse response, String fileName, byte[] img) {
@@ -339,12 +482,30 @@ public class FileInterceptor implements HandlerInterceptor {
      * @return 剪裁后的文件
      */
     public static byte[] imageCrop(File srcFile, String q, String w, String h) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (imageCrop(srcFile, q, w, h, out)) {
+            return out.toByteArray();
+        }
+        return new byte[0];
+    }
+
+    /**
+     * 剪裁图片
+     *
+     * @param srcFile 源文件
+     * @param q       剪裁后的质量
+     * @param w       剪裁后的宽度
+     * @param h       剪裁后的高度
+     * @param out     剪裁后的图片输出流
+     * @return 是否剪裁成功
+     */
+    public static boolean imageCrop(File srcFile, String q, String w, String h, OutputStream out) {
         try {
             Thumbnails.Builder<? extends File> thumbnail = Thumbnails.of(srcFile);
             //获取图片信息
             BufferedImage bim = ImageIO.read(srcFile);
             if (bim == null) {
-                return new byte[0];
+                return false;
             }
             int srcWidth = bim.getWidth();
             int srcHeight = bim.getHeight();
@@ -364,15 +525,14 @@ public class FileInterceptor implements HandlerInterceptor {
                 //宽高均小，指定原大小
                 thumbnail.size(srcWidth, srcHeight);
             }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
             thumbnail.toOutputStream(out);
-            return out.toByteArray();
+            return true;
         } catch (UnsupportedFormatException e) {
             log.warn(e.getMessage(), e);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
-        return new byte[0];
+        return false;
     }
 
 }
@@ -0,0 +1,306 @@
+package com.jmal.clouddisk.listener;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.impl.CommonFileService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Description 文件监控事件队列
+ * 同一路径在一段时间内的多次事件合并为一次, 新建的文件按用户分批写入mongo,
+ * 文件监控线程只负责放入有界队列, 调度线程合并事件, 数据库操作、缩略图等耗时处理在处理线程中执行
+ * @author jmal
+ * @date 2024/1/19 15:40
+ */
+@Slf4j
+@Service
+public class FileEventQueue {
+
+    /***
+     * 同一路径超过这个时间没有新的事件才处理(毫秒)
+     */
+    private static final long QUIET_MILLIS = 1000;
+
+    /***
+     * 事件最长等待时间(毫秒), 避免一直在变化的文件迟迟不能处理
+     */
+    private static final long MAX_DELAY_MILLIS = 10000;
+
+    /***
+     * 每批写入的数量
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /***
+     * 队列中最多的事件数, 超过后阻塞文件监控线程
+     */
+    private static final int MAX_PENDING = 100000;
+
+    /***
+     * 入队等待的时间(秒), 超时后打印日志继续等待
+     */
+    private static final long OFFER_TIMEOUT_SECONDS = 5;
+
+    private static final int CREATE = 1;
+
+    private static final int CHANGE = 1 << 1;
+
+    private static final int DELETE = 1 << 2;
+
+    @Autowired
+    IFileService fileService;
+
+    /***
+     * 文件监控线程放入的事件, 满了之后文件监控线程等待
+     */
+    private final BlockingQueue<FileEvent> inbox = new LinkedBlockingQueue<>(MAX_PENDING);
+
+    /***
+     * 合并中的事件, 只在调度线程中修改
+     * key: 文件绝对路径
+     */
+    private final Map<String, FileEvent> pendingMap = new ConcurrentHashMap<>(1024);
+
+    private final AtomicLong receivedCount = new AtomicLong();
+
+    private final AtomicLong processedCount = new AtomicLong();
+
+    /***
+     * 是否有一批事件正在处理
+     */
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+
+    /***
+     * 最近一批事件从入队到处理完的最大延迟(毫秒)
+     */
+    private volatile long lag = 0;
+
+    private ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
+
+    /***
+     * 执行数据库操作的线程, 调度线程只负责合并事件
+     */
+    private ExecutorService processExecutor;
+
+    @PostConstruct
+    public void init() {
+        processExecutor = ThreadUtil.newSingleExecutor();
+        scheduledThreadPoolExecutor = ThreadUtil.createScheduledExecutor(1);
+        scheduledThreadPoolExecutor.scheduleWithFixedDelay(this::drain, 500, 500, TimeUnit.MILLISECONDS);
+        scheduledThreadPoolExecutor.scheduleWithFixedDelay(this::logMetrics, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduledThreadPoolExecutor.shutdown();
+        try {
+            if (!scheduledThreadPoolExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("文件监控事件调度线程未能及时结束");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        processExecutor.shutdown();
+        try {
+            if (!processExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("文件监控事件处理线程未能及时结束");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 剩下的事件在当前线程处理完
+        mergeInbox(Integer.MAX_VALUE);
+        process(new ArrayList<>(pendingMap.values()));
+        pendingMap.clear();
+    }
+
+    public void onCreate(String username, File file) {
+        offer(CREATE, username, file);
+    }
+
+    public void onChange(String username, File file) {
+        offer(CHANGE, username, file);
+    }
+
+    public void onDelete(String username, File file) {
+        offer(DELETE, username, file);
+    }
+
+    private void offer(int type, String username, File file) {
+        receivedCount.incrementAndGet();
+        FileEvent fileEvent = new FileEvent(username, file, type, System.currentTimeMillis());
+        try {
+            // 背压, 处理不过来时让文件监控线程等待
+            while (!inbox.offer(fileEvent, OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("文件监控事件队列已满, 等待处理: {}", getMetrics());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("文件监控事件入队被中断, 丢弃: {}", file.getAbsolutePath());
+        }
+    }
+
+    /***
+     * 把inbox中的事件合并到pendingMap, 同一路径的事件合并为一个
+     * @param max 合并后pendingMap最多的事件数, 达到后留在inbox中让文件监控线程等待
+     */
+    private void mergeInbox(int max) {
+        FileEvent event;
+        while (pendingMap.size() < max && (event = inbox.poll()) != null) {
+            FileEvent newEvent = event;
+            pendingMap.merge(newEvent.file.getAbsolutePath(), newEvent, (fileEvent, value) -> {
+                fileEvent.type |= value.type;
+                fileEvent.lastTime = value.lastTime;
+                return fileEvent;
+            });
+        }
+    }
+
+    /***
+     * 合并新的事件, 把已经稳定的事件交给处理线程
+     * 上一批还没有处理完时只合并, 这期间同一路径的事件继续合并
+     */
+    private void drain() {
+        try {
+            mergeInbox(MAX_PENDING);
+            if (!processing.compareAndSet(false, true)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<FileEvent> readyList = new ArrayList<>();
+            pendingMap.forEach((path, fileEvent) -> {
+                if (now - fileEvent.lastTime >= QUIET_MILLIS || now - fileEvent.firstTime >= MAX_DELAY_MILLIS) {
+                    if (pendingMap.remove(path, fileEvent)) {
+                        readyList.add(fileEvent);
+                    }
+                }
+            });
+            if (readyList.isEmpty()) {
+                processing.set(false);
+                return;
+            }
+            processExecutor.execute(() -> {
+                try {
+                    process(readyList);
+                } finally {
+                    processing.set(false);
+                }
+            });
+        } catch (Exception e) {
+            processing.set(false);
+            log.error("处理文件监控事件失败", e);
+        }
+    }
+
+    /***
+     * 处理一批事件, 在处理线程中执行
+     */
+    private void process(List<FileEvent> readyList) {
+        if (readyList.isEmpty()) {
+            return;
+        }
+        try {
+            // 按路径排序, 上级目录先于子文件处理
+            readyList.sort(Comparator.comparing(fileEvent -> fileEvent.file.getAbsolutePath()));
+            Map<String, List<File>> createMap = new LinkedHashMap<>();
+            for (FileEvent fileEvent : readyList) {
+                process(fileEvent, createMap);
+            }
+            createMap.forEach((username, fileList) -> {
+                for (int i = 0; i < fileList.size(); i += BATCH_SIZE) {
+                    List<File> batch = fileList.subList(i, Math.min(i + BATCH_SIZE, fileList.size()));
+                    try {
+                        fileService.createFiles(username, batch);
+                        log.info("用户:{},新建文件:{}个", username, batch.size());
+                    } catch (Exception e) {
+                        log.error("批量新建文件失败, username: {}", username, e);
+                    }
+                }
+            });
+            processedCount.addAndGet(readyList.size());
+            long finishTime = System.currentTimeMillis();
+            lag = readyList.stream().mapToLong(fileEvent -> finishTime - fileEvent.firstTime).max().orElse(0);
+        } catch (Exception e) {
+            log.error("处理文件监控事件失败", e);
+        }
+    }
+
+    /***
+     * 根据合并后的事件和文件当前的状态决定如何处理
+     * 文件已不存在: 删除
+     * 文件存在: 包含新建事件的加入批量新建, 包含删除(删除后又新建)或只有修改事件的更新
+     */
+    private void process(FileEvent fileEvent, Map<String, List<File>> createMap) {
+        File file = fileEvent.file;
+        String username = fileEvent.username;
+        try {
+            if (!file.exists()) {
+                fileService.deleteFile(username, file);
+                log.info("用户:{},删除文件:{}", username, file.getAbsolutePath());
+                return;
+            }
+            boolean created = (fileEvent.type & CREATE) != 0;
+            boolean deleted = (fileEvent.type & DELETE) != 0;
+            if (created) {
+                createMap.computeIfAbsent(username, key -> new ArrayList<>()).add(file);
+            }
+            if (file.isFile() && (deleted || !created)) {
+                fileService.updateFile(username, file);
+                log.info("用户:{},修改文件:{}", username, file.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            log.error("文件监控事件后续操作失败, {}", file.getAbsolutePath(), e);
+        }
+    }
+
+    /***
+     * 队列指标
+     * pending: 待处理的事件数
+     * received: 收到的事件数
+     * processed: 合并后处理的事件数
+     * lag: 最近一批事件的最大延迟(毫秒)
+     * enrichQueue: 缩略图等耗时处理的排队数
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(8);
+        metrics.put("pending", pendingMap.size() + inbox.size());
+        metrics.put("received", receivedCount.get());
+        metrics.put("processed", processedCount.get());
+        metrics.put("lag", lag);
+        metrics.put("enrichQueue", CommonFileService.getEnrichQueueSize());
+        return metrics;
+    }
+
+    private void logMetrics() {
+        if (pendingMap.isEmpty() && inbox.isEmpty() && CommonFileService.getEnrichQueueSize() == 0) {
+            return;
+        }
+        log.info("文件监控事件队列: {}", getMetrics());
+    }
+
+    private static class FileEvent {
+        private final String username;
+        private final File file;
+        private final long firstTime;
+        private volatile int type;
+        private volatile long lastTime;
+
+        private FileEvent(String username, File file, int type, long time) {
+            this.username = username;
+            this.file = file;
+            this.type = type;
+            this.firstTime = time;
+            this.lastTime = time;
+        }
+    }
+}
@@ -2,14 +2,24 @@ package com.jmal.clouddisk.listener;
 
 import cn.hutool.core.text.CharSequenceUtil;
 import com.jmal.clouddisk.config.FileProperties;
-import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.CommonFileService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 文件变化监听器
@@ -17,6 +27,7 @@ import java.nio.file.Paths;
  * 在Apache的Commons-IO中有关于文件的监控功能的代码. 文件监控的原理如下：
  * 由文件监控类FileAlterationMonitor中的线程不停的扫描文件观察器FileAlterationObserver，
  * 如果有文件的变化，则根据相关的文件比较器，判断文件时新增，还是删除，还是更改。（默认为1000毫秒执行一次扫描）
+ * 变化的文件交给 {@link FileEventQueue} 合并后分批处理
  *
  * @author jmal
  */
@@ -28,7 +39,13 @@ public class FileListener extends FileAlterationListenerAdaptor {
     FileProperties fileProperties;
 
     @Autowired
-    IFileService fileService;
+    FileEventQueue fileEventQueue;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    IUserService userService;
 
     /**
      * 文件创建执行
@@ -40,8 +57,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.createFile(username,file);
-            log.info("用户:{},新建文件:{}",username,file.getAbsolutePath());
+            fileEventQueue.onCreate(username,file);
         }catch (Exception e){
             log.error("新建文件后续操作失败, " + file.getAbsolutePath(), e);
         }
@@ -57,8 +73,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.updateFile(username,file);
-            log.info("用户:{},修改文件:{}",username,file.getAbsolutePath());
+            fileEventQueue.onChange(username,file);
         }catch (Exception e){
             log.error("修改文件后续操作失败", e);
         }
@@ -74,8 +89,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.deleteFile(username,file);
-            log.info("用户:{},删除文件:{}",username,file.getAbsolutePath());
+            fileEventQueue.onDelete(username,file);
         }catch (Exception e){
             log.error("删除文件后续操作失败", e);
         }
@@ -91,8 +105,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.createFile(username,directory);
-            log.info("用户:{},新建目录:{}",username,directory.getAbsolutePath());
+            fileEventQueue.onCreate(username,directory);
         }catch (Exception e){
             log.error("新建目录后续操作失败", e);
         }
@@ -121,13 +134,43 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.deleteFile(username,directory);
-            log.info("用户:{},删除目录:{}",username,directory.getAbsolutePath());
+            fileEventQueue.onDelete(username,directory);
         }catch (Exception e){
             log.error("删除目录后续操作失败", e);
         }
     }
 
+    /***
+     * 查询目录下已有的记录, 用于监控事件溢出后比较差异
+     * @param directory 目录
+     * @return key: name, value: 包含name、size、updateDate、isFolder; 不属于任何用户的目录返回null
+     */
+    public Map<String, Document> listIndexedChildren(File directory) {
+        String username = ownerOfChangeFile(directory);
+        if (CharSequenceUtil.isBlank(username)) {
+            return null;
+        }
+        String userId = userService.getUserIdByUserName(username);
+        if (CharSequenceUtil.isBlank(userId)) {
+            return null;
+        }
+        Path relativePath = Paths.get(fileProperties.getRootDir(), username).relativize(directory.toPath());
+        StringBuilder path = new StringBuilder("/");
+        for (Path name : relativePath) {
+            if (!name.toString().isEmpty()) {
+                path.append(name).append("/");
+            }
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").is(path.toString()));
+        query.fields().include("name").include("size").include("updateDate").include(Constants.IS_FOLDER);
+        List<Document> documentList = mongoTemplate.find(query, Document.class, CommonFileService.COLLECTION_NAME);
+        Map<String, Document> documentMap = new HashMap<>(documentList.size());
+        documentList.forEach(document -> documentMap.put(document.getString("name"), document));
+        return documentMap;
+    }
+
     /***
      * 判断变化的文件属于哪个用户
      * @return username
@@ -1,12 +1,15 @@
 package com.jmal.clouddisk.listener;
 
 import cn.hutool.core.date.DateUnit;
+import cn.hutool.core.date.TimeInterval;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.util.StrUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.MongodbIndex;
+import com.jmal.clouddisk.service.impl.BlobService;
+import com.jmal.clouddisk.service.impl.UploadSessionService;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import com.jmal.clouddisk.util.SystemUtil;
 import jakarta.annotation.PostConstruct;
@@ -19,6 +22,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Set;
@@ -47,6 +51,13 @@ public class FileMonitor {
 
     private FileAlterationObserver observer;
 
+    private FileWatchMonitor fileWatchMonitor;
+
+    /***
+     * 基于WatchService的事件驱动监控模式
+     */
+    public static final String MONITOR_MODE_WATCH = "watch";
+
     private boolean isMonitor = false;
 
     @Value("${version}")
@@ -69,9 +80,14 @@ public class FileMonitor {
         }
         Path rootDir = Paths.get(fileProperties.getRootDir());
         PathUtil.mkdir(rootDir);
+        FILTER_DIR_SET.add(fileProperties.getChunkFileDir());
+        if (MONITOR_MODE_WATCH.equals(fileProperties.getMonitorMode()) && startWatchMonitor()) {
+            // 检测mongo索引
+            mongodbIndex.checkMongoIndex();
+            return;
+        }
         // 轮询间隔(秒)
         long interval = TimeUnit.SECONDS.toMillis(fileProperties.getTimeInterval());
-        FILTER_DIR_SET.add(fileProperties.getChunkFileDir());
         newObserver();
         //创建文件变化监听器
         monitor = new FileAlterationMonitor(interval, observer);
@@ -83,6 +99,25 @@ public class FileMonitor {
         mongodbIndex.checkMongoIndex();
     }
 
+    /***
+     * 开启WatchService监控
+     * @return 是否开启成功, 失败时回退到轮询
+     */
+    private boolean startWatchMonitor() {
+        TimeInterval timeInterval = new TimeInterval();
+        Path rootDir = Paths.get(fileProperties.getRootDir());
+        fileWatchMonitor = new FileWatchMonitor(fileProperties.getRootDir(), new TempDirFilter(fileProperties.getRootDir(), FILTER_DIR_SET), fileListener);
+        try {
+            fileWatchMonitor.start();
+        } catch (IOException e) {
+            fileWatchMonitor = null;
+            log.error("WatchService文件监控开启失败, 回退到轮询模式, {}", e.getMessage(), e);
+            return false;
+        }
+        log.info("\r\n文件监控服务已开启(WatchService):\r\n监控目录数:{}\n注册耗时:{}ms\n监控目录:{}\n忽略目录:{}", fileWatchMonitor.getWatchCount(), timeInterval.intervalMs(), rootDir, rootDir + File.separator + fileProperties.getChunkFileDir());
+        return true;
+    }
+
     private void newObserver() {
         // 创建过滤器
         TempDirFilter tempDirFilter = new TempDirFilter(fileProperties.getRootDir(), FILTER_DIR_SET);
@@ -92,6 +127,15 @@ public class FileMonitor {
     }
 
     private void reloadObserver() {
+        if (fileWatchMonitor != null) {
+            try {
+                fileWatchMonitor.reload(new TempDirFilter(fileProperties.getRootDir(), FILTER_DIR_SET));
+                log.info("reload FileWatchMonitor, filterDir: {}", FILTER_DIR_SET);
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+            return;
+        }
         if (monitor == null) {
             return;
         }
@@ -186,7 +230,10 @@ public class FileMonitor {
         // 临时目录
         Path tempPath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
         for (File username : FileUtil.ls(tempPath.toString())) {
-            if (username.isDirectory()) {
+            // 缩略图和图片缓存目录不是临时文件, 上传会话由UploadSessionService按有效期清理, blob由BlobService按引用清理
+            boolean cacheDir = fileProperties.getThumbnailCache().equals(username.getName()) || fileProperties.getImageCache().equals(username.getName())
+                    || UploadSessionService.SESSION_DIR.equals(username.getName()) || BlobService.BLOB_DIR.equals(username.getName());
+            if (username.isDirectory() && !cacheDir) {
                 for (File file : FileUtil.ls(username.getAbsolutePath())) {
                     // 是否为七天前的文件
                     boolean sevenDayAgo = file.lastModified() < (System.currentTimeMillis() - DateUnit.DAY.getMillis() * 7);
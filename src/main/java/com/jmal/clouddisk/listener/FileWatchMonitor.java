@@ -0,0 +1,281 @@
+package com.jmal.clouddisk.listener;
+
+import cn.hutool.core.convert.Convert;
+import com.jmal.clouddisk.service.Constants;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * @Description 基于WatchService(Linux下为inotify)的文件监控
+ * 递归注册 ${rootDir} 下的所有目录, 由内核推送变化事件, 不再定时遍历整个目录树,
+ * 事件溢出(OVERFLOW)时只比较溢出目录的直接子文件和数据库中的记录, 事件分发给 {@link FileListener}
+ * @author jmal
+ * @date 2024/1/18 10:12
+ */
+@Slf4j
+public class FileWatchMonitor {
+
+    private final Path rootPath;
+
+    private final FileListener fileListener;
+
+    private volatile TempDirFilter tempDirFilter;
+
+    private WatchService watchService;
+
+    /***
+     * 已注册的目录
+     * key: WatchKey
+     * value: 目录
+     */
+    private final Map<WatchKey, Path> watchKeyMap = new ConcurrentHashMap<>(1024);
+
+    /***
+     * 已注册的目录, 用于判断删除的是文件还是目录
+     */
+    private final Set<Path> watchDirSet = ConcurrentHashMap.newKeySet(1024);
+
+    private Thread thread;
+
+    private volatile boolean running = false;
+
+    public FileWatchMonitor(String rootDir, TempDirFilter tempDirFilter, FileListener fileListener) {
+        this.rootPath = Paths.get(rootDir);
+        this.tempDirFilter = tempDirFilter;
+        this.fileListener = fileListener;
+    }
+
+    /***
+     * 注册所有目录并开始监听
+     * @throws IOException 注册失败, 例如超出了inotify的max_user_watches限制
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            registerAll(rootPath, false);
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this::processEvents, "file-watch-monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        watchKeyMap.clear();
+        watchDirSet.clear();
+    }
+
+    /***
+     * 过滤目录变化后, 取消被过滤目录的监听, 注册不再被过滤的目录
+     * @param tempDirFilter 新的过滤器
+     */
+    public void reload(TempDirFilter tempDirFilter) throws IOException {
+        this.tempDirFilter = tempDirFilter;
+        watchKeyMap.entrySet().removeIf(entry -> {
+            if (tempDirFilter.accept(entry.getValue().toFile())) {
+                return false;
+            }
+            entry.getKey().cancel();
+            watchDirSet.remove(entry.getValue());
+            return true;
+        });
+        registerAll(rootPath, false);
+    }
+
+    public int getWatchCount() {
+        return watchKeyMap.size();
+    }
+
+    private void processEvents() {
+        while (running) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchKeyMap.get(watchKey);
+            if (dir == null) {
+                watchKey.reset();
+                continue;
+            }
+            for (WatchEvent<?> watchEvent : watchKey.pollEvents()) {
+                try {
+                    WatchEvent.Kind<?> kind = watchEvent.kind();
+                    if (kind == OVERFLOW) {
+                        log.warn("文件监控事件溢出, 重新扫描目录: {}", dir);
+                        rescan(dir);
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) watchEvent.context());
+                    File file = child.toFile();
+                    if (!tempDirFilter.accept(file)) {
+                        continue;
+                    }
+                    if (kind == ENTRY_CREATE) {
+                        onCreate(child);
+                    } else if (kind == ENTRY_MODIFY) {
+                        if (Files.isRegularFile(child, LinkOption.NOFOLLOW_LINKS)) {
+                            fileListener.onFileChange(file);
+                        }
+                    } else if (kind == ENTRY_DELETE) {
+                        onDelete(child);
+                    }
+                } catch (Exception e) {
+                    log.error("处理文件监控事件失败, dir: {}", dir, e);
+                }
+            }
+            if (!watchKey.reset()) {
+                // 目录已被删除或无法访问
+                watchKeyMap.remove(watchKey);
+                watchDirSet.remove(dir);
+            }
+        }
+    }
+
+    private void onCreate(Path child) throws IOException {
+        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            // 新目录在注册之前可能已经写入了文件, 注册时一并通知
+            registerAll(child, true);
+        } else {
+            fileListener.onFileCreate(child.toFile());
+        }
+    }
+
+    private void onDelete(Path child) {
+        if (watchDirSet.contains(child)) {
+            // 子目录的索引在删除目录时一起删除
+            watchDirSet.removeIf(path -> path.startsWith(child));
+            watchKeyMap.values().removeIf(path -> path.startsWith(child));
+            fileListener.onDirectoryDelete(child.toFile());
+        } else {
+            fileListener.onFileDelete(child.toFile());
+        }
+    }
+
+    /***
+     * 事件溢出后重新扫描目录
+     * 只比较直接子文件和数据库中的记录: 没有记录的新建, 大小或修改时间不一致的修改, 已不存在的删除;
+     * 已有记录的子目录只重新注册监听, 不通知其下的文件, 没有记录的子目录整个作为新建
+     * @param dir 溢出的目录
+     */
+    private void rescan(Path dir) throws IOException {
+        Map<String, Document> indexedMap = fileListener.listIndexedChildren(dir.toFile());
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+            for (Path child : directoryStream) {
+                File file = child.toFile();
+                if (!tempDirFilter.accept(file)) {
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                Document document = indexedMap == null ? null : indexedMap.get(child.getFileName().toString());
+                if (attrs.isDirectory()) {
+                    registerAll(child, indexedMap != null && document == null);
+                } else if (indexedMap != null && attrs.isRegularFile()) {
+                    if (document == null) {
+                        fileListener.onFileCreate(file);
+                    } else if (isModified(document, attrs)) {
+                        fileListener.onFileChange(file);
+                    }
+                }
+            }
+        }
+        if (indexedMap == null) {
+            return;
+        }
+        for (Document document : indexedMap.values()) {
+            Path child = dir.resolve(document.getString("name"));
+            if (Files.exists(child, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
+            }
+            if (Boolean.TRUE.equals(document.getBoolean(Constants.IS_FOLDER))) {
+                watchDirSet.removeIf(path -> path.startsWith(child));
+                watchKeyMap.values().removeIf(path -> path.startsWith(child));
+                fileListener.onDirectoryDelete(child.toFile());
+            } else {
+                fileListener.onFileDelete(child.toFile());
+            }
+        }
+    }
+
+    /***
+     * 大小或修改时间(精确到秒)不一致
+     */
+    private static boolean isModified(Document document, BasicFileAttributes attrs) {
+        if (Convert.toLong(document.get("size"), -1L) != attrs.size()) {
+            return true;
+        }
+        Date updateDate = document.getDate("updateDate");
+        if (updateDate == null) {
+            return true;
+        }
+        return updateDate.getTime() / 1000 != attrs.lastModifiedTime().toMillis() / 1000;
+    }
+
+    /***
+     * 递归注册目录
+     * @param start 起始目录
+     * @param notify 是否通知新建目录和文件
+     */
+    private void registerAll(Path start, boolean notify) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!tempDirFilter.accept(dir.toFile())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!watchDirSet.contains(dir)) {
+                    WatchKey watchKey = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchKeyMap.put(watchKey, dir);
+                    watchDirSet.add(dir);
+                }
+                if (notify) {
+                    fileListener.onDirectoryCreate(dir.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (notify && attrs.isRegularFile() && tempDirFilter.accept(file.toFile())) {
+                    fileListener.onFileCreate(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                log.warn("文件监控注册失败, {}, {}", file, exc.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,36 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.BlobService;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * @author jmal
+ * @Description 按内容存储的文件(blob), 用户目录下内容相同的文件都是它的硬链接
+ * @date 2024/2/9 10:20
+ */
+@Data
+@Document(collection = BlobService.COLLECTION_NAME)
+public class BlobDO {
+    /***
+     * 文件内容的SHA-256
+     */
+    @Id
+    private String id;
+    /***
+     * 文件大小
+     */
+    private long size;
+    /***
+     * 创建blob时的修改时间, 不一致说明blob被原地修改过, 不能再使用
+     */
+    private long modified;
+    /***
+     * 引用该blob的用户文件数
+     */
+    private long refCount;
+    private LocalDateTime createDate;
+}
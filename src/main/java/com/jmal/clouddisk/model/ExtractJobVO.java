@@ -0,0 +1,86 @@
+package com.jmal.clouddisk.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author jmal
+ * @Description 解压任务的进度和结果
+ * @date 2024/1/29 10:10
+ */
+@Data
+public class ExtractJobVO {
+
+    private String id;
+
+    private String username;
+
+    /***
+     * 压缩包名称
+     */
+    private String archiveName;
+
+    /***
+     * 解压到的目录(相对于用户目录)
+     */
+    private String destPath;
+
+    private boolean running = true;
+
+    private volatile boolean cancelled;
+
+    private LocalDateTime startTime = LocalDateTime.now();
+
+    private long startMillis = System.currentTimeMillis();
+
+    private long endMillis;
+
+    private long totalEntries;
+
+    private long totalBytes;
+
+    private final AtomicLong extractedEntries = new AtomicLong();
+
+    private final AtomicLong extractedBytes = new AtomicLong();
+
+    /***
+     * 之前的任务已经解压完成而跳过的条目, 重新解压时继续上次的进度
+     */
+    private final AtomicLong skippedEntries = new AtomicLong();
+
+    private String error;
+
+    public ExtractJobVO(String id, String username, String archiveName, String destPath) {
+        this.id = id;
+        this.username = username;
+        this.archiveName = archiveName;
+        this.destPath = destPath;
+    }
+
+    public void finish() {
+        running = false;
+        endMillis = System.currentTimeMillis();
+    }
+
+    /***
+     * 耗时(毫秒)
+     */
+    public long getElapsed() {
+        return (running ? System.currentTimeMillis() : endMillis) - startMillis;
+    }
+
+    /***
+     * 进度(0-100), 按解压的字节数计算
+     */
+    public int getPercent() {
+        if (!running) {
+            return 100;
+        }
+        if (totalBytes <= 0) {
+            return totalEntries <= 0 ? 0 : (int) Math.min(99, extractedEntries.get() * 100 / totalEntries);
+        }
+        return (int) Math.min(99, extractedBytes.get() * 100 / totalBytes);
+    }
+}
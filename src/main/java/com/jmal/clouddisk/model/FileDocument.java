@@ -83,6 +83,14 @@ public class FileDocument extends FileBase {
      * 文件后缀名
      */
     private String suffix;
+    /***
+     * 文件内容的SHA-256, 上传时由服务端计算, 对应的blob见BlobService
+     */
+    private String contentHash;
+    /***
+     * 计算contentHash时文件的修改时间, 文件修改后contentHash失效
+     */
+    private Long contentHashModified;
     /***
      * 文件描述
      */
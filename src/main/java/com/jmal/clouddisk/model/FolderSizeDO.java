@@ -0,0 +1,41 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.FolderSizeService;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * @author jmal
+ * @Description 文件夹大小索引, 记录文件夹下所有文件(含子目录)的累计大小和文件数
+ * @date 2024/1/16 10:21
+ */
+@Data
+@Document(collection = FolderSizeService.COLLECTION_NAME)
+@CompoundIndexes({
+        @CompoundIndex(name = "user_path", def = "{'userId': 1, 'path': 1}", unique = true),
+})
+public class FolderSizeDO {
+    @Id
+    private String id;
+    private String userId;
+    /***
+     * 文件夹完整路径, 以"/"结尾, 例如: /Document/Image/
+     */
+    private String path;
+    /***
+     * 累计大小
+     */
+    private long size;
+    /***
+     * 累计文件数
+     */
+    private long count;
+    /***
+     * 最后一次重建写入的时间戳, 增量更新新建的记录为新建时的时间戳
+     * 重建时删除小于本次重建开始时间的记录, 即不再存在的文件夹
+     */
+    private Long generation;
+}
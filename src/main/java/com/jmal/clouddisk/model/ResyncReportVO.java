@@ -0,0 +1,121 @@
+package com.jmal.clouddisk.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author jmal
+ * @Description 全量同步的进度和结果
+ * @date 2024/1/22 11:05
+ */
+@Data
+public class ResyncReportVO {
+
+    /***
+     * 每种变化最多记录的路径数(dryRun)
+     */
+    private static final int SAMPLE_SIZE = 100;
+
+    private String username;
+
+    /***
+     * 只比较差异, 不写入数据库
+     */
+    private boolean dryRun;
+
+    private boolean running = true;
+
+    private LocalDateTime startTime = LocalDateTime.now();
+
+    private long startMillis = System.currentTimeMillis();
+
+    private long endMillis;
+
+    /***
+     * 同步前数据库中的记录数, 用于估算进度
+     */
+    private long estimatedCount;
+
+    private final AtomicLong scannedDirs = new AtomicLong();
+
+    private final AtomicLong scannedFiles = new AtomicLong();
+
+    private final AtomicLong inserted = new AtomicLong();
+
+    private final AtomicLong updated = new AtomicLong();
+
+    private final AtomicLong deleted = new AtomicLong();
+
+    private final List<String> insertSamples = new CopyOnWriteArrayList<>();
+
+    private final List<String> updateSamples = new CopyOnWriteArrayList<>();
+
+    private final List<String> deleteSamples = new CopyOnWriteArrayList<>();
+
+    private String error;
+
+    public ResyncReportVO(String username, boolean dryRun) {
+        this.username = username;
+        this.dryRun = dryRun;
+    }
+
+    public void addInsert(String path) {
+        inserted.incrementAndGet();
+        addSample(insertSamples, path);
+    }
+
+    public void addUpdate(String path) {
+        updated.incrementAndGet();
+        addSample(updateSamples, path);
+    }
+
+    public void addDelete(String path) {
+        deleted.incrementAndGet();
+        addSample(deleteSamples, path);
+    }
+
+    private void addSample(List<String> samples, String path) {
+        if (dryRun && samples.size() < SAMPLE_SIZE) {
+            samples.add(path);
+        }
+    }
+
+    public void finish() {
+        running = false;
+        endMillis = System.currentTimeMillis();
+    }
+
+    /***
+     * 耗时(毫秒)
+     */
+    public long getElapsed() {
+        return (running ? System.currentTimeMillis() : endMillis) - startMillis;
+    }
+
+    /***
+     * 每秒扫描的文件数
+     */
+    public long getThroughput() {
+        long elapsed = Math.max(1, getElapsed());
+        return (scannedDirs.get() + scannedFiles.get()) * 1000 / elapsed;
+    }
+
+    /***
+     * 进度(0-100), 按数据库中的记录数估算
+     */
+    public int getPercent() {
+        if (!running) {
+            return 100;
+        }
+        long scanned = scannedDirs.get() + scannedFiles.get();
+        long total = Math.max(estimatedCount, scanned);
+        if (total == 0) {
+            return 0;
+        }
+        return (int) Math.min(99, scanned * 100 / total);
+    }
+}
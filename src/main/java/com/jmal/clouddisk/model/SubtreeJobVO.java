@@ -0,0 +1,83 @@
+package com.jmal.clouddisk.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author jmal
+ * @Description 重命名、移动、复制任务的进度和结果
+ * @date 2024/1/30 09:40
+ */
+@Data
+public class SubtreeJobVO {
+
+    private String id;
+
+    private String username;
+
+    /***
+     * 操作: 重命名、移动、复制
+     */
+    private String operation;
+
+    private boolean running = true;
+
+    private volatile boolean cancelled;
+
+    private LocalDateTime startTime = LocalDateTime.now();
+
+    private long startMillis = System.currentTimeMillis();
+
+    private long endMillis;
+
+    /***
+     * 已处理的文件/文件夹数
+     */
+    private final AtomicLong processed = new AtomicLong();
+
+    /***
+     * 需要复制的字节数
+     */
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    /***
+     * 已复制的字节数
+     */
+    private final AtomicLong copiedBytes = new AtomicLong();
+
+    private String error;
+
+    public SubtreeJobVO(String id, String username, String operation) {
+        this.id = id;
+        this.username = username;
+        this.operation = operation;
+    }
+
+    public void finish() {
+        running = false;
+        endMillis = System.currentTimeMillis();
+    }
+
+    /***
+     * 耗时(毫秒)
+     */
+    public long getElapsed() {
+        return (running ? System.currentTimeMillis() : endMillis) - startMillis;
+    }
+
+    /***
+     * 进度(0-100), 按复制的字节数计算, 没有复制文件时为0
+     */
+    public int getPercent() {
+        if (!running) {
+            return 100;
+        }
+        long total = totalBytes.get();
+        if (total <= 0) {
+            return 0;
+        }
+        return (int) Math.min(99, copiedBytes.get() * 100 / total);
+    }
+}
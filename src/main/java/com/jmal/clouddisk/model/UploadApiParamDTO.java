@@ -39,6 +39,14 @@ public class UploadApiParamDTO {
      * 文件唯一标识MD5
      */
     String identifier;
+    /***
+     * 文件内容的SHA-256, 客户端提供时用于秒传
+     */
+    String contentHash;
+    /***
+     * 秒传的持有证明, 对checkChunk返回的challenge计算的SHA-256
+     */
+    String proof;
     /***
      * 文件或文件夹名
      */
@@ -144,6 +152,10 @@ public class UploadApiParamDTO {
      * 要查询的排序顺序
      */
     String order;
+    /***
+     * 分页游标, 上一页返回的nextCursor, 有游标时忽略pageIndex
+     */
+    String cursor;
     /***
      * 是否为草稿
      */
@@ -0,0 +1,23 @@
+package com.jmal.clouddisk.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * @author jmal
+ * @Description 秒传前的持有证明
+ * 客户端计算 SHA-256(nonce + 按顺序拼接的各区间的内容), 以proof参数再次调用checkChunk
+ * @date 2024/2/9 10:20
+ */
+@Data
+public class UploadChallenge {
+    /***
+     * 随机数, 只能使用一次
+     */
+    private String nonce;
+    /***
+     * 需要读取的区间, [开始位置, 结束位置(包含)]
+     */
+    private List<long[]> ranges;
+}
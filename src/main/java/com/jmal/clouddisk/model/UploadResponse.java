@@ -30,6 +30,10 @@ public class UploadResponse {
      * 上传后是合并完成
      */
     boolean merge;
+    /***
+     * 服务端已有相同内容的文件, 客户端先证明持有该文件才能秒传
+     */
+    UploadChallenge challenge;
 
     public UploadResponse() {
         this.pass = false;
@@ -0,0 +1,48 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.UploadSessionService;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * @author jmal
+ * @Description 分片上传会话, 记录已完成的分片, 用于重启后断点续传
+ * @date 2024/1/26 16:40
+ */
+@Data
+@Document(collection = UploadSessionService.COLLECTION_NAME)
+public class UploadSessionDO {
+    /***
+     * username/identifier
+     */
+    @Id
+    private String id;
+    private String username;
+    /***
+     * 文件唯一标识
+     */
+    private String identifier;
+    /***
+     * 总分片数
+     */
+    private int totalChunks;
+    /***
+     * 分片大小
+     */
+    private long chunkSize;
+    /***
+     * 文件总大小
+     */
+    private long totalSize;
+    /***
+     * 已完成的分片(BitSet), 第n个分片对应第n-1位
+     */
+    private byte[] chunks;
+    /***
+     * 最后一次上传分片的时间, 超过uploadSessionExpireDays后清理
+     */
+    private LocalDateTime updateDate;
+}
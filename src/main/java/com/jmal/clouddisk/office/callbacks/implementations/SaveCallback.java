@@ -7,6 +7,7 @@ import com.jmal.clouddisk.office.callbacks.Callback;
 import com.jmal.clouddisk.office.callbacks.Status;
 import com.jmal.clouddisk.office.model.Track;
 import com.jmal.clouddisk.service.IFileVersionService;
+import com.jmal.clouddisk.service.impl.BlobService;
 import com.jmal.clouddisk.service.impl.CommonFileService;
 import com.jmal.clouddisk.service.impl.FileServiceImpl;
 import com.jmal.clouddisk.service.impl.UserLoginHolder;
@@ -44,6 +45,8 @@ public class SaveCallback implements Callback {
 
     private final IFileVersionService fileVersionService;
 
+    private final BlobService blobService;
+
     @Override
     public int handle(Track body) {
         int result = 0;
@@ -59,6 +62,7 @@ public class SaveCallback implements Callback {
             fileVersionService.saveFileVersion(userLoginHolder.getUsername(), relativePath, userLoginHolder.getUserId());
 
             // 下载最新的文件
+            blobService.beforeOverwrite(path.toFile());
             long size = HttpUtil.downloadFile(body.getUrl(), path.toString());
             String md5 = size + "/" + fileDocument.getName();
             LocalDateTime updateDate = LocalDateTime.now(TimeUntils.ZONE_ID);
@@ -11,7 +11,6 @@ import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import com.jmal.clouddisk.util.FileContentTypeUtils;
-import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
@@ -22,10 +21,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -38,17 +35,10 @@ public class BaseOssService {
 
     private final FileProperties fileProperties;
     /**
-     * 目录下文件名列表缓存 </br>
-     * key: objectName </br>
-     * value: object下的文件名列表 </br>
-     */
-    private final Cache<String, List<FileInfo>> fileInfoListCache;
-    /**
-     * object缓存 </br>
-     * key: objectName </br>
-     * value: FileInfo </br>
+     * object和目录下文件列表的缓存 </br>
+     * 按目录组织成前缀树, 修改后直接更新对应的节点 </br>
      */
-    private final Cache<String, FileInfo> fileInfoCache;
+    private final OssMetadataCache metadataCache;
     /**
      * 临时文件缓存 </br>
      * key: objectName </br>
@@ -63,11 +53,31 @@ public class BaseOssService {
     private final Cache<String, Set<String>> tempFileListCache;
 
     /**
-     * 等待上传文件的缓存 </br>
-     * key: objectName </br>
-     * value: 临时文件绝对路径 </br>
+     * 写回上传队列 </br>
+     * 写入临时文件的文件由该队列上传, 上传完成后删除临时文件 </br>
+     */
+    private final OssUploadQueue uploadQueue;
+
+    /**
+     * 获取文件夹修改时间的HEAD请求并发数(每个bucket)
+     */
+    private static final int STAT_CONCURRENCY = 8;
+
+    /**
+     * 获取文件夹修改时间的HEAD请求 </br>
+     * 每个bucket最多STAT_CONCURRENCY个并发, 排队的请求超过上限时不再提交, 下次列举时再获取 </br>
+     */
+    private final ThreadPoolExecutor statExecutor;
+
+    /**
+     * 正在获取修改时间的文件夹 </br>
      */
-    private final Cache<String, Path> waitingUploadCache;
+    private final Set<String> statingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 没有文件夹对象(HEAD返回不存在)的文件夹, 一段时间内不再重复请求 </br>
+     */
+    private final Cache<String, Boolean> statMissCache;
 
     private final Map<String, String> updateIdCache = new ConcurrentHashMap<>();
 
@@ -81,12 +91,17 @@ public class BaseOssService {
         this.ossService = ossService;
         this.bucketName = bucketName;
         this.fileProperties = fileProperties;
-        scheduledThreadPoolExecutor.scheduleWithFixedDelay(this::checkUpload, 1, 1, TimeUnit.SECONDS);
-        this.fileInfoListCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
-        this.fileInfoCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
+        this.metadataCache = new OssMetadataCache(fileProperties.getOssCacheRefreshAfter(), fileProperties.getOssCacheTtl(), fileProperties.getOssCacheMaxSize());
         this.tempFileCache = Caffeine.newBuilder().build();
         this.tempFileListCache = Caffeine.newBuilder().build();
-        this.waitingUploadCache = Caffeine.newBuilder().build();
+        this.statMissCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(1, TimeUnit.HOURS).build();
+        this.statExecutor = new ThreadPoolExecutor(STAT_CONCURRENCY, STAT_CONCURRENCY, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(4096),
+                ThreadUtil.newNamedThreadFactory("oss-stat-" + bucketName + "-", true));
+        this.statExecutor.allowCoreThreadTimeOut(true);
+        Path journalDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), "ossWriteBack", ossConfigDTO.getUsername(), ossConfigDTO.getFolderName());
+        this.uploadQueue = new OssUploadQueue(ossService, this, journalDir, scheduledThreadPoolExecutor, fileProperties.getOssUploadConcurrency());
+        // 上次没有上传完的临时文件
+        this.uploadQueue.recover().forEach(this::setTempFileCache);
         log.info("{}配置加载成功, bucket: {}, username: {}, {}", ossService.getPlatform().getValue(), bucketName, ossConfigDTO.getUsername(), ossService.hashCode());
     }
 
@@ -129,6 +144,7 @@ public class BaseOssService {
             throw new CommonException(ExceptionType.LOCKED_RESOURCES);
         }
         boolean deleted;
+        uploadQueue.cancel(objectName);
         deleteTempFileCache(objectName);
         if (objectName.endsWith("/")) {
             // 删除目录
@@ -174,12 +190,14 @@ public class BaseOssService {
                     PathUtil.mkdir(parentPath);
                 }
             }
+            uploadQueue.beginWrite(objectName, tempFileAbsolutePath);
             Files.copy(inputStream, tempFileAbsolutePath, StandardCopyOption.REPLACE_EXISTING);
             setTempFileCache(objectName, tempFileAbsolutePath);
-            setWaitingUploadCache(objectName, tempFileAbsolutePath);
-            // 稍后执行真正的上传, 在 checkUpload 方法里
+            // 稍后由上传队列执行真正的上传
+            uploadQueue.endWrite(objectName, true);
             return true;
         } catch (IOException e) {
+            uploadQueue.endWrite(objectName, false);
             log.warn(e.getMessage(), e);
             return false;
         }
@@ -198,15 +216,7 @@ public class BaseOssService {
     }
 
     public List<FileInfo> getFileInfoListCache(String objectName) {
-        return fileInfoListCache.get(objectName, key -> {
-            List<FileInfo> fileInfos = ossService.getFileInfoList(objectName);
-            if (fileInfos != null && !fileInfos.isEmpty()) {
-                for (FileInfo fileInfo : fileInfos) {
-                    setFileInfoCache(fileInfo.getKey(), fileInfo);
-                }
-            }
-            return fileInfos;
-        });
+        return metadataCache.getListing(objectName, ossService::getFileInfoList);
     }
 
     public AbstractOssObject getObject(String objectName) {
@@ -235,40 +245,7 @@ public class BaseOssService {
      */
     private void onDeleteSuccess(String objectName) {
         log.info("delete success: {}", objectName);
-        FileInfo fileInfo = getFileInfoCache(objectName);
-        if (fileInfo != null) {
-            clearFileCache(objectName);
-            clearFileListCache(objectName);
-        }
-    }
-
-    private void clearFileListCache(String objectName) {
-        Path objectNamePath = Paths.get(objectName);
-        if (objectNamePath.getNameCount() > 1) {
-            String pathObjectName = objectNamePath.getParent().toString() + MyWebdavServlet.PATH_DELIMITER;
-            fileInfoListCache.invalidate(pathObjectName);
-            for (String key : fileInfoListCache.asMap().keySet()) {
-                if (key.startsWith(objectName)) {
-                    fileInfoListCache.invalidate(key);
-                }
-            }
-        } else {
-            fileInfoListCache.invalidate(objectName);
-            fileInfoListCache.invalidate("");
-        }
-    }
-
-    private void clearFileCache(String objectName) {
-        if (objectName.endsWith("/")) {
-            fileInfoCache.invalidate(objectName.substring(0,objectName.length() - 1));
-            for (String key : fileInfoCache.asMap().keySet()) {
-                if (key.startsWith(objectName)) {
-                    fileInfoCache.invalidate(key);
-                }
-            }
-        } else {
-            fileInfoCache.invalidate(objectName);
-        }
+        metadataCache.onDeleted(objectName);
     }
 
     /**
@@ -278,10 +255,11 @@ public class BaseOssService {
      */
     public void onUploadSuccess(String objectName, Path tempFileAbsolutePath) {
         log.info("upload success: {}", objectName);
-        clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, tempFileAbsolutePath.toFile()));
-        clearFileListCache(objectName);
-        removeWaitingUploadCache(objectName);
+        FileInfo fileInfo = newFileInfo(objectName, tempFileAbsolutePath.toFile());
+        if (!uploadQueue.isPending(objectName)) {
+            clearTempFileCache(objectName);
+        }
+        metadataCache.onCreated(objectName, fileInfo);
     }
 
     /**
@@ -291,10 +269,28 @@ public class BaseOssService {
      */
     public void onUploadSuccess(String objectName, Long fileSize) {
         log.info("upload success: {}", objectName);
+        // 上传队列的分片上传, 临时文件由上传队列删除
+        uploadQueue.onCompleted(objectName);
+        if (!uploadQueue.isPending(objectName)) {
+            clearTempFileCache(objectName);
+        }
+        metadataCache.onCreated(objectName, newFileInfo(objectName, fileSize));
+    }
+
+    /**
+     * 上传队列上传临时文件成功后，要干的事
+     * @param objectName objectName
+     * @param tempFileAbsolutePath 临时文件绝对路径
+     */
+    void onWriteBackSuccess(String objectName, Path tempFileAbsolutePath) {
+        log.info("upload success: {}", objectName);
+        FileInfo fileInfo = newFileInfo(objectName, tempFileAbsolutePath.toFile());
         clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, fileSize));
-        clearFileListCache(objectName);
-        removeWaitingUploadCache(objectName);
+        metadataCache.onCreated(objectName, fileInfo);
+    }
+
+    public OssUploadQueue.Stats getUploadQueueStats() {
+        return uploadQueue.getStats();
     }
 
     /**
@@ -304,8 +300,7 @@ public class BaseOssService {
      */
     private void onMkdirSuccess(String objectName, FileInfo fileInfo) {
         log.info("mkdir success: {}", objectName);
-        setFileInfoCache(objectName, fileInfo);
-        clearFileListCache(objectName);
+        metadataCache.onCreated(objectName, fileInfo);
     }
 
     /**
@@ -346,29 +341,111 @@ public class BaseOssService {
     }
 
     /**
-     * <p>检查是否有需要上传的文件 </p>
-     * 有等待上传的文件且文件的最后修改时间大于5秒就上传 <br/>
-     * 该方法每秒执行一次 <br/>
+     * 获取目录下的文件和文件夹
+     * @param objectName 目录的objectName, 根目录为""
+     * @param fetcher 获取一页
+     * @return 目录下的文件和文件夹
+     */
+    public List<FileInfo> listObjects(String objectName, ListObjectsPage.Fetcher fetcher) {
+        List<FileInfo> fileInfoList = new ArrayList<>();
+        listObjects(objectName, fetcher, fileInfoList::add);
+        statFolders(fileInfoList);
+        return fileInfoList;
+    }
+
+    /**
+     * 分页获取目录下的文件和文件夹, 每获取一页就交给consumer </br>
+     * 文件夹的修改时间不在列举时获取: 已经缓存的使用缓存, 列举该文件夹时从文件夹对象(以"/"结尾的空对象)得到 </br>
+     * @param objectName 目录的objectName, 根目录为""
+     * @param fetcher 获取一页
+     * @param consumer 接收每一个文件和文件夹
      */
-    private void checkUpload() {
-        getWaitingUploadCacheMap().forEach((objectName, tempFileAbsolutePath) -> {
-            long lastModified = tempFileAbsolutePath.toFile().lastModified();
-            // 临时文件的最后修改时间大于5秒就上传
-            if ((System.currentTimeMillis() - lastModified) > 5000) {
-                removeWaitingUploadCache(objectName);
-                ThreadUtil.execute(() -> ossService.uploadFile(tempFileAbsolutePath, objectName));
+    public void listObjects(String objectName, ListObjectsPage.Fetcher fetcher, Consumer<FileInfo> consumer) {
+        printOperation(ossService.getPlatform().getKey(), "listObjects", objectName);
+        String marker = null;
+        try {
+            do {
+                ListObjectsPage page = fetcher.fetch(marker);
+                for (S3ObjectSummary objectSummary : page.getObjectSummaries()) {
+                    if (objectSummary.getKey().equals(objectName)) {
+                        onFolderObject(objectName, objectSummary);
+                    } else {
+                        consumer.accept(getFileInfo(objectSummary));
+                    }
+                }
+                for (String commonPrefix : page.getCommonPrefixes()) {
+                    consumer.accept(newFolderFileInfo(commonPrefix));
+                }
+                if (page.getNextMarker() != null && page.getNextMarker().equals(marker)) {
+                    break;
+                }
+                marker = page.getNextMarker();
+            } while (marker != null);
+        } catch (Exception e) {
+            // 不能把已经获取的部分当作完整的列表
+            log.error("获取列表失败: {}, marker: {}, {}", objectName, marker, e.getMessage(), e);
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "获取列表失败");
+        }
+    }
+
+    /**
+     * 列举到文件夹对象本身, 用它的修改时间作为文件夹的修改时间
+     */
+    private void onFolderObject(String objectName, S3ObjectSummary objectSummary) {
+        FileInfo fileInfo = getFileInfoCache(objectName);
+        if (fileInfo == null) {
+            fileInfo = newFileInfo(objectName);
+            if (objectSummary.getLastModified() != null) {
+                fileInfo.setLastModified(objectSummary.getLastModified());
             }
-        });
+            setFileInfoCache(objectName, fileInfo);
+        } else if (objectSummary.getLastModified() != null) {
+            // 在缓存的锁内替换, 上级目录的列表也会更新
+            metadataCache.setLastModified(objectName, objectSummary.getLastModified());
+        }
     }
 
-    public void addFileInfoList(String objectName, List<FileInfo> fileInfoList, S3ObjectSummary s3ObjectSummary) {
-        if (!s3ObjectSummary.getKey().equals(objectName)) {
-            FileInfo fileInfo = getFileInfo(s3ObjectSummary);
-            fileInfoList.add(fileInfo);
-        } else {
-            FileInfo fileInfo = getFileInfoCache(objectName);
-            if (fileInfo == null) {
-                setFileInfoCache(objectName, newFileInfo(objectName));
+    private FileInfo newFolderFileInfo(String objectName) {
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setKey(objectName);
+        fileInfo.setBucketName(bucketName);
+        FileInfo cached = metadataCache.getFileInfo(objectName);
+        if (cached != null) {
+            fileInfo.setLastModified(cached.getLastModified());
+        }
+        return fileInfo;
+    }
+
+    /**
+     * 在后台获取还不知道修改时间的文件夹的修改时间, 每个bucket的并发数有上限
+     * @param fileInfoList 目录下的文件和文件夹
+     */
+    private void statFolders(List<FileInfo> fileInfoList) {
+        for (FileInfo fileInfo : fileInfoList) {
+            String key = fileInfo.getKey();
+            if (!fileInfo.isFolder() || fileInfo.getLastModified() != null || statMissCache.getIfPresent(key) != null || !statingKeys.add(key)) {
+                continue;
+            }
+            try {
+                statExecutor.execute(() -> {
+                    try {
+                        Date lastModified = ossService.getLastModified(key);
+                        if (lastModified == null) {
+                            statMissCache.put(key, true);
+                        } else {
+                            // 列表已经发布到缓存中, 不直接修改其中的FileInfo
+                            metadataCache.setLastModified(key, lastModified);
+                        }
+                    } catch (Exception e) {
+                        log.warn("获取文件夹修改时间失败: {}, {}", key, e.getMessage());
+                    } finally {
+                        statingKeys.remove(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 排队的请求已满, 下次列举时再获取
+                statingKeys.remove(key);
+                break;
             }
         }
     }
@@ -433,17 +510,14 @@ public class BaseOssService {
     }
 
     private void setFileInfoCache(String key, FileInfo fileInfo) {
-        if (key.length() > 1 && key.endsWith("/")) {
-            key = key.substring(0, key.length() - 1);
-        }
-        fileInfoCache.put(key, fileInfo);
+        metadataCache.putFileInfo(key, fileInfo);
     }
 
     private FileInfo getFileInfoCache(String key) {
         if (key.length() > 1 && key.endsWith("/")) {
             key = key.substring(0, key.length() - 1);
         }
-        FileInfo fileInfo = fileInfoCache.getIfPresent(key);
+        FileInfo fileInfo = metadataCache.getFileInfo(key);
         if (fileInfo == null) {
             Path path = getTempFileCache(key);
             if (path != null) {
@@ -516,18 +590,6 @@ public class BaseOssService {
         return tempFileCache.getIfPresent(objectName);
     }
 
-    private void setWaitingUploadCache(String objectName, Path tempFileAbsolutePath) {
-        waitingUploadCache.put(objectName, tempFileAbsolutePath);
-    }
-
-    private Map<String, Path> getWaitingUploadCacheMap() {
-        return waitingUploadCache.asMap();
-    }
-
-    private void removeWaitingUploadCache(String objectName) {
-        waitingUploadCache.invalidate(objectName);
-    }
-
     public void setObjectNameLock(String objectName) {
         objectNameLock.add(objectName);
     }
@@ -552,11 +614,12 @@ public class BaseOssService {
     }
 
     public void clearCache(String objectName) {
-        clearFileCache(objectName);
-        clearFileListCache(objectName);
+        metadataCache.invalidate(objectName);
     }
 
     public void closePrint() {
+        statExecutor.shutdownNow();
+        uploadQueue.close();
         log.info("platform: {}, bucketName: {} shutdown... {}", this.ossService.getPlatform().getValue(), bucketName, this.ossService.hashCode());
     }
 }
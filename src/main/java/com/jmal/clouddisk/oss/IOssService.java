@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Path;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -77,6 +78,17 @@ public interface IOssService {
      */
     AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd);
 
+    /**
+     * 获取 AbstractOssObject, 只有object的eTag仍为指定值时才返回(If-Match)
+     * @param objectName object key
+     * @param rangeStart rangeStart 分段
+     * @param rangeEnd rangeEnd 分段
+     * @param eTag 第一段响应的eTag, 为null时不校验
+     * @return AbstractOssObject
+     * @throws ObjectChangedException object已修改(412)
+     */
+    AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd, String eTag) throws ObjectChangedException;
+
     /**
      * 删除文件
      * @param objectName object key
@@ -123,6 +135,14 @@ public interface IOssService {
      */
     void uploadFile(Path tempFileAbsolutePath, String objectName);
 
+    /**
+     * 上传文件到 OSS, 只上传, 不更新缓存也不删除文件
+     * @param file 文件的绝对路径
+     * @param objectName object key
+     * @return 是否上传成功
+     */
+    boolean putObject(Path file, String objectName);
+
     /**
      * 上传文件到 OSS
      * @param inputStream inputStream
@@ -140,6 +160,13 @@ public interface IOssService {
      */
     boolean doesObjectExist(String objectName);
 
+    /**
+     * 获取对象的最后修改时间(HEAD请求)
+     * @param objectName object key
+     * @return 对象不存在时返回null
+     */
+    Date getLastModified(String objectName);
+
     /**
      * 获取分片上传事件的唯一标识
      * @param objectName objectName
@@ -244,6 +271,12 @@ public interface IOssService {
      */
     void clearCache(String objectName);
 
+    /**
+     * 获取写回上传队列的状态
+     * @return OssUploadQueue.Stats
+     */
+    OssUploadQueue.Stats getUploadQueueStats();
+
     /**
      * 关闭需要关闭的一切
      */
@@ -0,0 +1,52 @@
+package com.jmal.clouddisk.oss;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * @author jmal
+ * @Description 分页列举目录的一页结果
+ * @date 2024/2/3 10:20
+ */
+@Getter
+public class ListObjectsPage {
+
+    /***
+     * 每页最多的条目数, 各平台一次最多支持1000
+     */
+    public static final int MAX_KEYS = 1000;
+
+    /***
+     * 目录下的对象
+     */
+    private final List<S3ObjectSummary> objectSummaries;
+
+    /***
+     * 子目录, 以"/"结尾
+     */
+    private final List<String> commonPrefixes;
+
+    /***
+     * 下一页的标记(continuation token或marker), 没有下一页时为null
+     */
+    private final String nextMarker;
+
+    public ListObjectsPage(List<S3ObjectSummary> objectSummaries, List<String> commonPrefixes, String nextMarker) {
+        this.objectSummaries = objectSummaries;
+        this.commonPrefixes = commonPrefixes;
+        this.nextMarker = nextMarker;
+    }
+
+    /***
+     * 获取一页
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        /***
+         * @param marker 上一页返回的nextMarker, 第一页为null
+         * @return ListObjectsPage
+         */
+        ListObjectsPage fetch(String marker) throws Exception;
+    }
+}
@@ -0,0 +1,15 @@
+package com.jmal.clouddisk.oss;
+
+import java.io.IOException;
+
+/**
+ * @author jmal
+ * @Description 分段下载过程中object被修改(If-Match不满足, 412)
+ * @date 2024/2/9 14:10
+ */
+public class ObjectChangedException extends IOException {
+
+    public ObjectChangedException(String objectName, String eTag) {
+        super("object已修改: " + objectName + ", eTag: " + eTag);
+    }
+}
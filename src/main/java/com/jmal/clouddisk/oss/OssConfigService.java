@@ -30,6 +30,7 @@ import org.springframework.stereotype.Service;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -273,6 +274,19 @@ public class OssConfigService {
         return PathUtil.exists(path, false);
     }
 
+    /**
+     * 各oss挂载目录的写回上传队列状态
+     */
+    public List<OssUploadQueue.Stats> uploadQueueStats() {
+        List<OssUploadQueue.Stats> statsList = new ArrayList<>(OSS_SERVICE_MAP.size());
+        OSS_SERVICE_MAP.forEach((ossPath, ossService) -> {
+            OssUploadQueue.Stats stats = ossService.getUploadQueueStats();
+            stats.setOssPath(ossPath);
+            statsList.add(stats);
+        });
+        return statsList;
+    }
+
     /**
      * OSS配置列表
      */
@@ -0,0 +1,436 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * @author jmal
+ * @Description oss元数据缓存, 按目录组织成前缀树, 每个bucket一个
+ * 每个节点保存object的FileInfo和目录下的列表, 删除、上传、新建目录时直接更新对应的节点, 删除子树只需要从根找到该节点;
+ * 列表超过refreshAfter后先返回旧的列表, 同时在后台重新获取, 超过ttl后才同步重新获取, 获取失败的列表不缓存;
+ * 缓存的条目数超过maxSize时, 淘汰最久没有访问的子树
+ * @date 2024/2/2 10:10
+ */
+@Slf4j
+public class OssMetadataCache {
+
+    private final Node root = new Node(null, "");
+
+    private final long refreshAfterMillis;
+
+    private final long ttlMillis;
+
+    private final long maxSize;
+
+    /***
+     * @param refreshAfter 列表超过该时间(秒)后在后台刷新
+     * @param ttl 列表超过该时间(秒)后同步刷新
+     * @param maxSize 最多缓存的条目数(节点数 + 列表中的条目数)
+     */
+    public OssMetadataCache(long refreshAfter, long ttl, long maxSize) {
+        this.refreshAfterMillis = TimeUnit.SECONDS.toMillis(refreshAfter);
+        this.ttlMillis = Math.max(refreshAfterMillis, TimeUnit.SECONDS.toMillis(ttl));
+        this.maxSize = maxSize;
+    }
+
+    /***
+     * 获取object的FileInfo
+     * @param key objectName, 结尾带不带"/"都可以
+     * @return 没有缓存时返回null
+     */
+    public synchronized FileInfo getFileInfo(String key) {
+        Node node = find(key);
+        return node == null ? null : node.fileInfo;
+    }
+
+    public synchronized void putFileInfo(String key, FileInfo fileInfo) {
+        getOrCreate(key).fileInfo = fileInfo;
+        evictIfNeeded();
+    }
+
+    /***
+     * 更新object的修改时间, 复制出新的FileInfo替换节点和上级目录列表中的, 不修改已经返回出去的对象
+     * @param key objectName, 结尾带不带"/"都可以
+     * @param lastModified 修改时间
+     */
+    public synchronized void setLastModified(String key, Date lastModified) {
+        Node node = find(key);
+        if (node == null) {
+            return;
+        }
+        FileInfo oldFileInfo = node.fileInfo;
+        if (oldFileInfo != null) {
+            node.fileInfo = copyOf(oldFileInfo, lastModified);
+        }
+        Node parent = node.parent;
+        if (parent == null || parent.listing == null) {
+            return;
+        }
+        List<FileInfo> listing = new ArrayList<>(parent.listing.size());
+        for (FileInfo item : parent.listing) {
+            if (item == oldFileInfo || node.name.equals(lastSegment(item.getKey()))) {
+                FileInfo fileInfo = item == oldFileInfo ? node.fileInfo : copyOf(item, lastModified);
+                listing.add(fileInfo);
+            } else {
+                listing.add(item);
+            }
+        }
+        parent.listing = listing;
+    }
+
+    /***
+     * 获取目录下的列表
+     * @param dirKey 目录的objectName, 根目录为""
+     * @param loader 从oss获取列表
+     * @return 目录下的文件和文件夹
+     */
+    public List<FileInfo> getListing(String dirKey, Function<String, List<FileInfo>> loader) {
+        Node node;
+        CompletableFuture<List<FileInfo>> future;
+        boolean owner = false;
+        synchronized (this) {
+            node = getOrCreate(dirKey);
+            if (node.listing != null) {
+                long age = System.currentTimeMillis() - node.listedAt;
+                if (age < refreshAfterMillis) {
+                    return node.listing;
+                }
+                if (age < ttlMillis) {
+                    if (node.loading == null) {
+                        node.loading = new CompletableFuture<>();
+                        Node refreshNode = node;
+                        ThreadUtil.execute(() -> load(refreshNode, dirKey, loader));
+                    }
+                    return node.listing;
+                }
+            }
+            if (node.loading == null) {
+                node.loading = new CompletableFuture<>();
+                owner = true;
+            }
+            future = node.loading;
+        }
+        if (owner) {
+            load(node, dirKey, loader);
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    /***
+     * 新建或上传object后更新缓存, 不需要重新获取上级目录的列表
+     * @param key objectName
+     * @param fileInfo FileInfo
+     */
+    public synchronized void onCreated(String key, FileInfo fileInfo) {
+        Node node = getOrCreate(key);
+        node.fileInfo = fileInfo;
+        Node parent = node.parent;
+        if (parent.listing != null) {
+            List<FileInfo> listing = new ArrayList<>(parent.listing.size() + 1);
+            for (FileInfo item : parent.listing) {
+                if (!node.name.equals(lastSegment(item.getKey()))) {
+                    listing.add(item);
+                }
+            }
+            listing.add(fileInfo);
+            setListing(parent, listing);
+        }
+        parent.dirty = parent.loading != null;
+        // 上级目录可能是新建的, 不在更上一级目录的列表中
+        for (Node child = parent; child.parent != null; child = child.parent) {
+            Node dir = child.parent;
+            if (dir.listing != null && !containsChild(dir.listing, child.name)) {
+                setListing(dir, null);
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /***
+     * 删除object后更新缓存, 删除该节点及其子树, 并从上级目录的列表中移除
+     * @param key objectName
+     */
+    public synchronized void onDeleted(String key) {
+        List<String> names = split(key);
+        if (names.isEmpty()) {
+            return;
+        }
+        String name = names.get(names.size() - 1);
+        Node parent = find(String.join("/", names.subList(0, names.size() - 1)));
+        if (parent == null) {
+            return;
+        }
+        Node node = parent.children == null ? null : parent.children.get(name);
+        if (node != null) {
+            detach(node);
+        }
+        if (parent.listing != null) {
+            List<FileInfo> listing = new ArrayList<>(parent.listing.size());
+            for (FileInfo item : parent.listing) {
+                if (!name.equals(lastSegment(item.getKey()))) {
+                    listing.add(item);
+                }
+            }
+            setListing(parent, listing);
+        }
+        parent.dirty = parent.loading != null;
+    }
+
+    /***
+     * 使object及其子树和上级目录的列表失效, 下次访问时重新获取
+     * @param key objectName
+     */
+    public synchronized void invalidate(String key) {
+        Node node = find(key);
+        if (node == null) {
+            node = findNearest(key);
+        } else if (node.parent != null) {
+            Node parent = node.parent;
+            detach(node);
+            node = parent;
+        }
+        setListing(node, null);
+        node.dirty = node.loading != null;
+    }
+
+    public synchronized long size() {
+        return root.weight;
+    }
+
+    /***
+     * 获取列表, 失败时不缓存, 有旧的列表时返回旧的列表, 没有时把异常抛给等待的请求
+     */
+    private void load(Node node, String dirKey, Function<String, List<FileInfo>> loader) {
+        List<FileInfo> listing = null;
+        RuntimeException error = null;
+        try {
+            listing = loader.apply(dirKey);
+        } catch (RuntimeException e) {
+            error = e;
+            log.warn("获取列表失败: {}, {}", dirKey, e.getMessage());
+        }
+        CompletableFuture<List<FileInfo>> future;
+        List<FileInfo> result;
+        synchronized (this) {
+            future = node.loading;
+            node.loading = null;
+            // 获取列表期间该目录被修改或删除了, 这次获取的列表可能已经过时, 只返回不缓存
+            if (listing != null && !node.dirty && isAttached(node)) {
+                setListing(node, listing);
+                node.listedAt = System.currentTimeMillis();
+                for (FileInfo fileInfo : listing) {
+                    getOrCreate(fileInfo.getKey()).fileInfo = fileInfo;
+                }
+                evictIfNeeded();
+            }
+            node.dirty = false;
+            result = listing != null ? listing : node.listing;
+        }
+        if (result == null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    private Node find(String key) {
+        Node node = root;
+        long now = System.currentTimeMillis();
+        for (String name : split(key)) {
+            if (node.children == null || (node = node.children.get(name)) == null) {
+                return null;
+            }
+            node.accessedAt = now;
+        }
+        return node;
+    }
+
+    private Node findNearest(String key) {
+        Node node = root;
+        for (String name : split(key)) {
+            Node child = node.children == null ? null : node.children.get(name);
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private Node getOrCreate(String key) {
+        Node node = root;
+        long now = System.currentTimeMillis();
+        for (String name : split(key)) {
+            if (node.children == null) {
+                node.children = new HashMap<>(8);
+            }
+            Node child = node.children.get(name);
+            if (child == null) {
+                child = new Node(node, name);
+                node.children.put(name, child);
+                addWeight(node, 1);
+            }
+            node = child;
+            node.accessedAt = now;
+        }
+        return node;
+    }
+
+    private void setListing(Node node, List<FileInfo> listing) {
+        int oldSize = node.listing == null ? 0 : node.listing.size();
+        int newSize = listing == null ? 0 : listing.size();
+        node.listing = listing;
+        addWeight(node, (long) newSize - oldSize);
+    }
+
+    private void detach(Node node) {
+        node.parent.children.remove(node.name);
+        addWeight(node.parent, -node.weight);
+    }
+
+    private boolean isAttached(Node node) {
+        for (Node child = node; child.parent != null; child = child.parent) {
+            if (child.parent.children == null || child.parent.children.get(child.name) != child) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addWeight(Node node, long delta) {
+        for (Node n = node; n != null; n = n.parent) {
+            n.weight += delta;
+        }
+    }
+
+    /***
+     * 超过maxSize时淘汰到maxSize的90%
+     * 从根节点开始每次进入最久没有访问的子节点, 直到子树的大小不超过需要淘汰的大小, 淘汰整个子树
+     */
+    private void evictIfNeeded() {
+        if (root.weight <= maxSize) {
+            return;
+        }
+        long target = maxSize * 9 / 10;
+        while (root.weight > target) {
+            long excess = root.weight - target;
+            Node node = root;
+            Node victim = null;
+            while (true) {
+                Node oldest = oldestChild(node);
+                if (oldest == null) {
+                    break;
+                }
+                victim = oldest;
+                if (oldest.weight <= excess) {
+                    break;
+                }
+                node = oldest;
+            }
+            if (victim == null) {
+                // 只剩下根目录的列表
+                setListing(root, null);
+                break;
+            }
+            detach(victim);
+        }
+    }
+
+    private static Node oldestChild(Node node) {
+        if (node.children == null) {
+            return null;
+        }
+        Node oldest = null;
+        for (Node child : node.children.values()) {
+            if (oldest == null || child.accessedAt < oldest.accessedAt) {
+                oldest = child;
+            }
+        }
+        return oldest;
+    }
+
+    private static FileInfo copyOf(FileInfo fileInfo, Date lastModified) {
+        FileInfo copy = new FileInfo(fileInfo.getKey(), fileInfo.getETag(), fileInfo.getSize(), lastModified);
+        copy.setBucketName(fileInfo.getBucketName());
+        return copy;
+    }
+
+    private static boolean containsChild(List<FileInfo> listing, String name) {
+        for (FileInfo fileInfo : listing) {
+            if (name.equals(lastSegment(fileInfo.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String lastSegment(String key) {
+        List<String> names = split(key);
+        return names.isEmpty() ? "" : names.get(names.size() - 1);
+    }
+
+    private static List<String> split(String key) {
+        if (key == null || key.isEmpty() || "/".equals(key)) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : key.split("/")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /***
+     * 前缀树的节点, 对应一个object或目录
+     * weight: 该节点子树中的条目数(节点数 + 列表中的条目数)
+     */
+    static class Node {
+
+        final Node parent;
+
+        final String name;
+
+        Map<String, Node> children;
+
+        FileInfo fileInfo;
+
+        List<FileInfo> listing;
+
+        long listedAt;
+
+        long accessedAt;
+
+        long weight = 1;
+
+        /***
+         * 正在获取列表
+         */
+        CompletableFuture<List<FileInfo>> loading;
+
+        /***
+         * 获取列表期间有修改
+         */
+        boolean dirty;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.accessedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.util.URLUtil;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author jmal
+ * @Description oss挂载表
+ * key: 挂载路径前缀, 例如：/jmal/aliyunStorage, 其中jmal为用户名, aliyunStorage为oss存储的挂载文件夹名称
+ * value: BucketInfo
+ * 只在oss配置变化时修改, 每次修改复制出一张新表整体替换, 查询不加锁;
+ * 查询直接在原始路径上计算前两级目录的哈希值并逐字符比较, 不需要构造Path和子串
+ * @date 2024/2/4 09:30
+ */
+public final class OssMountTable {
+
+    private static volatile Table table = new Table(Collections.emptyMap());
+
+    private OssMountTable() {
+    }
+
+    public static synchronized void put(String prefix, BucketInfo bucketInfo) {
+        Map<String, BucketInfo> map = new LinkedHashMap<>(table.map);
+        map.put(prefix, bucketInfo);
+        table = new Table(map);
+    }
+
+    public static synchronized void remove(String prefix) {
+        if (!table.map.containsKey(prefix)) {
+            return;
+        }
+        Map<String, BucketInfo> map = new LinkedHashMap<>(table.map);
+        map.remove(prefix);
+        table = new Table(map);
+    }
+
+    /***
+     * 根据挂载路径前缀获取BucketInfo
+     * @param prefix 挂载路径前缀, 例如：/jmal/aliyunStorage
+     */
+    public static BucketInfo get(String prefix) {
+        return table.map.get(prefix);
+    }
+
+    public static int size() {
+        return table.map.size();
+    }
+
+    /***
+     * 获取路径所在的挂载点
+     * @param path 路径, 例如：/jmal/aliyunStorage/a/b.txt 或者 jmal/aliyunStorage, 可以是URL编码的
+     * @param skip 跳过开头的几级目录, 例如webDAV的URI要跳过第一级的webDAV前缀
+     * @return 挂载路径前缀, 不在oss挂载目录下时返回null
+     */
+    public static String resolve(String path, int skip) {
+        Table t = table;
+        if (t.keys.length == 0 || path == null) {
+            return null;
+        }
+        int found = t.find(path, skip);
+        if (found == Table.ENCODED) {
+            // 前两级目录中有编码的字符, 解码后再查询
+            found = t.find(URLUtil.decode(path), skip);
+        }
+        return found < 0 ? null : t.keys[found];
+    }
+
+    /***
+     * 开放寻址的哈希表, 创建后不再修改
+     */
+    static class Table {
+
+        static final int NOT_FOUND = -1;
+
+        static final int ENCODED = -2;
+
+        final Map<String, BucketInfo> map;
+
+        final String[] keys;
+
+        final int mask;
+
+        Table(Map<String, BucketInfo> map) {
+            this.map = Collections.unmodifiableMap(map);
+            if (map.isEmpty()) {
+                this.keys = new String[0];
+                this.mask = 0;
+                return;
+            }
+            int capacity = Integer.highestOneBit(Math.max(2, map.size() * 2 - 1)) << 1;
+            this.keys = new String[capacity];
+            this.mask = capacity - 1;
+            for (String key : map.keySet()) {
+                int index = spread(key.hashCode()) & mask;
+                while (keys[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+            }
+        }
+
+        /***
+         * @return keys中的下标, 没有找到时返回NOT_FOUND, 需要解码时返回ENCODED
+         */
+        int find(String path, int skip) {
+            int length = path.length();
+            int i = 0;
+            for (int n = 0; n < skip; n++) {
+                i = segmentEnd(path, skipDelimiter(path, i, length), length);
+            }
+            int start1 = skipDelimiter(path, i, length);
+            int end1 = segmentEnd(path, start1, length);
+            int start2 = skipDelimiter(path, end1, length);
+            int end2 = segmentEnd(path, start2, length);
+            if (start1 == end1 || start2 == end2) {
+                return NOT_FOUND;
+            }
+            // 与 ("/" + 第一级目录 + "/" + 第二级目录).hashCode() 相同
+            int h = '/';
+            for (int j = start1; j < end1; j++) {
+                char c = path.charAt(j);
+                if (c == '%' || c == '+') {
+                    return ENCODED;
+                }
+                h = 31 * h + c;
+            }
+            h = 31 * h + '/';
+            for (int j = start2; j < end2; j++) {
+                char c = path.charAt(j);
+                if (c == '%' || c == '+') {
+                    return ENCODED;
+                }
+                h = 31 * h + c;
+            }
+            int len1 = end1 - start1;
+            int keyLength = len1 + (end2 - start2) + 2;
+            int index = spread(h) & mask;
+            String key;
+            while ((key = keys[index]) != null) {
+                if (key.length() == keyLength && key.hashCode() == h
+                        && key.charAt(0) == '/' && key.regionMatches(1, path, start1, len1)
+                        && key.charAt(len1 + 1) == '/' && key.regionMatches(len1 + 2, path, start2, end2 - start2)) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return NOT_FOUND;
+        }
+
+        private static int skipDelimiter(String path, int i, int length) {
+            while (i < length && path.charAt(i) == '/') {
+                i++;
+            }
+            return i;
+        }
+
+        private static int segmentEnd(String path, int i, int length) {
+            while (i < length && path.charAt(i) != '/') {
+                i++;
+            }
+            return i;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * @author jmal
+ * @Description oss分段并行下载
+ * 大文件(或大的Range)按CHUNK_SIZE分成多段, 同时用多个Range请求获取, 再按顺序写到输出流;
+ * 每个下载最多有ossDownloadConcurrency段在获取, 获取到的数据放在一个环形的缓冲区数组中, 写出后缓冲区用于之后的一段;
+ * 第一段响应的eTag之后的每个Range请求都带上If-Match, 下载过程中object被修改(412)时中止, 不会拼接出新旧混合的内容;
+ * webDAV客户端顺序读取的小Range, 每次多获取READ_AHEAD_SIZE, 下一个Range直接从预读的数据中返回
+ * @date 2024/2/6 10:20
+ */
+@Slf4j
+@Component
+public class OssRangeDownloader {
+
+    /***
+     * 每段的大小
+     */
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+
+    /***
+     * 超过该大小才分段并行下载
+     */
+    public static final long PARALLEL_THRESHOLD = 8L * CHUNK_SIZE;
+
+    /***
+     * 同时分段并行下载的文件数, 超过时使用一个请求下载
+     */
+    private static final int MAX_PARALLEL_DOWNLOADS = 8;
+
+    /***
+     * 每段的最多尝试次数
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /***
+     * 顺序读取小Range时预读的大小
+     */
+    private static final int READ_AHEAD_SIZE = 1024 * 1024;
+
+    private final int concurrency;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Semaphore parallelDownloads = new Semaphore(MAX_PARALLEL_DOWNLOADS);
+
+    /***
+     * 空闲的缓冲区, 缓冲区的总数不超过 MAX_PARALLEL_DOWNLOADS * concurrency
+     */
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    /***
+     * 预读的数据
+     * key: 文件的标识(路径、修改时间、大小)
+     * value: 预读的数据
+     */
+    private final Cache<String, ReadAhead> readAheadCache = Caffeine.newBuilder()
+            .maximumWeight(32L * 1024 * 1024)
+            .weigher((String key, ReadAhead readAhead) -> readAhead.data.length)
+            .expireAfterAccess(30, TimeUnit.SECONDS)
+            .build();
+
+    public OssRangeDownloader(FileProperties fileProperties) {
+        this.concurrency = Math.max(1, fileProperties.getOssDownloadConcurrency());
+        int threads = MAX_PARALLEL_DOWNLOADS * concurrency;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                ThreadUtil.newNamedThreadFactory("oss-download-", true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /***
+     * 是否分段并行下载
+     * @param abstractOssObject 已经打开的object
+     */
+    public boolean isParallel(AbstractOssObject abstractOssObject) {
+        return concurrency > 1 && !(abstractOssObject instanceof TempFileObject) && abstractOssObject.getContentLength() >= PARALLEL_THRESHOLD;
+    }
+
+    /***
+     * 分段并行下载object的[start, end], 同时下载的文件数达到上限时使用一个请求下载
+     * @param ossService IOssService
+     * @param objectName objectName
+     * @param start 开始位置
+     * @param end 结束位置(包含)
+     * @param outputStream 输出流
+     */
+    public void copy(IOssService ossService, String objectName, long start, long end, OutputStream outputStream) throws IOException {
+        copy(ossService, objectName, null, start, end, outputStream);
+    }
+
+    /***
+     * 分段并行下载object的[start, end], 同时下载的文件数达到上限时使用一个请求下载
+     * @param ossService IOssService
+     * @param objectName objectName
+     * @param eTag 已经打开的object的eTag, 为null时使用第一段响应的eTag
+     * @param start 开始位置
+     * @param end 结束位置(包含)
+     * @param outputStream 输出流
+     */
+    public void copy(IOssService ossService, String objectName, String eTag, long start, long end, OutputStream outputStream) throws IOException {
+        long length = end - start + 1;
+        if (concurrency > 1 && length >= PARALLEL_THRESHOLD && parallelDownloads.tryAcquire()) {
+            try {
+                parallelCopy(ossService, objectName, eTag, start, end, outputStream);
+            } finally {
+                parallelDownloads.release();
+            }
+            return;
+        }
+        try (AbstractOssObject rangeObject = getRangeObject(ossService, objectName, eTag, start, end);
+             InputStream inputStream = rangeObject.getInputStream()) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+
+    /***
+     * 下载webDAV请求的Range
+     * 大的Range分段并行下载; 小的Range先从预读的数据中返回, 不够时多获取READ_AHEAD_SIZE留给下一个Range
+     * @param ossService IOssService
+     * @param fileKey 文件的标识, 文件修改后要不同, 例如: 路径 + 修改时间 + 大小
+     * @param objectName objectName
+     * @param start 开始位置
+     * @param end 结束位置(包含)
+     * @param fileSize 文件大小
+     * @param outputStream 输出流
+     */
+    public void copyRange(IOssService ossService, String fileKey, String objectName, long start, long end, long fileSize, OutputStream outputStream) throws IOException {
+        if (end - start + 1 >= READ_AHEAD_SIZE) {
+            copy(ossService, objectName, start, end, outputStream);
+            return;
+        }
+        ReadAhead readAhead = readAheadCache.getIfPresent(fileKey);
+        String eTag = null;
+        if (readAhead != null && readAhead.contains(start)) {
+            int offset = (int) (start - readAhead.start);
+            int length = (int) Math.min(end - start + 1, readAhead.data.length - offset);
+            outputStream.write(readAhead.data, offset, length);
+            start += length;
+            if (start > end) {
+                return;
+            }
+            // 剩余部分要和已经写出的预读数据来自同一个版本
+            eTag = readAhead.eTag;
+        }
+        long fetchEnd = Math.min(fileSize - 1, end + READ_AHEAD_SIZE);
+        byte[] data = new byte[(int) (fetchEnd - start + 1)];
+        try {
+            eTag = fetch(ossService, objectName, eTag, start, data, data.length);
+        } catch (ObjectChangedException e) {
+            readAheadCache.invalidate(fileKey);
+            throw e;
+        }
+        int length = (int) (end - start + 1);
+        outputStream.write(data, 0, length);
+        if (data.length > length) {
+            byte[] rest = new byte[data.length - length];
+            System.arraycopy(data, length, rest, 0, rest.length);
+            readAheadCache.put(fileKey, new ReadAhead(end + 1, rest, eTag));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /***
+     * 按顺序写出每一段, 每写出一段就用它的缓冲区获取之后的一段
+     * 没有eTag时先获取第一段, 用它的eTag固定版本
+     */
+    private void parallelCopy(IOssService ossService, String objectName, String eTag, long start, long end, OutputStream outputStream) throws IOException {
+        long length = end - start + 1;
+        int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int window = Math.min(concurrency, chunks);
+        byte[][] buffers = new byte[window][];
+        List<Future<Integer>> ring = new ArrayList<>(window);
+        boolean completed = false;
+        try {
+            buffers[0] = borrowBuffer();
+            if (eTag == null) {
+                int firstLength = chunkLength(start, end, 0);
+                eTag = fetch(ossService, objectName, null, start, buffers[0], firstLength);
+                ring.add(CompletableFuture.completedFuture(firstLength));
+            } else {
+                ring.add(submit(ossService, objectName, eTag, start, end, 0, buffers[0]));
+            }
+            for (int i = 1; i < window; i++) {
+                buffers[i] = borrowBuffer();
+                ring.add(submit(ossService, objectName, eTag, start, end, i, buffers[i]));
+            }
+            for (int i = 0; i < chunks; i++) {
+                int slot = i % window;
+                int read = await(ring.get(slot));
+                outputStream.write(buffers[slot], 0, read);
+                if (i + window < chunks) {
+                    ring.set(slot, submit(ossService, objectName, eTag, start, end, i + window, buffers[slot]));
+                }
+            }
+            completed = true;
+        } finally {
+            if (completed) {
+                for (byte[] buffer : buffers) {
+                    freeBuffers.offer(buffer);
+                }
+            } else {
+                // 出错或者客户端断开, 取消还没有完成的段, 缓冲区可能还在被写入, 不再复用
+                ring.forEach(future -> future.cancel(true));
+            }
+        }
+    }
+
+    private static int chunkLength(long start, long end, int chunk) {
+        long chunkStart = start + (long) chunk * CHUNK_SIZE;
+        return (int) Math.min(CHUNK_SIZE, end - chunkStart + 1);
+    }
+
+    private Future<Integer> submit(IOssService ossService, String objectName, String eTag, long start, long end, int chunk, byte[] buffer) {
+        long chunkStart = start + (long) chunk * CHUNK_SIZE;
+        int length = chunkLength(start, end, chunk);
+        return executor.submit(() -> {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    fetch(ossService, objectName, eTag, chunkStart, buffer, length);
+                    return length;
+                } catch (ObjectChangedException e) {
+                    // object已修改, 重试也只会得到另一个版本
+                    throw e;
+                } catch (IOException e) {
+                    if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    log.warn("获取分段失败, 重试: {}, {}, {}", objectName, chunkStart, e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static int await(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /***
+     * 获取object的[start, start + length - 1]到buffer中
+     * @param eTag 不为null时只获取该版本
+     * @return 响应的eTag
+     */
+    private static String fetch(IOssService ossService, String objectName, String eTag, long start, byte[] buffer, int length) throws IOException {
+        try (AbstractOssObject rangeObject = getRangeObject(ossService, objectName, eTag, start, start + length - 1);
+             InputStream inputStream = rangeObject.getInputStream()) {
+            String responseETag = getETag(rangeObject);
+            if (eTag != null && responseETag != null && !sameETag(eTag, responseETag)) {
+                throw new ObjectChangedException(objectName, eTag);
+            }
+            int read = 0;
+            while (read < length) {
+                int n = inputStream.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new EOFException(objectName + ", " + start + ", " + read + "/" + length);
+                }
+                read += n;
+            }
+            return responseETag != null ? responseETag : eTag;
+        }
+    }
+
+    private static AbstractOssObject getRangeObject(IOssService ossService, String objectName, String eTag, long start, long end) throws IOException {
+        AbstractOssObject rangeObject = ossService.getAbstractOssObject(objectName, start, end, eTag);
+        if (rangeObject == null) {
+            throw new FileNotFoundException(objectName);
+        }
+        return rangeObject;
+    }
+
+    private static String getETag(AbstractOssObject abstractOssObject) {
+        FileInfo fileInfo = abstractOssObject.getFileInfo();
+        return fileInfo == null ? null : fileInfo.getETag();
+    }
+
+    /***
+     * 不同的SDK返回的eTag可能带引号或者大小写不同
+     */
+    static boolean sameETag(String eTag, String other) {
+        return CharSequenceUtil.unWrap(eTag, '"').equalsIgnoreCase(CharSequenceUtil.unWrap(other, '"'));
+    }
+
+    private byte[] borrowBuffer() {
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[CHUNK_SIZE];
+    }
+
+    /***
+     * 预读的数据, data对应文件的[start, start + data.length - 1]
+     */
+    static class ReadAhead {
+
+        final long start;
+
+        final byte[] data;
+
+        /***
+         * 预读数据的版本
+         */
+        final String eTag;
+
+        ReadAhead(long start, byte[] data, String eTag) {
+            this.start = start;
+            this.data = data;
+            this.eTag = eTag;
+        }
+
+        boolean contains(long position) {
+            return position >= start && position < start + data.length;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description oss写回上传队列, 每个bucket一个
+ * webDAV、FTP写入oss挂载目录的文件先写到临时文件, 再由该队列上传:
+ * 等待上传的文件记录在日志目录中, 重启后继续上传; 同一个文件在上传前多次写入只上传最后一次;
+ * 上传失败按指数退避重试; 大文件分片并行上传; 每个bucket的上传线程数有上限
+ * @date 2024/2/5 10:40
+ */
+@Slf4j
+public class OssUploadQueue {
+
+    /***
+     * 临时文件最后一次修改之后等待的时间, 期间没有再写入才上传
+     */
+    private static final long QUIET_MILLIS = 5000;
+
+    private static final long RETRY_MIN_MILLIS = 2000;
+
+    private static final long RETRY_MAX_MILLIS = 10 * 60 * 1000L;
+
+    /***
+     * 超过该大小的文件分片上传
+     */
+    private static final long MULTIPART_THRESHOLD = 64 * 1024 * 1024L;
+
+    private static final int MIN_PART_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_PARTS = 10000;
+
+    /***
+     * 每个bucket同时上传的分片数
+     */
+    private static final int PART_CONCURRENCY = 4;
+
+    private static final String JOURNAL_SUFFIX = ".upload";
+
+    private final IOssService ossService;
+
+    private final BaseOssService baseOssService;
+
+    /***
+     * 日志目录, 每个等待上传的文件一个记录
+     */
+    private final Path journalDir;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ThreadPoolExecutor uploadExecutor;
+
+    private final ThreadPoolExecutor partExecutor;
+
+    /***
+     * 等待上传和正在上传的文件
+     * key: objectName
+     */
+    private final Map<String, Entry> pending = new HashMap<>();
+
+    private final AtomicLong uploadedFiles = new AtomicLong();
+
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /***
+     * 最近60秒每秒上传的字节数
+     */
+    private final AtomicLongArray recentBytes = new AtomicLongArray(60);
+
+    private final AtomicLongArray recentSeconds = new AtomicLongArray(60);
+
+    public OssUploadQueue(IOssService ossService, BaseOssService baseOssService, Path journalDir, ScheduledExecutorService scheduler, int concurrency) {
+        this.ossService = ossService;
+        this.baseOssService = baseOssService;
+        this.journalDir = journalDir;
+        this.scheduler = scheduler;
+        int threads = Math.max(1, concurrency);
+        this.uploadExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                ThreadUtil.newNamedThreadFactory("oss-upload-", true));
+        this.uploadExecutor.allowCoreThreadTimeOut(true);
+        this.partExecutor = new ThreadPoolExecutor(PART_CONCURRENCY, PART_CONCURRENCY, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                ThreadUtil.newNamedThreadFactory("oss-upload-part-", true));
+        this.partExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /***
+     * 恢复上次没有上传完的文件
+     * @return 恢复的文件, key: objectName, value: 临时文件
+     */
+    public Map<String, Path> recover() {
+        Map<String, Path> recovered = new LinkedHashMap<>();
+        if (!Files.isDirectory(journalDir)) {
+            return recovered;
+        }
+        try (Stream<Path> stream = Files.list(journalDir)) {
+            stream.filter(journal -> journal.getFileName().toString().endsWith(JOURNAL_SUFFIX)).forEach(journal -> {
+                Properties properties = readJournal(journal);
+                String objectName = properties == null ? null : properties.getProperty("objectName");
+                String path = properties == null ? null : properties.getProperty("path");
+                if (objectName == null || path == null || !Files.exists(Paths.get(path))) {
+                    PathUtil.del(journal);
+                    return;
+                }
+                recovered.put(objectName, Paths.get(path));
+            });
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        synchronized (this) {
+            recovered.forEach((objectName, path) -> {
+                Entry entry = new Entry(objectName, path);
+                pending.put(objectName, entry);
+                // 等待oss服务初始化完成后再上传
+                schedule(entry, QUIET_MILLIS);
+            });
+        }
+        if (!recovered.isEmpty()) {
+            log.info("恢复未上传完的文件: {}个, {}", recovered.size(), journalDir);
+        }
+        return recovered;
+    }
+
+    /***
+     * 开始写入临时文件, 写入期间不上传
+     * 正在上传时, 本次上传完成后不删除临时文件, 而是再上传一次
+     * @param objectName objectName
+     * @param path 临时文件
+     */
+    public synchronized void beginWrite(String objectName, Path path) {
+        Entry entry = pending.get(objectName);
+        if (entry == null || !entry.path.equals(path)) {
+            entry = new Entry(objectName, path);
+            pending.put(objectName, entry);
+            writeJournal(entry);
+        } else if (entry.uploading) {
+            entry.rewritten = true;
+        } else {
+            // 还没有上传, 与之前的写入合并为一次上传
+            coalesced.incrementAndGet();
+        }
+        entry.writers++;
+    }
+
+    /***
+     * 写入临时文件结束, 之后QUIET_MILLIS内没有再写入就上传
+     * @param objectName objectName
+     * @param success 是否写入成功, 失败时不上传
+     */
+    public synchronized void endWrite(String objectName, boolean success) {
+        Entry entry = pending.get(objectName);
+        if (entry == null) {
+            return;
+        }
+        entry.writers = Math.max(0, entry.writers - 1);
+        if (!success) {
+            cancel(objectName);
+            return;
+        }
+        entry.attempts = 0;
+        entry.dueAt = System.currentTimeMillis() + QUIET_MILLIS;
+        if (!entry.uploading) {
+            schedule(entry, QUIET_MILLIS);
+        }
+    }
+
+    /***
+     * 取消等待上传的文件, objectName为目录时取消该目录下所有的文件
+     * @param objectName objectName
+     */
+    public synchronized void cancel(String objectName) {
+        Iterator<Map.Entry<String, Entry>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.objectName.equals(objectName) || (objectName.endsWith("/") && entry.objectName.startsWith(objectName))) {
+                entry.cancelled = true;
+                iterator.remove();
+                deleteJournal(entry);
+            }
+        }
+    }
+
+    /***
+     * 是否在等待上传或正在上传, 此时临时文件由该队列删除
+     */
+    public synchronized boolean isPending(String objectName) {
+        return pending.containsKey(objectName);
+    }
+
+    /***
+     * 完成分片上传的回调, completeMultipartUpload成功时会调用onUploadSuccess
+     */
+    public synchronized void onCompleted(String objectName) {
+        Entry entry = pending.get(objectName);
+        if (entry != null && entry.uploading) {
+            entry.completed = true;
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        int uploading = 0;
+        for (Entry entry : pending.values()) {
+            if (entry.uploading) {
+                uploading++;
+            }
+        }
+        stats.setPending(pending.size());
+        stats.setUploading(uploading);
+        stats.setUploadedFiles(uploadedFiles.get());
+        stats.setUploadedBytes(uploadedBytes.get());
+        stats.setFailures(failures.get());
+        stats.setCoalesced(coalesced.get());
+        long now = System.currentTimeMillis() / 1000;
+        long bytes = 0;
+        for (int i = 0; i < recentBytes.length(); i++) {
+            if (now - recentSeconds.get(i) < recentBytes.length()) {
+                bytes += recentBytes.get(i);
+            }
+        }
+        stats.setBytesPerSecond(bytes / recentBytes.length());
+        return stats;
+    }
+
+    /***
+     * 停止上传, 没有上传完的文件保留在日志中, 下次启动时继续上传
+     */
+    public void close() {
+        uploadExecutor.shutdownNow();
+        partExecutor.shutdownNow();
+    }
+
+    /***
+     * 只有最后一次安排的会执行
+     */
+    private void schedule(Entry entry, long delayMillis) {
+        long token = ++entry.token;
+        try {
+            scheduler.schedule(() -> dispatch(entry, token), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("上传队列已关闭: {}", entry.objectName);
+        }
+    }
+
+    /***
+     * 到时间后提交到上传线程池, 期间又有写入时继续等待
+     */
+    private void dispatch(Entry entry, long token) {
+        synchronized (this) {
+            if (entry.cancelled || entry.uploading || entry.writers > 0 || entry.token != token || pending.get(entry.objectName) != entry) {
+                return;
+            }
+            long wait = entry.dueAt - System.currentTimeMillis();
+            if (wait > 0) {
+                schedule(entry, wait);
+                return;
+            }
+            entry.uploading = true;
+            entry.rewritten = false;
+            entry.completed = false;
+        }
+        try {
+            uploadExecutor.execute(() -> upload(entry));
+        } catch (RejectedExecutionException e) {
+            log.warn("上传队列已关闭: {}", entry.objectName);
+        }
+    }
+
+    private void upload(Entry entry) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // 临时文件已经被删除
+            synchronized (this) {
+                entry.uploading = false;
+                if (pending.remove(entry.objectName, entry)) {
+                    deleteJournal(entry);
+                }
+            }
+            return;
+        }
+        boolean success;
+        try {
+            baseOssService.printOperation(ossService.getPlatform().getKey(), "writeBack", entry.objectName);
+            if (attributes.size() > MULTIPART_THRESHOLD) {
+                success = multipartUpload(entry, attributes.size());
+            } else {
+                success = ossService.putObject(entry.path, entry.objectName);
+            }
+        } catch (Exception e) {
+            log.warn("上传失败: {}, {}", entry.objectName, e.getMessage());
+            success = false;
+        }
+        onUploaded(entry, attributes, success);
+    }
+
+    private void onUploaded(Entry entry, BasicFileAttributes attributes, boolean success) {
+        synchronized (this) {
+            entry.uploading = false;
+            if (entry.cancelled || pending.get(entry.objectName) != entry) {
+                return;
+            }
+            if (!success) {
+                failures.incrementAndGet();
+                long delay = Math.min(RETRY_MAX_MILLIS, RETRY_MIN_MILLIS << Math.min(entry.attempts, 20));
+                entry.attempts++;
+                entry.dueAt = System.currentTimeMillis() + delay;
+                log.warn("{}毫秒后重试上传: {}, 第{}次", delay, entry.objectName, entry.attempts);
+                schedule(entry, delay);
+                return;
+            }
+            uploadedFiles.incrementAndGet();
+            uploadedBytes.addAndGet(attributes.size());
+            addRecentBytes(attributes.size());
+            if (entry.rewritten || entry.writers > 0 || isModified(entry.path, attributes)) {
+                // 上传期间又写入了, 写入结束后再上传一次
+                entry.attempts = 0;
+                if (entry.writers == 0) {
+                    schedule(entry, Math.max(0, entry.dueAt - System.currentTimeMillis()));
+                }
+                return;
+            }
+            pending.remove(entry.objectName);
+            deleteJournal(entry);
+            // 在锁内删除临时文件, 避免删除之后才写入的内容
+            baseOssService.onWriteBackSuccess(entry.objectName, entry.path);
+        }
+    }
+
+    /***
+     * 分片并行上传, 分片数超过上限时增大分片
+     */
+    private boolean multipartUpload(Entry entry, long size) throws InterruptedException {
+        String uploadId = ossService.initiateMultipartUpload(entry.objectName);
+        if (uploadId == null) {
+            return false;
+        }
+        long partSize = Math.max(MIN_PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) ((size + partSize - 1) / partSize);
+        List<Future<Boolean>> futures = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            long offset = i * partSize;
+            int length = (int) Math.min(partSize, size - offset);
+            int partNumber = i + 1;
+            futures.add(partExecutor.submit(() -> uploadPart(entry, uploadId, partNumber, offset, length)));
+        }
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                success &= Boolean.TRUE.equals(future.get());
+            } catch (ExecutionException e) {
+                log.warn("分片上传失败: {}, {}", entry.objectName, e.getMessage());
+                success = false;
+            } catch (InterruptedException e) {
+                futures.forEach(f -> f.cancel(true));
+                ossService.abortMultipartUpload(entry.objectName, uploadId);
+                throw e;
+            }
+        }
+        if (success) {
+            // 成功时会回调onCompleted
+            ossService.completeMultipartUpload(entry.objectName, uploadId, size);
+            synchronized (this) {
+                success = entry.completed;
+            }
+        }
+        if (!success) {
+            ossService.abortMultipartUpload(entry.objectName, uploadId);
+        }
+        return success;
+    }
+
+    private boolean uploadPart(Entry entry, String uploadId, int partNumber, long offset, int length) throws IOException {
+        if (entry.cancelled) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+             InputStream inputStream = new BoundedInputStream(Channels.newInputStream(channel.position(offset)), length)) {
+            return ossService.uploadPart(inputStream, entry.objectName, length, partNumber, uploadId);
+        }
+    }
+
+    private static boolean isModified(Path path, BasicFileAttributes attributes) {
+        try {
+            BasicFileAttributes current = Files.readAttributes(path, BasicFileAttributes.class);
+            return current.size() != attributes.size() || !current.lastModifiedTime().equals(attributes.lastModifiedTime());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void addRecentBytes(long bytes) {
+        long second = System.currentTimeMillis() / 1000;
+        int index = (int) (second % recentBytes.length());
+        if (recentSeconds.getAndSet(index, second) != second) {
+            recentBytes.set(index, 0);
+        }
+        recentBytes.addAndGet(index, bytes);
+    }
+
+    private void writeJournal(Entry entry) {
+        Properties properties = new Properties();
+        properties.setProperty("objectName", entry.objectName);
+        properties.setProperty("path", entry.path.toAbsolutePath().toString());
+        Path journal = getJournal(entry);
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(journalDir);
+            try (OutputStream outputStream = Files.newOutputStream(tmp)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("写入上传日志失败: {}, {}", entry.objectName, e.getMessage());
+        }
+    }
+
+    private void deleteJournal(Entry entry) {
+        PathUtil.del(getJournal(entry));
+    }
+
+    private Path getJournal(Entry entry) {
+        return journalDir.resolve(DigestUtil.md5Hex(entry.objectName) + JOURNAL_SUFFIX);
+    }
+
+    private static Properties readJournal(Path journal) {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(journal, StandardCharsets.ISO_8859_1)) {
+            properties.load(reader);
+            return properties;
+        } catch (IOException e) {
+            log.warn("读取上传日志失败: {}, {}", journal, e.getMessage());
+            return null;
+        }
+    }
+
+    static class Entry {
+
+        final String objectName;
+
+        final Path path;
+
+        long dueAt;
+
+        long token;
+
+        int attempts;
+
+        /***
+         * 正在写入临时文件的数量
+         */
+        int writers;
+
+        boolean uploading;
+
+        /***
+         * 上传期间有写入
+         */
+        boolean rewritten;
+
+        /***
+         * 分片上传已完成合并
+         */
+        boolean completed;
+
+        volatile boolean cancelled;
+
+        Entry(String objectName, Path path) {
+            this.objectName = objectName;
+            this.path = path;
+        }
+    }
+
+    /***
+     * 上传队列的状态
+     */
+    @Data
+    public static class Stats {
+
+        private String ossPath;
+
+        /***
+         * 等待上传和正在上传的文件数
+         */
+        private int pending;
+
+        private int uploading;
+
+        private long uploadedFiles;
+
+        private long uploadedBytes;
+
+        /***
+         * 上传失败(之后会重试)的次数
+         */
+        private long failures;
+
+        /***
+         * 上传前被合并的写入次数
+         */
+        private long coalesced;
+
+        /***
+         * 最近60秒的平均上传速度
+         */
+        private long bytesPerSecond;
+    }
+}
@@ -5,6 +5,7 @@ import cn.hutool.core.thread.ThreadUtil;
 import com.aliyun.oss.ClientException;
 import com.aliyun.oss.OSS;
 import com.aliyun.oss.OSSClientBuilder;
+import com.aliyun.oss.OSSErrorCode;
 import com.aliyun.oss.OSSException;
 import com.aliyun.oss.model.*;
 import com.jmal.clouddisk.config.FileProperties;
@@ -88,13 +89,30 @@ public class AliyunOssService implements IOssService {
 
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd) {
+        try {
+            return getAbstractOssObject(objectName, rangeStart, rangeEnd, null);
+        } catch (ObjectChangedException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd, String eTag) throws ObjectChangedException {
         OSSObject ossObject = null;
         try {
             GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, objectName);
             if (rangeStart != null && rangeEnd != null) {
                 getObjectRequest.setRange(rangeStart, rangeEnd);
             }
+            if (eTag != null) {
+                getObjectRequest.setMatchingETagConstraints(List.of(eTag));
+            }
             ossObject = this.ossClient.getObject(getObjectRequest);
+        } catch (OSSException e) {
+            if (OSSErrorCode.PRECONDITION_FAILED.equals(e.getErrorCode())) {
+                throw new ObjectChangedException(objectName, eTag);
+            }
+            log.warn(e.getMessage());
         } catch (Exception e) {
             log.warn(e.getMessage());
         }
@@ -151,34 +169,17 @@ public class AliyunOssService implements IOssService {
 
     @Override
     public List<FileInfo> getFileInfoList(String objectName) {
-        List<FileInfo> fileInfoList = new ArrayList<>();
-        try {
-            // 构造ListObjectsRequest请求。
-            ListObjectsRequest listObjectsRequest = new ListObjectsRequest(bucketName);
-
-            // 设置正斜线（/）为文件夹的分隔符。
-            listObjectsRequest.setDelimiter("/");
-
-            // 列出fun目录下的所有文件和文件夹。
-            listObjectsRequest.setPrefix(objectName);
-            baseOssService.printOperation(getPlatform().getKey(), "getFileInfoList", objectName);
+        return baseOssService.listObjects(objectName, marker -> {
+            // 设置正斜线（/）为文件夹的分隔符, 每页最多1000个
+            ListObjectsRequest listObjectsRequest = new ListObjectsRequest(bucketName).withPrefix(objectName).withDelimiter("/")
+                    .withMarker(marker).withMaxKeys(ListObjectsPage.MAX_KEYS);
             ObjectListing listing = ossClient.listObjects(listObjectsRequest);
-
-            // 对象列表
+            List<S3ObjectSummary> objectSummaries = new ArrayList<>(listing.getObjectSummaries().size());
             for (OSSObjectSummary objectSummary : listing.getObjectSummaries()) {
-                S3ObjectSummary s3ObjectSummary = new S3ObjectSummary(objectSummary.getSize(), objectSummary.getKey(), objectSummary.getETag(), objectSummary.getLastModified(), objectSummary.getBucketName());
-                baseOssService.addFileInfoList(objectName, fileInfoList, s3ObjectSummary);
-            }
-            // 子目录
-            for (String commonPrefix : listing.getCommonPrefixes()) {
-                fileInfoList.add(baseOssService.newFileInfo(commonPrefix));
+                objectSummaries.add(new S3ObjectSummary(objectSummary.getSize(), objectSummary.getKey(), objectSummary.getETag(), objectSummary.getLastModified(), objectSummary.getBucketName()));
             }
-        } catch (OSSException oe) {
-            log.error(oe.getMessage(), oe);
-        } catch (ClientException ce) {
-            log.error(ce.getMessage(), ce);
-        }
-        return fileInfoList;
+            return new ListObjectsPage(objectSummaries, listing.getCommonPrefixes(), listing.isTruncated() ? listing.getNextMarker() : null);
+        });
     }
 
     @Override
@@ -261,6 +262,15 @@ public class AliyunOssService implements IOssService {
         return this.ossClient.doesObjectExist(bucketName, objectName);
     }
 
+    @Override
+    public Date getLastModified(String objectName) {
+        try {
+            return ossClient.getSimplifiedObjectMeta(bucketName, objectName).getLastModified();
+        } catch (OSSException e) {
+            return null;
+        }
+    }
+
     @Override
     public CopyOnWriteArrayList<Integer> getListParts(String objectName, String uploadId) {
         return new CopyOnWriteArrayList<>(getPartETagList(objectName, uploadId).stream().map(PartETag::getPartNumber).toList());
@@ -380,30 +390,31 @@ public class AliyunOssService implements IOssService {
 
     @Override
     public void uploadFile(Path tempFileAbsolutePath, String objectName) {
-        executeUpload(tempFileAbsolutePath, objectName);
+        if (putObject(tempFileAbsolutePath, objectName)) {
+            baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
+        }
     }
 
-    private void executeUpload(Path tempFileAbsolutePath, String objectName) {
+    @Override
+    public boolean putObject(Path file, String objectName) {
         try {
-            if (!PathUtil.exists(tempFileAbsolutePath, false)) {
-                return;
+            if (!PathUtil.exists(file, false)) {
+                return false;
             }
             baseOssService.printOperation(getPlatform().getKey(), "upload", objectName);
             // 创建PutObjectRequest对象。
-            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectName, tempFileAbsolutePath.toFile());
+            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectName, file.toFile());
             // 设置该属性可以返回response。如果不设置，则返回的response为空。
             putObjectRequest.setProcess("true");
             // 创建PutObject请求。
             PutObjectResult putObjectResult = this.ossClient.putObject(putObjectRequest);
-            if (putObjectResult.getResponse().getStatusCode() == 200) {
-                // 上传成功
-                baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
-            }
+            return putObjectResult.getResponse().getStatusCode() == 200;
         } catch (OSSException oe) {
             log.error(oe.getMessage(), oe);
         } catch (ClientException ce) {
             log.error(ce.getMessage(), ce);
         }
+        return false;
     }
 
     @Override
@@ -534,6 +545,11 @@ public class AliyunOssService implements IOssService {
         baseOssService.clearCache(objectName);
     }
 
+    @Override
+    public OssUploadQueue.Stats getUploadQueueStats() {
+        return baseOssService.getUploadQueueStats();
+    }
+
     @Override
     public void lock(String objectName) {
         baseOssService.setObjectNameLock(objectName);
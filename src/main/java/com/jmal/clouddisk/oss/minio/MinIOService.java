@@ -3,7 +3,6 @@ package com.jmal.clouddisk.oss.minio;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.thread.ThreadUtil;
-import cn.hutool.core.util.BooleanUtil;
 import com.google.common.collect.HashMultimap;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.interceptor.FileInterceptor;
@@ -15,9 +14,9 @@ import io.minio.http.Method;
 import io.minio.messages.DeleteError;
 import io.minio.messages.DeleteObject;
 import io.minio.messages.Item;
+import io.minio.messages.ListBucketResultV2;
 import io.minio.messages.Part;
 import lombok.extern.slf4j.Slf4j;
-import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.net.URL;
@@ -25,13 +24,13 @@ import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.stream.Collectors;
 
 /**
  * @author jmal
@@ -108,11 +107,25 @@ public class MinIOService implements IOssService {
 
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd) {
+        try {
+            return getAbstractOssObject(objectName, rangeStart, rangeEnd, null);
+        } catch (ObjectChangedException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd, String eTag) throws ObjectChangedException {
         MinIOObject ossObject = null;
         try {
             StatObjectResponse statObjectResponse = this.minIoClient.statObject(bucketName, objectName);
-            GetObjectResponse getObjectResponse = this.minIoClient.getObject(bucketName, objectName, rangeStart, rangeEnd);
+            GetObjectResponse getObjectResponse = this.minIoClient.getObject(bucketName, objectName, rangeStart, rangeEnd, eTag);
             ossObject = new MinIOObject(statObjectResponse, getObjectResponse, this);
+        } catch (ErrorResponseException e) {
+            if (e.response() != null && e.response().code() == 412) {
+                throw new ObjectChangedException(objectName, eTag);
+            }
+            log.error(e.getMessage());
         } catch (Exception e) {
             log.error(e.getMessage());
         }
@@ -168,48 +181,19 @@ public class MinIOService implements IOssService {
 
     @Override
     public List<FileInfo> getFileInfoList(String objectName) {
-        List<FileInfo> fileInfoList = new ArrayList<>();
-        try {
-            ListObjectsArgs listObjectsArgs = ListObjectsArgs.builder().bucket(bucketName).prefix(objectName).delimiter("/").recursive(false).includeVersions(false).build();
-            Iterable<Result<Item>> results = this.minIoClient.listObjects(listObjectsArgs);
-            for (Result<Item> result : results) {
-                Item item = result.get();
-                if (item == null) {
-                    continue;
-                }
-                Date lastModified = null;
-                if (BooleanUtil.isFalse(item.isDir())) {
-                    lastModified = Date.from(item.lastModified().toInstant());
-                }
-                S3ObjectSummary s3ObjectSummary = new S3ObjectSummary(item.size(), item.objectName(), item.etag(), lastModified, bucketName);
-                baseOssService.addFileInfoList(objectName, fileInfoList, s3ObjectSummary);
-                if (item.isDir()) {
-                    String key = item.objectName();
-                    if (fileInfoList.stream().noneMatch(fileInfo -> key.equals(fileInfo.getKey()))) {
-                        fileInfoList.add(baseOssService.newFileInfo(key));
-                    }
-                }
-                fileInfoList = setLastModified(fileInfoList);
+        return baseOssService.listObjects(objectName, marker -> {
+            ListBucketResultV2 result = this.minIoClient.listObjectsPage(bucketName, objectName, "/", ListObjectsPage.MAX_KEYS, marker);
+            if (result == null) {
+                return new ListObjectsPage(Collections.emptyList(), Collections.emptyList(), null);
             }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-        }
-        return fileInfoList;
-    }
-
-    @NotNull
-    private List<FileInfo> setLastModified(List<FileInfo> fileInfoList) {
-        fileInfoList = fileInfoList.parallelStream().peek(fileInfo -> {
-            if (fileInfo.getLastModified() == null) {
-                try {
-                    Date date = getLastModified(fileInfo.getKey());
-                    fileInfo.setLastModified(date);
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                }
+            List<S3ObjectSummary> objectSummaries = new ArrayList<>(result.contents().size());
+            for (Item item : result.contents()) {
+                Date lastModified = item.lastModified() == null ? null : Date.from(item.lastModified().toInstant());
+                objectSummaries.add(new S3ObjectSummary(item.size(), item.objectName(), item.etag(), lastModified, bucketName));
             }
-        }).collect(Collectors.toList());
-        return fileInfoList;
+            List<String> commonPrefixes = result.commonPrefixes().stream().map(prefix -> prefix.toItem().objectName()).toList();
+            return new ListObjectsPage(objectSummaries, commonPrefixes, result.isTruncated() ? result.nextContinuationToken() : null);
+        });
     }
 
     @Override
@@ -233,9 +217,20 @@ public class MinIOService implements IOssService {
         return fileInfoList;
     }
 
-    private Date getLastModified(String objectName) throws ServerException, InsufficientDataException, ErrorResponseException, IOException, NoSuchAlgorithmException, InvalidKeyException, InvalidResponseException, XmlParserException, InternalException {
-        StatObjectResponse statObjectResponse = this.minIoClient.statObject(bucketName, objectName);
-        return Date.from(statObjectResponse.lastModified().toInstant());
+    @Override
+    public Date getLastModified(String objectName) {
+        try {
+            StatObjectResponse statObjectResponse = this.minIoClient.statObject(bucketName, objectName);
+            if (statObjectResponse == null || statObjectResponse.deleteMarker()) {
+                return null;
+            }
+            return Date.from(statObjectResponse.lastModified().toInstant());
+        } catch (ErrorResponseException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn(e.getMessage(), e);
+            return null;
+        }
     }
 
     @Override
@@ -259,22 +254,27 @@ public class MinIOService implements IOssService {
 
     @Override
     public void uploadFile(Path tempFileAbsolutePath, String objectName) {
+        if (putObject(tempFileAbsolutePath, objectName)) {
+            baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
+        }
+    }
+
+    @Override
+    public boolean putObject(Path file, String objectName) {
         try {
-            if (!PathUtil.exists(tempFileAbsolutePath, false)) {
-                return;
+            if (!PathUtil.exists(file, false)) {
+                return false;
             }
-            File file = tempFileAbsolutePath.toFile();
             baseOssService.printOperation(getPlatform().getKey(), "upload", objectName);
             ObjectWriteResponse objectWriteResponse;
-            try (InputStream inputStream = new FileInputStream(file)) {
-                PutObjectArgs putObjectArgs = getPutObjectArgs(inputStream, objectName, tempFileAbsolutePath.toFile().length());
+            try (InputStream inputStream = new FileInputStream(file.toFile())) {
+                PutObjectArgs putObjectArgs = getPutObjectArgs(inputStream, objectName, file.toFile().length());
                 objectWriteResponse = this.minIoClient.putObject2(putObjectArgs);
             }
-            if (objectWriteResponse != null && objectWriteResponse.etag() != null) {
-                baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
-            }
+            return objectWriteResponse != null && objectWriteResponse.etag() != null;
         } catch (Exception e) {
             log.error(e.getMessage(), e);
+            return false;
         }
     }
 
@@ -507,6 +507,11 @@ public class MinIOService implements IOssService {
         baseOssService.clearCache(objectName);
     }
 
+    @Override
+    public OssUploadQueue.Stats getUploadQueueStats() {
+        return baseOssService.getUploadQueueStats();
+    }
+
     @Override
     public void close() {
         baseOssService.closePrint();
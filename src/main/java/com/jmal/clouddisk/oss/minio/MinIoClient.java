@@ -3,6 +3,7 @@ package com.jmal.clouddisk.oss.minio;
 import com.google.common.collect.Multimap;
 import io.minio.*;
 import io.minio.errors.*;
+import io.minio.messages.ListBucketResultV2;
 import io.minio.messages.Part;
 import lombok.extern.slf4j.Slf4j;
 
@@ -56,29 +57,53 @@ public class MinIoClient extends MinioAsyncClient {
         return null;
     }
 
+    /**
+     * 列举一页对象(ListObjectsV2)
+     * @param continuationToken 上一页返回的nextContinuationToken, 第一页为null
+     */
+    public ListBucketResultV2 listObjectsPage(String bucketName, String prefix, String delimiter, Integer maxKeys, String continuationToken)
+            throws ErrorResponseException, InsufficientDataException, InternalException,
+            InvalidKeyException, InvalidResponseException, IOException, NoSuchAlgorithmException,
+            ServerException, XmlParserException {
+        try {
+            return super.listObjectsV2Async(bucketName, null, delimiter, null, null, maxKeys, prefix, continuationToken, false, false, null, null).get().result();
+        } catch (InterruptedException e) {
+            log.error(e.getMessage(), e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throwEncapsulatedException(e);
+        }
+        return null;
+    }
+
     public GetObjectResponse getObject(String bucketName, String objectName, Long rangeStart, Long rangeEnd)
             throws ErrorResponseException, InsufficientDataException, InternalException,
             InvalidKeyException, InvalidResponseException, IOException, NoSuchAlgorithmException,
             ServerException, XmlParserException {
+        return getObject(bucketName, objectName, rangeStart, rangeEnd, null);
+    }
+
+    /**
+     * 获取object
+     * @param eTag 不为null时只有object的eTag仍为该值才返回(If-Match), 否则抛出412
+     */
+    public GetObjectResponse getObject(String bucketName, String objectName, Long rangeStart, Long rangeEnd, String eTag)
+            throws ErrorResponseException, InsufficientDataException, InternalException,
+            InvalidKeyException, InvalidResponseException, IOException, NoSuchAlgorithmException,
+            ServerException, XmlParserException {
         try {
-            GetObjectArgs objectArgs;
+            GetObjectArgs.Builder builder = GetObjectArgs
+                    .builder()
+                    .bucket(bucketName)
+                    .object(objectName);
             if (rangeStart != null && rangeEnd != null) {
                 long contentLength = rangeEnd - rangeStart + 1;
-                objectArgs = GetObjectArgs
-                        .builder()
-                        .bucket(bucketName)
-                        .object(objectName)
-                        .offset(rangeStart)
-                        .length(contentLength)
-                        .build();
-            } else {
-                objectArgs = GetObjectArgs
-                        .builder()
-                        .bucket(bucketName)
-                        .object(objectName)
-                        .build();
+                builder.offset(rangeStart).length(contentLength);
+            }
+            if (eTag != null) {
+                builder.matchETag(eTag);
             }
-            return super.getObject(objectArgs).get();
+            return super.getObject(builder.build()).get();
         } catch (InterruptedException e) {
             log.error(e.getMessage(), e);
             Thread.currentThread().interrupt();
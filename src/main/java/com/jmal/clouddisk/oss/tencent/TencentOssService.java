@@ -12,6 +12,7 @@ import com.qcloud.cos.ClientConfig;
 import com.qcloud.cos.auth.BasicCOSCredentials;
 import com.qcloud.cos.auth.COSCredentials;
 import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
 import com.qcloud.cos.http.HttpMethodName;
 import com.qcloud.cos.http.HttpProtocol;
 import com.qcloud.cos.model.*;
@@ -121,13 +122,36 @@ public class TencentOssService implements IOssService {
 
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd) {
+        try {
+            return getAbstractOssObject(objectName, rangeStart, rangeEnd, null);
+        } catch (ObjectChangedException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public AbstractOssObject getAbstractOssObject(String objectName, Long rangeStart, Long rangeEnd, String eTag) throws ObjectChangedException {
         COSObject ossObject = null;
         try {
             GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, objectName);
             if (rangeStart != null && rangeEnd != null) {
                 getObjectRequest.setRange(rangeStart, rangeEnd);
             }
+            if (eTag != null) {
+                getObjectRequest.setMatchingETagConstraints(List.of(eTag));
+            }
             ossObject = this.cosClient.getObject(getObjectRequest);
+            if (ossObject == null && eTag != null) {
+                // 不满足If-Match时SDK返回null
+                throw new ObjectChangedException(objectName, eTag);
+            }
+        } catch (CosServiceException e) {
+            if (e.getStatusCode() == 412) {
+                throw new ObjectChangedException(objectName, eTag);
+            }
+            log.warn(e.getMessage());
+        } catch (ObjectChangedException e) {
+            throw e;
         } catch (Exception e) {
             log.warn(e.getMessage());
         }
@@ -186,41 +210,22 @@ public class TencentOssService implements IOssService {
 
     @Override
     public List<FileInfo> getFileInfoList(String objectName) {
-        List<FileInfo> fileInfoList = new ArrayList<>();
-        try {
-            baseOssService.printOperation(getPlatform().getKey(), "getFileInfoList", objectName);
+        return baseOssService.listObjects(objectName, marker -> {
             ListObjectsRequest listObjectsRequest = new ListObjectsRequest();
-            // 设置 bucket 名称
             listObjectsRequest.setBucketName(bucketName);
-            // prefix 表示列出的对象名以 prefix 为前缀
-            // 这里填要列出的目录的相对 bucket 的路径
             listObjectsRequest.setPrefix(objectName);
             // delimiter 表示目录的截断符, 例如：设置为 / 则表示对象名遇到 / 就当做一级目录）
             listObjectsRequest.setDelimiter("/");
-            // 设置最大遍历出多少个对象, 一次 listobject 最大支持1000
-            listObjectsRequest.setMaxKeys(1000);
-            // 保存每次列出的结果
-            ObjectListing objectListing;
-            do {
-                objectListing = cosClient.listObjects(listObjectsRequest);
-                // 对象列表
-                List<COSObjectSummary> cosObjectSummaries = objectListing.getObjectSummaries();
-                for (COSObjectSummary objectSummary : cosObjectSummaries) {
-                    S3ObjectSummary s3ObjectSummary = new S3ObjectSummary(objectSummary.getSize(), objectSummary.getKey(), objectSummary.getETag(), objectSummary.getLastModified(), objectSummary.getBucketName());
-                    baseOssService.addFileInfoList(objectName, fileInfoList, s3ObjectSummary);
-                }
-                // 子目录
-                for (String commonPrefix : objectListing.getCommonPrefixes()) {
-                    fileInfoList.add(baseOssService.newFileInfo(commonPrefix));
-                }
-                // 标记下一次开始的位置
-                String nextMarker = objectListing.getNextMarker();
-                listObjectsRequest.setMarker(nextMarker);
-            } while (objectListing.isTruncated());
-        } catch (CosClientException e) {
-            log.error(e.getMessage(), e);
-        }
-        return fileInfoList;
+            // 一次 listobject 最大支持1000
+            listObjectsRequest.setMaxKeys(ListObjectsPage.MAX_KEYS);
+            listObjectsRequest.setMarker(marker);
+            ObjectListing objectListing = cosClient.listObjects(listObjectsRequest);
+            List<S3ObjectSummary> objectSummaries = new ArrayList<>(objectListing.getObjectSummaries().size());
+            for (COSObjectSummary objectSummary : objectListing.getObjectSummaries()) {
+                objectSummaries.add(new S3ObjectSummary(objectSummary.getSize(), objectSummary.getKey(), objectSummary.getETag(), objectSummary.getLastModified(), objectSummary.getBucketName()));
+            }
+            return new ListObjectsPage(objectSummaries, objectListing.getCommonPrefixes(), objectListing.isTruncated() ? objectListing.getNextMarker() : null);
+        });
     }
 
     @Override
@@ -275,6 +280,15 @@ public class TencentOssService implements IOssService {
         return this.cosClient.doesObjectExist(bucketName, objectName);
     }
 
+    @Override
+    public Date getLastModified(String objectName) {
+        try {
+            return cosClient.getObjectMetadata(bucketName, objectName).getLastModified();
+        } catch (CosServiceException e) {
+            return null;
+        }
+    }
+
     @Override
     public String getUploadId(String objectName) {
         return baseOssService.getUploadId(objectName);
@@ -481,25 +495,26 @@ public class TencentOssService implements IOssService {
 
     @Override
     public void uploadFile(Path tempFileAbsolutePath, String objectName) {
-        executeUpload(tempFileAbsolutePath, objectName);
+        if (putObject(tempFileAbsolutePath, objectName)) {
+            baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
+        }
     }
 
-    private void executeUpload(Path tempFileAbsolutePath, String objectName) {
+    @Override
+    public boolean putObject(Path file, String objectName) {
         try {
-            if (!PathUtil.exists(tempFileAbsolutePath, false)) {
-                return;
+            if (!PathUtil.exists(file, false)) {
+                return false;
             }
             baseOssService.printOperation(getPlatform().getKey(), "upload", objectName);
             // 创建PutObjectRequest对象。
-            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectName, tempFileAbsolutePath.toFile());
+            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, objectName, file.toFile());
             // 创建PutObject请求。
             PutObjectResult putObjectResult = this.cosClient.putObject(putObjectRequest);
-            if (putObjectResult.getRequestId() != null) {
-                // 上传成功
-                baseOssService.onUploadSuccess(objectName, tempFileAbsolutePath);
-            }
+            return putObjectResult.getRequestId() != null;
         } catch (CosClientException e) {
             log.error(e.getMessage(), e);
+            return false;
         }
     }
 
@@ -540,6 +555,11 @@ public class TencentOssService implements IOssService {
         baseOssService.clearCache(objectName);
     }
 
+    @Override
+    public OssUploadQueue.Stats getUploadQueueStats() {
+        return baseOssService.getUploadQueueStats();
+    }
+
     @Override
     public void lock(String objectName) {
         baseOssService.setObjectNameLock(objectName);
@@ -4,6 +4,7 @@ import com.jmal.clouddisk.annotation.LogOperatingFun;
 import com.jmal.clouddisk.annotation.Permission;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.oss.OssConfigService;
+import com.jmal.clouddisk.oss.OssUploadQueue;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
@@ -41,6 +42,14 @@ public class OssController {
         return ossConfigService.ossConfigList();
     }
 
+    @Operation(summary = "OSS写回上传队列状态")
+    @LogOperatingFun(logType = LogOperation.Type.BROWSE)
+    @GetMapping("uploadQueue")
+    @Permission(value = "cloud:oss:get")
+    public ResponseResult<List<OssUploadQueue.Stats>> uploadQueue() {
+        return ResultUtil.success(ossConfigService.uploadQueueStats());
+    }
+
     @Operation(summary = "新增/修改OSS配置")
     @LogOperatingFun(logType = LogOperation.Type.OPERATION)
     @PutMapping("putOssConfig")
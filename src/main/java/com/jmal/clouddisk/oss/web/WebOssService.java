@@ -60,6 +60,8 @@ public class WebOssService extends WebOssCommonService {
 
     private final UserLoginHolder userLoginHolder;
 
+    private final OssRangeDownloader ossRangeDownloader;
+
     /***
      * 断点恢复上传缓存(已上传的分片缓存)
      * key: uploadId
@@ -690,7 +692,14 @@ public class WebOssService extends WebOssCommonService {
             } else {
                 response.setStatus(HttpServletResponse.SC_OK);
                 response.setContentLengthLong(fileSize);
-                IoUtil.copy(inStream, outputStream);
+                if (ossRangeDownloader.isParallel(abstractOssObject)) {
+                    // 大文件分段并行下载, 不再使用已经打开的输入流, 每一段都校验和它相同的eTag
+                    String eTag = abstractOssObject.getFileInfo().getETag();
+                    abstractOssObject.closeObject();
+                    ossRangeDownloader.copy(ossService, objectName, eTag, 0, fileSize - 1, outputStream);
+                } else {
+                    IoUtil.copy(inStream, outputStream);
+                }
             }
         } catch (ClientAbortException ignored) {
             // ignored error
@@ -714,15 +723,14 @@ public class WebOssService extends WebOssCommonService {
         long[] ranges = parseRange(range, fileSize);
         long start = ranges[0];
         long end = ranges[1] == -1 ? fileSize - 1 : ranges[1];
-        try (AbstractOssObject rangeObject = ossService.getAbstractOssObject(objectName, start, end);
-             InputStream rangeIn = rangeObject.getInputStream()) {
+        try {
             response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline;filename=" + encodedFilename);
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
             String contentRange = "bytes " + start + "-" + end + "/" + fileSize;
             response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange);
             long length = end - start + 1;
             response.setContentLengthLong(length);
-            IoUtil.copy(rangeIn, outputStream);
+            ossRangeDownloader.copy(ossService, objectName, start, end, outputStream);
         } catch (ClientAbortException | IORuntimeException ignored) {
             // ignored error
         } catch (Exception e) {
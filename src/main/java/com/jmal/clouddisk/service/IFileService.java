@@ -191,9 +191,10 @@ public interface IFileService {
      * 分享里的打包下载
      * @param request 请求
      * @param response 响应
+     * @param shareDO 分享, fileIdList只能是分享的文件或分享的文件夹下的文件
      * @param fileIdList 文件id列表
      */
-    void publicPackageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList);
+    void publicPackageDownload(HttpServletRequest request, HttpServletResponse response, ShareDO shareDO, List<String> fileIdList);
 
     /**
      * 打包下载
@@ -253,6 +254,13 @@ public interface IFileService {
      */
     String createFile(String username, File file);
 
+    /**
+     * 批量创建文件/文件夹(mongodb), 已存在的不做修改
+     * @param username 用户名
+     * @param fileList 文件/文件夹列表
+     */
+    void createFiles(String username, List<File> fileList);
+
     /**
      * 修改文件/文件夹
      *
@@ -276,6 +284,15 @@ public interface IFileService {
      */
     ResponseResult<Object> unzip(String fileId, String destFileId);
 
+    /**
+     * 读取压缩包中的单个文件, 不解压整个压缩包
+     * @param fileId 压缩包id
+     * @param entryName 压缩包中的文件路径
+     * @param shareDO 压缩包所在的分享, 不是通过分享访问时为null
+     * @param response HttpServletResponse
+     */
+    void previewArchiveEntry(String fileId, String entryName, ShareDO shareDO, HttpServletResponse response);
+
     /**
      * 获取目录下的文件
      * @param path 文件目录路径
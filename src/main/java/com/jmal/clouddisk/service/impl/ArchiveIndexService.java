@@ -0,0 +1,524 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.FileIntroVO;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import com.jmal.clouddisk.util.TimeUntils;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * @author jmal
+ * @Description 压缩包索引, 预览压缩包时不再解压
+ * zip/jar只读取中央目录, tar只读取一遍文件头, 按(文件, 修改时间, 大小)缓存目录树;
+ * 预览单个文件时只读取这个条目: zip中STORED/DEFLATED的条目、tar中的条目按偏移量直接读取,
+ * tar.gz/tar.bz2 不能随机访问, 从头读到该条目为止
+ * @date 2024/1/28 16:40
+ */
+@Service
+@Slf4j
+public class ArchiveIndexService {
+
+    /***
+     * 所有缓存的索引最多的条目数
+     */
+    private static final long MAX_CACHED_ENTRIES = 1_000_000;
+
+    /***
+     * zip本地文件头的固定长度
+     */
+    private static final int ZIP_LOCAL_HEADER_LENGTH = 30;
+
+    private static final String ROOT = "";
+
+    /***
+     * 压缩包索引
+     * key: 绝对路径:修改时间:大小
+     */
+    private final Cache<String, ArchiveIndex> indexCache = Caffeine.newBuilder()
+            .maximumWeight(MAX_CACHED_ENTRIES)
+            .weigher((String key, ArchiveIndex index) -> Math.max(1, index.entryMap.size()))
+            .expireAfterAccess(30, TimeUnit.MINUTES)
+            .build();
+
+    /***
+     * 正在预览的压缩包, 兼容以临时目录方式浏览预览结果
+     * key: username/压缩包id
+     */
+    private final Cache<String, File> previewCache = Caffeine.newBuilder().maximumSize(10000).expireAfterAccess(1, TimeUnit.HOURS).build();
+
+    /***
+     * 是否支持预览
+     * @param filename 文件名
+     */
+    public static boolean isSupported(String filename) {
+        return getFormat(filename) != null;
+    }
+
+    /***
+     * 记录正在预览的压缩包
+     * @param username 用户名
+     * @param fileId 压缩包id, 预览结果中路径的第一级
+     * @param file 压缩包
+     */
+    public void putPreview(String username, String fileId, File file) {
+        previewCache.put(username + "/" + fileId, file);
+    }
+
+    /***
+     * 获取正在预览的压缩包
+     * @param username 用户名
+     * @param fileId 压缩包id
+     * @return 压缩包, 没有时返回null
+     */
+    public File getPreview(String username, String fileId) {
+        return previewCache.getIfPresent(username + "/" + fileId);
+    }
+
+    /***
+     * 列出压缩包中某个目录下的文件
+     * @param file 压缩包
+     * @param dir 压缩包中的目录, ""为根目录
+     * @param pathPrefix 返回的路径前缀
+     * @return 目录下的文件, path为 pathPrefix/条目路径
+     */
+    public List<FileIntroVO> list(File file, String dir, String pathPrefix) {
+        ArchiveIndex index = getIndex(file);
+        List<ArchiveEntryInfo> children = index.childrenMap.getOrDefault(normalize(dir), Collections.emptyList());
+        List<FileIntroVO> list = new ArrayList<>(children.size());
+        for (ArchiveEntryInfo entry : children) {
+            FileIntroVO fileIntroVO = new FileIntroVO();
+            String filename = getFilename(entry.name);
+            String suffix = FileUtil.extName(filename);
+            fileIntroVO.setName(filename);
+            fileIntroVO.setIsFolder(entry.directory);
+            fileIntroVO.setSuffix(suffix);
+            fileIntroVO.setContentType(FileContentTypeUtils.getContentType(suffix));
+            fileIntroVO.setSize(Math.max(0, entry.size));
+            if (entry.lastModified > 0) {
+                fileIntroVO.setUpdateDate(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.lastModified), TimeUntils.ZONE_ID));
+            }
+            fileIntroVO.setPath(pathPrefix + "/" + entry.name);
+            list.add(fileIntroVO);
+        }
+        return list;
+    }
+
+    /***
+     * 读取压缩包中的单个文件到响应
+     * @param file 压缩包
+     * @param entryName 条目路径
+     * @param response HttpServletResponse
+     */
+    public void writeEntry(File file, String entryName, HttpServletResponse response) throws IOException {
+        ArchiveIndex index = getIndex(file);
+        ArchiveEntryInfo entry = index.entryMap.get(normalize(entryName));
+        if (entry == null || entry.directory) {
+            throw new CommonException(ExceptionType.FILE_NOT_FIND);
+        }
+        String suffix = FileUtil.extName(getFilename(entry.name));
+        response.setContentType(FileContentTypeUtils.getContentType(suffix));
+        if (entry.size >= 0) {
+            response.setContentLengthLong(entry.size);
+        }
+        try (InputStream inputStream = openEntry(file, index.format, entry)) {
+            inputStream.transferTo(response.getOutputStream());
+        }
+    }
+
+    /***
+     * 压缩包中的所有条目
+     * @param file 压缩包
+     */
+    List<ArchiveEntryInfo> getEntries(File file) {
+        return new ArrayList<>(getIndex(file).entryMap.values());
+    }
+
+    /***
+     * 是否可以按条目随机读取(zip, tar), 否则只能用scan顺序读取
+     * @param file 压缩包
+     */
+    boolean isRandomAccess(File file) {
+        Format format = getIndex(file).format;
+        return format == Format.ZIP || format == Format.TAR;
+    }
+
+    /***
+     * 打开单个条目
+     * @param file 压缩包
+     * @param entry 条目
+     */
+    InputStream openEntry(File file, ArchiveEntryInfo entry) throws IOException {
+        return openEntry(file, getIndex(file).format, entry);
+    }
+
+    /***
+     * 顺序读取tar中的所有文件
+     * @param file 压缩包
+     * @param consumer 每个文件的条目和内容
+     */
+    void scan(File file, EntryConsumer consumer) throws IOException {
+        ArchiveIndex index = getIndex(file);
+        try (TarArchiveInputStream tarInputStream = openTar(file, index.format)) {
+            TarArchiveEntry tarEntry;
+            while ((tarEntry = tarInputStream.getNextEntry()) != null) {
+                if (!tarEntry.isFile()) {
+                    continue;
+                }
+                ArchiveEntryInfo entry = index.entryMap.get(normalize(tarEntry.getName()));
+                if (entry != null && !entry.directory) {
+                    consumer.accept(entry, tarInputStream);
+                }
+            }
+        }
+    }
+
+    private ArchiveIndex getIndex(File file) {
+        if (!file.isFile()) {
+            throw new CommonException(ExceptionType.FILE_NOT_FIND);
+        }
+        Format format = getFormat(file.getName());
+        if (format == null) {
+            throw new CommonException(ExceptionType.UNRECOGNIZED_FILE);
+        }
+        String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+        try {
+            return indexCache.get(key, k -> {
+                try {
+                    return buildIndex(file, format);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            log.warn("读取压缩包失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS);
+        }
+    }
+
+    private static ArchiveIndex buildIndex(File file, Format format) throws IOException {
+        ArchiveIndex index = new ArchiveIndex(format);
+        if (format == Format.ZIP) {
+            // 只读取中央目录, 不读取每个条目的本地文件头
+            try (ZipFile zipFile = ZipFile.builder().setFile(file).setCharset(StandardCharsets.UTF_8).setUseUnicodeExtraFields(true).setIgnoreLocalFileHeader(true).get()) {
+                Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry zipEntry = entries.nextElement();
+                    ArchiveEntryInfo entry = index.add(zipEntry.getName(), zipEntry.isDirectory(), zipEntry.getSize(), zipEntry.getTime());
+                    if (entry != null && !entry.directory && !zipEntry.getGeneralPurposeBit().usesEncryption()) {
+                        entry.method = zipEntry.getMethod();
+                        entry.offset = zipEntry.getLocalHeaderOffset();
+                        entry.compressedSize = zipEntry.getCompressedSize();
+                    }
+                }
+            }
+            return index;
+        }
+        try (TarArchiveInputStream tarInputStream = openTar(file, format)) {
+            TarArchiveEntry tarEntry;
+            while ((tarEntry = tarInputStream.getNextEntry()) != null) {
+                if (!tarEntry.isDirectory() && !tarEntry.isFile()) {
+                    // 链接、设备文件等
+                    continue;
+                }
+                ArchiveEntryInfo entry = index.add(tarEntry.getName(), tarEntry.isDirectory(), tarEntry.getSize(), tarEntry.getModTime().getTime());
+                if (entry != null && format == Format.TAR && tarEntry.isStreamContiguous()) {
+                    entry.offset = tarEntry.getDataOffset();
+                }
+            }
+        }
+        return index;
+    }
+
+    /***
+     * 打开单个条目
+     */
+    private static InputStream openEntry(File file, Format format, ArchiveEntryInfo entry) throws IOException {
+        if (format == Format.ZIP) {
+            return openZipEntry(file, entry);
+        }
+        if (entry.offset >= 0) {
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileChannel.position(entry.offset);
+            return new BoundedInputStream(Channels.newInputStream(fileChannel), entry.size);
+        }
+        // 压缩的tar不能随机访问, 读到该条目为止
+        TarArchiveInputStream tarInputStream = openTar(file, format);
+        try {
+            TarArchiveEntry tarEntry;
+            while ((tarEntry = tarInputStream.getNextEntry()) != null) {
+                if (entry.name.equals(normalize(tarEntry.getName())) && tarEntry.isFile()) {
+                    return tarInputStream;
+                }
+            }
+        } catch (IOException e) {
+            tarInputStream.close();
+            throw e;
+        }
+        tarInputStream.close();
+        throw new CommonException(ExceptionType.FILE_NOT_FIND);
+    }
+
+    /***
+     * zip中STORED/DEFLATED的条目, 根据本地文件头定位到数据直接读取, 不再读取中央目录;
+     * 其他压缩方式、加密的条目交给ZipFile
+     */
+    private static InputStream openZipEntry(File file, ArchiveEntryInfo entry) throws IOException {
+        boolean direct = entry.offset >= 0 && entry.compressedSize >= 0 && (entry.method == ZipEntry.STORED || entry.method == ZipEntry.DEFLATED);
+        if (direct) {
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(ZIP_LOCAL_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && fileChannel.read(header, entry.offset + header.position()) > 0) {
+                    // 读取本地文件头
+                }
+                if (header.hasRemaining() || header.getInt(0) != 0x04034b50) {
+                    throw new IOException("本地文件头错误: " + entry.name);
+                }
+                int nameLength = header.getShort(26) & 0xffff;
+                int extraLength = header.getShort(28) & 0xffff;
+                fileChannel.position(entry.offset + ZIP_LOCAL_HEADER_LENGTH + nameLength + extraLength);
+            } catch (IOException e) {
+                fileChannel.close();
+                throw e;
+            }
+            InputStream inputStream = new BoundedInputStream(Channels.newInputStream(fileChannel), entry.compressedSize);
+            if (entry.method == ZipEntry.STORED) {
+                return inputStream;
+            }
+            Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(inputStream, inflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        ZipFile zipFile = ZipFile.builder().setFile(file).setCharset(StandardCharsets.UTF_8).setUseUnicodeExtraFields(true).get();
+        try {
+            ZipArchiveEntry zipEntry = zipFile.getEntry(entry.originalName);
+            if (zipEntry == null || !zipFile.canReadEntryData(zipEntry)) {
+                throw new CommonException(ExceptionType.FAIL_DECOMPRESS);
+            }
+            return new FilterInputStream(zipFile.getInputStream(zipEntry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            zipFile.close();
+            throw e;
+        }
+    }
+
+    private static TarArchiveInputStream openTar(File file, Format format) throws IOException {
+        InputStream inputStream = new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024);
+        try {
+            return switch (format) {
+                case TAR_GZ -> new TarArchiveInputStream(new GzipCompressorInputStream(inputStream));
+                case TAR_BZ2 -> new TarArchiveInputStream(new BZip2CompressorInputStream(inputStream));
+                default -> new TarArchiveInputStream(inputStream);
+            };
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /***
+     * 与CompressUtils.decompress支持的格式一致
+     */
+    private static Format getFormat(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        String name = filename.toLowerCase();
+        if (name.endsWith(".zip") || name.endsWith(".jar")) {
+            return Format.ZIP;
+        }
+        if (name.endsWith(".tar")) {
+            return Format.TAR;
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz") || name.endsWith(".gz")) {
+            return Format.TAR_GZ;
+        }
+        if (name.endsWith(".tar.bz2")) {
+            return Format.TAR_BZ2;
+        }
+        return null;
+    }
+
+    /***
+     * 去掉开头的"/"、"./"和结尾的"/", 包含".."的条目不显示
+     */
+    private static String normalize(String name) {
+        if (name == null) {
+            return ROOT;
+        }
+        String path = name.replace('\\', '/');
+        while (path.startsWith("/") || path.startsWith("./")) {
+            path = path.startsWith("/") ? path.substring(1) : path.substring(2);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static String getFilename(String path) {
+        int index = path.lastIndexOf('/');
+        return index < 0 ? path : path.substring(index + 1);
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('/');
+        return index < 0 ? ROOT : path.substring(0, index);
+    }
+
+    private enum Format {
+        ZIP, TAR, TAR_GZ, TAR_BZ2
+    }
+
+    private static class ArchiveIndex {
+
+        private final Format format;
+
+        /***
+         * key: 条目路径
+         */
+        private final Map<String, ArchiveEntryInfo> entryMap = new HashMap<>();
+
+        /***
+         * key: 目录路径, 根目录为""
+         */
+        private final Map<String, List<ArchiveEntryInfo>> childrenMap = new HashMap<>();
+
+        ArchiveIndex(Format format) {
+            this.format = format;
+        }
+
+        /***
+         * 添加条目, 同时补上没有单独条目的上级目录
+         * @return 添加的条目, 路径不合法时返回null
+         */
+        ArchiveEntryInfo add(String originalName, boolean directory, long size, long lastModified) {
+            String name = normalize(originalName);
+            if (CharSequenceUtil.isBlank(name) || Arrays.asList(name.split("/")).contains("..")) {
+                return null;
+            }
+            ArchiveEntryInfo entry = entryMap.get(name);
+            if (entry != null) {
+                // 目录已经由下级条目补上, 或者重复的条目(tar追加), 以后面的为准
+                if (directory && entry.directory) {
+                    entry.lastModified = lastModified;
+                    return entry;
+                }
+                childrenMap.get(getParent(name)).remove(entry);
+                entryMap.remove(name);
+            }
+            addParent(getParent(name), lastModified);
+            entry = new ArchiveEntryInfo(name, originalName, directory, directory ? 0 : size, lastModified);
+            entryMap.put(name, entry);
+            childrenMap.computeIfAbsent(getParent(name), k -> new ArrayList<>()).add(entry);
+            return entry;
+        }
+
+        private void addParent(String dir, long lastModified) {
+            if (ROOT.equals(dir) || entryMap.containsKey(dir)) {
+                return;
+            }
+            addParent(getParent(dir), lastModified);
+            ArchiveEntryInfo entry = new ArchiveEntryInfo(dir, dir + "/", true, 0, lastModified);
+            entryMap.put(dir, entry);
+            childrenMap.computeIfAbsent(getParent(dir), k -> new ArrayList<>()).add(entry);
+        }
+    }
+
+    /***
+     * 压缩包中的条目
+     */
+    static class ArchiveEntryInfo {
+
+        final String name;
+
+        /***
+         * 压缩包中的原始名称
+         */
+        final String originalName;
+
+        final boolean directory;
+
+        /***
+         * 解压后的大小, -1 表示未知
+         */
+        final long size;
+
+        long lastModified;
+
+        /***
+         * zip: 本地文件头的偏移量, tar: 数据的偏移量, -1 表示需要顺序读取
+         */
+        long offset = -1;
+
+        /***
+         * zip: 压缩后的大小
+         */
+        long compressedSize = -1;
+
+        int method = -1;
+
+        ArchiveEntryInfo(String name, String originalName, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.originalName = originalName;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /***
+     * 顺序读取条目
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(ArchiveEntryInfo entry, InputStream inputStream) throws IOException;
+    }
+}
@@ -0,0 +1,542 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.IdUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.BlobDO;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.UploadChallenge;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.TimeUntils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description 按内容存储文件(blob), 用于跨用户去重和秒传
+ * blob位于 ${chunkFileDir}/blob/${sha256前两位}/${sha256}, 以服务端计算的SHA-256为键, 引用数保存在mongo(blob)中;
+ * 用户目录下内容相同的文件都是blob的硬链接, 相同的文件只占一份空间, 原有的按路径访问(下载、webDAV、FTP)不变;
+ * 原地修改用户文件前先断开硬链接(写时复制), 不会影响其他用户的文件;
+ * 秒传时客户端要先证明持有该文件: 对服务端随机选择的几个区间计算摘要, 只知道SHA-256不能获取别人的文件;
+ * 删除文件时减少引用数, 每天按文件系统的硬链接数校正引用数, 清理没有引用的blob
+ * @date 2024/2/9 10:20
+ */
+@Service
+@Slf4j
+public class BlobService {
+
+    public static final String COLLECTION_NAME = "blob";
+
+    /***
+     * blob目录, 位于 ${chunkFileDir}/blob
+     */
+    public static final String BLOB_DIR = "blob";
+
+    /***
+     * 替换用户文件时使用的临时目录, 与blob在同一文件系统中
+     */
+    private static final String TEMP_DIR = "tmp";
+
+    private static final String REF_COUNT = "refCount";
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    /***
+     * 持有证明的区间数和每个区间的大小
+     */
+    private static final int CHALLENGE_RANGES = 4;
+
+    private static final int CHALLENGE_RANGE_SIZE = 64 * 1024;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int GC_PAGE_SIZE = 1000;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private IUserService userService;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /***
+     * 同一个blob的创建、链接、删除串行执行
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /***
+     * 等待客户端回答的持有证明
+     * key: username/identifier
+     */
+    private final Cache<String, Challenge> challengeCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    public BlobService() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /***
+     * 规范化客户端提供的SHA-256
+     * @return 小写的SHA-256, 格式不对时返回null
+     */
+    public static String normalize(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        String lower = hash.trim().toLowerCase();
+        return SHA256.matcher(lower).matches() ? lower : null;
+    }
+
+    /***
+     * 上传完成后保存为blob
+     * 已有相同内容的blob时, 用blob的硬链接替换该文件, 释放这份重复的数据; 否则该文件本身成为blob
+     * @param hash 服务端计算的SHA-256
+     * @param file 用户目录下的文件
+     * @return 是否已经与blob关联, 文件系统不支持硬链接时为false
+     */
+    public boolean store(String hash, Path file) {
+        if (normalize(hash) == null || !Files.isRegularFile(file) || linkCount(file) < 0) {
+            // 不能查询硬链接数时无法在修改前断开链接, 不使用blob
+            return false;
+        }
+        Path blob = getBlobPath(hash);
+        synchronized (lock(hash)) {
+            try {
+                long size = Files.size(file);
+                if (size <= 0) {
+                    return false;
+                }
+                if (isValid(find(hash), blob, size)) {
+                    if (Files.isSameFile(blob, file)) {
+                        return true;
+                    }
+                    replaceWithLink(blob, file);
+                    addRef(hash, 1);
+                    return true;
+                }
+                // 没有blob, 或者blob已经失效
+                Files.createDirectories(blob.getParent());
+                Files.deleteIfExists(blob);
+                Files.createLink(blob, file);
+                BlobDO blobDO = new BlobDO();
+                blobDO.setId(hash);
+                blobDO.setSize(size);
+                blobDO.setModified(Files.getLastModifiedTime(blob).toMillis());
+                blobDO.setRefCount(1);
+                blobDO.setCreateDate(LocalDateTime.now(TimeUntils.ZONE_ID));
+                mongoTemplate.save(blobDO, COLLECTION_NAME);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warn("保存blob失败, {}, {}", file, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /***
+     * 生成秒传的持有证明, 服务端没有该内容时返回null
+     * @param key username/identifier
+     * @param hash 客户端提供的SHA-256
+     * @param size 文件大小
+     */
+    public UploadChallenge challenge(String key, String hash, long size) {
+        BlobDO blobDO = find(hash);
+        if (!isValid(blobDO, getBlobPath(hash), size)) {
+            return null;
+        }
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        List<long[]> ranges = new ArrayList<>(CHALLENGE_RANGES);
+        if (size <= (long) CHALLENGE_RANGES * CHALLENGE_RANGE_SIZE) {
+            ranges.add(new long[]{0, size - 1});
+        } else {
+            for (int i = 0; i < CHALLENGE_RANGES; i++) {
+                long start = (long) (random.nextDouble() * (size - CHALLENGE_RANGE_SIZE));
+                ranges.add(new long[]{start, start + CHALLENGE_RANGE_SIZE - 1});
+            }
+        }
+        Challenge challenge = new Challenge(hash, HexUtil.encodeHexStr(nonce), ranges);
+        challengeCache.put(key, challenge);
+        UploadChallenge uploadChallenge = new UploadChallenge();
+        uploadChallenge.setNonce(challenge.nonce);
+        uploadChallenge.setRanges(ranges);
+        return uploadChallenge;
+    }
+
+    /***
+     * 校验持有证明, 每个challenge只能校验一次
+     * @param key username/identifier
+     * @param hash 客户端提供的SHA-256
+     * @param proof 客户端计算的摘要
+     * @return 是否通过
+     */
+    public boolean verify(String key, String hash, String proof) {
+        Challenge challenge = challengeCache.getIfPresent(key);
+        challengeCache.invalidate(key);
+        if (challenge == null || !challenge.hash.equals(hash) || CharSequenceUtil.isBlank(proof)) {
+            return false;
+        }
+        try {
+            byte[] expected = digest(getBlobPath(hash), challenge.nonce, challenge.ranges);
+            return MessageDigest.isEqual(expected, HexUtil.decodeHex(proof.trim().toLowerCase()));
+        } catch (IOException | RuntimeException e) {
+            log.warn("校验持有证明失败, {}, {}", hash, e.getMessage());
+            return false;
+        }
+    }
+
+    /***
+     * 秒传, 在目标位置创建blob的硬链接
+     * @param hash SHA-256
+     * @param size 文件大小
+     * @param target 用户目录下的目标文件
+     * @return 是否成功
+     */
+    public boolean linkTo(String hash, long size, Path target) {
+        Path blob = getBlobPath(hash);
+        synchronized (lock(hash)) {
+            if (!isValid(find(hash), blob, size)) {
+                return false;
+            }
+            try {
+                PathUtil.mkParentDirs(target);
+                replaceWithLink(blob, target);
+                addRef(hash, 1);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warn("秒传创建链接失败, {}, {}", target, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /***
+     * 原地修改用户文件前调用, 文件与其他文件共享数据(硬链接)时先断开
+     * @param file 用户目录下的文件
+     * @param keepContent 是否保留原来的内容(追加、按偏移写入), 否则直接删除, 由之后的写入创建新文件
+     */
+    public void beforeWrite(Path file, boolean keepContent) throws IOException {
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) || linkCount(file) <= 1) {
+            return;
+        }
+        if (keepContent) {
+            Path tempPath = getTempPath();
+            try {
+                Files.copy(file, tempPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(tempPath, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } else {
+            Files.delete(file);
+        }
+        String hash = unsetContentHash(file);
+        if (hash != null) {
+            release(hash);
+        }
+    }
+
+    /***
+     * 覆盖写入用户文件前调用, 与beforeWrite(file, false)相同, 失败时抛出CommonException
+     * @param file 用户目录下的文件
+     */
+    public void beforeOverwrite(File file) {
+        try {
+            beforeWrite(file.toPath(), false);
+        } catch (IOException e) {
+            log.error("断开共享的文件失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "修改文件失败");
+        }
+    }
+
+    /***
+     * 删除引用该blob的文件后减少引用数, 没有引用时删除blob
+     * @param hash SHA-256
+     */
+    public void release(String hash) {
+        if (normalize(hash) == null) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").is(hash));
+        BlobDO blobDO = mongoTemplate.findAndModify(query, new Update().inc(REF_COUNT, -1), FindAndModifyOptions.options().returnNew(true), BlobDO.class, COLLECTION_NAME);
+        if (blobDO != null && blobDO.getRefCount() <= 0) {
+            removeIfUnused(hash);
+        }
+    }
+
+    /***
+     * 每天按硬链接数校正引用数, 删除没有用户文件引用的blob和中断的临时文件
+     */
+    @Scheduled(cron = "0 30 3 * * ?")
+    public void gc() {
+        Path blobRoot = getBlobRoot();
+        if (!Files.isDirectory(blobRoot)) {
+            return;
+        }
+        long removed = 0;
+        String lastId = null;
+        while (true) {
+            Query query = new Query();
+            if (lastId != null) {
+                query.addCriteria(Criteria.where("_id").gt(lastId));
+            }
+            query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(GC_PAGE_SIZE);
+            List<BlobDO> blobList = mongoTemplate.find(query, BlobDO.class, COLLECTION_NAME);
+            if (blobList.isEmpty()) {
+                break;
+            }
+            for (BlobDO blobDO : blobList) {
+                if (reconcile(blobDO)) {
+                    removed++;
+                }
+            }
+            lastId = blobList.get(blobList.size() - 1).getId();
+        }
+        removed += removeOrphanFiles(blobRoot);
+        if (removed > 0) {
+            log.info("清理没有引用的blob: {}", removed);
+        }
+    }
+
+    /***
+     * 按硬链接数校正一个blob的引用数
+     * @return 是否删除了该blob
+     */
+    private boolean reconcile(BlobDO blobDO) {
+        String hash = blobDO.getId();
+        Path blob = getBlobPath(hash);
+        synchronized (lock(hash)) {
+            if (!Files.isRegularFile(blob)) {
+                mongoTemplate.remove(new Query(Criteria.where("_id").is(hash)), COLLECTION_NAME);
+                return true;
+            }
+            int linkCount = linkCount(blob);
+            if (linkCount < 0) {
+                // 不支持查询硬链接数
+                return false;
+            }
+            if (linkCount <= 1) {
+                removeIfUnused(hash);
+                return true;
+            }
+            if (blobDO.getRefCount() != linkCount - 1) {
+                mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(hash)), new Update().set(REF_COUNT, linkCount - 1), COLLECTION_NAME);
+            }
+            return false;
+        }
+    }
+
+    /***
+     * 删除没有记录并且没有用户文件引用的blob, 以及一小时前的临时文件
+     */
+    private long removeOrphanFiles(Path blobRoot) {
+        long expireMillis = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        long removed = 0;
+        try (Stream<Path> stream = Files.walk(blobRoot, 2)) {
+            for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                String name = path.getFileName().toString();
+                if (TEMP_DIR.equals(path.getParent().getFileName().toString())) {
+                    if (Files.getLastModifiedTime(path).toMillis() < expireMillis) {
+                        Files.deleteIfExists(path);
+                    }
+                    continue;
+                }
+                if (normalize(name) != null && linkCount(path) == 1 && !mongoTemplate.exists(new Query(Criteria.where("_id").is(name)), COLLECTION_NAME)) {
+                    synchronized (lock(name)) {
+                        if (linkCount(path) == 1) {
+                            Files.deleteIfExists(path);
+                            removed++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("清理blob目录失败, {}", e.getMessage());
+        }
+        return removed;
+    }
+
+    /***
+     * blob只剩下自身一个链接时删除
+     */
+    private void removeIfUnused(String hash) {
+        Path blob = getBlobPath(hash);
+        synchronized (lock(hash)) {
+            try {
+                if (Files.exists(blob) && linkCount(blob) != 1) {
+                    return;
+                }
+                Files.deleteIfExists(blob);
+                mongoTemplate.remove(new Query(Criteria.where("_id").is(hash)), COLLECTION_NAME);
+            } catch (IOException e) {
+                log.warn("删除blob失败, {}, {}", hash, e.getMessage());
+            }
+        }
+    }
+
+    /***
+     * 清除用户文件记录的contentHash, 文件内容即将被修改
+     * @return 原来的contentHash
+     */
+    private String unsetContentHash(Path file) {
+        Path relative = Paths.get(fileProperties.getRootDir()).toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize());
+        if (relative.getNameCount() < 2 || relative.startsWith("..")) {
+            return null;
+        }
+        String userId = userService.getUserIdByUserName(relative.getName(0).toString());
+        if (userId == null) {
+            return null;
+        }
+        Path parent = relative.subpath(0, relative.getNameCount() - 1);
+        String path = parent.getNameCount() > 1 ? "/" + parent.subpath(1, parent.getNameCount()).toString().replace('\\', '/') + "/" : "/";
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").is(path));
+        query.addCriteria(Criteria.where("name").is(relative.getFileName().toString()));
+        query.fields().include("contentHash");
+        FileDocument fileDocument = mongoTemplate.findAndModify(query, new Update().unset("contentHash").unset("contentHashModified"), FileDocument.class, CommonFileService.COLLECTION_NAME);
+        return fileDocument == null ? null : fileDocument.getContentHash();
+    }
+
+    private BlobDO find(String hash) {
+        if (normalize(hash) == null) {
+            return null;
+        }
+        return mongoTemplate.findById(hash, BlobDO.class, COLLECTION_NAME);
+    }
+
+    /***
+     * blob是否可用: 有记录, 文件存在, 大小和修改时间与创建时一致
+     */
+    private static boolean isValid(BlobDO blobDO, Path blob, long size) {
+        if (blobDO == null || blobDO.getSize() != size) {
+            return false;
+        }
+        try {
+            return Files.size(blob) == size && Files.getLastModifiedTime(blob).toMillis() == blobDO.getModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /***
+     * 用blob的硬链接替换目标文件, 先在临时目录创建链接再原子移动, 目标位置不会出现不完整的文件
+     */
+    private void replaceWithLink(Path blob, Path target) throws IOException {
+        Path tempPath = getTempPath();
+        try {
+            Files.createLink(tempPath, blob);
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private void addRef(String hash, int delta) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(hash)), new Update().inc(REF_COUNT, delta), COLLECTION_NAME);
+    }
+
+    private Path getTempPath() throws IOException {
+        Path tempDir = getBlobRoot().resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        return tempDir.resolve(IdUtil.fastSimpleUUID());
+    }
+
+    private Path getBlobRoot() {
+        return Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), BLOB_DIR);
+    }
+
+    private Path getBlobPath(String hash) {
+        return getBlobRoot().resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Object lock(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    /***
+     * 文件的硬链接数, 不支持时返回-1
+     */
+    private static int linkCount(Path path) {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /***
+     * SHA-256(nonce + 按顺序拼接的各区间的内容)
+     */
+    static byte[] digest(Path file, String nonce, List<long[]> ranges) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(nonce.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer byteBuffer = ByteBuffer.allocate(CHALLENGE_RANGE_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long[] range : ranges) {
+                long position = range[0];
+                while (position <= range[1]) {
+                    byteBuffer.clear();
+                    byteBuffer.limit((int) Math.min(byteBuffer.capacity(), range[1] - position + 1));
+                    int n = fileChannel.read(byteBuffer, position);
+                    if (n <= 0) {
+                        throw new IOException("读取blob失败: " + file);
+                    }
+                    byteBuffer.flip();
+                    digest.update(byteBuffer);
+                    position += n;
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /***
+     * 等待回答的持有证明
+     */
+    private record Challenge(String hash, String nonce, List<long[]> ranges) {
+    }
+}
@@ -6,6 +6,8 @@ import cn.hutool.core.io.CharsetDetector;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.BlockPolicy;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
 import com.alibaba.fastjson2.JSONObject;
 import com.github.benmanes.caffeine.cache.Cache;
@@ -13,7 +15,6 @@ import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.model.*;
-import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.oss.OssConfigService;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IUserService;
@@ -21,19 +22,17 @@ import com.jmal.clouddisk.service.video.VideoProcessService;
 import com.jmal.clouddisk.util.*;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import com.jmal.clouddisk.websocket.SocketManager;
-import com.luciad.imageio.webp.WebPWriteParam;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.result.UpdateResult;
 import jakarta.validation.constraints.NotNull;
 import lombok.extern.slf4j.Slf4j;
-import net.coobird.thumbnailator.Thumbnails;
-import net.coobird.thumbnailator.tasks.UnsupportedFormatException;
-import org.bson.BsonNull;
 import org.bson.Document;
-import org.bson.conversions.Bson;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -46,13 +45,6 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.util.UriUtils;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileImageOutputStream;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -66,14 +58,12 @@ import java.text.Collator;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import static com.mongodb.client.model.Accumulators.sum;
-import static com.mongodb.client.model.Aggregates.group;
-import static com.mongodb.client.model.Aggregates.match;
-import static com.mongodb.client.model.Filters.eq;
-
 /**
  * @author jmal
  * @Description CommonFileService
@@ -103,6 +93,21 @@ public class CommonFileService {
     @Autowired
     private VideoProcessService videoProcessService;
 
+    @Autowired
+    FolderSizeService folderSizeService;
+
+    @Autowired
+    UserSpaceService userSpaceService;
+
+    @Autowired
+    ThumbnailService thumbnailService;
+
+    @Autowired
+    WebpService webpService;
+
+    @Autowired
+    LuceneService luceneService;
+
     /***
      * 上传文件夹的写入锁缓存
      */
@@ -110,6 +115,26 @@ public class CommonFileService {
 
     protected static final Set<String> FILE_PATH_LOCK = new CopyOnWriteArraySet<>();
 
+    /***
+     * 按文件名排序, RuleBasedCollator.compare是同步的, 可以共用一个实例
+     */
+    private static final Collator NAME_COLLATOR = Collator.getInstance(java.util.Locale.CHINA);
+
+    /***
+     * 缩略图、音频标签、视频封面等耗时处理的线程池, 队列满时阻塞提交的线程
+     */
+    private static final ThreadPoolExecutor ENRICH_EXECUTOR = newEnrichExecutor();
+
+    private static ThreadPoolExecutor newEnrichExecutor() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+                ThreadUtil.newNamedThreadFactory("fileEnrich", true), new BlockPolicy());
+    }
+
+    public static int getEnrichQueueSize() {
+        return ENRICH_EXECUTOR.getQueue().size();
+    }
+
     public ResponseEntity<Object> getObjectResponseEntity(Optional<FileDocument> file) {
         return file.<ResponseEntity<Object>>map(fileDocument ->
                 ResponseEntity.ok()
@@ -272,14 +297,24 @@ public class CommonFileService {
         }
         String fileName = file.getName();
         String suffix = FileUtil.extName(fileName);
-        String contentType = FileContentTypeUtils.getContentType(suffix);
-        if (contentType.startsWith(Constants.CONTENT_TYPE_IMAGE)) {
-            // 换成webp格式的图片
-            file = replaceWebp(userId, file);
+        boolean deferredWebp = false;
+        if (file.isFile() && isNeedWebp(userService.getDisabledWebp(userId), suffix)) {
+            if (webpService.isDeferred()) {
+                // 先保留原图, 后台转换
+                deferredWebp = true;
+            } else {
+                // 换成webp格式的图片, 等待转换超时的改为后台转换
+                File webpFile = webpService.toWebp(file);
+                if (webpFile == null) {
+                    deferredWebp = true;
+                } else {
+                    file = webpFile;
+                }
+            }
         }
         fileName = file.getName();
         suffix = FileUtil.extName(fileName);
-        contentType = FileContentTypeUtils.getContentType(suffix);
+        String contentType = FileContentTypeUtils.getContentType(suffix);
 
         String fileAbsolutePath = file.getAbsolutePath();
         Lock lock = null;
@@ -291,12 +326,10 @@ public class CommonFileService {
         }
         UpdateResult updateResult;
         try {
-            int startIndex = fileProperties.getRootDir().length() + username.length() + 1;
-            int endIndex = fileAbsolutePath.length() - fileName.length();
-            if (startIndex >= endIndex) {
+            String relativePath = getRelativePath(username, file);
+            if (relativePath == null) {
                 return null;
             }
-            String relativePath = fileAbsolutePath.substring(startIndex, endIndex);
             Query query = new Query();
             FileDocument fileExists = getFileDocument(userId, fileName, relativePath, query);
             if (fileExists != null) {
@@ -322,6 +355,12 @@ public class CommonFileService {
             // 检查该文件的上级目录是否有已经分享的目录
             checkShareBase(update, relativePath);
             updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
+            if (null != updateResult.getUpsertedId() && file.isFile()) {
+                // 更新上级目录的大小和用户已使用空间
+                long size = file.length();
+                folderSizeService.onFileCreated(userId, relativePath, size);
+                userSpaceService.addDelta(userId, size);
+            }
             pushMessage(username, update.getUpdateObject(), "createFile");
         } finally {
             if (lock != null) {
@@ -329,11 +368,154 @@ public class CommonFileService {
             }
         }
         if (null != updateResult.getUpsertedId()) {
-            return updateResult.getUpsertedId().asObjectId().getValue().toHexString();
+            String fileId = updateResult.getUpsertedId().asObjectId().getValue().toHexString();
+            if (file.isFile() && ThumbnailService.isThumbnailType(suffix)) {
+                thumbnailService.generateAsync(fileId, file);
+            }
+            if (file.isFile()) {
+                luceneService.indexFile(fileId, suffix);
+            }
+            if (deferredWebp) {
+                File originalFile = file;
+                String finalUserId = userId;
+                webpService.toWebpAsync(originalFile, webpFile -> onWebpConverted(username, finalUserId, fileId, originalFile, webpFile));
+            }
+            return fileId;
         }
         return null;
     }
 
+    /***
+     * 批量创建文件/文件夹(mongodb), 用于文件监控
+     * 只写入基本信息, 不存在的记录一次bulkWrite写入, 已存在的记录不做修改
+     * 缩略图、音频标签、视频封面交给ENRICH_EXECUTOR异步处理, 需要转换成webp的图片走单个创建的流程
+     * @param username 用户名
+     * @param fileList 文件/文件夹列表
+     */
+    public void batchCreateFile(String username, List<File> fileList) {
+        String userId = userService.getUserIdByUserName(username);
+        if (CharSequenceUtil.isBlank(userId) || fileList.isEmpty()) {
+            return;
+        }
+        boolean disabledWebp = userService.getDisabledWebp(userId);
+        // 查询已存在的记录
+        Map<String, File> fileMap = new LinkedHashMap<>(fileList.size());
+        Set<String> pathSet = new HashSet<>();
+        Set<String> nameSet = new HashSet<>();
+        for (File file : fileList) {
+            String fileName = file.getName();
+            String relativePath = getRelativePath(username, file);
+            if (relativePath == null) {
+                continue;
+            }
+            if (file.isFile() && isNeedWebp(disabledWebp, FileUtil.extName(fileName))) {
+                ENRICH_EXECUTOR.execute(() -> createFile(username, file, userId, null));
+                continue;
+            }
+            fileMap.put(relativePath + fileName, file);
+            pathSet.add(relativePath);
+            nameSet.add(fileName);
+        }
+        if (fileMap.isEmpty()) {
+            return;
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").in(pathSet));
+        query.addCriteria(Criteria.where("name").in(nameSet));
+        query.fields().include("path").include("name");
+        mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME).forEach(fileDocument -> fileMap.remove(fileDocument.getPath() + fileDocument.getName()));
+        if (fileMap.isEmpty()) {
+            return;
+        }
+        // 批量写入
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        List<File> upsertFileList = new ArrayList<>(fileMap.size());
+        List<String> relativePathList = new ArrayList<>(fileMap.size());
+        Document lastDocument = null;
+        for (File file : fileMap.values()) {
+            String fileName = file.getName();
+            String suffix = FileUtil.extName(fileName);
+            String contentType = FileContentTypeUtils.getContentType(suffix);
+            String relativePath = getRelativePath(username, file);
+            Update update = new Update();
+            setDateTime(file, update);
+            update.set(IUserService.USER_ID, userId);
+            update.set("name", fileName);
+            update.set("path", relativePath);
+            update.set(Constants.IS_FOLDER, file.isDirectory());
+            update.set(Constants.IS_FAVORITE, false);
+            if (file.isFile()) {
+                setFileBaseConfig(file, fileName, suffix, contentType, relativePath, update);
+            } else {
+                checkOSSPath(username, relativePath, fileName, update);
+            }
+            checkShareBase(update, relativePath);
+            bulkOperations.upsert(getQuery(relativePath, fileName, userId), update);
+            upsertFileList.add(file);
+            relativePathList.add(relativePath);
+            lastDocument = update.getUpdateObject();
+        }
+        BulkWriteResult bulkWriteResult = bulkOperations.execute();
+        // 更新上级目录的大小和用户已使用空间
+        Map<String, long[]> folderSizeMap = new HashMap<>(16);
+        long totalSize = 0;
+        for (BulkWriteUpsert bulkWriteUpsert : bulkWriteResult.getUpserts()) {
+            File file = upsertFileList.get(bulkWriteUpsert.getIndex());
+            if (!file.isFile()) {
+                continue;
+            }
+            String relativePath = relativePathList.get(bulkWriteUpsert.getIndex());
+            long size = file.length();
+            long[] value = folderSizeMap.computeIfAbsent(relativePath, key -> new long[2]);
+            value[0] += size;
+            value[1]++;
+            totalSize += size;
+            String fileId = bulkWriteUpsert.getId().asObjectId().getValue().toHexString();
+            ENRICH_EXECUTOR.execute(() -> enrichFile(username, file, relativePath, fileId));
+        }
+        folderSizeMap.forEach((relativePath, value) -> folderSizeService.onFileCreated(userId, relativePath, value[0], value[1]));
+        userSpaceService.addDelta(userId, totalSize);
+        pushMessage(username, lastDocument, "createFile");
+    }
+
+    /***
+     * 异步生成缩略图、读取音频标签、视频封面
+     */
+    private void enrichFile(String username, File file, String relativePath, String fileId) {
+        try {
+            String fileName = file.getName();
+            String suffix = FileUtil.extName(fileName);
+            String contentType = FileContentTypeUtils.getContentType(suffix);
+            if (ThumbnailService.isThumbnailType(suffix)) {
+                thumbnailService.generateAsync(fileId, file);
+            }
+            luceneService.indexFile(fileId, suffix);
+            Update update = new Update();
+            setFileEnrichConfig(username, file, fileName, suffix, contentType, relativePath, update);
+            if (update.getUpdateObject().isEmpty()) {
+                return;
+            }
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(fileId)), update, COLLECTION_NAME);
+        } catch (Exception e) {
+            log.error("文件后续处理失败, {}", file.getAbsolutePath(), e);
+        }
+    }
+
+    /***
+     * 文件所在目录(相对于用户目录)
+     * @return 例如: /a/b/, 文件为用户目录本身时返回null
+     */
+    private String getRelativePath(String username, File file) {
+        String fileAbsolutePath = file.getAbsolutePath();
+        int startIndex = fileProperties.getRootDir().length() + username.length() + 1;
+        int endIndex = fileAbsolutePath.length() - file.getName().length();
+        if (startIndex >= endIndex) {
+            return null;
+        }
+        return fileAbsolutePath.substring(startIndex, endIndex);
+    }
+
     private static void setDateTime(File file, Update update) {
         LocalDateTime updateDateTime;
         LocalDateTime uploadDateTime;
@@ -365,62 +547,81 @@ public class CommonFileService {
         return getFileDocument(userId, fileName, relativePath, query);
     }
 
-    private File replaceWebp(String userId, File file) {
-        if (userService.getDisabledWebp(userId) || ("ico".equals(FileUtil.getSuffix(file)))) {
-            return file;
+    private static boolean isNeedWebp(boolean disabledWebp, String suffix) {
+        if (disabledWebp || "ico".equals(suffix) || Constants.SUFFIX_WEBP.equals(suffix)) {
+            return false;
         }
-        if (Constants.SUFFIX_WEBP.equals(FileUtil.getSuffix(file))) {
-            return file;
+        return FileContentTypeUtils.getContentType(suffix).startsWith(Constants.CONTENT_TYPE_IMAGE);
+    }
+
+    /***
+     * 后台转换webp完成后, 更新文件信息并删除原图
+     * 转换期间文件被重命名、删除时不更新, 删除转换后的文件
+     */
+    private void onWebpConverted(String username, String userId, String fileId, File originalFile, File webpFile) {
+        String relativePath = getRelativePath(username, webpFile);
+        if (relativePath == null) {
+            FileUtil.del(webpFile);
+            return;
         }
-        File outputFile = new File(file.getPath() + Constants.POINT_SUFFIX_WEBP);
-        // 从某处获取图像进行编码
-        BufferedImage image;
-        try {
-            image = ImageIO.read(file);
-            if (image == null) {
-                return file;
-            }
-            imageFileToWebp(outputFile, image);
-            FileUtil.del(file);
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-            return file;
+        String fileName = webpFile.getName();
+        long size = webpFile.length();
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(fileId));
+        query.addCriteria(Criteria.where("name").is(originalFile.getName()));
+        Update update = new Update();
+        update.set("name", fileName);
+        update.set("size", size);
+        update.set("md5", size + relativePath + fileName);
+        update.set(Constants.SUFFIX, Constants.SUFFIX_WEBP);
+        update.set(Constants.CONTENT_TYPE, Constants.CONTENT_TYPE_WEBP);
+        FileDocument fileDocument = mongoTemplate.findAndModify(query, update, FileDocument.class, COLLECTION_NAME);
+        if (fileDocument == null) {
+            FileUtil.del(webpFile);
+            return;
         }
-        return outputFile;
+        FileUtil.del(originalFile);
+        long delta = size - fileDocument.getSize();
+        folderSizeService.onFileModified(userId, relativePath, delta);
+        userSpaceService.addDelta(userId, delta);
+        fileDocument.setName(fileName);
+        fileDocument.setSize(size);
+        fileDocument.setSuffix(Constants.SUFFIX_WEBP);
+        fileDocument.setContentType(Constants.CONTENT_TYPE_WEBP);
+        pushMessage(username, fileDocument, "updateFile");
     }
 
-    public void imageFileToWebp(File outputFile, BufferedImage image) throws IOException {
-        // 获取一个WebP ImageWriter实例
-        ImageWriter writer = ImageIO.getImageWritersByMIMEType(Constants.CONTENT_TYPE_WEBP).next();
-        // 配置编码参数
-        WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
-        writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
-        // 在ImageWriter上配置输出
-        writer.setOutput(new FileImageOutputStream(outputFile));
-        // 编码
-        writer.write(null, new IIOImage(image, null, null), writeParam);
+    private void setFileConfig(String username, File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
+        setFileBaseConfig(file, fileName, suffix, contentType, relativePath, update);
+        setFileEnrichConfig(username, file, fileName, suffix, contentType, relativePath, update);
     }
 
-    private void setFileConfig(String username, File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
+    /***
+     * 文件的基本信息
+     */
+    private static void setFileBaseConfig(File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
         long size = file.length();
         update.set("size", size);
         update.set("md5", size + relativePath + fileName);
         update.set(Constants.CONTENT_TYPE, getContentType(file, contentType));
         update.set(Constants.SUFFIX, suffix);
+        if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
+            // 写入markdown内容
+            String markDownContent = FileUtil.readString(file, MyFileUtils.getFileCharset(file));
+            update.set("contentText", markDownContent);
+        }
+    }
+
+    /***
+     * 耗时的信息: 音频标签、视频封面
+     */
+    private void setFileEnrichConfig(String username, File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
         if (contentType.contains(Constants.AUDIO)) {
             setMusic(file, update);
         }
         if (contentType.contains(Constants.VIDEO)) {
             setMediaCover(username, fileName, relativePath, update);
         }
-        if (contentType.startsWith(Constants.CONTENT_TYPE_IMAGE) && (!"ico".equals(suffix) && !"svg".equals(suffix))) {
-            generateThumbnail(file, update);
-        }
-        if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
-            // 写入markdown内容
-            String markDownContent = FileUtil.readString(file, MyFileUtils.getFileCharset(file));
-            update.set("contentText", markDownContent);
-        }
     }
 
     public static String getContentType(File file, String contentType) {
@@ -467,29 +668,6 @@ public class CommonFileService {
         }
     }
 
-    /***
-     * 生成缩略图
-     * @param file File
-     * @param update org.springframework.data.mongodb.core.query.UpdateDefinition
-     */
-    private void generateThumbnail(File file, Update update) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Thumbnails.Builder<? extends File> thumbnail = Thumbnails.of(file);
-            thumbnail.size(256, 256);
-            thumbnail.toOutputStream(out);
-            FastImageInfo imageInfo = new FastImageInfo(file);
-            update.set("w", imageInfo.getWidth());
-            update.set("h", imageInfo.getHeight());
-            update.set("content", out.toByteArray());
-        } catch (UnsupportedFormatException e) {
-            log.warn(e.getMessage() + file.getAbsolutePath());
-        } catch (Exception e) {
-            log.error(e.getMessage() + file.getAbsolutePath());
-        } catch (Throwable e) {
-            log.error(e.getMessage(), e);
-        }
-    }
-
     /***
      * 给用户推送消息
      * @param username username
@@ -506,8 +684,7 @@ public class CommonFileService {
                 userId = userService.getUserIdByUserName(username);
             }
             if (!CharSequenceUtil.isBlank(userId)) {
-                long takeUpSpace = occupiedSpace(userId);
-                headers.put("space", takeUpSpace);
+                headers.put("space", userSpaceService.getSpace(userId));
             }
             if (message == null) {
                 message = new Document();
@@ -534,27 +711,7 @@ public class CommonFileService {
     }
 
     public long occupiedSpace(String userId) {
-        long space = 0;
-        List<Bson> list = Arrays.asList(
-                match(eq(IUserService.USER_ID, userId)),
-                group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
-        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
-        Document doc = aggregateIterable.first();
-        if (doc != null) {
-            space = Convert.toLong(doc.get(Constants.TOTAL_SIZE), 0L);
-        }
-        ConsumerDO consumerDO = userService.userInfoById(userId);
-        if (consumerDO != null && consumerDO.getQuota() != null) {
-            if (space >= consumerDO.getQuota() * 1024L * 1024L * 1024L) {
-                // 空间已满
-                CaffeineUtil.setSpaceFull(userId);
-            } else {
-                if (CaffeineUtil.spaceFull(userId)) {
-                    CaffeineUtil.removeSpaceFull(userId);
-                }
-            }
-        }
-        return space;
+        return userSpaceService.getSpace(userId);
     }
 
     /**
@@ -748,8 +905,18 @@ public class CommonFileService {
             LocalDateTime updateDate = LocalDateTime.now(TimeUntils.ZONE_ID);
             update.set("updateDate", updateDate);
             UpdateResult updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
+            // 更新上级目录的大小和用户已使用空间
+            long delta = file.length() - fileDocument.getSize();
+            folderSizeService.onFileModified(userId, relativePath, delta);
+            userSpaceService.addDelta(userId, delta);
             fileDocument.setSize(file.length());
             fileDocument.setUpdateDate(updateDate);
+            if (ThumbnailService.isThumbnailType(suffix)) {
+                // 重新生成缩略图
+                thumbnailService.generateAsync(fileDocument.getId(), file);
+            }
+            // 重新建立内容索引
+            luceneService.indexFile(fileDocument.getId(), suffix);
             if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
                 // 写入markdown内容
                 String markDownContent = FileUtil.readString(file, MyFileUtils.getFileCharset(file));
@@ -799,8 +966,7 @@ public class CommonFileService {
     }
 
     public int compareByName(FileBase f1, FileBase f2) {
-        Comparator<Object> cmp = Collator.getInstance(java.util.Locale.CHINA);
-        return cmp.compare(f1.getName(), f2.getName());
+        return NAME_COLLATOR.compare(f1.getName(), f2.getName());
     }
 
     /**
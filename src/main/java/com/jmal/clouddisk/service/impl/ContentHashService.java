@@ -0,0 +1,132 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jmal
+ * @Description 文件内容摘要
+ * 分片按顺序追加时由服务端同步计算SHA-256, 合并后保存到fileDocument(contentHash), 作为BlobService中blob的键
+ * @date 2024/1/26 10:15
+ */
+@Service
+@Slf4j
+public class ContentHashService {
+
+    /***
+     * 摘要算法
+     */
+    private static final String ALGORITHM = "SHA-256";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /***
+     * 正在上传的文件的摘要
+     * key: identifier
+     */
+    private final Cache<String, DigestState> digestCache = Caffeine.newBuilder().expireAfterAccess(1, TimeUnit.DAYS).build();
+
+    /***
+     * 追加分片时更新摘要, 分片不连续时放弃, 合并后重新计算
+     * @param identifier 文件唯一标识
+     * @param position 分片在文件中的位置
+     * @param byteBuffer 分片内容
+     */
+    public void update(String identifier, long position, ByteBuffer byteBuffer) {
+        DigestState state = digestCache.get(identifier, key -> new DigestState());
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.length != position) {
+                state.length = -1;
+                return;
+            }
+            state.length += byteBuffer.remaining();
+            state.digest.update(byteBuffer.duplicate());
+        }
+    }
+
+    /***
+     * 写入文件, 同时计算摘要
+     * @param inputStream 输入流
+     * @param file 目标文件
+     * @return SHA-256
+     */
+    public static String writeFromStream(InputStream inputStream, File file) {
+        MessageDigest digest = DigestUtil.digester(ALGORITHM).getDigest();
+        FileUtil.writeFromStream(new DigestInputStream(inputStream, digest), file);
+        return HexUtil.encodeHexStr(digest.digest());
+    }
+
+    /***
+     * 获取上传完成的文件的摘要
+     * @param identifier 文件唯一标识
+     * @param file 合并后的文件
+     * @return SHA-256
+     */
+    public String digest(String identifier, File file) {
+        DigestState state = digestCache.getIfPresent(identifier);
+        digestCache.invalidate(identifier);
+        if (state != null) {
+            synchronized (state) {
+                if (state.length == file.length()) {
+                    return HexUtil.encodeHexStr(state.digest.digest());
+                }
+            }
+        }
+        return DigestUtil.sha256Hex(file);
+    }
+
+    /***
+     * 放弃正在计算的摘要
+     * @param identifier 文件唯一标识
+     */
+    public void clear(String identifier) {
+        digestCache.invalidate(identifier);
+    }
+
+    /***
+     * 保存文件的摘要
+     * @param fileId 文件id
+     * @param contentHash 摘要
+     * @param file 计算摘要的文件, 已经不存在(例如转换成了webp)时不保存
+     */
+    public void save(String fileId, String contentHash, File file) {
+        if (fileId == null || contentHash == null || !file.isFile()) {
+            return;
+        }
+        Update update = new Update();
+        update.set("contentHash", contentHash);
+        update.set("contentHashModified", file.lastModified());
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(fileId)), update, CommonFileService.COLLECTION_NAME);
+    }
+
+    private static class DigestState {
+
+        private final MessageDigest digest = DigestUtil.digester(ALGORITHM).getDigest();
+
+        /***
+         * 已计算的长度, -1 表示分片不连续
+         */
+        private long length = 0;
+    }
+}
@@ -0,0 +1,435 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.ExtractJobVO;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.ArchiveIndexService.ArchiveEntryInfo;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jmal
+ * @Description 后台解压任务
+ * 解压前检查条目数、总大小、压缩比和用户空间, 防止压缩炸弹;
+ * zip、tar按条目在线程池中并行解压(同时进行的条目数有上限), tar.gz、tar.bz2只能顺序读取;
+ * 每个条目先写入临时文件, 完成后再移动到目标位置, 记录已经完成的条目, 取消或失败后重新解压时跳过这些条目, 继续上次的进度;
+ * 解压出的文件每批一次bulkWrite写入fileDocument, 进度通过websocket推送, 可以随时取消
+ * @date 2024/1/29 10:10
+ */
+@Service
+@Slf4j
+public class ExtractJobService {
+
+    /***
+     * 推送进度的url
+     */
+    private static final String EXTRACT = "extract";
+
+    /***
+     * 每批写入fileDocument的文件数
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /***
+     * 不检查压缩比的大小, 小文件的压缩比可能很大
+     */
+    private static final long RATIO_CHECK_MIN_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private CommonFileService commonFileService;
+
+    @Autowired
+    private ArchiveIndexService archiveIndexService;
+
+    @Autowired
+    private UserSpaceService userSpaceService;
+
+    /***
+     * key: jobId
+     */
+    private final Cache<String, ExtractJobVO> jobCache = Caffeine.newBuilder().maximumSize(1000).expireAfterWrite(1, TimeUnit.DAYS).build();
+
+    /***
+     * 正在运行的任务, 同一个压缩包解压到同一个目录只运行一个
+     * key: 压缩包路径:目标目录
+     */
+    private final Map<String, ExtractJobVO> runningMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 已经解压完成的条目, 全部完成后删除
+     * key: 压缩包路径:修改时间:大小:目标目录
+     * value: key: 条目名称, value: 解压出的文件的修改时间
+     */
+    private final Cache<String, Map<String, Long>> completedCache = Caffeine.newBuilder().maximumSize(100).expireAfterAccess(1, TimeUnit.DAYS).build();
+
+    /***
+     * 运行任务的线程池, 每个任务一个线程
+     */
+    private ExecutorService jobExecutor;
+
+    /***
+     * 解压条目的线程池
+     */
+    private ExecutorService entryExecutor;
+
+    private int entryThreads;
+
+    @PostConstruct
+    public void init() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        jobExecutor = ThreadUtil.newFixedExecutor(Math.max(2, processors / 2), 100, "extract-job", false);
+        entryThreads = Math.max(2, processors);
+        entryExecutor = Executors.newFixedThreadPool(entryThreads, ThreadUtil.newNamedThreadFactory("extract-", true));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        runningMap.values().forEach(job -> job.setCancelled(true));
+        jobExecutor.shutdownNow();
+        entryExecutor.shutdownNow();
+    }
+
+    /***
+     * 开始解压
+     * @param username 用户名
+     * @param archive 压缩包
+     * @param destDir 解压到的目录, 位于用户目录下
+     * @return 解压任务, 已经在解压时返回正在运行的任务
+     */
+    public ExtractJobVO start(String username, File archive, File destDir) {
+        String userId = userService.getUserIdByUserName(username);
+        Path userDir = Paths.get(fileProperties.getRootDir(), username);
+        Path destPath = destDir.toPath().normalize();
+        if (!destPath.startsWith(userDir)) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        String relativeDest = userDir.relativize(destPath).toString();
+        ExtractJobVO job = new ExtractJobVO(IdUtil.fastSimpleUUID(), username, archive.getName(), "/" + relativeDest);
+        ExtractJobVO running = runningMap.putIfAbsent(archive.getAbsolutePath() + ":" + destPath, job);
+        if (running != null) {
+            return running;
+        }
+        jobCache.put(job.getId(), job);
+        try {
+            jobExecutor.execute(() -> run(job, userId, archive, destPath));
+        } catch (RejectedExecutionException e) {
+            runningMap.remove(archive.getAbsolutePath() + ":" + destPath);
+            throw new CommonException(ExceptionType.WARNING.getCode(), "解压任务太多, 请稍后再试");
+        }
+        return job;
+    }
+
+    /***
+     * 获取解压任务
+     * @param jobId jobId
+     * @return 解压任务, 不存在时返回null
+     */
+    public ExtractJobVO getJob(String jobId) {
+        return jobCache.getIfPresent(jobId);
+    }
+
+    /***
+     * 取消解压, 已经解压的文件保留
+     * @param jobId jobId
+     * @param username 用户名
+     * @return false: 任务不存在或已经结束
+     */
+    public boolean cancel(String jobId, String username) {
+        ExtractJobVO job = jobCache.getIfPresent(jobId);
+        if (job == null || !job.isRunning() || !job.getUsername().equals(username)) {
+            return false;
+        }
+        job.setCancelled(true);
+        return true;
+    }
+
+    private void run(ExtractJobVO job, String userId, File archive, Path destPath) {
+        String username = job.getUsername();
+        List<File> pendingList = new ArrayList<>();
+        String completedKey = archive.getAbsolutePath() + ":" + archive.lastModified() + ":" + archive.length() + ":" + destPath;
+        Map<String, Long> completedMap = completedCache.get(completedKey, key -> new ConcurrentHashMap<>(16));
+        try {
+            List<ArchiveEntryInfo> entryList = archiveIndexService.getEntries(archive);
+            checkLimits(job, userId, archive, entryList);
+            log.info("开始解压, {}, 条目数: {}, 大小: {}", archive.getAbsolutePath(), job.getTotalEntries(), job.getTotalBytes());
+            // 先创建目录
+            if (!Files.exists(destPath)) {
+                Files.createDirectories(destPath);
+                pendingList.add(destPath.toFile());
+            }
+            List<ArchiveEntryInfo> fileEntryList = new ArrayList<>(entryList.size());
+            entryList.sort(Comparator.comparing(entry -> entry.name));
+            for (ArchiveEntryInfo entry : entryList) {
+                if (entry.directory) {
+                    Path dir = resolve(destPath, entry);
+                    if (!Files.isDirectory(dir)) {
+                        Files.createDirectories(dir);
+                    }
+                    pendingList.add(dir.toFile());
+                    job.getExtractedEntries().incrementAndGet();
+                } else {
+                    fileEntryList.add(entry);
+                }
+            }
+            flush(username, pendingList);
+            AtomicInteger pushedPercent = new AtomicInteger(-1);
+            if (archiveIndexService.isRandomAccess(archive)) {
+                extractParallel(job, archive, destPath, fileEntryList, completedMap, pendingList, pushedPercent);
+            } else {
+                archiveIndexService.scan(archive, (entry, inputStream) -> {
+                    pendingList.add(extractEntry(job, entry, inputStream, resolve(destPath, entry), completedMap));
+                    afterEntry(job, pendingList, pushedPercent);
+                });
+            }
+            completedCache.invalidate(completedKey);
+        } catch (CancellationException e) {
+            job.setError("已取消");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.setError("已取消");
+        } catch (CommonException e) {
+            job.setError(e.getMsg());
+        } catch (Exception e) {
+            job.setError(e.getMessage());
+            log.error("解压失败, {}", archive.getAbsolutePath(), e);
+        } finally {
+            try {
+                flush(username, pendingList);
+            } catch (Exception e) {
+                log.error("保存解压的文件失败, {}", e.getMessage(), e);
+            }
+            job.finish();
+            runningMap.values().remove(job);
+            log.info("解压结束, {}, 解压: {}, 跳过: {}, 耗时: {}ms, {}", archive.getAbsolutePath(),
+                    job.getExtractedEntries(), job.getSkippedEntries(), job.getElapsed(), job.getError() == null ? "成功" : job.getError());
+            commonFileService.pushMessage(username, job, EXTRACT);
+        }
+    }
+
+    /***
+     * 按条目并行解压, 解压完成的文件按顺序收集后批量写入
+     * 限制同时提交的条目数, 不一次提交所有条目
+     */
+    private void extractParallel(ExtractJobVO job, File archive, Path destPath, List<ArchiveEntryInfo> fileEntryList, Map<String, Long> completedMap, List<File> pendingList, AtomicInteger pushedPercent) throws IOException, InterruptedException {
+        int maxPending = entryThreads * 2;
+        Semaphore semaphore = new Semaphore(maxPending);
+        Deque<Future<File>> futureQueue = new ArrayDeque<>(maxPending);
+        try {
+            for (ArchiveEntryInfo entry : fileEntryList) {
+                semaphore.acquire();
+                try {
+                    futureQueue.add(entryExecutor.submit(() -> {
+                        try {
+                            if (job.isCancelled()) {
+                                throw new CancellationException();
+                            }
+                            try (InputStream inputStream = archiveIndexService.openEntry(archive, entry)) {
+                                return extractEntry(job, entry, inputStream, resolve(destPath, entry), completedMap);
+                            }
+                        } finally {
+                            semaphore.release();
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    semaphore.release();
+                    throw e;
+                }
+                // 按顺序收集已经完成的条目
+                while (!futureQueue.isEmpty() && futureQueue.peek().isDone()) {
+                    collect(job, futureQueue.poll(), pendingList, pushedPercent);
+                }
+            }
+            while (!futureQueue.isEmpty()) {
+                collect(job, futureQueue.poll(), pendingList, pushedPercent);
+            }
+        } finally {
+            // 失败或取消时不再解压剩下的条目
+            futureQueue.forEach(future -> future.cancel(false));
+        }
+    }
+
+    private void collect(ExtractJobVO job, Future<File> future, List<File> pendingList, AtomicInteger pushedPercent) throws IOException, InterruptedException {
+        try {
+            pendingList.add(future.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CancellationException cancellationException) {
+                throw cancellationException;
+            }
+            if (cause instanceof CommonException commonException) {
+                throw commonException;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        afterEntry(job, pendingList, pushedPercent);
+    }
+
+    /***
+     * 解压一个文件, 先写入临时文件再移动到目标位置
+     * @param completedMap 已经解压完成的条目
+     * @return 解压出的文件
+     */
+    private File extractEntry(ExtractJobVO job, ArchiveEntryInfo entry, InputStream inputStream, Path target, Map<String, Long> completedMap) throws IOException {
+        if (job.isCancelled()) {
+            throw new CancellationException();
+        }
+        if (isCompleted(entry, target, completedMap)) {
+            // 上次已经解压过, 之后没有被修改
+            job.getSkippedEntries().incrementAndGet();
+            job.getExtractedEntries().incrementAndGet();
+            job.getExtractedBytes().addAndGet(entry.size);
+            return target.toFile();
+        }
+        Path tempDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
+        PathUtil.mkdir(tempDir);
+        Path tempPath = tempDir.resolve(job.getId() + "-" + IdUtil.fastSimpleUUID() + ".extract");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(tempPath)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long written = 0;
+                int n;
+                while ((n = inputStream.read(buffer)) > 0) {
+                    written += n;
+                    if (entry.size >= 0 && written > entry.size) {
+                        // 实际内容比声明的大小大, 不再继续
+                        throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "文件大小与声明的不一致: " + entry.name);
+                    }
+                    if (job.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    outputStream.write(buffer, 0, n);
+                    job.getExtractedBytes().addAndGet(n);
+                }
+            }
+            Path parent = target.getParent();
+            if (parent != null && !Files.isDirectory(parent)) {
+                Files.createDirectories(parent);
+            }
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+            if (entry.lastModified > 0) {
+                Files.setLastModifiedTime(target, FileTime.fromMillis(entry.lastModified));
+            }
+            completedMap.put(entry.name, Files.getLastModifiedTime(target).toMillis());
+        } finally {
+            PathUtil.del(tempPath);
+        }
+        job.getExtractedEntries().incrementAndGet();
+        return target.toFile();
+    }
+
+    /***
+     * 条目是否已经由之前的任务解压完成, 只看大小一致的已有文件不能确定是同一个内容
+     */
+    private static boolean isCompleted(ArchiveEntryInfo entry, Path target, Map<String, Long> completedMap) throws IOException {
+        Long lastModified = completedMap.get(entry.name);
+        if (lastModified == null || !Files.isRegularFile(target)) {
+            return false;
+        }
+        return Files.getLastModifiedTime(target).toMillis() == lastModified && (entry.size < 0 || Files.size(target) == entry.size);
+    }
+
+    /***
+     * 每个条目解压后, 满一批时写入fileDocument, 进度变化时推送
+     */
+    private void afterEntry(ExtractJobVO job, List<File> pendingList, AtomicInteger pushedPercent) {
+        if (pendingList.size() >= BATCH_SIZE) {
+            flush(job.getUsername(), pendingList);
+        }
+        int percent = job.getPercent();
+        if (percent > pushedPercent.get()) {
+            pushedPercent.set(percent);
+            commonFileService.pushMessage(job.getUsername(), job, EXTRACT);
+        }
+    }
+
+    private void flush(String username, List<File> pendingList) {
+        if (pendingList.isEmpty()) {
+            return;
+        }
+        commonFileService.batchCreateFile(username, new ArrayList<>(pendingList));
+        pendingList.clear();
+    }
+
+    /***
+     * 检查条目数、总大小、压缩比和用户空间
+     */
+    private void checkLimits(ExtractJobVO job, String userId, File archive, List<ArchiveEntryInfo> entryList) {
+        long totalBytes = 0;
+        long compressedBytes = 0;
+        for (ArchiveEntryInfo entry : entryList) {
+            if (entry.directory) {
+                continue;
+            }
+            if (entry.size < 0) {
+                throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "无法获取文件大小: " + entry.name);
+            }
+            totalBytes += entry.size;
+            int maxRatio = getOrDefault(fileProperties.getExtractMaxRatio(), 0);
+            if (maxRatio > 0 && entry.compressedSize > 0 && entry.size > RATIO_CHECK_MIN_SIZE && entry.size / entry.compressedSize > maxRatio) {
+                throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "压缩比过大, 可能是压缩炸弹: " + entry.name);
+            }
+            compressedBytes += Math.max(0, entry.compressedSize);
+        }
+        job.setTotalEntries(entryList.size());
+        job.setTotalBytes(totalBytes);
+        int maxEntries = getOrDefault(fileProperties.getExtractMaxEntries(), 0);
+        if (maxEntries > 0 && entryList.size() > maxEntries) {
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "条目数超过限制: " + maxEntries);
+        }
+        int maxRatio = getOrDefault(fileProperties.getExtractMaxRatio(), 0);
+        if (maxRatio > 0 && compressedBytes == 0 && totalBytes > RATIO_CHECK_MIN_SIZE && totalBytes / Math.max(1, archive.length()) > maxRatio) {
+            // tar.gz等没有每个条目压缩后的大小, 按整个压缩包计算
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "压缩比过大, 可能是压缩炸弹");
+        }
+        int maxSize = getOrDefault(fileProperties.getExtractMaxSize(), 0);
+        if (maxSize > 0 && totalBytes > maxSize * 1024L * 1024L) {
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "解压后的大小超过限制: " + maxSize + "MB");
+        }
+        if (totalBytes > userSpaceService.getRemaining(userId)) {
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "空间不足");
+        }
+    }
+
+    private static int getOrDefault(Integer value, int defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+
+    /***
+     * 条目的目标位置, 不能超出目标目录
+     */
+    private static Path resolve(Path destPath, ArchiveEntryInfo entry) {
+        Path path = destPath.resolve(entry.name).normalize();
+        if (!path.startsWith(destPath)) {
+            throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "非法的路径: " + entry.name);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,333 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.SubtreeJobVO;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author jmal
+ * @Description 本地文件复制
+ * 优先使用reflink(ioctl FICLONE), 在XFS、Btrfs上只复制元数据, 不支持时使用FileChannel.transferTo在内核中复制;
+ * 复制文件夹时小文件在线程池中并行复制, 大文件按顺序复制, 进度通过websocket推送, 可以随时取消
+ * @date 2024/1/31 10:20
+ */
+@Service
+@Slf4j
+public class FileCopyService {
+
+    /***
+     * 小于该大小的文件并行复制
+     */
+    private static final long SMALL_FILE_SIZE = 4 * 1024 * 1024;
+
+    /***
+     * 每次transferTo的大小, 每次之后检查是否取消
+     */
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    @Autowired
+    private CommonFileService commonFileService;
+
+    @Autowired
+    private BlobService blobService;
+
+    /***
+     * 各文件系统是否支持reflink
+     */
+    private final Map<FileStore, Boolean> reflinkSupportMap = new ConcurrentHashMap<>(8);
+
+    private ExecutorService executorService;
+
+    private int threads;
+
+    @PostConstruct
+    public void init() {
+        threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        executorService = Executors.newFixedThreadPool(threads, ThreadUtil.newNamedThreadFactory("file-copy-", true));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executorService.shutdownNow();
+    }
+
+    /***
+     * 复制文件, 不推送进度
+     * @param source 源文件
+     * @param target 目标文件, 已经存在时覆盖
+     */
+    public void copyFile(Path source, Path target) throws IOException {
+        copyFile(source, target, null);
+    }
+
+    /***
+     * 复制文件或文件夹, 失败或取消时删除本次复制出的目标
+     * @param source 源文件/文件夹
+     * @param target 目标文件/文件夹, 已经存在的文件覆盖
+     * @param job 任务, 记录进度和是否取消
+     */
+    public void copy(Path source, Path target, SubtreeJobVO job) throws IOException {
+        boolean targetExists = Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+        try {
+            if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                copyDirectory(source, target, job);
+            } else {
+                job.getTotalBytes().addAndGet(Files.size(source));
+                copyFile(source, target, job);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!targetExists) {
+                PathUtil.del(target);
+            }
+            throw e;
+        }
+    }
+
+    /***
+     * 复制文件夹, 先统计大小再复制, 小文件提交到线程池并行复制
+     */
+    private void copyDirectory(Path source, Path target, SubtreeJobVO job) throws IOException {
+        if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+            throw new CommonException(ExceptionType.WARNING.getCode(), "不能复制到自身或其子目录");
+        }
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                job.getTotalBytes().addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // 限制等待中的任务数, 不一次提交所有小文件
+        int maxPending = threads * 4;
+        Semaphore semaphore = new Semaphore(maxPending);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        AtomicInteger pushedPercent = new AtomicInteger(-1);
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    checkCancelled(job);
+                    Files.createDirectories(target.resolve(source.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    throwIfFailed(error);
+                    Path targetFile = target.resolve(source.relativize(file));
+                    if (attrs.isSymbolicLink() || attrs.size() >= SMALL_FILE_SIZE) {
+                        copyFile(file, targetFile, job);
+                        pushProgress(job, pushedPercent);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    semaphore.acquireUninterruptibly();
+                    try {
+                        executorService.execute(() -> {
+                            try {
+                                if (error.get() == null) {
+                                    copyFile(file, targetFile, job);
+                                }
+                            } catch (Exception e) {
+                                error.compareAndSet(null, e);
+                            } finally {
+                                semaphore.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        semaphore.release();
+                        throw e;
+                    }
+                    pushProgress(job, pushedPercent);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            // 等待已经提交的小文件复制完成
+            semaphore.acquireUninterruptibly(maxPending);
+        }
+        throwIfFailed(error);
+    }
+
+    /***
+     * 复制一个文件, 先尝试reflink, 不支持时使用transferTo
+     */
+    private void copyFile(Path source, Path target, SubtreeJobVO job) throws IOException {
+        checkCancelled(job);
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attrs.isSymbolicLink()) {
+            Files.copy(source, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        // 目标文件与其他文件共享数据(硬链接)时先断开, 覆盖写入不能修改其他文件
+        blobService.beforeWrite(target, false);
+        if (!reflink(source, target)) {
+            transfer(source, target, job);
+        } else if (job != null) {
+            job.getCopiedBytes().addAndGet(attrs.size());
+        }
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+    }
+
+    private static void transfer(Path source, Path target, SubtreeJobVO job) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                checkCancelled(job);
+                long n = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+                if (n <= 0) {
+                    // 文件在复制过程中变小了
+                    break;
+                }
+                position += n;
+                if (job != null) {
+                    job.getCopiedBytes().addAndGet(n);
+                }
+            }
+        }
+    }
+
+    /***
+     * 源文件和目标位于同一个文件系统, 并且该文件系统支持时使用reflink
+     * @return false: 不支持reflink
+     */
+    private boolean reflink(Path source, Path target) {
+        if (Reflink.LIBC == null) {
+            return false;
+        }
+        FileStore fileStore;
+        try {
+            fileStore = Files.getFileStore(source);
+            Path targetDir = target.toAbsolutePath().getParent();
+            if (targetDir == null || !fileStore.equals(Files.getFileStore(targetDir))) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (Boolean.FALSE.equals(reflinkSupportMap.get(fileStore))) {
+            return false;
+        }
+        Boolean success = Reflink.clone(source.toString(), target.toString());
+        if (success == null) {
+            // 打开文件失败, 与是否支持reflink无关
+            return false;
+        }
+        if (reflinkSupportMap.putIfAbsent(fileStore, success) == null) {
+            log.info("{} {}reflink", fileStore, Boolean.TRUE.equals(success) ? "支持" : "不支持");
+        }
+        return success;
+    }
+
+    private void pushProgress(SubtreeJobVO job, AtomicInteger pushedPercent) {
+        int percent = job.getPercent();
+        if (percent > pushedPercent.get()) {
+            pushedPercent.set(percent);
+            commonFileService.pushMessage(job.getUsername(), job, SubtreeService.SUBTREE_JOB);
+        }
+    }
+
+    private static void checkCancelled(SubtreeJobVO job) {
+        if (job != null && job.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    private static void throwIfFailed(AtomicReference<Exception> error) throws IOException {
+        Exception e = error.get();
+        if (e == null) {
+            return;
+        }
+        if (e instanceof IOException ioException) {
+            throw ioException;
+        }
+        if (e instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        throw new IOException(e.getMessage(), e);
+    }
+
+    /***
+     * 通过libc调用ioctl(FICLONE), 只在Linux上可用
+     */
+    static class Reflink {
+
+        /***
+         * _IOW(0x94, 9, int)
+         */
+        private static final long FICLONE = 0x40049409L;
+
+        private static final int O_RDONLY = 0;
+
+        private static final int O_WRONLY_CREAT_TRUNC = 0x241;
+
+        private static final int MODE = 0644;
+
+        static final LibC LIBC = load();
+
+        interface LibC extends Library {
+            int open(String path, int flags, int mode);
+
+            int ioctl(int fd, NativeLong request, int srcFd);
+
+            int close(int fd);
+        }
+
+        private static LibC load() {
+            if (!Platform.isLinux()) {
+                return null;
+            }
+            try {
+                return Native.load("c", LibC.class);
+            } catch (Throwable e) {
+                log.warn("加载libc失败, 不使用reflink: {}", e.getMessage());
+                return null;
+            }
+        }
+
+        /***
+         * 创建(覆盖)目标文件, 与源文件共享数据块
+         * @return false: 文件系统不支持, 目标文件可能已经创建, 需要重新写入; null: 打开文件失败
+         */
+        static Boolean clone(String source, String target) {
+            int srcFd = LIBC.open(source, O_RDONLY, 0);
+            if (srcFd < 0) {
+                return null;
+            }
+            try {
+                int destFd = LIBC.open(target, O_WRONLY_CREAT_TRUNC, MODE);
+                if (destFd < 0) {
+                    return null;
+                }
+                try {
+                    return LIBC.ioctl(destFd, new NativeLong(FICLONE), srcFd) == 0;
+                } finally {
+                    LIBC.close(destFd);
+                }
+            } finally {
+                LIBC.close(srcFd);
+            }
+        }
+    }
+}
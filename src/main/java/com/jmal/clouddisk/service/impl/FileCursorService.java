@@ -0,0 +1,200 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.text.CharSequenceUtil;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.UploadApiParamDTO;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.TimeUntils;
+import com.mongodb.client.model.IndexOptions;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Collation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static com.jmal.clouddisk.service.impl.CommonFileService.COLLECTION_NAME;
+
+/**
+ * @author jmal
+ * @Description 文件列表分页
+ * 按(userId, path, 排序字段, _id)建立复合索引, 目录列表使用zh排序规则(collation), 数据库中的顺序与按文件名的中文排序一致, 不再每页在内存中重新排序;
+ * 下一页通过游标(上一页最后一条记录的排序字段和_id)做范围查询, 不再skip, 深分页的开销与第一页相同
+ * @date 2024/2/1 10:30
+ */
+@Service
+@Slf4j
+public class FileCursorService {
+
+    /***
+     * 文件名的排序规则, 查询和索引要使用相同的排序规则才能使用索引
+     */
+    public static final String LOCALE = "zh";
+
+    private static final String ID = "_id";
+
+    private static final String DESCENDING = "descending";
+
+    /***
+     * 支持游标分页的排序字段
+     */
+    private static final Set<String> CURSOR_SORTABLE_PROPS = Set.of("name", "size", "updateDate", "uploadDate");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @PostConstruct
+    public void init() {
+        IndexOptions nameIndexOptions = new IndexOptions().name("user_path_isFolder_name_zh")
+                .collation(com.mongodb.client.model.Collation.builder().locale(LOCALE).build());
+        mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document(IUserService.USER_ID, 1).append("path", 1)
+                .append(Constants.IS_FOLDER, -1).append("name", 1).append(ID, 1), nameIndexOptions);
+        for (String prop : List.of("size", "updateDate", "uploadDate")) {
+            IndexOptions indexOptions = new IndexOptions().name("user_path_" + prop + "_zh")
+                    .collation(com.mongodb.client.model.Collation.builder().locale(LOCALE).build());
+            mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document(IUserService.USER_ID, 1).append("path", 1)
+                    .append(prop, 1).append(ID, 1), indexOptions);
+        }
+    }
+
+    /***
+     * 设置排序和分页条件
+     * 有游标时查询游标之后的记录, 否则按pageIndex跳过;
+     * 只有按目录列表(path相等)时使用zh排序规则, 对应上面带排序规则的索引,
+     * 分类、收藏、搜索等其他列表不使用排序规则, 否则不能使用 (userId, contentType)、(userId, isFavorite) 等没有排序规则的索引
+     * @param upload 分页、排序参数和游标
+     * @param query Query
+     */
+    public void page(UploadApiParamDTO upload, Query query) {
+        List<Sort.Order> orderList = getOrderList(upload);
+        query.with(Sort.by(orderList));
+        if (query.getQueryObject().get("path") instanceof String) {
+            query.collation(Collation.of(LOCALE));
+        }
+        Integer pageSize = upload.getPageSize();
+        if (pageSize == null) {
+            return;
+        }
+        Document cursor = decode(upload);
+        if (cursor != null) {
+            query.addCriteria(after(orderList, cursor));
+        } else if (upload.getPageIndex() != null) {
+            query.skip((upload.getPageIndex() - 1L) * pageSize);
+        }
+        query.limit(pageSize);
+    }
+
+    /***
+     * 下一页的游标
+     * @param upload 分页、排序参数
+     * @param list 当前页, 文件夹的大小还没有替换为统计的大小
+     * @return 没有下一页或者该排序字段不支持游标时返回null
+     */
+    public String nextCursor(UploadApiParamDTO upload, List<FileDocument> list) {
+        Integer pageSize = upload.getPageSize();
+        if (pageSize == null || list.isEmpty() || list.size() < pageSize || !CURSOR_SORTABLE_PROPS.contains(getSortableProp(upload))) {
+            return null;
+        }
+        FileDocument last = list.get(list.size() - 1);
+        Document cursor = new Document();
+        cursor.put("p", getSortableProp(upload));
+        cursor.put("o", CharSequenceUtil.nullToEmpty(upload.getOrder()));
+        for (Sort.Order order : getOrderList(upload)) {
+            cursor.put(order.getProperty(), getValue(last, order.getProperty()));
+        }
+        return Base64.encodeUrlSafe(cursor.toJson());
+    }
+
+    /***
+     * 排序条件, 最后按_id排序, 保证顺序稳定
+     * 按文件名排序(或不指定排序)时文件夹在前
+     */
+    private static List<Sort.Order> getOrderList(UploadApiParamDTO upload) {
+        String sortableProp = getSortableProp(upload);
+        Sort.Direction direction = DESCENDING.equals(upload.getOrder()) ? Sort.Direction.DESC : Sort.Direction.ASC;
+        List<Sort.Order> orderList = new ArrayList<>(3);
+        if ("name".equals(sortableProp)) {
+            orderList.add(Sort.Order.desc(Constants.IS_FOLDER));
+        }
+        orderList.add(new Sort.Order(direction, sortableProp));
+        orderList.add(new Sort.Order(direction, ID));
+        return orderList;
+    }
+
+    private static String getSortableProp(UploadApiParamDTO upload) {
+        if (CharSequenceUtil.isBlank(upload.getOrder()) || CharSequenceUtil.isBlank(upload.getSortableProp())) {
+            return "name";
+        }
+        return upload.getSortableProp();
+    }
+
+    /***
+     * 解析游标, 游标无效或者与当前的排序条件不一致时返回null
+     */
+    private static Document decode(UploadApiParamDTO upload) {
+        String cursor = upload.getCursor();
+        if (CharSequenceUtil.isBlank(cursor) || !CURSOR_SORTABLE_PROPS.contains(getSortableProp(upload))) {
+            return null;
+        }
+        try {
+            Document document = Document.parse(Base64.decodeStr(cursor, StandardCharsets.UTF_8));
+            if (!getSortableProp(upload).equals(document.getString("p")) || !CharSequenceUtil.nullToEmpty(upload.getOrder()).equals(document.getString("o"))) {
+                return null;
+            }
+            return document;
+        } catch (RuntimeException e) {
+            log.warn("无效的游标: {}", cursor);
+            return null;
+        }
+    }
+
+    /***
+     * 排在游标之后的条件:
+     * (k1 > v1) or (k1 = v1 and k2 > v2) or (k1 = v1 and k2 = v2 and k3 > v3)
+     */
+    static Criteria after(List<Sort.Order> orderList, Document cursor) {
+        List<Criteria> orCriteriaList = new ArrayList<>(orderList.size());
+        for (int i = 0; i < orderList.size(); i++) {
+            List<Criteria> andCriteriaList = new ArrayList<>(i + 1);
+            for (int j = 0; j < i; j++) {
+                String property = orderList.get(j).getProperty();
+                andCriteriaList.add(Criteria.where(property).is(cursor.get(property)));
+            }
+            Sort.Order order = orderList.get(i);
+            Criteria criteria = Criteria.where(order.getProperty());
+            Object value = cursor.get(order.getProperty());
+            andCriteriaList.add(order.isAscending() ? criteria.gt(value) : criteria.lt(value));
+            orCriteriaList.add(new Criteria().andOperator(andCriteriaList));
+        }
+        return new Criteria().orOperator(orCriteriaList);
+    }
+
+    private static Object getValue(FileDocument fileDocument, String property) {
+        return switch (property) {
+            case ID -> fileDocument.getId();
+            case Constants.IS_FOLDER -> Boolean.TRUE.equals(fileDocument.getIsFolder());
+            case "name" -> fileDocument.getName();
+            case "size" -> fileDocument.getSize();
+            case "updateDate" -> toDate(fileDocument.getUpdateDate());
+            case "uploadDate" -> toDate(fileDocument.getUploadDate());
+            default -> null;
+        };
+    }
+
+    private static Date toDate(LocalDateTime localDateTime) {
+        return localDateTime == null ? null : Date.from(localDateTime.atZone(TimeUntils.ZONE_ID).toInstant());
+    }
+}
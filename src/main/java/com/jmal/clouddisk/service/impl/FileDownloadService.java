@@ -0,0 +1,292 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.util.IdUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jmal
+ * @Description 本地文件下载
+ * 支持ETag(inode、大小、修改时间)/Last-Modified条件请求、If-Range、单个和多个Range(206),
+ * 没有限速时单个区间交给Tomcat sendfile发送, 否则通过FileChannel.transferTo发送, 不经过堆内存的读写缓冲
+ * @date 2024/1/27 10:30
+ */
+@Service
+@Slf4j
+public class FileDownloadService {
+
+    /***
+     * 一次请求最多的Range数, 超过时忽略Range返回整个文件
+     */
+    private static final int MAX_RANGES = 16;
+
+    /***
+     * 限速时每次发送的最大字节数
+     */
+    private static final int RATE_LIMIT_BLOCK_SIZE = 64 * 1024;
+
+    private static final String BYTES_UNIT = "bytes";
+
+    /***
+     * Tomcat sendfile
+     */
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    /***
+     * 下载(预览)文件
+     * @param request HttpServletRequest
+     * @param response HttpServletResponse
+     * @param file 文件
+     * @param cacheControl Cache-Control
+     */
+    public void download(HttpServletRequest request, HttpServletResponse response, File file, String cacheControl) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = getETag(file, attributes);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        // If-None-Match, If-Modified-Since, If-Match, If-Unmodified-Since
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
+        String contentType = FileContentTypeUtils.getContentType(FileUtil.extName(file));
+        List<long[]> ranges = getRanges(request, etag, lastModified, size);
+        if (ranges != null && ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + size);
+            return;
+        }
+        boolean head = "HEAD".equals(request.getMethod());
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(size);
+            if (!head) {
+                send(request, response, file, 0, size);
+            }
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            long length = range[1] - range[0] + 1;
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " " + range[0] + "-" + range[1] + "/" + size);
+            response.setContentLengthLong(length);
+            if (!head) {
+                send(request, response, file, range[0], length);
+            }
+            return;
+        }
+        sendMultipart(response, file, contentType, ranges, size, head);
+    }
+
+    /***
+     * 强ETag, 文件替换(inode变化)、修改后都会变化
+     */
+    private static String getETag(File file, BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        int inode = fileKey != null ? fileKey.hashCode() : file.getAbsolutePath().hashCode();
+        return "\"" + Integer.toHexString(inode) + "-" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "\"";
+    }
+
+    /***
+     * 解析Range
+     * @return null: 没有Range、语法错误、If-Range不匹配或区间太多, 返回整个文件; 空列表: 所有区间都不可满足(416)
+     */
+    static List<long[]> getRanges(HttpServletRequest request, String etag, long lastModified, long size) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (CharSequenceUtil.isBlank(rangeHeader) || !rangeHeader.startsWith(BYTES_UNIT + "=")) {
+            return null;
+        }
+        if (!matchIfRange(request, etag, lastModified)) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring(BYTES_UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int index = spec.indexOf('-');
+            if (index < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (index == 0) {
+                    // 最后n个字节
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffixLength);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, index));
+                    end = index == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(index + 1)), size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0 || start > end) {
+                if (end < start && start < size) {
+                    // 语法错误(例如 5-3)
+                    return null;
+                }
+                // 不可满足的区间
+                continue;
+            }
+            ranges.add(new long[]{start, end});
+        }
+        return ranges;
+    }
+
+    /***
+     * If-Range 与当前文件是否一致, 不一致时忽略Range
+     */
+    private static boolean matchIfRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (CharSequenceUtil.isBlank(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // 只能用强ETag比较
+            return ifRange.equals(etag);
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date >= 0 && TimeUnit.MILLISECONDS.toSeconds(lastModified) == TimeUnit.MILLISECONDS.toSeconds(date);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /***
+     * 发送一个区间
+     */
+    private void send(HttpServletRequest request, HttpServletResponse response, File file, long start, long length) throws IOException {
+        long rateLimit = getRateLimit();
+        if (rateLimit <= 0 && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // 由Tomcat直接发送
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + length);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream outputStream = response.getOutputStream();
+            transfer(fileChannel, start, length, Channels.newChannel(outputStream), rateLimit);
+        } catch (IOException e) {
+            log.debug("下载中断, {}, {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /***
+     * multipart/byteranges
+     */
+    private void sendMultipart(HttpServletResponse response, File file, String contentType, List<long[]> ranges, long size, boolean head) throws IOException {
+        String boundary = IdUtil.fastSimpleUUID();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + BYTES_UNIT + " " + range[0] + "-" + range[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        long rateLimit = getRateLimit();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream outputStream = response.getOutputStream();
+            WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                outputStream.write(partHeaders.get(i));
+                transfer(fileChannel, range[0], range[1] - range[0] + 1, outputChannel, rateLimit);
+            }
+            outputStream.write(end);
+        } catch (IOException e) {
+            log.debug("下载中断, {}, {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /***
+     * 发送文件的一部分, 限速时按块发送, 超前时等待
+     * @param rateLimit 每秒字节数, 0表示不限速
+     */
+    private static void transfer(FileChannel fileChannel, long start, long length, WritableByteChannel outputChannel, long rateLimit) throws IOException {
+        long startTime = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            long count = length - sent;
+            if (rateLimit > 0) {
+                count = Math.min(count, RATE_LIMIT_BLOCK_SIZE);
+            }
+            long n = fileChannel.transferTo(start + sent, count, outputChannel);
+            if (n <= 0) {
+                break;
+            }
+            sent += n;
+            if (rateLimit > 0) {
+                long expectedNanos = (long) ((double) sent / rateLimit * TimeUnit.SECONDS.toNanos(1));
+                long aheadNanos = expectedNanos - (System.nanoTime() - startTime);
+                if (aheadNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /***
+     * 每个连接的下载速度上限(byte/s)
+     */
+    private long getRateLimit() {
+        Integer rateLimit = fileProperties.getDownloadRateLimit();
+        return rateLimit == null || rateLimit <= 0 ? 0 : rateLimit * 1024L;
+    }
+}
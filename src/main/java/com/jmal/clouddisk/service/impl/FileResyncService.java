@@ -0,0 +1,318 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.ResyncReportVO;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.CaffeineUtil;
+import com.jmal.clouddisk.webdav.MyWebdavServlet;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jmal
+ * @Description 全量同步
+ * 并行遍历用户目录, 每个目录一次查询出数据库中的记录, 按 (name, isFolder, size, 修改时间) 比较差异,
+ * 新增的文件批量写入, 修改和删除的记录按目录一次unordered bulkWrite, 支持只比较不写入(dryRun)
+ * @date 2024/1/22 11:05
+ */
+@Service
+@Slf4j
+public class FileResyncService {
+
+    private static final String SYNCED = "synced";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private IFileService fileService;
+
+    @Autowired
+    private CommonFileService commonFileService;
+
+    @Autowired
+    private FolderSizeService folderSizeService;
+
+    @Autowired
+    private UserSpaceService userSpaceService;
+
+    @Autowired
+    private LuceneService luceneService;
+
+    /***
+     * 最近一次同步的进度和结果
+     * key: username
+     */
+    private final Map<String, ResyncReportVO> reportMap = new ConcurrentHashMap<>(16);
+
+    public ResyncReportVO getReport(String username) {
+        return reportMap.get(username);
+    }
+
+    /***
+     * 开始同步
+     * @param username 用户名
+     * @param dryRun 只比较差异, 不写入数据库
+     * @return false: 该用户正在同步中
+     */
+    public boolean start(String username, boolean dryRun) {
+        ResyncReportVO report = new ResyncReportVO(username, dryRun);
+        AtomicBoolean started = new AtomicBoolean(false);
+        reportMap.compute(username, (key, old) -> {
+            if (old != null && old.isRunning()) {
+                return old;
+            }
+            started.set(true);
+            return report;
+        });
+        if (started.get()) {
+            ThreadUtil.execute(() -> resync(report));
+        }
+        return started.get();
+    }
+
+    private void resync(ResyncReportVO report) {
+        String username = report.getUsername();
+        ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try {
+            String userId = userService.getUserIdByUserName(username);
+            Path userPath = Paths.get(fileProperties.getRootDir(), username);
+            if (CharSequenceUtil.isBlank(userId) || !Files.isDirectory(userPath)) {
+                report.setError("用户目录不存在");
+                return;
+            }
+            report.setEstimatedCount(mongoTemplate.count(new Query(Criteria.where(IUserService.USER_ID).is(userId)), CommonFileService.COLLECTION_NAME));
+            log.info("开始同步, username: {}, dryRun: {}, 数据库记录数: {}", username, report.isDryRun(), report.getEstimatedCount());
+            forkJoinPool.invoke(new DirectoryTask(report, userId, userPath, MyWebdavServlet.PATH_DELIMITER, new AtomicInteger()));
+            if (!report.isDryRun() && (report.getUpdated().get() > 0 || report.getDeleted().get() > 0)) {
+                // 修改和删除没有逐个更新文件夹大小和已使用空间, 同步完后重新统计
+                folderSizeService.rebuild(userId);
+                userSpaceService.reconcile(userId);
+            }
+        } catch (Exception e) {
+            report.setError(e.getMessage());
+            log.error("同步失败, username: {}", username, e);
+        } finally {
+            forkJoinPool.shutdown();
+            report.finish();
+            log.info("同步完成, username: {}, 扫描目录: {}, 扫描文件: {}, 新增: {}, 修改: {}, 删除: {}, 耗时: {}ms",
+                    username, report.getScannedDirs(), report.getScannedFiles(), report.getInserted(), report.getUpdated(), report.getDeleted(), report.getElapsed());
+            if (!report.isDryRun()) {
+                commonFileService.pushMessage(username, 100, SYNCED);
+            }
+        }
+    }
+
+    /***
+     * 同步一个目录, 子目录拆分为子任务
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient ResyncReportVO report;
+        private final String userId;
+        private final transient Path dir;
+        /***
+         * 目录的相对路径, 以"/"结尾, 即该目录下文件的path
+         */
+        private final String relativePath;
+        /***
+         * 最近一次推送的进度
+         */
+        private final AtomicInteger pushedPercent;
+
+        private DirectoryTask(ResyncReportVO report, String userId, Path dir, String relativePath, AtomicInteger pushedPercent) {
+            this.report = report;
+            this.userId = userId;
+            this.dir = dir;
+            this.relativePath = relativePath;
+            this.pushedPercent = pushedPercent;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subTaskList = new ArrayList<>();
+            try {
+                syncDirectory(subTaskList);
+            } catch (Exception e) {
+                log.error("同步目录失败, {}", dir, e);
+            }
+            pushPercent();
+            invokeAll(subTaskList);
+        }
+
+        private void syncDirectory(List<DirectoryTask> subTaskList) throws IOException {
+            Map<String, Document> documentMap = listDocuments();
+            List<File> insertList = new ArrayList<>();
+            List<Document> deleteList = new ArrayList<>();
+            List<Document> updateList = new ArrayList<>();
+            BulkOperations bulkOperations = report.isDryRun() ? null : mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CommonFileService.COLLECTION_NAME);
+            boolean hasBulk = false;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+                for (Path child : directoryStream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        log.warn("读取文件属性失败, {}, {}", child, e.getMessage());
+                        continue;
+                    }
+                    if (!attrs.isDirectory() && !attrs.isRegularFile()) {
+                        continue;
+                    }
+                    String name = child.getFileName().toString();
+                    Document document = documentMap.remove(name);
+                    if (document != null && Convert.toBool(document.get(Constants.IS_FOLDER), false) != attrs.isDirectory()) {
+                        // 文件变成了目录或目录变成了文件
+                        deleteList.add(document);
+                        document = null;
+                    }
+                    if (attrs.isDirectory()) {
+                        report.getScannedDirs().incrementAndGet();
+                        if (document == null) {
+                            insertList.add(child.toFile());
+                            report.addInsert(relativePath + name);
+                        }
+                        if (!isOssFolder(name)) {
+                            subTaskList.add(new DirectoryTask(report, userId, child, relativePath + name + MyWebdavServlet.PATH_DELIMITER, pushedPercent));
+                        }
+                        continue;
+                    }
+                    report.getScannedFiles().incrementAndGet();
+                    if (document == null) {
+                        insertList.add(child.toFile());
+                        report.addInsert(relativePath + name);
+                    } else if (isModified(document, attrs)) {
+                        report.addUpdate(relativePath + name);
+                        if (bulkOperations != null) {
+                            Update update = new Update();
+                            update.set("size", attrs.size());
+                            update.set("md5", attrs.size() + relativePath + name);
+                            update.set("updateDate", LocalDateTimeUtil.of(attrs.lastModifiedTime().toInstant()));
+                            bulkOperations.updateOne(new Query(Criteria.where("_id").is(document.get("_id"))), update);
+                            updateList.add(document);
+                            hasBulk = true;
+                        }
+                    }
+                }
+            }
+            // 数据库中有, 磁盘上已经没有了
+            deleteList.addAll(documentMap.values());
+            for (Document document : deleteList) {
+                String name = document.getString("name");
+                report.addDelete(relativePath + name);
+                if (bulkOperations == null) {
+                    continue;
+                }
+                bulkOperations.remove(new Query(Criteria.where("_id").is(document.get("_id"))));
+                if (Convert.toBool(document.get(Constants.IS_FOLDER), false)) {
+                    // 删除文件夹下的所有记录
+                    luceneService.deleteIndexByFolder(userId, relativePath + name + MyWebdavServlet.PATH_DELIMITER);
+                    Query query = new Query();
+                    query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+                    query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(relativePath + name + MyWebdavServlet.PATH_DELIMITER)));
+                    bulkOperations.remove(query);
+                }
+                hasBulk = true;
+            }
+            if (hasBulk) {
+                bulkOperations.execute();
+                for (Document document : deleteList) {
+                    luceneService.deleteIndex(userId, document.get("_id").toString());
+                }
+                // 修改过的文件重新建立内容索引
+                for (Document document : updateList) {
+                    luceneService.indexFile(document.get("_id").toString(), FileUtil.extName(document.getString("name")));
+                }
+            }
+            if (!report.isDryRun() && !insertList.isEmpty()) {
+                fileService.createFiles(report.getUsername(), insertList);
+            }
+        }
+
+        /***
+         * 查询该目录下的所有记录
+         * @return key: name
+         */
+        private Map<String, Document> listDocuments() {
+            Query query = new Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where("path").is(relativePath));
+            query.fields().include("_id").include("name").include("size").include("updateDate").include(Constants.IS_FOLDER);
+            List<Document> documentList = mongoTemplate.find(query, Document.class, CommonFileService.COLLECTION_NAME);
+            Map<String, Document> documentMap = new HashMap<>(documentList.size());
+            documentList.forEach(document -> documentMap.put(document.getString("name"), document));
+            return documentMap;
+        }
+
+        /***
+         * 大小或修改时间(精确到秒)不一致
+         */
+        private boolean isModified(Document document, BasicFileAttributes attrs) {
+            if (Convert.toLong(document.get("size"), -1L) != attrs.size()) {
+                return true;
+            }
+            Date updateDate = document.getDate("updateDate");
+            if (updateDate == null) {
+                return true;
+            }
+            return updateDate.getTime() / 1000 != attrs.lastModifiedTime().toMillis() / 1000;
+        }
+
+        /***
+         * 挂载的OSS目录, 其中的文件不在fileDocument中
+         */
+        private boolean isOssFolder(String name) {
+            if (!MyWebdavServlet.PATH_DELIMITER.equals(relativePath)) {
+                return false;
+            }
+            return CaffeineUtil.getOssPath(Paths.get(report.getUsername(), relativePath, name)) != null;
+        }
+
+        private void pushPercent() {
+            if (report.isDryRun()) {
+                return;
+            }
+            int percent = report.getPercent();
+            int pushed = pushedPercent.get();
+            if (percent > pushed && pushedPercent.compareAndSet(pushed, percent)) {
+                commonFileService.pushMessage(report.getUsername(), percent, SYNCED);
+            }
+        }
+    }
+}
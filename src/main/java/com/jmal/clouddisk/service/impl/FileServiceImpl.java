@@ -3,9 +3,9 @@ package com.jmal.clouddisk.service.impl;
 import cn.hutool.core.codec.Base64;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.IORuntimeException;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.StrUtil;
@@ -16,6 +16,8 @@ import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.interceptor.AuthInterceptor;
 import com.jmal.clouddisk.model.*;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
+import com.jmal.clouddisk.oss.IOssService;
+import com.jmal.clouddisk.oss.OssConfigService;
 import com.jmal.clouddisk.oss.web.WebOssCommonService;
 import com.jmal.clouddisk.oss.web.WebOssCopyFileService;
 import com.jmal.clouddisk.oss.web.WebOssService;
@@ -25,7 +27,6 @@ import com.jmal.clouddisk.service.IFileVersionService;
 import com.jmal.clouddisk.service.video.VideoProcessService;
 import com.jmal.clouddisk.util.*;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
-import com.mongodb.client.AggregateIterable;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -34,13 +35,9 @@ import org.apache.commons.compress.utils.Lists;
 import org.apache.tika.mime.MimeType;
 import org.apache.tika.mime.MimeTypeException;
 import org.apache.tika.mime.MimeTypes;
-import org.bson.BsonNull;
-import org.bson.Document;
-import org.bson.conversions.Bson;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
@@ -48,12 +45,11 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -61,13 +57,11 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 
 import static com.jmal.clouddisk.service.IUserService.USER_ID;
-import static com.mongodb.client.model.Accumulators.sum;
-import static com.mongodb.client.model.Aggregates.group;
-import static com.mongodb.client.model.Aggregates.match;
-import static com.mongodb.client.model.Filters.*;
 
 
 /**
@@ -95,6 +89,30 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     @Autowired
     IFileVersionService fileVersionService;
 
+    @Autowired
+    ContentHashService contentHashService;
+
+    @Autowired
+    BlobService blobService;
+
+    @Autowired
+    PackageDownloadService packageDownloadService;
+
+    @Autowired
+    ArchiveIndexService archiveIndexService;
+
+    @Autowired
+    ExtractJobService extractJobService;
+
+    @Autowired
+    SubtreeService subtreeService;
+
+    @Autowired
+    FileCopyService fileCopyService;
+
+    @Autowired
+    FileCursorService fileCursorService;
+
     /***
      * 前端文件夹树的第一级的文件Id
      */
@@ -138,7 +156,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 criteria = Criteria.where(Constants.IS_FAVORITE).is(isFavorite);
             }
         }
-        List<FileIntroVO> list = getFileDocuments(upload, criteria);
+        List<FileIntroVO> list = getFileDocuments(result, upload, criteria);
         result.setData(list);
         result.setCount(getFileDocumentsCount(upload, criteria));
         return result;
@@ -189,37 +207,35 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return mongoTemplate.count(query, COLLECTION_NAME);
     }
 
-    private List<FileIntroVO> getFileDocuments(UploadApiParamDTO upload, Criteria... criteriaList) {
+    /***
+     * 查询一页文件, 数据库中已经按文件名排好序
+     * @param result 设置下一页的游标
+     */
+    private List<FileIntroVO> getFileDocuments(ResponseResult<Object> result, UploadApiParamDTO upload, Criteria... criteriaList) {
         List<FileIntroVO> fileIntroVOList;
         Query query = getQuery(upload, criteriaList);
-        String order = listByPage(upload, query);
-        if (!CharSequenceUtil.isBlank(order)) {
-            String sortableProp = upload.getSortableProp();
-            Sort.Direction direction = Sort.Direction.ASC;
-            if ("descending".equals(order)) {
-                direction = Sort.Direction.DESC;
-            }
-            query.with(Sort.by(direction, sortableProp));
-        } else {
-            query.with(Sort.by(Sort.Direction.DESC, Constants.IS_FOLDER));
-        }
+        fileCursorService.page(upload, query);
         query.fields().exclude("content").exclude("music.coverBase64");
         List<FileDocument> list = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
+        result.setNextCursor(fileCursorService.nextCursor(upload, list));
+        // 批量读取文件夹大小
+        List<String> folderPathList = list.stream().filter(fileDocument -> BooleanUtil.isTrue(fileDocument.getIsFolder()))
+                .map(fileDocument -> FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName())).toList();
+        Map<String, Long> folderSizeMap = folderSizeService.getFolderSizes(upload.getUserId(), folderPathList);
         long now = System.currentTimeMillis();
-        fileIntroVOList = list.parallelStream().map(fileDocument -> {
+        fileIntroVOList = list.stream().map(fileDocument -> {
             LocalDateTime updateDate = fileDocument.getUpdateDate();
             long update = TimeUntils.getMilli(updateDate);
             fileDocument.setAgoTime(now - update);
             if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
-                String path = fileDocument.getPath() + fileDocument.getName() + File.separator;
-                long size = getFolderSize(fileDocument.getUserId(), path);
-                fileDocument.setSize(size);
+                String path = FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName());
+                fileDocument.setSize(folderSizeMap.getOrDefault(path, 0L));
             }
             FileIntroVO fileIntroVO = new FileIntroVO();
             BeanUtils.copyProperties(fileDocument, fileIntroVO);
             return fileIntroVO;
         }).toList();
-        return sortByFileName(upload, fileIntroVOList, order);
+        return fileIntroVOList;
     }
 
     /***
@@ -267,7 +283,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     }
 
     private ResponseResult<Object> getCountResponseResult(UploadApiParamDTO upload, ResponseResult<Object> result, Criteria... criteriaList) {
-        List<FileIntroVO> list = getFileDocuments(upload, criteriaList);
+        List<FileIntroVO> list = getFileDocuments(result, upload, criteriaList);
         result.setData(list);
         result.setCount(getFileDocumentsCount(upload, criteriaList));
         return result;
@@ -389,11 +405,17 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         Path path = Paths.get(fileProperties.getRootDir(), username, filepath, fileName);
         try {
             File newFile = path.toFile();
+            blobService.beforeOverwrite(newFile);
             FileUtil.writeFromStream(file.getInputStream(), newFile);
-            loopCreateDir(username, Paths.get(fileProperties.getRootDir(), username).getNameCount(), path);
             if (!userService.getDisabledWebp(userLoginHolder.getUserId()) && (!"ico".equals(FileUtil.getSuffix(newFile)))) {
-                fileName += Constants.POINT_SUFFIX_WEBP;
+                // 返回的地址引用转换后的文件, 不走后台转换, 等待转换超时的保留原图
+                File webpFile = webpService.toWebp(newFile);
+                if (webpFile != null) {
+                    newFile = webpFile;
+                    fileName = newFile.getName();
+                }
             }
+            loopCreateDir(username, Paths.get(fileProperties.getRootDir(), username).getNameCount(), newFile.toPath());
             return baseUrl + Paths.get("/file", username, filepath, fileName);
         } catch (IOException e) {
             throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE.getCode(), ExceptionType.FAIL_UPLOAD_FILE.getMsg());
@@ -412,26 +434,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         }
     }
 
-    /***
-     * 统计文件夹的大小
-     */
-    private long getFolderSize(String userId, String path) {
-        List<Bson> list = Arrays.asList(
-                match(and(eq(USER_ID, userId),
-                        eq(Constants.IS_FOLDER, false), regex("path", "^" + ReUtil.escape(path)))),
-                group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
-        AggregateIterable<Document> aggregate = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
-        long totalSize = 0;
-        Document doc = aggregate.first();
-        if (doc != null) {
-            Object object = doc.get(Constants.TOTAL_SIZE);
-            if (object != null) {
-                totalSize = Long.parseLong(object.toString());
-            }
-        }
-        return totalSize;
-    }
-
     @Override
     public Optional<FileDocument> getById(String id, Boolean content) {
         FileDocument fileDocument = mongoTemplate.findById(id, FileDocument.class, COLLECTION_NAME);
@@ -511,17 +513,10 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
 
     @NotNull
     private static StreamingResponseBody getStreamingResponseBody(File file) {
+        // 原样发送文件的字节, 不按行解码再编码, 也不每行flush
         return outputStream -> {
-            Charset charset = MyFileUtils.getFileCharset(file);
-            try (InputStream inputStream = FileUtil.getInputStream(file);
-                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, charset);
-                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
-                String line;
-                while ((line = bufferedReader.readLine()) != null) {
-                    outputStream.write(line.getBytes(charset));
-                    outputStream.write("\n".getBytes(charset));
-                    outputStream.flush();
-                }
+            try {
+                Files.copy(file.toPath(), outputStream);
             } catch (ClientAbortException ignored) {
                 // ignored
             } catch (IOException e) {
@@ -538,9 +533,11 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 String username = userService.getUserNameById(fileDocument.getUserId());
                 String currentDirectory = getUserDirectory(fileDocument.getPath());
                 File file = new File(fileProperties.getRootDir() + File.separator + username + currentDirectory + fileDocument.getName());
-                if (file.exists()) {
-                    fileDocument.setContent(FileUtil.readBytes(file));
-                }
+                fileDocument.setContent(thumbnailService.getThumbnail(id, file));
+            }
+            if (fileDocument.getContent() == null) {
+                // 缩略图还在生成, 不返回可以被缓存的空内容
+                return Optional.empty();
             }
             return Optional.of(fileDocument);
         }
@@ -612,49 +609,156 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     }
 
     @Override
-    public void publicPackageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList) {
-        packageDownload(request, response, fileIdList, null);
+    public void publicPackageDownload(HttpServletRequest request, HttpServletResponse response, ShareDO shareDO, List<String> fileIdList) {
+        packageDownload(request, response, fileIdList, null, shareDO);
     }
 
     @Override
     public void packageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList) {
         String username = request.getParameter(AuthInterceptor.NAME_HEADER);
-        packageDownload(request, response, fileIdList, username);
+        if (CharSequenceUtil.isBlank(username)) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        packageDownload(request, response, fileIdList, username, null);
     }
 
-    private void packageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList, String username) {
+    /***
+     * 打包下载
+     * @param username 登录用户的用户名, 分享里的打包下载时为null
+     * @param shareDO 分享, 登录用户打包下载时为null
+     */
+    private void packageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList, String username, ShareDO shareDO) {
+        if (fileIdList == null || fileIdList.isEmpty()) {
+            return;
+        }
+        String ossPath = CaffeineUtil.getOssPath(Paths.get(fileIdList.get(0)));
+        if (ossPath != null) {
+            // oss中的文件只能是登录用户自己的, 或者在分享的文件夹下
+            String rootPath = shareDO != null ? shareDO.getFileId() : username;
+            for (String fileId : fileIdList) {
+                if (!isOssSubPath(fileId, rootPath)) {
+                    throw new CommonException(ExceptionType.PERMISSION_DENIED);
+                }
+            }
+            ossPackageDownload(request, response, fileIdList, ossPath);
+            return;
+        }
         FileDocument fileDocument = getFileInfoBeforeDownload(fileIdList, username);
         if (fileDocument == null) {
             return;
         }
+        String ownerId = shareDO != null ? shareDO.getUserId() : userService.getUserIdByUserName(username);
+        if (ownerId == null || !ownerId.equals(fileDocument.getUserId())) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
         if (CharSequenceUtil.isBlank(username)) {
             username = fileDocument.getUsername();
         }
+        // 选中的文件, 只打包与第一个文件在同一目录下的
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").in(fileIdList));
+        query.addCriteria(Criteria.where(USER_ID).is(ownerId));
+        query.fields().include("name").include("path");
+        List<FileDocument> fileDocuments = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
+        if (fileDocuments.isEmpty()) {
+            return;
+        }
+        if (shareDO != null) {
+            checkInShare(shareDO, fileDocuments);
+        }
+        String parentPath = fileDocuments.get(0).getPath();
+        Path srcDir = Paths.get(fileProperties.getRootDir(), username, parentPath).normalize();
+        List<Path> selectedPathList = fileDocuments.stream()
+                .filter(doc -> parentPath.equals(doc.getPath()))
+                .map(doc -> srcDir.resolve(doc.getName()))
+                .toList();
         //响应头的设置
         response.reset();
         response.setCharacterEncoding("utf-8");
-        response.setContentType("multipart/form-data");
+        response.setContentType("application/zip");
         //设置压缩包的名字
         setDownloadName(request, response, fileDocument.getName() + ".zip");
+        // 压缩传输
+        try {
+            packageDownloadService.zipLocal(srcDir, selectedPathList, response);
+        } catch (ClientAbortException ignored) {
+            // ignored error
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
 
-        Path srcDir = Paths.get(fileProperties.getRootDir(), username, getUserDirectory(fileDocument.getPath()));
-        Query query = new Query();
-        query.addCriteria(Criteria.where("_id").in(fileIdList));
-        List<FileDocument> fileDocuments = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
-        // 选中的文件
-        List<String> selectNameList;
-        selectNameList = fileDocuments.stream().map(FileBase::getName).toList();
-        List<String> finalSelectNameList = selectNameList;
-        File[] excludeFiles = srcDir.toFile().listFiles(file -> !finalSelectNameList.contains(file.getName()));
-        List<Path> excludeFilePathList = new ArrayList<>();
-        if (excludeFiles != null) {
-            for (File excludeFile : excludeFiles) {
-                excludeFilePathList.add(excludeFile.toPath());
+    /***
+     * 分享里的打包下载, 选中的文件只能是分享的文件本身或者分享的文件夹下的文件
+     * @param shareDO 分享
+     * @param fileDocuments 选中的文件, 包含name和path
+     */
+    private void checkInShare(ShareDO shareDO, List<FileDocument> fileDocuments) {
+        FileDocument shareFile = mongoTemplate.findById(shareDO.getFileId(), FileDocument.class, COLLECTION_NAME);
+        if (shareFile == null) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        String sharePath = shareFile.getPath() + shareFile.getName() + "/";
+        boolean isFolder = Boolean.TRUE.equals(shareFile.getIsFolder());
+        for (FileDocument doc : fileDocuments) {
+            if (shareFile.getId().equals(doc.getId())) {
+                continue;
+            }
+            if (!isFolder || doc.getPath() == null || !doc.getPath().startsWith(sharePath)) {
+                throw new CommonException(ExceptionType.PERMISSION_DENIED);
             }
         }
-        // 压缩传输
+    }
+
+    /***
+     * oss中的文件是否在rootPath下
+     * @param fileId oss中的文件, 例如: /jmal/aliyunStorage/a.txt
+     * @param rootPath 用户名或者分享的oss文件夹, 例如: jmal 或 /jmal/aliyunStorage/folder/
+     */
+    private static boolean isOssSubPath(String fileId, String rootPath) {
+        if (CharSequenceUtil.isBlank(fileId) || CharSequenceUtil.isBlank(rootPath)) {
+            return false;
+        }
+        Path path = Paths.get(CharSequenceUtil.removePrefix(fileId, "/"));
+        // 不允许..之类的路径
+        if (!path.equals(path.normalize())) {
+            return false;
+        }
+        return path.startsWith(Paths.get(CharSequenceUtil.removePrefix(rootPath, "/")).normalize());
+    }
+
+    /***
+     * 打包下载oss中的文件
+     */
+    private void ossPackageDownload(HttpServletRequest request, HttpServletResponse response, List<String> fileIdList, String ossPath) {
+        IOssService ossService = OssConfigService.getOssStorageService(ossPath);
+        List<String> objectNameList = new ArrayList<>(fileIdList.size());
+        for (String fileId : fileIdList) {
+            Path prePath = Paths.get(fileId);
+            if (!ossPath.equals(CaffeineUtil.getOssPath(prePath))) {
+                continue;
+            }
+            String objectName = WebOssService.getObjectName(prePath, ossPath, fileId.endsWith("/"));
+            if (CharSequenceUtil.isBlank(objectName)) {
+                continue;
+            }
+            if (!objectName.endsWith("/") && !ossService.doesObjectExist(objectName)) {
+                objectName = objectName + "/";
+            }
+            objectNameList.add(objectName);
+        }
+        if (objectNameList.isEmpty()) {
+            return;
+        }
+        String name = objectNameList.size() > 1 ? "download" : Paths.get(objectNameList.get(0)).getFileName().toString();
+        response.reset();
+        response.setCharacterEncoding("utf-8");
+        response.setContentType("application/zip");
+        setDownloadName(request, response, name + ".zip");
         try {
-            CompressUtils.zip(srcDir, excludeFilePathList, response.getOutputStream());
+            packageDownloadService.zipOss(ossService, objectNameList, response);
+        } catch (ClientAbortException ignored) {
+            // ignored error
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
@@ -685,12 +789,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
      */
     private FileDocument getFileInfoBeforeDownload(List<String> fileIds, String username) throws CommonException {
         String fileId = fileIds.get(0);
-        // 判断是否为ossPath
-        Path path = Paths.get(fileId);
-        String ossPath = CaffeineUtil.getOssPath(path);
-        if (ossPath != null) {
-            throw new CommonException(ExceptionType.WARNING.getCode(), "暂不支持打包下载");
-        }
         Query query = new Query();
         query.addCriteria(Criteria.where("_id").in(fileId));
         FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, COLLECTION_NAME);
@@ -733,25 +831,18 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         checkPermissionUsername(username, operationPermissionList, OperationPermission.PUT);
         String finalUsername = username;
         String operator = userLoginHolder.getUsername();
-        ThreadUtil.execute(() -> {
-            try {
-                String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
-                if (ossPath != null) {
-                    // oss 重命名
-                    webOssService.rename(ossPath, id, newFileName, operator);
-                    return;
-                }
-                renameFile(newFileName, finalUsername, id, operator);
-            } catch (CommonException e) {
-                pushMessageOperationFileError(finalUsername, Convert.toStr(e.getMsg(), Constants.UNKNOWN_ERROR), "重命名");
-            } catch (Exception e) {
-                pushMessageOperationFileError(finalUsername, Convert.toStr(e.getMessage(), Constants.UNKNOWN_ERROR), "重命名");
+        return ResultUtil.success(subtreeService.submit(finalUsername, "重命名", job -> {
+            String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
+            if (ossPath != null) {
+                // oss 重命名
+                webOssService.rename(ossPath, id, newFileName, operator);
+                return;
             }
-        });
-        return ResultUtil.success();
+            renameFile(newFileName, finalUsername, id, operator, job);
+        }));
     }
 
-    private void renameFile(String newFileName, String username, String id, String operator) {
+    private void renameFile(String newFileName, String username, String id, String operator, SubtreeJobVO job) {
         FileDocument fileDocument = mongoTemplate.findById(id, FileDocument.class, COLLECTION_NAME);
         Path fromPath;
         Path toPath;
@@ -768,28 +859,17 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             toPath = Paths.get(currentDirectory, newFileName);
             String filePath = fileProperties.getRootDir() + File.separator + username + currentDirectory;
             File file = new File(filePath + fileDocument.getName());
-            if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
-                Query query = new Query();
-                String searchPath = currentDirectory + fileDocument.getName();
-                String newPath = currentDirectory + newFileName;
-                query.addCriteria(Criteria.where(USER_ID).is(userService.getUserIdByUserName(username)));
-                query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(searchPath)));
-                List<FileDocument> documentList = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
-                // 修改该文件夹下的所有文件的path
-                documentList.parallelStream().forEach(rep -> {
-                    String path = rep.getPath();
-                    String newFilePath = replaceStart(path, searchPath, newPath);
-                    Update update = new Update();
-                    update.set("path", newFilePath);
-                    Query query1 = new Query();
-                    query1.addCriteria(Criteria.where("_id").is(rep.getId()));
-                    mongoTemplate.upsert(query1, update, COLLECTION_NAME);
-                });
-            }
             if (renameFileError(newFileName, id, filePath, file)) {
                 pushMessageOperationFileError(operator, "重命名失败", "重命名");
                 return;
             }
+            job.getProcessed().incrementAndGet();
+            if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
+                // 修改该文件夹下的所有文件的path
+                subtreeService.renameFolder(fileDocument.getUserId(), currentDirectory, fileDocument.getName(), newFileName, job);
+            } else {
+                luceneService.renameIndex(fileDocument.getUserId(), id, newFileName);
+            }
             fileDocument.setName(newFileName);
             pushMessage(operator, fileDocument, "createFile");
         } else {
@@ -825,20 +905,62 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         // 复制
         upload.setUserId(userLoginHolder.getUserId());
         upload.setUsername(userLoginHolder.getUsername());
-        ThreadUtil.execute(() -> {
-            try {
-                // 复制成功
-                getCopyResult(upload, froms, to, true);
-                String currentDirectory = getOssFileCurrentDirectory(upload, froms);
-                // 删除
-                delete(upload.getUsername(), currentDirectory, froms, upload.getUsername());
-            } catch (CommonException e) {
-                pushMessageOperationFileError(upload.getUsername(), Convert.toStr(e.getMsg(), Constants.UNKNOWN_ERROR), "移动");
-            } catch (Exception e) {
-                pushMessageOperationFileError(upload.getUsername(), Convert.toStr(e.getMessage(), Constants.UNKNOWN_ERROR), "移动");
+        return ResultUtil.success(subtreeService.submit(upload.getUsername(), "移动", job -> {
+            // 本地存储之间直接移动, 其他的先复制再删除
+            List<String> copyFroms = new ArrayList<>(froms.size());
+            for (String from : froms) {
+                if (!moveLocal(upload, from, to, job)) {
+                    copyFroms.add(from);
+                }
             }
-        });
-        return ResultUtil.success();
+            if (copyFroms.isEmpty()) {
+                return;
+            }
+            // 复制成功
+            getCopyResult(upload, copyFroms, to, true, job);
+            String currentDirectory = getOssFileCurrentDirectory(upload, copyFroms);
+            // 删除
+            delete(upload.getUsername(), currentDirectory, copyFroms, upload.getUsername());
+        }));
+    }
+
+    /***
+     * 本地存储之间移动, 直接移动磁盘上的文件并修改path, 文件id不变
+     * @return false: 来源或目标在oss中, 或者不在同一个文件系统中, 需要先复制再删除
+     */
+    private boolean moveLocal(UploadApiParamDTO upload, String from, String to, SubtreeJobVO job) {
+        FileDocument fromFileDocument = getFileDocumentById(from);
+        if (fromFileDocument == null || fromFileDocument.getOssFolder() != null || CaffeineUtil.getOssPath(Paths.get(from)) != null) {
+            return false;
+        }
+        FileDocument toFileDocument = getFileDocumentById(to);
+        if ((toFileDocument != null && toFileDocument.getOssFolder() != null) || CaffeineUtil.getOssPath(Paths.get(to)) != null) {
+            return false;
+        }
+        if (CommonFileService.isLock(fromFileDocument)) {
+            throw new CommonException(ExceptionType.LOCKED_RESOURCES);
+        }
+        String toPath = getRelativePath(toFileDocument);
+        if (Boolean.TRUE.equals(fromFileDocument.getIsFolder()) && toPath.startsWith(FolderSizeService.getFolderPath(fromFileDocument.getPath(), fromFileDocument.getName()))) {
+            throw new CommonException(ExceptionType.WARNING.getCode(), "不能移动到自身或其子目录");
+        }
+        if (isExistsOfToCopy(fromFileDocument, toPath)) {
+            throw new CommonException(ExceptionType.WARNING.getCode(), Constants.COPY_EXISTS_FILE);
+        }
+        Path source = Paths.get(getUserDir(upload.getUsername()), fromFileDocument.getPath(), fromFileDocument.getName());
+        Path target = Paths.get(getUserDir(upload.getUsername()), toPath, fromFileDocument.getName());
+        try {
+            Files.move(source, target);
+        } catch (FileAlreadyExistsException e) {
+            throw new CommonException(ExceptionType.WARNING.getCode(), Constants.COPY_EXISTS_FILE);
+        } catch (IOException e) {
+            log.warn("移动失败, 改为复制后删除, {}, {}", source, e.getMessage());
+            return false;
+        }
+        Path pathFrom = Paths.get(fromFileDocument.getPath(), fromFileDocument.getName());
+        subtreeService.move(fromFileDocument, toPath, job);
+        pushMessageOperationFileSuccess(pathFrom.toString(), Paths.get(toPath).toString(), upload.getUsername(), "移动");
+        return true;
     }
 
     private String getOssFileCurrentDirectory(UploadApiParamDTO upload, List<String> froms) {
@@ -855,12 +977,12 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return currentDirectory;
     }
 
-    private void getCopyResult(UploadApiParamDTO upload, List<String> froms, String to, boolean move) {
+    private void getCopyResult(UploadApiParamDTO upload, List<String> froms, String to, boolean move, SubtreeJobVO job) {
         for (String from : froms) {
             ResponseResult<Object> result;
             try {
-                result = copy(upload, from, to, move);
-            } catch (CommonException e) {
+                result = copy(upload, from, to, move, job);
+            } catch (CommonException | CancellationException e) {
                 throw e;
             } catch (Exception e) {
                 throw new CommonException(ExceptionType.SYSTEM_ERROR);
@@ -876,17 +998,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         // 复制
         upload.setUserId(userLoginHolder.getUserId());
         upload.setUsername(userLoginHolder.getUsername());
-        ThreadUtil.execute(() -> {
-            try {
-                // 复制成功
-                getCopyResult(upload, froms, to, false);
-            } catch (CommonException e) {
-                pushMessageOperationFileError(upload.getUsername(), Convert.toStr(e.getMsg(), Constants.UNKNOWN_ERROR), "复制");
-            } catch (Exception e) {
-                pushMessageOperationFileError(upload.getUsername(), Convert.toStr(e.getMessage(), Constants.UNKNOWN_ERROR), "复制");
-            }
-        });
-        return ResultUtil.success();
+        return ResultUtil.success(subtreeService.submit(upload.getUsername(), "复制", job -> getCopyResult(upload, froms, to, false, job)));
     }
 
     @Override
@@ -910,12 +1022,13 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         try {
             if (userService.getDisabledWebp(userId) || ("ico".equals(FileUtil.getSuffix(fileName)))) {
                 newFile = Paths.get(fileProperties.getRootDir(), username, userImagePaths.toString(), fileName).toFile();
+                blobService.beforeOverwrite(newFile);
                 FileUtil.writeFromStream(multipartFile.getInputStream(), newFile);
             } else {
                 fileName = fileName + Constants.POINT_SUFFIX_WEBP;
                 newFile = Paths.get(fileProperties.getRootDir(), username, userImagePaths.toString(), fileName).toFile();
-                BufferedImage image = ImageIO.read(multipartFile.getInputStream());
-                imageFileToWebp(newFile, image);
+                blobService.beforeOverwrite(newFile);
+                webpService.toWebp(multipartFile.getInputStream(), newFile);
             }
         } catch (IOException e) {
             throw new CommonException(2, "上传失败");
@@ -946,6 +1059,11 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return createFile(username, file, null, null);
     }
 
+    @Override
+    public void createFiles(String username, List<File> fileList) {
+        batchCreateFile(username, fileList);
+    }
+
     @Override
     public void updateFile(String username, File file) {
         modifyFile(username, file);
@@ -968,10 +1086,20 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             mongoTemplate.remove(query, COLLECTION_NAME);
             if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
+                luceneService.deleteIndexByFolder(userId, FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName()));
                 Query query1 = new Query();
                 query1.addCriteria(Criteria.where(USER_ID).is(userId));
                 query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
+                thumbnailService.deleteAll(query1);
                 mongoTemplate.remove(query1, COLLECTION_NAME);
+                long folderSize = folderSizeService.onFolderDeleted(userId, fileDocument.getPath(), fileDocument.getName());
+                userSpaceService.addDelta(userId, -folderSize);
+            } else {
+                folderSizeService.onFileDeleted(userId, fileDocument.getPath(), fileDocument.getSize());
+                userSpaceService.addDelta(userId, -fileDocument.getSize());
+                thumbnailService.delete(fileDocument.getId());
+                blobService.release(fileDocument.getContentHash());
+                luceneService.deleteIndex(fileDocument.getUserId(), fileDocument.getId());
             }
         }
         pushMessage(username, fileDocument, "deleteFile");
@@ -992,35 +1120,77 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             if (CharSequenceUtil.isBlank(username)) {
                 throw new CommonException(ExceptionType.USER_NOT_FIND);
             }
+            checkArchiveAccess(fileDocument, null);
             String filePath = getFilePathByFileId(username, fileDocument);
-            String destDir;
-            boolean isWrite = false;
             if (CharSequenceUtil.isBlank(destFileId)) {
-                // 没有目标目录, 则预览解压到临时目录
-                destDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), username, fileDocument.getName()).toString();
+                // 没有目标目录, 只读取压缩包的目录预览, 不解压, 预览结果的路径以压缩包id开头, 同名的压缩包互不影响
+                File file = new File(filePath);
+                archiveIndexService.putPreview(username, fileId, file);
+                return ResultUtil.success(archiveIndexService.list(file, "", fileId).stream().sorted(this::compareByFileName).toList());
+            }
+            String destDir;
+            if (fileId.equals(destFileId)) {
+                // 解压到当前文件夹
+                destDir = filePath.substring(0, filePath.length() - FileUtil.extName(new File(filePath)).length() - 1);
             } else {
-                if (fileId.equals(destFileId)) {
-                    // 解压到当前文件夹
-                    destDir = filePath.substring(0, filePath.length() - FileUtil.extName(new File(filePath)).length() - 1);
+                // 其他目录
+                FileDocument dest = getById(destFileId);
+                if (dest != null) {
+                    destDir = getFilePathByFileId(username, dest);
                 } else {
-                    // 其他目录
-                    FileDocument dest = getById(destFileId);
-                    if (dest != null) {
-                        destDir = getFilePathByFileId(username, dest);
-                    } else {
-                        destDir = Paths.get(fileProperties.getRootDir(), username).toString();
-                    }
+                    destDir = Paths.get(fileProperties.getRootDir(), username).toString();
                 }
-                isWrite = true;
             }
-            CompressUtils.decompress(filePath, destDir, isWrite);
-            return ResultUtil.success(listFile(username, destDir, !isWrite));
+            // 后台解压, 通过websocket推送进度
+            return ResultUtil.success(extractJobService.start(username, new File(filePath), new File(destDir)));
+        } catch (CommonException e) {
+            throw e;
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             return ResultUtil.error("解压失败!");
         }
     }
 
+    @Override
+    public void previewArchiveEntry(String fileId, String entryName, ShareDO shareDO, HttpServletResponse response) {
+        FileDocument fileDocument = getById(fileId);
+        if (fileDocument == null) {
+            throw new CommonException(ExceptionType.FILE_NOT_FIND);
+        }
+        checkArchiveAccess(fileDocument, shareDO);
+        String username = userService.getUserNameById(fileDocument.getUserId());
+        if (CharSequenceUtil.isBlank(username)) {
+            throw new CommonException(ExceptionType.USER_NOT_FIND);
+        }
+        File file = new File(getFilePathByFileId(username, fileDocument));
+        try {
+            archiveIndexService.writeEntry(file, entryName, response);
+        } catch (ClientAbortException ignored) {
+            // ignored error
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /***
+     * 压缩包只能是登录用户自己的, 或者在可以访问的分享中, 与打包下载的检查一致
+     * @param fileDocument 压缩包
+     * @param shareDO 压缩包所在的分享, 不是通过分享访问时为null
+     */
+    private void checkArchiveAccess(FileDocument fileDocument, ShareDO shareDO) {
+        if (shareDO == null) {
+            String userId = userLoginHolder.getUserId();
+            if (userId == null || !userId.equals(fileDocument.getUserId())) {
+                throw new CommonException(ExceptionType.PERMISSION_DENIED);
+            }
+            return;
+        }
+        if (shareDO.getUserId() == null || !shareDO.getUserId().equals(fileDocument.getUserId())) {
+            throw new CommonException(ExceptionType.PERMISSION_DENIED);
+        }
+        checkInShare(shareDO, List.of(fileDocument));
+    }
+
     @Override
     public ResponseResult<Object> listFiles(String path, String username, boolean tempDir) {
         Path prePth = Paths.get(username, path);
@@ -1032,6 +1202,16 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         }
         String dirPath;
         if (tempDir) {
+            // 预览中的压缩包
+            Path archivePath = Paths.get(CharSequenceUtil.removePrefix(path, "/"));
+            if (archivePath.getNameCount() > 0) {
+                String archiveId = archivePath.getName(0).toString();
+                File archive = archiveIndexService.getPreview(username, archiveId);
+                if (archive != null) {
+                    String dir = archivePath.getNameCount() > 1 ? archivePath.subpath(1, archivePath.getNameCount()).toString() : "";
+                    return ResultUtil.success(archiveIndexService.list(archive, dir, archiveId).stream().sorted(this::compareByFileName).toList());
+                }
+            }
             dirPath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), username, path).toString();
             return ResultUtil.success(listFile(username, dirPath, true));
         } else {
@@ -1196,6 +1376,8 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             Query query = new Query();
             query.addCriteria(Criteria.where(USER_ID).in(userId));
             mongoTemplate.remove(query, COLLECTION_NAME);
+            folderSizeService.removeByUser(userId);
+            userSpaceService.remove(userId);
         });
     }
 
@@ -1354,7 +1536,11 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         Path fromFilePath = Paths.get(getUserDir(username), path);
         Path toFilePath = Paths.get(getUserDir(username), Paths.get(path).getParent().toString(), newFilename);
         // 复制文件
-        PathUtil.copyFile(fromFilePath, toFilePath);
+        try {
+            fileCopyService.copyFile(fromFilePath, toFilePath);
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
         // 保存文件信息
         createFile(username, toFilePath.toFile());
         return ResultUtil.success();
@@ -1370,8 +1556,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
      * @param upload UploadApiParamDTO
      * @param from 来源文件id
      * @param to 目标文件id
+     * @param job 任务
      */
-    private ResponseResult<Object> copy(UploadApiParamDTO upload, String from, String to, boolean move) {
+    private ResponseResult<Object> copy(UploadApiParamDTO upload, String from, String to, boolean move, SubtreeJobVO job) throws IOException {
         FileDocument formFileDocument = getFileDocumentById(from);
         String fromPath = getRelativePath(formFileDocument);
         String fromFilePath = getUserDir(upload.getUsername()) + fromPath;
@@ -1392,7 +1579,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             if (toFileDocument != null) {
                 pathTo = Paths.get(toFileDocument.getPath(), toFileDocument.getName());
             }
-            ResponseResult<Object> result1 = copyFile(formFileDocument, fromPath, fromFilePath, toPath, toFilePath);
+            ResponseResult<Object> result1 = copyFile(formFileDocument, fromFilePath, toPath, toFilePath, job);
             if (result1 != null) return result1;
             String operation = move ? "移动" : "复制";
             // 复制成功
@@ -1402,40 +1589,13 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return ResultUtil.error("复制失败");
     }
 
-    private ResponseResult<Object> copyFile(FileDocument formFileDocument, String fromPath, String fromFilePath, String toPath, String toFilePath) {
-        FileUtil.copy(fromFilePath, toFilePath, true);
-        FileDocument copyFileDocument = copyFileDocument(formFileDocument, toPath);
-        if (Boolean.TRUE.equals(formFileDocument.getIsFolder())) {
-            // 复制文件夹
-            // 复制其本身
-            if (isExistsOfToCopy(copyFileDocument, toPath)) {
-                return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
-            }
-            saveFileDocument(copyFileDocument);
-            // 复制其下的子文件或目录
-            Query query = new Query();
-            query.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
-            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fromPath)));
-            List<FileDocument> formList = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
-            List<FileDocument> list = new ArrayList<>();
-            for (FileDocument fileDocument : formList) {
-                String oldPath = fileDocument.getPath();
-                String newPath = toPath + oldPath.substring(1);
-                copyFileDocument(fileDocument, newPath);
-                list.add(fileDocument);
-            }
-            formList = list;
-            for (FileDocument fileDocument : formList) {
-                saveFileDocument(fileDocument);
-            }
-        } else {
-            // 复制文件
-            // 复制其本身
-            if (isExistsOfToCopy(copyFileDocument, toPath)) {
-                return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
-            }
-            saveFileDocument(copyFileDocument);
+    private ResponseResult<Object> copyFile(FileDocument formFileDocument, String fromFilePath, String toPath, String toFilePath, SubtreeJobVO job) throws IOException {
+        if (isExistsOfToCopy(formFileDocument, toPath)) {
+            return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
         }
+        fileCopyService.copy(Paths.get(fromFilePath), Paths.get(toFilePath, formFileDocument.getName()), job);
+        // 克隆文件及其下的子文件或目录的元数据
+        subtreeService.copy(formFileDocument, toPath, job);
         return null;
     }
 
@@ -1476,18 +1636,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return null;
     }
 
-    /***
-     * 复制更新数据
-     * @param formFileDocument FileDocument
-     * @param toPath toPath
-     */
-    private FileDocument copyFileDocument(FileDocument formFileDocument, String toPath) {
-        formFileDocument.setId(null);
-        formFileDocument.setPath(toPath);
-        formFileDocument.setUpdateDate(LocalDateTime.now(TimeUntils.ZONE_ID));
-        return formFileDocument;
-    }
-
     /***
      * 目标目录是否存该文件
      * @param formFileDocument FileDocument
@@ -1501,10 +1649,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return mongoTemplate.exists(query, COLLECTION_NAME);
     }
 
-    private static String replaceStart(String str, CharSequence searchStr, CharSequence replacement) {
-        return replacement + str.substring(searchStr.length());
-    }
-
     private boolean renameFileError(String newFileName, String fileId, String filePath, File file) {
         if (file.renameTo(new File(filePath + newFileName))) {
             Query query = new Query();
@@ -1556,8 +1700,12 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             upload.setInputStream(file.getInputStream());
             upload.setContentType(file.getContentType());
             upload.setSuffix(FileUtil.extName(filename));
-            FileUtil.writeFromStream(file.getInputStream(), chunkFile);
-            createFile(upload.getUsername(), chunkFile);
+            // 覆盖已有的文件时不能修改与之共享数据的其他文件
+            blobService.beforeWrite(chunkFile.toPath(), false);
+            String contentHash = ContentHashService.writeFromStream(file.getInputStream(), chunkFile);
+            String fileId = createFile(upload.getUsername(), chunkFile);
+            blobService.store(contentHash, chunkFile.toPath());
+            contentHashService.save(fileId, contentHash, chunkFile);
             uploadResponse.setUpload(true);
         } else {
             // 上传分片
@@ -1737,11 +1885,21 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             isDel = FileUtil.del(file);
             if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
+                luceneService.deleteIndexByFolder(fileDocument.getUserId(), FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName()));
                 Query query1 = new Query();
                 query1.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
                 query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
+                thumbnailService.deleteAll(query1);
                 mongoTemplate.remove(query1, COLLECTION_NAME);
+                long folderSize = folderSizeService.onFolderDeleted(fileDocument.getUserId(), fileDocument.getPath(), fileDocument.getName());
+                userSpaceService.addDelta(fileDocument.getUserId(), -folderSize);
                 isDel = true;
+            } else if (isDel) {
+                folderSizeService.onFileDeleted(fileDocument.getUserId(), fileDocument.getPath(), fileDocument.getSize());
+                userSpaceService.addDelta(fileDocument.getUserId(), -fileDocument.getSize());
+                thumbnailService.delete(fileDocument.getId());
+                blobService.release(fileDocument.getContentHash());
+                luceneService.deleteIndex(fileDocument.getUserId(), fileDocument.getId());
             }
             pushMessage(username, fileDocument, "deleteFile");
         }
@@ -81,6 +81,8 @@ public class FileVersionServiceImpl implements IFileVersionService {
 
     private final UserLoginHolder userLoginHolder;
 
+    private final BlobService blobService;
+
     @Override
     public void saveFileVersion(String username, String relativePath, String userId) {
         File file = new File(Paths.get(fileProperties.getRootDir(), username, relativePath).toString());
@@ -337,6 +339,7 @@ public class FileVersionServiceImpl implements IFileVersionService {
             throw new CommonException(ExceptionType.LOCKED_RESOURCES);
         }
         LocalDateTime time = LocalDateTimeUtil.now();
+        blobService.beforeOverwrite(file);
         try (InputStream inputStream = getInputStream(gridFSFile)) {
             FileUtil.writeFromStream(inputStream, file);
             Query query = new Query().addCriteria(Criteria.where("_id").is(fileId));
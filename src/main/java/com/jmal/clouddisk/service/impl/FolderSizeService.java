@@ -0,0 +1,401 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.date.TimeInterval;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
+import com.jmal.clouddisk.model.FolderSizeDO;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * @author jmal
+ * @Description 文件夹大小索引
+ * 每个文件夹记录其下所有文件的累计大小和文件数, 文件新建、修改、删除时增量更新所有上级目录,
+ * 列表查询时一次批量读取, 不再对每个文件夹做一次 ^path 正则聚合
+ * @date 2024/1/16 10:21
+ */
+@Service
+@Slf4j
+public class FolderSizeService {
+
+    public static final String COLLECTION_NAME = "folderSize";
+
+    private static final String PATH = "path";
+
+    private static final String SIZE = "size";
+
+    private static final String COUNT = "count";
+
+    private static final String GENERATION = "generation";
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /***
+     * 是否正在重建索引
+     */
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    /***
+     * 正在重建的用户在重建期间的增量更新, 重建写完后再执行, 不会被重建的$set覆盖
+     * key: userId
+     */
+    private final Map<String, List<Increment>> deferredMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 用户级别的锁, 增量更新和开始、结束重建互斥
+     * key: userId
+     */
+    private final Map<String, Object> userLockMap = new ConcurrentHashMap<>(16);
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document(IUserService.USER_ID, 1).append(PATH, 1), new IndexOptions().unique(true));
+        // 首次启动时索引为空, 从fileDocument重建
+        if (mongoTemplate.estimatedCount(COLLECTION_NAME) == 0 && mongoTemplate.estimatedCount(CommonFileService.COLLECTION_NAME) > 0) {
+            ThreadUtil.execute(this::rebuild);
+        }
+    }
+
+    /***
+     * 新建文件后, 所有上级目录的大小和文件数增加
+     * @param userId userId
+     * @param path 文件所在目录, 例如: /a/b/
+     * @param size 文件大小
+     */
+    public void onFileCreated(String userId, String path, long size) {
+        onFileCreated(userId, path, size, 1);
+    }
+
+    /***
+     * 批量新建文件后, 所有上级目录的大小和文件数增加
+     * @param userId userId
+     * @param path 文件所在目录
+     * @param size 文件大小之和
+     * @param count 文件数
+     */
+    public void onFileCreated(String userId, String path, long size, long count) {
+        increment(userId, ancestorPaths(path), size, count);
+    }
+
+    /***
+     * 修改文件后, 所有上级目录的大小增加(减少)差值
+     * @param userId userId
+     * @param path 文件所在目录
+     * @param delta 新大小 - 原大小
+     */
+    public void onFileModified(String userId, String path, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        increment(userId, ancestorPaths(path), delta, 0);
+    }
+
+    /***
+     * 删除文件后, 所有上级目录的大小和文件数减少
+     * @param userId userId
+     * @param path 文件所在目录
+     * @param size 文件大小
+     */
+    public void onFileDeleted(String userId, String path, long size) {
+        increment(userId, ancestorPaths(path), -size, -1);
+    }
+
+    /***
+     * 删除文件夹后, 删除该文件夹及其子目录的索引, 并从所有上级目录中减去该文件夹的大小和文件数
+     * @param userId userId
+     * @param path 文件夹所在目录
+     * @param name 文件夹名称
+     * @return 该文件夹的大小
+     */
+    public long onFolderDeleted(String userId, String path, String name) {
+        String folderPath = getFolderPath(path, name);
+        FolderSizeDO folderSizeDO = mongoTemplate.findOne(getQuery(userId, folderPath), FolderSizeDO.class, COLLECTION_NAME);
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where(PATH).regex("^" + ReUtil.escape(folderPath)));
+        mongoTemplate.remove(query, COLLECTION_NAME);
+        if (folderSizeDO == null) {
+            return 0;
+        }
+        increment(userId, ancestorPaths(path), -folderSizeDO.getSize(), -folderSizeDO.getCount());
+        return folderSizeDO.getSize();
+    }
+
+    /***
+     * 重命名文件夹后, 修改该文件夹及其子目录索引的path, 上级目录的大小不变
+     * @param userId userId
+     * @param fromFolderPath 原文件夹路径, 以"/"结尾
+     * @param toFolderPath 新文件夹路径, 以"/"结尾
+     */
+    public void onFolderRenamed(String userId, String fromFolderPath, String toFolderPath) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where(PATH).regex("^" + ReUtil.escape(fromFolderPath)));
+        query.fields().include(PATH);
+        List<FolderSizeDO> list = mongoTemplate.find(query, FolderSizeDO.class, COLLECTION_NAME);
+        if (list.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        for (FolderSizeDO folderSizeDO : list) {
+            Query query1 = new Query();
+            query1.addCriteria(Criteria.where("_id").is(folderSizeDO.getId()));
+            Update update = new Update();
+            update.set(PATH, toFolderPath + folderSizeDO.getPath().substring(fromFolderPath.length()));
+            bulkOperations.updateOne(query1, update);
+        }
+        bulkOperations.execute();
+    }
+
+    /***
+     * 移动文件夹后, 修改该文件夹及其子目录索引的path, 并把该文件夹的大小和文件数从原上级目录转移到新上级目录
+     * @param userId userId
+     * @param fromPath 文件夹原来所在目录
+     * @param toPath 文件夹移动到的目录
+     * @param name 文件夹名称
+     */
+    public void onFolderMoved(String userId, String fromPath, String toPath, String name) {
+        String fromFolderPath = getFolderPath(fromPath, name);
+        FolderSizeDO folderSizeDO = mongoTemplate.findOne(getQuery(userId, fromFolderPath), FolderSizeDO.class, COLLECTION_NAME);
+        onFolderRenamed(userId, fromFolderPath, getFolderPath(toPath, name));
+        if (folderSizeDO == null) {
+            return;
+        }
+        increment(userId, ancestorPaths(fromPath), -folderSizeDO.getSize(), -folderSizeDO.getCount());
+        increment(userId, ancestorPaths(toPath), folderSizeDO.getSize(), folderSizeDO.getCount());
+    }
+
+    /***
+     * 删除用户的所有索引
+     * @param userId userId
+     */
+    public void removeByUser(String userId) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        mongoTemplate.remove(query, COLLECTION_NAME);
+    }
+
+    /***
+     * 批量获取文件夹大小
+     * @param userId userId
+     * @param folderPaths 文件夹路径列表, 以"/"结尾
+     * @return key: 文件夹路径, value: 文件夹大小
+     */
+    public Map<String, Long> getFolderSizes(String userId, Collection<String> folderPaths) {
+        if (folderPaths.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where(PATH).in(folderPaths));
+        query.fields().include(PATH).include(SIZE);
+        List<FolderSizeDO> list = mongoTemplate.find(query, FolderSizeDO.class, COLLECTION_NAME);
+        Map<String, Long> map = new HashMap<>(list.size());
+        list.forEach(folderSizeDO -> map.put(folderSizeDO.getPath(), folderSizeDO.getSize()));
+        return map;
+    }
+
+    /***
+     * 每周日凌晨3点重建索引, 修复增量更新产生的偏差
+     */
+    @Scheduled(cron = "0 0 3 * * SUN")
+    private void repair() {
+        rebuild();
+    }
+
+    /***
+     * 从fileDocument重建索引
+     */
+    public void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        TimeInterval timeInterval = new TimeInterval();
+        try {
+            List<String> userIdList = mongoTemplate.findDistinct(new Query(), IUserService.USER_ID, CommonFileService.COLLECTION_NAME, String.class);
+            for (String userId : userIdList) {
+                rebuild(userId);
+            }
+            log.info("重建文件夹大小索引完成, 用户数: {}, 耗时: {}ms", userIdList.size(), timeInterval.intervalMs());
+        } catch (Exception e) {
+            log.error("重建文件夹大小索引失败, {}", e.getMessage(), e);
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding.get();
+    }
+
+    /***
+     * 重建某个用户的索引
+     * 每个文件夹用一次upsert整体$set新的大小和文件数, 不先删除再插入, 重建过程中增量更新的upsert不会遇到重复的key或者读到0,
+     * 写完后删除本次重建没有写到的旧记录; 重建期间该用户的增量更新先记下, 写完后再执行
+     * @param userId userId
+     */
+    public void rebuild(String userId) {
+        synchronized (getUserLock(userId)) {
+            if (deferredMap.putIfAbsent(userId, new ArrayList<>()) != null) {
+                // 该用户正在重建
+                return;
+            }
+        }
+        try {
+            doRebuild(userId);
+        } finally {
+            // 执行重建期间收到的增量更新
+            synchronized (getUserLock(userId)) {
+                List<Increment> deferredList = deferredMap.remove(userId);
+                deferredList.forEach(increment -> doIncrement(userId, increment.ancestorPaths, increment.size, increment.count));
+            }
+        }
+    }
+
+    private void doRebuild(String userId) {
+        long generation = System.currentTimeMillis();
+        // 按目录统计文件大小和文件数
+        List<Bson> list = Arrays.asList(
+                match(and(eq(IUserService.USER_ID, userId), eq(Constants.IS_FOLDER, false))),
+                group("$path", sum(SIZE, "$size"), sum(COUNT, 1)));
+        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(CommonFileService.COLLECTION_NAME).aggregate(list).allowDiskUse(true);
+        // 累加到所有上级目录
+        Map<String, long[]> folderSizeMap = new HashMap<>(256);
+        try (MongoCursor<Document> mongoCursor = aggregateIterable.iterator()) {
+            while (mongoCursor.hasNext()) {
+                Document document = mongoCursor.next();
+                String path = Convert.toStr(document.get("_id"));
+                long size = Convert.toLong(document.get(SIZE), 0L);
+                long count = Convert.toLong(document.get(COUNT), 0L);
+                for (String ancestorPath : ancestorPaths(path)) {
+                    long[] value = folderSizeMap.computeIfAbsent(ancestorPath, key -> new long[2]);
+                    value[0] += size;
+                    value[1] += count;
+                }
+            }
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        int pending = 0;
+        for (Map.Entry<String, long[]> entry : folderSizeMap.entrySet()) {
+            Update update = new Update();
+            update.set(SIZE, entry.getValue()[0]);
+            update.set(COUNT, entry.getValue()[1]);
+            update.set(GENERATION, generation);
+            bulkOperations.upsert(getQuery(userId, entry.getKey()), update);
+            if (++pending >= BATCH_SIZE) {
+                bulkOperations.execute();
+                bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            bulkOperations.execute();
+        }
+        // 本次重建开始之后增量更新新建的记录保留, 没有generation的是旧版本的记录
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(new Criteria().orOperator(Criteria.where(GENERATION).lt(generation), Criteria.where(GENERATION).exists(false)));
+        mongoTemplate.remove(query, COLLECTION_NAME);
+    }
+
+    private void increment(String userId, List<String> ancestorPaths, long size, long count) {
+        if (userId == null || ancestorPaths.isEmpty()) {
+            return;
+        }
+        synchronized (getUserLock(userId)) {
+            List<Increment> deferredList = deferredMap.get(userId);
+            if (deferredList != null) {
+                deferredList.add(new Increment(ancestorPaths, size, count));
+                return;
+            }
+            doIncrement(userId, ancestorPaths, size, count);
+        }
+    }
+
+    private void doIncrement(String userId, List<String> ancestorPaths, long size, long count) {
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        for (String ancestorPath : ancestorPaths) {
+            Update update = new Update();
+            update.inc(SIZE, size);
+            update.inc(COUNT, count);
+            update.setOnInsert(GENERATION, System.currentTimeMillis());
+            bulkOperations.upsert(getQuery(userId, ancestorPath), update);
+        }
+        bulkOperations.execute();
+    }
+
+    private Object getUserLock(String userId) {
+        return userLockMap.computeIfAbsent(userId, key -> new Object());
+    }
+
+    private static Query getQuery(String userId, String folderPath) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where(PATH).is(folderPath));
+        return query;
+    }
+
+    /***
+     * 文件夹的完整路径
+     * @param path 文件夹所在目录
+     * @param name 文件夹名称
+     * @return 以"/"结尾的路径
+     */
+    public static String getFolderPath(String path, String name) {
+        return path + name + "/";
+    }
+
+    /***
+     * 获取所有上级目录
+     * 例如: /a/b/ -> [/a/, /a/b/]
+     * @param path 文件所在目录
+     * @return 上级目录列表
+     */
+    static List<String> ancestorPaths(String path) {
+        List<String> list = new ArrayList<>();
+        if (path == null) {
+            return list;
+        }
+        int index = path.indexOf('/', 1);
+        while (index > 0) {
+            list.add(path.substring(0, index + 1));
+            index = path.indexOf('/', index + 1);
+        }
+        return list;
+    }
+
+    /***
+     * 重建期间延后执行的增量更新
+     */
+    private record Increment(List<String> ancestorPaths, long size, long count) {
+    }
+}
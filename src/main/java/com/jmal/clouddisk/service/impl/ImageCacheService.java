@@ -0,0 +1,214 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description 派生图片缓存(剪裁、webp)
+ * 以 (原图路径, 修改时间, 大小, 操作, 宽, 高, 质量) 的摘要为key, 生成的图片保存在 ${chunkFileDir}/${imageCache} 下,
+ * 原图修改后key随之变化, 旧的缓存不再命中, 由LRU按总大小淘汰
+ * @date 2024/1/24 10:20
+ */
+@Service
+@Slf4j
+public class ImageCacheService {
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    /***
+     * 已缓存的图片, 按访问顺序排列
+     * key: 缓存key
+     * value: 文件大小
+     */
+    private final LinkedHashMap<String, Long> lruMap = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private long totalSize = 0;
+
+    /***
+     * 正在生成的key, 同一个key同时只生成一次
+     */
+    private final Map<String, Object> generatingMap = new ConcurrentHashMap<>(16);
+
+    @PostConstruct
+    public void init() {
+        // 加载已有的缓存, 按修改时间排列
+        ThreadUtil.execute(this::loadCache);
+    }
+
+    /***
+     * 缓存key, 同时作为ETag
+     * @param source 原图
+     * @param operation 操作
+     * @param params 操作参数
+     */
+    public static String getKey(File source, String operation, Object... params) {
+        StringJoiner joiner = new StringJoiner("|");
+        joiner.add(source.getAbsolutePath()).add(String.valueOf(source.lastModified())).add(String.valueOf(source.length())).add(operation);
+        for (Object param : params) {
+            joiner.add(String.valueOf(param));
+        }
+        return SecureUtil.md5(joiner.toString());
+    }
+
+    /***
+     * 获取缓存的图片, 没有则生成
+     * @param key 缓存key
+     * @param generator 生成图片
+     * @return 缓存文件, 生成失败时返回null
+     */
+    public Path get(String key, Generator generator) {
+        Path path = getPath(key);
+        if (touch(key, path)) {
+            return path;
+        }
+        Object lock = generatingMap.computeIfAbsent(key, k -> new Object());
+        synchronized (lock) {
+            // 每次生成使用不同的临时文件, 即使有两个线程同时生成同一个key也不会写同一个文件
+            Path tempPath = path.resolveSibling(key + "." + IdUtil.fastSimpleUUID() + ".tmp");
+            try {
+                if (touch(key, path)) {
+                    return path;
+                }
+                PathUtil.mkParentDirs(path);
+                boolean success;
+                try (OutputStream outputStream = Files.newOutputStream(tempPath)) {
+                    success = generator.write(outputStream);
+                }
+                if (!success || Files.size(tempPath) == 0) {
+                    return null;
+                }
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                add(key, Files.size(path));
+                return path;
+            } catch (IOException e) {
+                log.warn("生成图片缓存失败, {}", e.getMessage());
+                return null;
+            } finally {
+                PathUtil.del(tempPath);
+                generatingMap.remove(key, lock);
+            }
+        }
+    }
+
+    /***
+     * 缓存的图片数和总大小
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(4);
+        stats.put("count", lruMap.size());
+        stats.put("size", totalSize);
+        stats.put("maxSize", getMaxSize());
+        return stats;
+    }
+
+    /***
+     * 已在缓存中则更新访问顺序, 磁盘上有但还没有加载的加入缓存
+     */
+    private boolean touch(String key, Path path) {
+        synchronized (this) {
+            if (lruMap.get(key) != null) {
+                return true;
+            }
+        }
+        try {
+            if (Files.isRegularFile(path)) {
+                add(key, Files.size(path));
+                return true;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return false;
+    }
+
+    private void add(String key, long size) {
+        List<String> evictList = new ArrayList<>();
+        synchronized (this) {
+            Long old = lruMap.put(key, size);
+            totalSize += size - (old == null ? 0 : old);
+            long maxSize = getMaxSize();
+            Iterator<Map.Entry<String, Long>> iterator = lruMap.entrySet().iterator();
+            while (totalSize > maxSize && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                totalSize -= eldest.getValue();
+                evictList.add(eldest.getKey());
+                iterator.remove();
+            }
+        }
+        evictList.forEach(evictKey -> PathUtil.del(getPath(evictKey)));
+    }
+
+    private long getMaxSize() {
+        return fileProperties.getImageCacheMaxSize() * 1024L * 1024L;
+    }
+
+    private Path getCacheDir() {
+        return Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getImageCache());
+    }
+
+    /***
+     * 缓存文件路径, 按key的前两位分目录
+     */
+    private Path getPath(String key) {
+        return getCacheDir().resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private void loadCache() {
+        Path cacheDir = getCacheDir();
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(cacheDir)) {
+            stream.filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .forEach(file -> {
+                        if (file.getName().endsWith(".tmp")) {
+                            PathUtil.del(file.toPath());
+                            return;
+                        }
+                        synchronized (this) {
+                            if (lruMap.containsKey(file.getName())) {
+                                return;
+                            }
+                        }
+                        add(file.getName(), file.length());
+                    });
+            log.info("图片缓存加载完成, {}", getStats());
+        } catch (IOException e) {
+            log.error("加载图片缓存失败, {}", e.getMessage(), e);
+        }
+    }
+
+    /***
+     * 生成图片
+     */
+    @FunctionalInterface
+    public interface Generator {
+        /***
+         * 把生成的图片写入输出流
+         * @return 是否生成成功
+         */
+        boolean write(OutputStream outputStream) throws IOException;
+    }
+}
@@ -1,12 +1,19 @@
 package com.jmal.clouddisk.service.impl;
 
+import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.lang.Console;
 import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.ReUtil;
 import cn.hutool.http.HtmlUtil;
+import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.query.SearchDTO;
+import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.ReadContentUtils;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.util.StringUtil;
@@ -22,25 +29,38 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.*;
 import org.apache.lucene.search.highlight.*;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 /**
  * @author jmal
  * @Description LuceneService
+ * 文章按html建立索引, 文档和文本文件读取内容后按id建立索引(content), 由线程池异步读取, 不阻塞上传
+ * 写入后由ControlledRealTimeReopenThread近实时可见, 需要马上看到自己的修改时等待对应的generation,
+ * 距离上次提交超过1分钟或者修改超过10000次时提交
  * @Date 2021/4/27 4:44 下午
  */
 @Service
@@ -56,22 +76,324 @@ public class LuceneService {
     @Autowired
     private SearcherManager searcherManager;
 
+    @Autowired
+    private ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
     @Autowired
     private IFileService fileService;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private UserLoginHolder userLoginHolder;
+
+    /***
+     * 文件内容的索引字段
+     */
+    public static final String FIELD_CONTENT = "content";
+
+    /***
+     * 索引的类型, 文件内容的索引为file, 文章的索引没有这个字段
+     */
+    private static final String FIELD_TYPE = "type";
+
+    private static final String TYPE_FILE = "file";
+
+    /***
+     * commitData中的key, 有这个key说明已有的文件已经建立了内容索引
+     */
+    private static final String CONTENT_INDEXED = "contentIndexed";
+
+    /***
+     * 距离上次提交的最长时间(毫秒)
+     */
+    private static final long COMMIT_INTERVAL_MILLIS = 60000;
+
+    /***
+     * 距离上次提交的最多修改次数
+     */
+    private static final long COMMIT_MAX_OPERATIONS = 10000;
+
+    /***
+     * 搜索时等待自己的修改可见的最长时间(毫秒)
+     */
+    private static final long WAIT_GENERATION_MILLIS = 1000;
+
+    /***
+     * 建立已有文件的内容索引时每页的文件数
+     */
+    private static final int CONTENT_INDEX_PAGE_SIZE = 1000;
+
+    /***
+     * 读取文件内容并建立索引的线程池
+     */
+    private ThreadPoolExecutor executorService;
+
+    /***
+     * 每个用户最近一次修改索引的generation
+     * key: userId
+     */
+    private final Map<String, Long> generationMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 上次提交之后的修改次数
+     */
+    private final AtomicLong uncommittedOperations = new AtomicLong();
+
+    /***
+     * 已经安排了提交, 还没有执行完
+     */
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+
+    private volatile long lastCommitTime = System.currentTimeMillis();
+
+    /***
+     * 等待建立索引的文件id
+     */
+    private final Set<String> pendingSet = ConcurrentHashMap.newKeySet(64);
+
+    /***
+     * 文件内容建立索引
+     * 只处理支持读取内容的文件, 同一文件在等待中时不重复提交
+     * @param fileId 文件id
+     * @param suffix 文件后缀名
+     */
+    public void indexFile(String fileId, String suffix) {
+        if (fileId == null || !ReadContentUtils.isSupported(suffix, fileProperties.getSimText())) {
+            return;
+        }
+        if (!pendingSet.add(fileId)) {
+            return;
+        }
+        try {
+            executorService.execute(() -> {
+                pendingSet.remove(fileId);
+                updateFileIndex(fileId);
+            });
+        } catch (RejectedExecutionException e) {
+            pendingSet.remove(fileId);
+            log.warn("索引队列已满, 跳过: {}", fileId);
+        }
+    }
+
+    /***
+     * 重命名文件后更新索引, 新的后缀名不支持读取内容时删除索引
+     * @param userId userId
+     * @param fileId 文件id
+     * @param newFileName 新文件名
+     */
+    public void renameIndex(String userId, String fileId, String newFileName) {
+        String suffix = FileUtil.extName(newFileName);
+        if (ReadContentUtils.isSupported(suffix, fileProperties.getSimText())) {
+            indexFile(fileId, suffix);
+        } else {
+            deleteIndex(userId, fileId);
+        }
+    }
+
+    /***
+     * 删除文件的索引
+     * @param userId userId
+     * @param fileId 文件id
+     */
+    public void deleteIndex(String userId, String fileId) {
+        if (fileId == null) {
+            return;
+        }
+        try {
+            onOperation(userId, indexWriter.deleteDocuments(new Term("id", fileId)));
+        } catch (IOException e) {
+            log.error("删除索引失败, {}", fileId, e);
+        }
+    }
+
+    /***
+     * 删除文件夹下所有文件的索引, 需要在删除数据库中的记录之前调用
+     * @param userId userId
+     * @param folderPath 文件夹路径, 以"/"结尾
+     */
+    public void deleteIndexByFolder(String userId, String folderPath) {
+        org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(folderPath)));
+        query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(false));
+        query.fields().include("_id").include(Constants.SUFFIX);
+        List<Term> termList = new ArrayList<>();
+        try (Stream<FileDocument> stream = mongoTemplate.stream(query, FileDocument.class, CommonFileService.COLLECTION_NAME)) {
+            Iterator<FileDocument> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                FileDocument fileDocument = iterator.next();
+                if (ReadContentUtils.isSupported(fileDocument.getSuffix(), fileProperties.getSimText())) {
+                    termList.add(new Term("id", fileDocument.getId()));
+                }
+                if (termList.size() >= 1000 || (!iterator.hasNext() && !termList.isEmpty())) {
+                    onOperation(userId, indexWriter.deleteDocuments(termList.toArray(new Term[0])));
+                    termList.clear();
+                }
+            }
+        } catch (IOException e) {
+            log.error("删除文件夹的索引失败, {}", folderPath, e);
+        }
+    }
+
+    /***
+     * 记录修改的generation, 达到修改次数后提交
+     */
+    private void onOperation(String userId, long generation) {
+        if (userId != null) {
+            generationMap.merge(userId, generation, Math::max);
+        }
+        if (uncommittedOperations.incrementAndGet() >= COMMIT_MAX_OPERATIONS && commitScheduled.compareAndSet(false, true)) {
+            // 提交完成之前不再安排新的提交
+            ThreadUtil.execute(() -> {
+                try {
+                    commit();
+                } finally {
+                    commitScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /***
+     * 等待该用户最近的修改可见
+     */
+    private void waitForGeneration(String userId) {
+        if (userId == null) {
+            return;
+        }
+        Long generation = generationMap.get(userId);
+        if (generation == null) {
+            return;
+        }
+        try {
+            if (reopenThread.waitForGeneration(generation, (int) WAIT_GENERATION_MILLIS)) {
+                generationMap.remove(userId, generation);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * 读取文件内容, 按id添加或更新索引
+     */
+    private void updateFileIndex(String fileId) {
+        try {
+            FileDocument fileDocument = getIndexFileDocument(fileId);
+            if (fileDocument == null) {
+                deleteIndex(null, fileId);
+                return;
+            }
+            if (BooleanUtil.isTrue(fileDocument.getRelease())) {
+                // 已发布的文章按html建立索引
+                return;
+            }
+            String username = userService.getUserNameById(fileDocument.getUserId());
+            if (CharSequenceUtil.isBlank(username)) {
+                return;
+            }
+            File file = Paths.get(fileProperties.getRootDir(), username, fileDocument.getPath(), fileDocument.getName()).toFile();
+            String content = ReadContentUtils.read(file, FileUtil.extName(fileDocument.getName()));
+            Document doc = new Document();
+            doc.add(new StringField("id", fileId, Field.Store.YES));
+            doc.add(new StringField(FIELD_TYPE, TYPE_FILE, Field.Store.NO));
+            doc.add(new StringField(IUserService.USER_ID, fileDocument.getUserId(), Field.Store.YES));
+            doc.add(new TextField("name", fileDocument.getName(), Field.Store.YES));
+            if (CharSequenceUtil.isNotBlank(content)) {
+                doc.add(new TextField(FIELD_CONTENT, content, Field.Store.YES));
+            }
+            onOperation(fileDocument.getUserId(), indexWriter.updateDocument(new Term("id", fileId), doc));
+        } catch (Exception e) {
+            log.error("文件内容建立索引失败, {}", fileId, e);
+        }
+    }
+
+    private FileDocument getIndexFileDocument(String fileId) {
+        org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+        query.addCriteria(Criteria.where("_id").is(fileId));
+        query.fields().include(IUserService.USER_ID).include("path").include("name").include(Constants.IS_FOLDER).include(Constants.RELEASE);
+        FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
+        if (fileDocument == null || BooleanUtil.isTrue(fileDocument.getIsFolder())) {
+            return null;
+        }
+        return fileDocument;
+    }
+
+    /***
+     * 距离上次提交超过1分钟时提交
+     */
+    @Scheduled(fixedDelay = 5, timeUnit = TimeUnit.SECONDS)
+    public void commitIfNecessary() {
+        if (System.currentTimeMillis() - lastCommitTime >= COMMIT_INTERVAL_MILLIS) {
+            commit();
+        }
+    }
+
+    public synchronized void commit() {
+        try {
+            if (indexWriter.hasUncommittedChanges()) {
+                indexWriter.commit();
+            }
+            uncommittedOperations.set(0);
+            lastCommitTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            log.error("提交索引失败", e);
+        }
+    }
+
+    /***
+     * 文章按id添加或更新索引
+     */
     public void createFileIndex(List<FileDocument> fileList) throws IOException {
-        List<Document> docs = new ArrayList<>();
         for (FileDocument file : fileList) {
+            if (file.getHtml() == null) {
+                continue;
+            }
             Document doc = new Document();
             doc.add(new StringField("id", file.getId(), Field.Store.YES));
             doc.add(new TextField("name", file.getName(), Field.Store.YES));
-            if (file.getHtml() != null) {
-                doc.add(new TextField("html", ReUtil.delAll("\\n", HtmlUtil.cleanHtmlTag(file.getHtml())), Field.Store.YES));
-                docs.add(doc);
-            }
+            doc.add(new TextField("html", ReUtil.delAll("\\n", HtmlUtil.cleanHtmlTag(file.getHtml())), Field.Store.YES));
+            onOperation(file.getUserId(), indexWriter.updateDocument(new Term("id", file.getId()), doc));
+        }
+    }
+
+    /***
+     * 索引的状态
+     * numDocs: 文档数
+     * maxDoc: 包含已删除的文档数
+     * deletedDocs: 已删除但还没有合并掉的文档数
+     * segments: 段数
+     * ramBytesUsed: 内存缓冲区占用的内存
+     * uncommittedOperations: 上次提交之后的修改次数
+     * lastCommitTime: 上次提交的时间
+     * indexQueue: 等待读取内容的文件数
+     */
+    public Map<String, Object> getIndexStats() throws IOException {
+        Map<String, Object> stats = new LinkedHashMap<>(16);
+        IndexWriter.DocStats docStats = indexWriter.getDocStats();
+        stats.put("numDocs", docStats.numDocs);
+        stats.put("maxDoc", docStats.maxDoc);
+        stats.put("deletedDocs", docStats.maxDoc - docStats.numDocs);
+        IndexSearcher indexSearcher = searcherManager.acquire();
+        try {
+            stats.put("segments", indexSearcher.getIndexReader().leaves().size());
+        } finally {
+            searcherManager.release(indexSearcher);
         }
-        indexWriter.addDocuments(docs);
-        indexWriter.commit();
+        stats.put("ramBytesUsed", indexWriter.ramBytesUsed());
+        stats.put("hasUncommittedChanges", indexWriter.hasUncommittedChanges());
+        stats.put("uncommittedOperations", uncommittedOperations.get());
+        stats.put("lastCommitTime", lastCommitTime);
+        stats.put("indexQueue", executorService.getQueue().size());
+        return stats;
     }
 
     public ResponseResult<List<FileDocument>> searchFile(SearchDTO searchDTO) throws IOException, ParseException, InvalidTokenOffsetsException {
@@ -80,15 +402,17 @@ public class LuceneService {
         if (CharSequenceUtil.isBlank(keyword.toString())) {
             return ResultUtil.success();
         }
-        searcherManager.maybeRefresh();
+        // 等待自己最近的修改可见, 其他情况由reopenThread定时刷新
+        waitForGeneration(userLoginHolder.getUserId());
         IndexSearcher indexSearcher = searcherManager.acquire();
         List<FileDocument> fileList = new ArrayList<>();
         String fieldName = "html";
         try {
-            String[] fields = new String[]{fieldName, "name"};
+            String[] fields = new String[]{fieldName, "name", FIELD_CONTENT};
             Map<String, Float> boots = new HashMap<>(5);
             boots.put(fieldName, 10.0f);
             boots.put("name", 2.0f);
+            boots.put(FIELD_CONTENT, 5.0f);
 
             MultiFieldQueryParser parser = new MultiFieldQueryParser(fields, analyzer, boots);
 
@@ -99,7 +423,7 @@ public class LuceneService {
                     keyword.append(" OR ").append(keywords[i]).append(StringUtil.isShortStr(keywords[i]) ? "*" : "");
                 }
             }
-            Query query = parser.parse(keyword.toString());
+            Query query = getUserQuery(parser.parse(keyword.toString()));
             // 高亮格式，用<B>标签包裹
             Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<B>", "</B>"),
                     new QueryScorer(query));
@@ -121,15 +445,53 @@ public class LuceneService {
                 String text = doc.get(fieldName);
                 if (text != null) {
                     fileDocument.setContentText(highlighter.getBestFragment(analyzer, fieldName, text));
+                } else if (doc.get(FIELD_CONTENT) != null) {
+                    fileDocument.setContentText(highlighter.getBestFragment(analyzer, FIELD_CONTENT, doc.get(FIELD_CONTENT)));
                 }
                 fileList.add(fileDocument);
             }
         } finally {
             searcherManager.release(indexSearcher);
         }
+        setPath(fileList);
         return ResultUtil.success(fileList);
     }
 
+    /***
+     * 从数据库中读取文件所在的目录, 索引中不保存路径, 移动、重命名目录后不需要更新索引
+     */
+    private void setPath(List<FileDocument> fileList) {
+        if (fileList.isEmpty()) {
+            return;
+        }
+        org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+        query.addCriteria(Criteria.where("_id").in(fileList.stream().map(FileDocument::getId).toList()));
+        query.fields().include("path");
+        Map<String, String> pathMap = new HashMap<>(fileList.size());
+        mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME).forEach(fileDocument -> pathMap.put(fileDocument.getId(), fileDocument.getPath()));
+        fileList.forEach(fileDocument -> fileDocument.setPath(pathMap.get(fileDocument.getId())));
+    }
+
+    /***
+     * 文件内容的索引只能搜索到自己的文件, 文章的索引不限制
+     */
+    private Query getUserQuery(Query query) {
+        BooleanQuery.Builder visible = new BooleanQuery.Builder();
+        String userId = userLoginHolder.getUserId();
+        if (CharSequenceUtil.isNotBlank(userId)) {
+            visible.add(new TermQuery(new Term(IUserService.USER_ID, userId)), BooleanClause.Occur.SHOULD);
+        }
+        BooleanQuery notFile = new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term(FIELD_TYPE, TYPE_FILE)), BooleanClause.Occur.MUST_NOT)
+                .build();
+        visible.add(notFile, BooleanClause.Occur.SHOULD);
+        return new BooleanQuery.Builder()
+                .add(query, BooleanClause.Occur.MUST)
+                .add(visible.build(), BooleanClause.Occur.FILTER)
+                .build();
+    }
+
     public static void main(String[] args) throws IOException {
         String content = "re redis token to本地端通讯需要在";
         Console.log(StringUtil.isContainChinese(content));
@@ -153,6 +515,10 @@ public class LuceneService {
 
     @PostConstruct
     public void synFileCreatIndex() throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        // 队列满时由提交的线程自己建立索引, 不丢弃
+        executorService = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+                ThreadUtil.newNamedThreadFactory("luceneIndex", true), new ThreadPoolExecutor.CallerRunsPolicy());
         IndexWriter.DocStats docStats = indexWriter.getDocStats();
         if (docStats.numDocs < 1) {
             log.info("同步Lucene索引... {}", docStats.numDocs);
@@ -161,12 +527,82 @@ public class LuceneService {
             List<FileDocument> allProduct = fileService.getAllDocFile();
             // 再插入file
             createFileIndex(allProduct);
+            commit();
             log.info("同步Lucene索引耗时: {}ms", System.currentTimeMillis() - startTime);
         }
+        if (!isContentIndexed()) {
+            // 已有的文件还没有建立内容索引, 后台建立
+            ThreadUtil.execute(this::synFileContentIndex);
+        }
+    }
+
+    private boolean isContentIndexed() {
+        Iterable<Map.Entry<String, String>> commitData = indexWriter.getLiveCommitData();
+        if (commitData == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> entry : commitData) {
+            if (CONTENT_INDEXED.equals(entry.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***
+     * 已有的文件建立内容索引
+     * 按_id分页查询, 每页的文件提交到线程池并行读取内容, 不在打开的游标中逐个读取
+     */
+    private void synFileContentIndex() {
+        log.info("开始建立文件内容索引...");
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        String lastId = null;
+        try {
+            while (true) {
+                org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+                query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(false));
+                if (lastId != null) {
+                    query.addCriteria(Criteria.where("_id").gt(new ObjectId(lastId)));
+                }
+                query.with(org.springframework.data.domain.Sort.by(org.springframework.data.domain.Sort.Direction.ASC, "_id"));
+                query.limit(CONTENT_INDEX_PAGE_SIZE);
+                query.fields().include("_id").include(Constants.SUFFIX);
+                List<FileDocument> fileDocumentList = mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
+                if (fileDocumentList.isEmpty()) {
+                    break;
+                }
+                lastId = fileDocumentList.get(fileDocumentList.size() - 1).getId();
+                List<Future<?>> futureList = new ArrayList<>(fileDocumentList.size());
+                for (FileDocument fileDocument : fileDocumentList) {
+                    if (ReadContentUtils.isSupported(fileDocument.getSuffix(), fileProperties.getSimText())) {
+                        futureList.add(executorService.submit(() -> updateFileIndex(fileDocument.getId())));
+                    }
+                }
+                // 等这一页处理完再查询下一页
+                for (Future<?> future : futureList) {
+                    future.get();
+                }
+                count += futureList.size();
+                if (fileDocumentList.size() < CONTENT_INDEX_PAGE_SIZE) {
+                    break;
+                }
+            }
+            indexWriter.setLiveCommitData(Map.of(CONTENT_INDEXED, String.valueOf(System.currentTimeMillis())).entrySet());
+            commit();
+            log.info("文件内容索引建立完成, 文件数: {}, 耗时: {}ms", count, System.currentTimeMillis() - startTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("建立文件内容索引被中断");
+        } catch (Exception e) {
+            log.error("建立文件内容索引失败", e);
+        }
     }
 
     @PreDestroy
     public void destroy() throws IOException {
+        executorService.shutdown();
+        commit();
         searcherManager.close();
     }
 }
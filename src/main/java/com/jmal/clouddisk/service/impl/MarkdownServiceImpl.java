@@ -36,8 +36,6 @@ import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -74,6 +72,10 @@ public class MarkdownServiceImpl implements IMarkdownService {
 
     private final CommonFileService commonFileService;
 
+    private final BlobService blobService;
+
+    private final WebpService webpService;
+
     private final IFileVersionService fileVersionService;
 
 
@@ -569,6 +571,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
             filename = fileDocument.getName();
         }
         File file = Paths.get(fileProperties.getRootDir(), upload.getUsername(), currentDirectory, filename).toFile();
+        blobService.beforeOverwrite(file);
         FileUtil.writeString(upload.getContentText(), file, StandardCharsets.UTF_8);
         // 当有文件名或文件路径改变的话则把历史文件删掉
         // 文件名是否改变
@@ -597,6 +600,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
         FileUtil.del(draftFile);
 
         File file = Paths.get(fileProperties.getRootDir(), username, fileDocument.getPath(), fileDocument.getName()).toFile();
+        blobService.beforeOverwrite(file);
         FileUtil.writeString(fileDocument.getContentText(), file, StandardCharsets.UTF_8);
 
         Update update = new Update();
@@ -635,6 +639,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
         commonFileService.checkPermissionUserId(userId, upload.getOperationPermissionList(), OperationPermission.PUT);
         // 修改文件之前保存历史版本
         fileVersionService.saveFileVersion(upload.getUsername(), upload.getRelativePath(), userId);
+        blobService.beforeOverwrite(file);
         FileUtil.writeString(upload.getContentText(), file, StandardCharsets.UTF_8);
         commonFileService.modifyFile(upload.getUsername(), file);
         return ResultUtil.success();
@@ -675,8 +680,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
             } else {
                 newFile = new File(outFile.getPath());
             }
-            BufferedImage image = ImageIO.read(response.bodyStream());
-            commonFileService.imageFileToWebp(newFile, image);
+            webpService.toWebp(response.bodyStream(), newFile);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
             throw new CommonException(2, "上传失败");
@@ -719,8 +723,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
                     fileName = fileName + Constants.POINT_SUFFIX_WEBP;
                 }
                 newFile = Paths.get(fileProperties.getRootDir(), username, docImagePaths.toString(), fileName).toFile();
-                BufferedImage image = ImageIO.read(multipartFile.getInputStream());
-                commonFileService.imageFileToWebp(newFile, image);
+                webpService.toWebp(multipartFile.getInputStream(), newFile);
             }
         } catch (IOException e) {
             throw new CommonException(2, "上传失败");
@@ -1,9 +1,7 @@
 package com.jmal.clouddisk.service.impl;
 
-import cn.hutool.core.convert.Convert;
-import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
-import com.github.benmanes.caffeine.cache.Cache;
+import cn.hutool.core.text.CharSequenceUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
@@ -11,28 +9,27 @@ import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.UploadApiParamDTO;
 import com.jmal.clouddisk.model.UploadResponse;
 import com.jmal.clouddisk.oss.web.WebOssService;
+import com.jmal.clouddisk.service.impl.UploadSessionService.UploadSession;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @author jmal
  * @Description 分片上传
+ * 目标文件按总大小预分配, 每个分片直接写入自己的位置, 数据只写一次, 浏览器并行上传的分片可以并行写入
  * @date 2023/4/7 17:20
  */
 @Service
@@ -48,50 +45,65 @@ public class MultipartUpload {
     @Autowired
     private WebOssService webOssService;
 
-    /***
-     * 断点恢复上传缓存(已上传的缓存)
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> resumeCache = CaffeineUtil.getResumeCache();
-    /***
-     * 上传大文件是需要分片上传，再合并
-     * 已写入(合并)的分片缓存
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> writtenCache = CaffeineUtil.getWrittenCache();
-    /***
-     * 未写入(合并)的分片缓存
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> unWrittenCache = CaffeineUtil.getUnWrittenCacheCache();
-    /***
-     * 合并文件的写入锁缓存
-     */
-    private static final Cache<String, Lock> chunkWriteLockCache = CaffeineUtil.getChunkWriteLockCache();
+    @Autowired
+    private ContentHashService contentHashService;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private BlobService blobService;
 
     /**
      * 上传分片文件
+     * 分片直接写入目标文件的 (chunkNumber - 1) * chunkSize 位置, 不同分片可以并行写入
      * @param upload UploadApiParamDTO
      * @param uploadResponse UploadResponse
      * @param md5 md5
      * @param file MultipartFile
      */
     public void uploadChunkFile(UploadApiParamDTO upload, UploadResponse uploadResponse, String md5, MultipartFile file) throws IOException {
-        // 多个分片
-        // 落地保存文件
-        // 这时保存的每个块, 块先存好, 后续会调合并接口, 将所有块合成一个大文件
-        // 保存在用户的tmp目录下
-        File chunkFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5, Convert.toStr(upload.getChunkNumber())).toFile();
-        FileUtil.writeFromStream(file.getInputStream(), chunkFile);
-        setResumeCache(upload);
+        UploadSession session = uploadSessionService.getSession(upload);
+        int chunkNumber = upload.getChunkNumber();
+        if (chunkNumber < 1 || chunkNumber > session.totalChunks) {
+            throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE);
+        }
+        long position = (long) (chunkNumber - 1) * session.chunkSize;
+        long count = upload.getCurrentChunkSize();
+        if (count < 0 || position + count > session.totalSize) {
+            // 超出文件大小的分片会把预分配的文件写大
+            log.error("分片超出文件大小, chunkNumber: {}, position: {}, currentChunkSize: {}, totalSize: {}", chunkNumber, position, count, session.totalSize);
+            throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE);
+        }
+        try (InputStream inputStream = file.getInputStream();
+             ReadableByteChannel inChannel = Channels.newChannel(inputStream);
+             FileChannel outChannel = FileChannel.open(session.file, StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < count) {
+                long n = outChannel.transferFrom(inChannel, position + written, count - written);
+                if (n <= 0) {
+                    break;
+                }
+                written += n;
+            }
+            if (written != count) {
+                log.error("分片不完整, chunkNumber: {}, written: {}, currentChunkSize: {}", chunkNumber, written, count);
+                throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE);
+            }
+        }
+        uploadSessionService.markDone(session, chunkNumber);
         uploadResponse.setUpload(true);
-        // 追加分片
-        appendChunkFile(upload);
+        // 按顺序计算已连续完成的分片的摘要
+        advanceDigest(session, false);
         // 检测是否已经上传完了所有分片,上传完了则需要合并
-        if (checkIsNeedMerge(upload)) {
+        if (session.isComplete()) {
             uploadResponse.setMerge(true);
         }
     }
 
     /**
      * 合并文件
+     * 分片已经写在目标文件的对应位置, 只需要移动到用户目录
      *
      * @param upload UploadApiParamDTO
      */
@@ -104,68 +116,29 @@ public class MultipartUpload {
             return webOssService.mergeFile(ossPath, prePth, upload);
         }
 
-        String md5 = upload.getIdentifier();
-        Path file = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename());
+        UploadSession session = uploadSessionService.getSession(upload, false);
+        if (session == null || !session.isComplete()) {
+            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
+        }
         Path outputFile = Paths.get(fileProperties.getRootDir(), upload.getUsername(), commonFileService.getUserDirectoryFilePath(upload));
-        // 清除缓存
-        resumeCache.invalidate(md5);
-        writtenCache.invalidate(md5);
-        unWrittenCache.invalidate(md5);
-        chunkWriteLockCache.invalidate(md5);
-        Path chunkDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5);
-        PathUtil.del(chunkDir);
-        if (!Files.exists(outputFile)) {
-            Files.createFile(outputFile);
+        try (FileChannel fileChannel = FileChannel.open(session.file, StandardOpenOption.WRITE)) {
+            if (fileChannel.size() > session.totalSize) {
+                fileChannel.truncate(session.totalSize);
+            }
         }
-        PathUtil.move(file, outputFile, true);
+        advanceDigest(session, true);
+        String contentHash = contentHashService.digest(session.id, session.file.toFile());
+        blobService.beforeWrite(outputFile, false);
+        PathUtil.move(session.file, outputFile, true);
+        uploadSessionService.remove(session);
         uploadResponse.setUpload(true);
-        commonFileService.createFile(upload.getUsername(), outputFile.toFile(), null, null);
+        String fileId = commonFileService.createFile(upload.getUsername(), outputFile.toFile(), null, null);
+        // 已有相同内容的文件时只保留一份数据
+        blobService.store(contentHash, outputFile);
+        contentHashService.save(fileId, contentHash, outputFile.toFile());
         return uploadResponse;
     }
 
-    /***
-     * 合并文件追加分片
-     * @param upload UploadApiParamDTO
-     */
-    private void appendChunkFile(UploadApiParamDTO upload) {
-        int chunkNumber = upload.getChunkNumber();
-        String md5 = upload.getIdentifier();
-        // 未写入的分片
-        CopyOnWriteArrayList<Integer> unWrittenChunks = unWrittenCache.get(md5, key -> new CopyOnWriteArrayList<>());
-        if (unWrittenChunks != null && !unWrittenChunks.contains(chunkNumber)) {
-            unWrittenChunks.add(chunkNumber);
-            unWrittenCache.put(md5, unWrittenChunks);
-        }
-        // 已写入的分片
-        CopyOnWriteArrayList<Integer> writtenChunks = writtenCache.get(md5, key -> new CopyOnWriteArrayList<>());
-        Path filePath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename());
-        if (unWrittenChunks == null || writtenChunks == null) {
-            return;
-        }
-        Lock lock = chunkWriteLockCache.get(md5, key -> new ReentrantLock());
-        if (lock != null) {
-            lock.lock();
-        }
-        try {
-            if (Files.exists(filePath) && !writtenChunks.isEmpty()) {
-                // 继续追加
-                unWrittenChunks.forEach(unWrittenChunk -> appendFile(upload, unWrittenChunks, writtenChunks));
-            } else {
-                // 首次写入
-                if (Files.exists(filePath)) {
-                    Files.delete(filePath);
-                }
-                appendFile(upload, unWrittenChunks, writtenChunks);
-            }
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
-        } finally {
-            if (lock != null) {
-                lock.unlock();
-            }
-        }
-    }
-
     public UploadResponse checkChunk(UploadApiParamDTO upload) throws IOException {
 
         Path prePth = Paths.get(upload.getUsername(), upload.getCurrentDirectory(), upload.getFilename());
@@ -184,13 +157,18 @@ public class MultipartUpload {
         if (fileDocument != null) {
             // 文件已存在
             uploadResponse.setPass(true);
-        } else {
-            int totalChunks = upload.getTotalChunks();
-            List<Integer> chunks = resumeCache.get(md5, key -> createResumeCache(upload));
+        } else if (instantUpload(upload, uploadResponse)) {
+            // 服务端已有相同内容的文件, 并且客户端证明了持有该文件, 秒传
+            uploadResponse.setPass(true);
+        } else if (uploadResponse.getChallenge() != null) {
+            // 等待客户端回答持有证明, 先不创建上传会话
+            return uploadResponse;
+        } else if (upload.getTotalChunks() > 1) {
+            // 只有一个分片的文件直接上传, 不需要创建上传会话
+            UploadSession session = uploadSessionService.getSession(upload);
             // 返回已存在的分片
-            uploadResponse.setResume(chunks);
-            assert chunks != null;
-            if (totalChunks == chunks.size()) {
+            uploadResponse.setResume(session.getDoneChunks());
+            if (session.isComplete()) {
                 // 文件不存在,并且已经上传了所有的分片,则合并保存文件
                 mergeFile(upload);
             }
@@ -200,96 +178,71 @@ public class MultipartUpload {
     }
 
     /***
-     * 追加分片操作
+     * 秒传, 链接到内容相同的blob
+     * 客户端提供contentHash时, 服务端有该内容则返回challenge, 客户端带上proof再次请求, 校验通过后秒传
      * @param upload UploadApiParamDTO
-     * @param unWrittenChunks  未写入的分片集合
-     * @param writtenChunks    已写入的分片集合
+     * @param uploadResponse 需要客户端证明持有该文件时设置challenge
+     * @return 是否秒传成功
      */
-    private void appendFile(UploadApiParamDTO upload, CopyOnWriteArrayList<Integer> unWrittenChunks, CopyOnWriteArrayList<Integer> writtenChunks) {
-        // 需要继续追加分片索引
-        int chunk = 1;
-        if (!writtenChunks.isEmpty()) {
-            chunk = writtenChunks.get(writtenChunks.size() - 1) + 1;
+    private boolean instantUpload(UploadApiParamDTO upload, UploadResponse uploadResponse) {
+        String contentHash = BlobService.normalize(upload.getContentHash());
+        Long totalSize = upload.getTotalSize();
+        if (contentHash == null || totalSize == null || totalSize <= 0) {
+            return false;
         }
-        if (!unWrittenChunks.contains(chunk)) {
-            return;
+        String key = upload.getUsername() + "/" + upload.getIdentifier();
+        if (CharSequenceUtil.isBlank(upload.getProof())) {
+            uploadResponse.setChallenge(blobService.challenge(key, contentHash, totalSize));
+            return false;
         }
-        String md5 = upload.getIdentifier();
-        // 分片文件
-        File chunkFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5, String.valueOf(chunk)).toFile();
-        // 目标文件
-        File outputFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename()).toFile();
-        long position = outputFile.length();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile, true);
-             FileChannel outChannel = fileOutputStream.getChannel()) {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(FileUtil.readBytes(chunkFile));
-            int writeLength = outChannel.write(byteBuffer, position);
-            if (writeLength != chunkFile.length()) {
-                log.error("writeLength: {}, chunkFileLength: {}", writeLength, chunkFile.length());
-            }
-            writtenChunks.add(chunk);
-            writtenCache.put(md5, writtenChunks);
-            unWrittenChunks.remove((Integer) chunk);
-            unWrittenCache.put(md5, unWrittenChunks);
-        } catch (IOException e) {
-            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
+        if (!blobService.verify(key, contentHash, upload.getProof())) {
+            return false;
         }
-    }
-
-    /***
-     * 缓存已上传的分片
-     * @param upload UploadApiParamDTO
-     */
-    private void setResumeCache(UploadApiParamDTO upload) {
-        int chunkNumber = upload.getChunkNumber();
-        String md5 = upload.getIdentifier();
-        CopyOnWriteArrayList<Integer> chunks = resumeCache.get(md5, key -> createResumeCache(upload));
-        assert chunks != null;
-        if (!chunks.contains(chunkNumber)) {
-            chunks.add(chunkNumber);
-            resumeCache.put(md5, chunks);
+        Path outputFile = Paths.get(fileProperties.getRootDir(), upload.getUsername(), commonFileService.getUserDirectoryFilePath(upload));
+        if (!blobService.linkTo(contentHash, totalSize, outputFile)) {
+            return false;
         }
+        String fileId = commonFileService.createFile(upload.getUsername(), outputFile.toFile(), null, null);
+        contentHashService.save(fileId, contentHash, outputFile.toFile());
+        return true;
     }
 
     /***
-     * 获取已经保存的分片索引
-     */
-    private CopyOnWriteArrayList<Integer> getSavedChunk(UploadApiParamDTO upload) {
-        String md5 = upload.getIdentifier();
-        return resumeCache.get(md5, key -> createResumeCache(upload));
-    }
-
-    /***
-     * 检测是否需要合并
-     */
-    private boolean checkIsNeedMerge(UploadApiParamDTO upload) {
-        int totalChunks = upload.getTotalChunks();
-        CopyOnWriteArrayList<Integer> chunkList = getSavedChunk(upload);
-        return totalChunks == chunkList.size();
-    }
-
-    /***
-     * 读取分片文件是否存在
-     * @return 已经保存的分片索引列表
+     * 按顺序读取已连续完成的分片, 更新文件的摘要, 合并时不用再完整读一遍文件
+     * @param session UploadSession
+     * @param wait 是否等待其他线程, 合并时为true
      */
-    private CopyOnWriteArrayList<Integer> createResumeCache(UploadApiParamDTO upload) {
-        CopyOnWriteArrayList<Integer> resumeList = new CopyOnWriteArrayList<>();
-        String md5 = upload.getIdentifier();
-        // 读取tmp分片目录所有文件
-        File f = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5).toFile();
-        if (f.exists()) {
-            // 排除目录，只要文件
-            File[] fileArray = f.listFiles(pathName -> !pathName.isDirectory());
-            if (fileArray != null) {
-                for (File file : fileArray) {
-                    // 分片文件
-                    int resume = Integer.parseInt(file.getName());
-                    resumeList.add(resume);
+    private void advanceDigest(UploadSession session, boolean wait) {
+        if (wait) {
+            session.digestLock.lock();
+        } else if (!session.digestLock.tryLock()) {
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(session.file, StandardOpenOption.READ)) {
+            ByteBuffer byteBuffer = null;
+            while (session.digestedChunks < session.totalChunks && session.isDone(session.digestedChunks + 1)) {
+                long position = (long) session.digestedChunks * session.chunkSize;
+                long end = session.digestedChunks + 1 == session.totalChunks ? session.totalSize : position + session.chunkSize;
+                if (byteBuffer == null) {
+                    byteBuffer = ByteBuffer.allocate(1024 * 1024);
+                }
+                while (position < end) {
+                    byteBuffer.clear();
+                    byteBuffer.limit((int) Math.min(byteBuffer.capacity(), end - position));
+                    int n = fileChannel.read(byteBuffer, position);
+                    if (n <= 0) {
+                        return;
+                    }
+                    byteBuffer.flip();
+                    contentHashService.update(session.id, position, byteBuffer);
+                    position += n;
                 }
+                session.digestedChunks++;
             }
+        } catch (IOException e) {
+            log.warn("计算摘要失败, {}, {}", session.id, e.getMessage());
+        } finally {
+            session.digestLock.unlock();
         }
-        return resumeList;
     }
-
-
 }
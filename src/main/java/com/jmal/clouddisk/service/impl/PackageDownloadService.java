@@ -0,0 +1,613 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.oss.AbstractOssObject;
+import com.jmal.clouddisk.oss.FileInfo;
+import com.jmal.clouddisk.oss.IOssService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStoreSupplier;
+import org.apache.commons.io.input.NullInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * @author jmal
+ * @Description 打包下载
+ * 直接按选中的文件(夹)生成条目, 边打包边输出:
+ * 图片、音视频、压缩包等已压缩的文件不再压缩(STORED), 预先并行计算crc, 按顺序直接写入响应;
+ * 其他文件由ParallelScatterZipCreator并行压缩, 已压缩的文件发送完后再写入;
+ * 大小都已知, 超过4G的条目和压缩包自动使用ZIP64;
+ * 全部为STORED时可以预先算出压缩包的大小, 设置Content-Length;
+ * 所有打包共用一个固定大小的线程池, 每次打包同时执行的任务数有上限
+ * @date 2024/1/28 10:20
+ */
+@Service
+@Slf4j
+public class PackageDownloadService {
+
+    /***
+     * 已经压缩过的文件类型, 直接存储
+     */
+    private static final Set<String> STORED_SUFFIX_SET = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp4", "m4v", "mkv", "mov", "avi", "wmv", "flv", "webm", "rmvb", "ts",
+            "mp3", "m4a", "aac", "flac", "ogg", "opus", "wma", "ape",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "lz4", "jar", "war", "apk", "ipa", "dmg", "iso",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "pdf");
+
+    /***
+     * 计算crc时的缓冲区大小
+     */
+    private static final int CRC_BUFFER_SIZE = 1024 * 1024;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    /***
+     * 所有打包共用的线程池
+     */
+    private ExecutorService executorService;
+
+    private int threads;
+
+    @PostConstruct
+    public void init() {
+        threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        executorService = Executors.newFixedThreadPool(threads, ThreadUtil.newNamedThreadFactory("zip-", true));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executorService.shutdownNow();
+    }
+
+    /***
+     * 打包本地文件
+     * @param baseDir 选中的文件所在的目录, 压缩包中的路径相对于该目录
+     * @param selectedPaths 选中的文件(夹)
+     * @param response HttpServletResponse, 可以预先算出压缩包的大小时设置Content-Length
+     */
+    public void zipLocal(Path baseDir, List<Path> selectedPaths, HttpServletResponse response) throws IOException {
+        List<ZipItem> itemList = new ArrayList<>();
+        for (Path selectedPath : selectedPaths) {
+            if (!selectedPath.normalize().startsWith(baseDir) || !Files.exists(selectedPath)) {
+                continue;
+            }
+            collectLocal(baseDir, selectedPath, itemList);
+        }
+        boolean allStored = itemList.stream().allMatch(item -> item.directory || item.stored);
+        if (allStored) {
+            response.setContentLengthLong(computeLength(itemList));
+        }
+        ZipExecutor zipExecutor = new ZipExecutor();
+        TempBackingStoreSupplier backingStoreSupplier = new TempBackingStoreSupplier();
+        try {
+            // 先提交crc, 再提交压缩, 按顺序执行
+            for (ZipItem item : itemList) {
+                if (!item.directory && item.stored) {
+                    item.crc = zipExecutor.submit(() -> crc32(item));
+                }
+            }
+            ParallelScatterZipCreator zipCreator = null;
+            if (!allStored) {
+                zipCreator = new ParallelScatterZipCreator(zipExecutor, backingStoreSupplier, Deflater.DEFAULT_COMPRESSION);
+                for (ZipItem item : itemList) {
+                    if (!item.directory && !item.stored) {
+                        zipCreator.addArchiveEntry(newEntry(item, ZipEntry.DEFLATED, 0), () -> openLocal(item));
+                    }
+                }
+            }
+            ZipArchiveOutputStream zipOutputStream = newZipOutputStream(response.getOutputStream());
+            writeStored(zipOutputStream, itemList, false);
+            if (zipCreator != null) {
+                zipCreator.writeTo(zipOutputStream);
+            }
+            zipOutputStream.finish();
+            zipOutputStream.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            resetIfNotCommitted(response);
+            throw new IOException(e.getCause());
+        } catch (IOException e) {
+            resetIfNotCommitted(response);
+            throw e;
+        } finally {
+            zipExecutor.shutdownNow();
+            backingStoreSupplier.close();
+        }
+    }
+
+    /***
+     * 还没有输出内容时清除已经设置的Content-Length
+     */
+    private static void resetIfNotCommitted(HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            response.reset();
+        }
+    }
+
+    /***
+     * 打包oss中的文件, 并行下载, 已压缩的文件不再压缩
+     * @param ossService IOssService
+     * @param objectNames 选中的对象, 文件夹以"/"结尾
+     * @param response HttpServletResponse
+     */
+    public void zipOss(IOssService ossService, List<String> objectNames, HttpServletResponse response) throws IOException {
+        List<ZipItem> itemList = new ArrayList<>();
+        for (String objectName : objectNames) {
+            String parentPrefix = getParentPrefix(objectName);
+            if (objectName.endsWith("/")) {
+                itemList.add(ZipItem.directory(objectName.substring(parentPrefix.length()), System.currentTimeMillis()));
+                for (FileInfo fileInfo : ossService.getAllObjectsWithPrefix(objectName)) {
+                    String key = fileInfo.getKey();
+                    if (key.equals(objectName) || !key.startsWith(parentPrefix)) {
+                        continue;
+                    }
+                    itemList.add(ossItem(fileInfo, key.substring(parentPrefix.length())));
+                }
+            } else {
+                FileInfo fileInfo = ossService.getFileInfo(objectName);
+                if (fileInfo != null) {
+                    itemList.add(ossItem(fileInfo, objectName.substring(parentPrefix.length())));
+                }
+            }
+        }
+        ZipExecutor zipExecutor = new ZipExecutor();
+        TempBackingStoreSupplier backingStoreSupplier = new TempBackingStoreSupplier();
+        try {
+            ParallelScatterZipCreator zipCreator = new ParallelScatterZipCreator(zipExecutor, backingStoreSupplier, Deflater.DEFAULT_COMPRESSION);
+            for (ZipItem item : itemList) {
+                if (!item.directory) {
+                    // STORED也交给ParallelScatterZipCreator, 下载时计算crc, 每个对象只下载一次
+                    zipCreator.addArchiveEntry(newEntry(item, item.stored ? ZipEntry.STORED : ZipEntry.DEFLATED, 0), () -> openOss(ossService, item.key));
+                }
+            }
+            ZipArchiveOutputStream zipOutputStream = newZipOutputStream(response.getOutputStream());
+            for (ZipItem item : itemList) {
+                if (item.directory) {
+                    zipOutputStream.addRawArchiveEntry(newEntry(item, ZipEntry.STORED, 0), new NullInputStream(0));
+                }
+            }
+            zipCreator.writeTo(zipOutputStream);
+            zipOutputStream.finish();
+            zipOutputStream.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            zipExecutor.shutdownNow();
+            backingStoreSupplier.close();
+        }
+    }
+
+    /***
+     * 遍历选中的文件(夹)
+     */
+    private static void collectLocal(Path baseDir, Path selectedPath, List<ZipItem> itemList) throws IOException {
+        Files.walkFileTree(selectedPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(baseDir)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                itemList.add(ZipItem.directory(getEntryName(baseDir, dir) + "/", attrs.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    ZipItem item = new ZipItem(getEntryName(baseDir, file), attrs.size(), attrs.lastModifiedTime().toMillis(), isStored(file.getFileName().toString()));
+                    item.path = file;
+                    itemList.add(item);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("打包时读取文件失败, {}, {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static ZipItem ossItem(FileInfo fileInfo, String name) {
+        long lastModified = fileInfo.getLastModified() != null ? fileInfo.getLastModified().getTime() : System.currentTimeMillis();
+        if (fileInfo.isFolder()) {
+            return ZipItem.directory(name, lastModified);
+        }
+        ZipItem item = new ZipItem(name, fileInfo.getSize(), lastModified, isStored(name));
+        item.key = fileInfo.getKey();
+        return item;
+    }
+
+    /***
+     * 写入目录和STORED条目, 有crc和大小, 不需要data descriptor
+     * @param dryRun 只计算大小, 不读取文件
+     */
+    private static void writeStored(ZipArchiveOutputStream zipOutputStream, List<ZipItem> itemList, boolean dryRun) throws IOException, InterruptedException, ExecutionException {
+        for (ZipItem item : itemList) {
+            if (item.directory) {
+                zipOutputStream.addRawArchiveEntry(newEntry(item, ZipEntry.STORED, 0), new NullInputStream(0));
+                continue;
+            }
+            if (!item.stored) {
+                continue;
+            }
+            if (dryRun) {
+                // crc不影响压缩包的大小
+                zipOutputStream.addRawArchiveEntry(newEntry(item, ZipEntry.STORED, 0), new NullInputStream(item.size));
+                continue;
+            }
+            long crc = item.crc.get();
+            try (InputStream inputStream = new StoredInputStream(openLocal(item), item, crc)) {
+                zipOutputStream.addRawArchiveEntry(newEntry(item, ZipEntry.STORED, crc), inputStream);
+            }
+        }
+    }
+
+    /***
+     * 全部为STORED时压缩包的大小, 用相同的条目写入一个只计数的输出流
+     */
+    private static long computeLength(List<ZipItem> itemList) throws IOException {
+        CountingOutputStream countingOutputStream = new CountingOutputStream();
+        try {
+            ZipArchiveOutputStream zipOutputStream = newZipOutputStream(countingOutputStream);
+            writeStored(zipOutputStream, itemList, true);
+            zipOutputStream.finish();
+        } catch (InterruptedException | ExecutionException e) {
+            // dryRun不会等待crc
+            throw new IOException(e);
+        }
+        return countingOutputStream.count;
+    }
+
+    private static ZipArchiveOutputStream newZipOutputStream(OutputStream outputStream) {
+        ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(outputStream);
+        zipOutputStream.setEncoding("UTF-8");
+        zipOutputStream.setUseZip64(Zip64Mode.AsNeeded);
+        return zipOutputStream;
+    }
+
+    private static ZipArchiveEntry newEntry(ZipItem item, int method, long crc) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(item.name);
+        entry.setTime(item.lastModified);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            long size = item.directory ? 0 : item.size;
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc);
+        } else {
+            entry.setSize(item.size);
+        }
+        return entry;
+    }
+
+    private static InputStream openLocal(ZipItem item) {
+        try {
+            return Files.newInputStream(item.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /***
+     * 关闭输入流时同时关闭oss对象
+     */
+    private static InputStream openOss(IOssService ossService, String objectName) {
+        AbstractOssObject abstractOssObject = ossService.getAbstractOssObject(objectName);
+        try {
+            return new FilterInputStream(abstractOssObject.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        abstractOssObject.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            try {
+                abstractOssObject.close();
+            } catch (IOException ignored) {
+                // ignored
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /***
+     * 计算crc, 文件大小与条目中声明的大小不一致时失败, 不写入该条目
+     */
+    private static long crc32(ZipItem item) throws IOException {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(CRC_BUFFER_SIZE);
+        long size = 0;
+        try (FileChannel fileChannel = FileChannel.open(item.path, StandardOpenOption.READ)) {
+            int read;
+            while ((read = fileChannel.read(byteBuffer)) > 0) {
+                size += read;
+                byteBuffer.flip();
+                crc32.update(byteBuffer);
+                byteBuffer.clear();
+            }
+        }
+        if (size != item.size) {
+            throw new IOException("文件在打包时被修改, " + item.name);
+        }
+        return crc32.getValue();
+    }
+
+    private static boolean isStored(String filename) {
+        String suffix = FileUtil.getSuffix(filename);
+        return suffix != null && STORED_SUFFIX_SET.contains(suffix.toLowerCase());
+    }
+
+    private static String getEntryName(Path baseDir, Path path) {
+        return baseDir.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /***
+     * 对象所在的目录, 例如 a/b/c/ -> a/b/
+     */
+    private static String getParentPrefix(String objectName) {
+        String name = objectName.endsWith("/") ? objectName.substring(0, objectName.length() - 1) : objectName;
+        int index = name.lastIndexOf('/');
+        return index < 0 ? "" : name.substring(0, index + 1);
+    }
+
+
+    private static class ZipItem {
+
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final boolean directory;
+
+        private final boolean stored;
+
+        /***
+         * 本地文件
+         */
+        private Path path;
+
+        /***
+         * oss对象
+         */
+        private String key;
+
+        private Future<Long> crc;
+
+        ZipItem(String name, long size, long lastModified, boolean stored) {
+            this(name, size, lastModified, false, stored);
+        }
+
+        private ZipItem(String name, long size, long lastModified, boolean directory, boolean stored) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+            this.stored = stored;
+        }
+
+        static ZipItem directory(String name, long lastModified) {
+            return new ZipItem(name, 0, lastModified, true, true);
+        }
+    }
+
+    /***
+     * 压缩时的临时文件, 位于 ${chunkFileDir} 下, 每个线程一个, 打包结束后删除
+     */
+    private class TempBackingStoreSupplier implements ScatterGatherBackingStoreSupplier {
+
+        private final String prefix = IdUtil.fastSimpleUUID();
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private final Queue<ScatterGatherBackingStore> storeQueue = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public ScatterGatherBackingStore get() throws IOException {
+            Path tempDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
+            PathUtil.mkdir(tempDir);
+            ScatterGatherBackingStore store = new FileBasedScatterGatherBackingStore(tempDir.resolve(prefix + "-" + counter.incrementAndGet() + ".zip.tmp"));
+            storeQueue.add(store);
+            return store;
+        }
+
+        void close() {
+            for (ScatterGatherBackingStore store : storeQueue) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    log.debug("删除临时文件失败, {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /***
+     * 一次打包使用的线程池, 任务在共享的线程池中执行, 同时执行的任务最多threads个, 其余的在这里排队;
+     * ParallelScatterZipCreator.writeTo会关闭传入的线程池, shutdown、shutdownNow只作用于本次打包的任务
+     */
+    private class ZipExecutor extends AbstractExecutorService {
+
+        private final Queue<Runnable> taskQueue = new ArrayDeque<>();
+
+        private final Set<Future<?>> runningSet = new HashSet<>();
+
+        private boolean shutdown;
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException();
+            }
+            taskQueue.add(command);
+            dispatch();
+        }
+
+        private synchronized void dispatch() {
+            while (runningSet.size() < threads && !taskQueue.isEmpty()) {
+                FutureTask<Void> futureTask = new FutureTask<>(taskQueue.poll(), null) {
+                    @Override
+                    protected void done() {
+                        finish(this);
+                    }
+                };
+                runningSet.add(futureTask);
+                try {
+                    executorService.execute(futureTask);
+                } catch (RejectedExecutionException e) {
+                    runningSet.remove(futureTask);
+                    throw e;
+                }
+            }
+            if (isTerminated()) {
+                notifyAll();
+            }
+        }
+
+        private synchronized void finish(Future<?> future) {
+            if (runningSet.remove(future)) {
+                dispatch();
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            dispatch();
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown = true;
+            List<Runnable> taskList = new ArrayList<>(taskQueue);
+            taskQueue.clear();
+            new ArrayList<>(runningSet).forEach(future -> future.cancel(true));
+            return taskList;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && taskQueue.isEmpty() && runningSet.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    /***
+     * 写入STORED条目, 读取时校验大小和crc, 与条目中声明的不一致时失败, 中断下载
+     */
+    private static class StoredInputStream extends FilterInputStream {
+
+        private final ZipItem item;
+
+        private final long expectedCrc;
+
+        private final CRC32 crc32 = new CRC32();
+
+        private long count;
+
+        StoredInputStream(InputStream inputStream, ZipItem item, long expectedCrc) {
+            super(inputStream);
+            this.item = item;
+            this.expectedCrc = expectedCrc;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0) {
+                if (count != item.size || crc32.getValue() != expectedCrc) {
+                    throw new IOException("文件在打包时被修改, " + item.name);
+                }
+                return read;
+            }
+            count += read;
+            if (count > item.size) {
+                throw new IOException("文件在打包时被修改, " + item.name);
+            }
+            crc32.update(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip not supported");
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.date.LocalDateTimeUtil;
-import cn.hutool.core.date.TimeInterval;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.crypto.SecureUtil;
 import cn.hutool.crypto.symmetric.AES;
 import cn.hutool.crypto.symmetric.SymmetricAlgorithm;
@@ -17,7 +15,6 @@ import com.jmal.clouddisk.util.MongoUtil;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import jakarta.annotation.PostConstruct;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,12 +28,8 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author jmal
@@ -50,9 +43,6 @@ public class SettingService {
     @Autowired
     FileProperties fileProperties;
 
-    @Autowired
-    FileServiceImpl fileService;
-
     @Autowired
     private MongoTemplate mongoTemplate;
 
@@ -73,11 +63,8 @@ public class SettingService {
     @Autowired
     UserLoginHolder userLoginHolder;
 
-    private static final Map<String, SyncFileVisitor> syncFileVisitorMap = new ConcurrentHashMap<>(16);
-
-    private static final Map<String, String> syncCache = new ConcurrentHashMap<>(16);
-
-    private static final String SYNCED = "synced";
+    @Autowired
+    private FileResyncService fileResyncService;
 
     @PostConstruct
     public void init() {
@@ -94,29 +81,7 @@ public class SettingService {
      * @param username 用户名
      */
     public ResponseResult<Object> sync(String username) {
-        syncCache.computeIfAbsent(username, key -> {
-            ThreadUtil.execute(() -> {
-                Path path = Paths.get(fileProperties.getRootDir(), username);
-                TimeInterval timeInterval = new TimeInterval();
-                try {
-                    FileCountVisitor fileCountVisitor = new FileCountVisitor();
-                    PathUtil.walkFiles(path, fileCountVisitor);
-                    log.info("开始同步, 文件数: {}", fileCountVisitor.getCount());
-                    timeInterval.start();
-                    SyncFileVisitor syncFileVisitor = new SyncFileVisitor(username, fileCountVisitor.getCount());
-                    syncFileVisitorMap.put(username, syncFileVisitor);
-                    Files.walkFileTree(path, syncFileVisitor);
-                } catch (IOException e) {
-                    log.error(e.getMessage() + path, e);
-                } finally {
-                    syncCache.remove(username);
-                    syncFileVisitorMap.remove(username);
-                    log.info("同步完成, 耗时: {}s", timeInterval.intervalSecond());
-                    fileService.pushMessage(username, 100, SYNCED);
-                }
-            });
-            return "syncing";
-        });
+        fileResyncService.start(username, false);
         return ResultUtil.success();
     }
 
@@ -124,13 +89,11 @@ public class SettingService {
      * 是否正在同步中
      */
     public ResponseResult<Object> isSync(String username) {
-        if (!syncCache.containsKey(username)) {
+        ResyncReportVO report = fileResyncService.getReport(username);
+        if (report == null || report.isDryRun()) {
             return ResultUtil.success(100);
         }
-        if (syncFileVisitorMap.containsKey(username)) {
-            return ResultUtil.success(syncFileVisitorMap.get(username).getPercent());
-        }
-        return ResultUtil.success(100);
+        return ResultUtil.success(report.getPercent());
     }
 
     /**
@@ -177,85 +140,6 @@ public class SettingService {
         return ResultUtil.success("修改成功");
     }
 
-    private class SyncFileVisitor extends SimpleFileVisitor<Path> {
-
-        private final String username;
-        private final double totalCount;
-
-        @Getter
-        private int percent = 0;
-
-        private final AtomicLong processCount;
-
-        public SyncFileVisitor(String username, double totalCount) {
-            this.username = username;
-            this.totalCount = totalCount;
-            this.processCount = new AtomicLong(0);
-        }
-
-        @Override
-        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-            log.error(exc.getMessage(), exc);
-            return super.visitFileFailed(file, exc);
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            try {
-                fileService.createFile(username, dir.toFile());
-            } catch (Exception e) {
-                log.error(e.getMessage() + dir, e);
-            } finally {
-                processCount.addAndGet(1);
-            }
-            return super.preVisitDirectory(dir, attrs);
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            synchronized (this) {
-                try {
-                    fileService.createFile(username, file.toFile());
-                } catch (Exception e) {
-                    log.error(e.getMessage() + file, e);
-                } finally {
-                    if (totalCount > 0) {
-                        if (processCount.get() <= 2) {
-                            fileService.pushMessage(username, 1, SYNCED);
-                        }
-                        processCount.addAndGet(1);
-                        int currentPercent = (int) (processCount.get()/totalCount * 100);
-                        if (currentPercent > percent) {
-                            fileService.pushMessage(username, currentPercent, SYNCED);
-                        }
-                        percent = currentPercent;
-                    }
-                }
-            }
-            return super.visitFile(file, attrs);
-        }
-    }
-
-    private static class FileCountVisitor extends SimpleFileVisitor<Path> {
-        private final AtomicLong count = new AtomicLong(0);
-
-        public long getCount() {
-            return count.get();
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            count.addAndGet(1);
-            return super.preVisitDirectory(dir, attrs);
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            count.addAndGet(1);
-            return super.visitFile(file, attrs);
-        }
-    }
-
     /***
      * 更新网站设置
      * @param websiteSettingDO WebsiteSetting
@@ -0,0 +1,363 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.ReUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.SubtreeJobVO;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.TimeUntils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.StringOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.jmal.clouddisk.service.impl.CommonFileService.COLLECTION_NAME;
+
+/**
+ * @author jmal
+ * @Description 文件夹重命名、移动、复制时批量修改fileDocument
+ * 重命名和移动用一次updateMany(聚合管道$concat + $substrCP)修改整个子树的path, 不再逐条读出再写回;
+ * 复制时游标读取子树, 克隆元数据(缩略图、音视频信息等)后分批bulkWrite插入, 不再逐个文件重新生成;
+ * 每次操作作为后台任务运行, 可以查询进度
+ * @date 2024/1/30 09:40
+ */
+@Service
+@Slf4j
+public class SubtreeService {
+
+    /***
+     * 推送任务结果的url
+     */
+    static final String SUBTREE_JOB = "subtreeJob";
+
+    /***
+     * 复制时每批插入的文档数
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /***
+     * 复制时不保留的共享属性, 副本没有对应的分享配置
+     */
+    private static final List<String> SHARE_FIELDS = List.of(Constants.SHARE_BASE, Constants.IS_SHARE, Constants.SHARE_ID,
+            Constants.EXPIRES_AT, Constants.IS_PRIVACY, Constants.EXTRACTION_CODE, Constants.OPERATION_PERMISSION_LIST);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private CommonFileService commonFileService;
+
+    @Autowired
+    private FolderSizeService folderSizeService;
+
+    @Autowired
+    private UserSpaceService userSpaceService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private LuceneService luceneService;
+
+    /***
+     * key: jobId
+     */
+    private final Cache<String, SubtreeJobVO> jobCache = Caffeine.newBuilder().maximumSize(1000).expireAfterWrite(1, TimeUnit.DAYS).build();
+
+    private ExecutorService jobExecutor;
+
+    @PostConstruct
+    public void init() {
+        jobExecutor = ThreadUtil.newFixedExecutor(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), 100, "subtree-job", false);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        jobCache.asMap().values().forEach(job -> job.setCancelled(true));
+        jobExecutor.shutdownNow();
+    }
+
+    /***
+     * 后台任务
+     */
+    @FunctionalInterface
+    public interface JobTask {
+        void run(SubtreeJobVO job) throws Exception;
+    }
+
+    /***
+     * 提交后台任务, 失败时推送错误信息
+     * @param username 用户名
+     * @param operation 操作: 重命名、移动、复制
+     * @param task 任务
+     * @return 任务
+     */
+    public SubtreeJobVO submit(String username, String operation, JobTask task) {
+        SubtreeJobVO job = new SubtreeJobVO(IdUtil.fastSimpleUUID(), username, operation);
+        jobCache.put(job.getId(), job);
+        try {
+            jobExecutor.execute(() -> run(job, task));
+        } catch (RejectedExecutionException e) {
+            jobCache.invalidate(job.getId());
+            throw new CommonException(-1, "任务太多, 请稍后再试");
+        }
+        return job;
+    }
+
+    /***
+     * 获取任务
+     * @param jobId jobId
+     * @return 任务, 不存在时返回null
+     */
+    public SubtreeJobVO getJob(String jobId) {
+        return jobCache.getIfPresent(jobId);
+    }
+
+    /***
+     * 取消任务, 已经完成的文件保留
+     * @param jobId jobId
+     * @param username 用户名
+     * @return false: 任务不存在或已经结束
+     */
+    public boolean cancel(String jobId, String username) {
+        SubtreeJobVO job = jobCache.getIfPresent(jobId);
+        if (job == null || !job.isRunning() || !job.getUsername().equals(username)) {
+            return false;
+        }
+        job.setCancelled(true);
+        return true;
+    }
+
+    private void run(SubtreeJobVO job, JobTask task) {
+        try {
+            task.run(job);
+        } catch (CancellationException e) {
+            job.setError("已取消");
+        } catch (CommonException e) {
+            job.setError(Convert.toStr(e.getMsg(), Constants.UNKNOWN_ERROR));
+        } catch (Exception e) {
+            job.setError(Convert.toStr(e.getMessage(), Constants.UNKNOWN_ERROR));
+            log.error("{}失败, {}", job.getOperation(), e.getMessage(), e);
+        } finally {
+            job.finish();
+            if (job.getError() != null) {
+                commonFileService.pushMessageOperationFileError(job.getUsername(), job.getError(), job.getOperation());
+            }
+            log.info("{}结束, 处理: {}, 耗时: {}ms", job.getOperation(), job.getProcessed(), job.getElapsed());
+            commonFileService.pushMessage(job.getUsername(), job, SUBTREE_JOB);
+        }
+    }
+
+    /***
+     * 重命名文件夹后修改子树的path
+     * @param userId userId
+     * @param path 文件夹所在目录
+     * @param fromName 原名称
+     * @param toName 新名称
+     * @param job 任务
+     */
+    public void renameFolder(String userId, String path, String fromName, String toName, SubtreeJobVO job) {
+        String fromFolderPath = FolderSizeService.getFolderPath(path, fromName);
+        String toFolderPath = FolderSizeService.getFolderPath(path, toName);
+        job.getProcessed().addAndGet(rewritePath(userId, fromFolderPath, toFolderPath));
+        folderSizeService.onFolderRenamed(userId, fromFolderPath, toFolderPath);
+    }
+
+    /***
+     * 移动文件/文件夹后修改fileDocument, 文件id不变
+     * @param fileDocument 移动的文件/文件夹
+     * @param toPath 移动到的目录, 以"/"结尾
+     * @param job 任务
+     */
+    public void move(FileDocument fileDocument, String toPath, SubtreeJobVO job) {
+        String userId = fileDocument.getUserId();
+        String fromPath = fileDocument.getPath();
+        String name = fileDocument.getName();
+        commonFileService.pushMessage(job.getUsername(), fileDocument, "deleteFile");
+        String folderPath = null;
+        if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
+            folderPath = FolderSizeService.getFolderPath(toPath, name);
+            job.getProcessed().addAndGet(rewritePath(userId, FolderSizeService.getFolderPath(fromPath, name), folderPath));
+            folderSizeService.onFolderMoved(userId, fromPath, toPath, name);
+        } else {
+            folderSizeService.onFileDeleted(userId, fromPath, fileDocument.getSize());
+            folderSizeService.onFileCreated(userId, toPath, fileDocument.getSize());
+        }
+        Update update = new Update();
+        update.set("path", toPath);
+        update.set("updateDate", LocalDateTime.now(TimeUntils.ZONE_ID));
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(fileDocument.getId())), update, COLLECTION_NAME);
+        job.getProcessed().incrementAndGet();
+        if (!Boolean.TRUE.equals(fileDocument.getShareBase())) {
+            // 继承的共享属性按新的上级目录重新设置, 本身是共享的文件夹时保持不变
+            if (Boolean.TRUE.equals(fileDocument.getIsShare())) {
+                Update unsetUpdate = new Update();
+                SHARE_FIELDS.forEach(unsetUpdate::unset);
+                updateNodeAndSubtree(userId, fileDocument.getId(), folderPath, unsetUpdate);
+            }
+            updateShare(userId, fileDocument.getId(), folderPath, toPath);
+        }
+        fileDocument.setPath(toPath);
+        commonFileService.pushMessage(job.getUsername(), fileDocument, "createFile");
+    }
+
+    /***
+     * 复制文件/文件夹后克隆fileDocument, 磁盘上的文件需要先复制好
+     * @param fileDocument 复制的文件/文件夹
+     * @param toPath 复制到的目录, 以"/"结尾
+     * @param job 任务
+     */
+    public void copy(FileDocument fileDocument, String toPath, SubtreeJobVO job) {
+        if (Boolean.TRUE.equals(fileDocument.getIsFolder()) && toPath.startsWith(FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName()))) {
+            // 复制出的文档会落在正在遍历的path前缀下
+            throw new CommonException(ExceptionType.WARNING.getCode(), "不能复制到自身或其子目录");
+        }
+        String userId = fileDocument.getUserId();
+        Document source = mongoTemplate.findOne(new Query(Criteria.where("_id").is(fileDocument.getId())), Document.class, COLLECTION_NAME);
+        if (source == null) {
+            return;
+        }
+        List<Document> documentList = new ArrayList<>(BATCH_SIZE);
+        Document node = cloneDocument(source, toPath);
+        documentList.add(node);
+        String toFolderPath = null;
+        if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
+            String fromFolderPath = FolderSizeService.getFolderPath(fileDocument.getPath(), fileDocument.getName());
+            toFolderPath = FolderSizeService.getFolderPath(toPath, fileDocument.getName());
+            Query query = new Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fromFolderPath)));
+            try (Stream<Document> stream = mongoTemplate.stream(query, Document.class, COLLECTION_NAME)) {
+                Iterator<Document> iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    Document document = iterator.next();
+                    String newPath = toFolderPath + document.getString("path").substring(fromFolderPath.length());
+                    documentList.add(cloneDocument(document, newPath));
+                    if (documentList.size() >= BATCH_SIZE) {
+                        insert(userId, documentList, job);
+                    }
+                }
+            }
+        }
+        insert(userId, documentList, job);
+        updateShare(userId, getId(node), toFolderPath, toPath);
+        commonFileService.pushMessage(job.getUsername(), node, "createFile");
+    }
+
+    /***
+     * 用一次updateMany把path的前缀从fromFolderPath替换为toFolderPath
+     * @return 修改的文档数
+     */
+    private long rewritePath(String userId, String fromFolderPath, String toFolderPath) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fromFolderPath)));
+        // $substrCP按码点计算, 不能直接用String.length()
+        int start = fromFolderPath.codePointCount(0, fromFolderPath.length());
+        AggregationUpdate update = AggregationUpdate.update().set("path").toValue(StringOperators.Concat.stringValue(toFolderPath)
+                .concatValueOf(StringOperators.valueOf("path").substringCP(start, Integer.MAX_VALUE)));
+        return mongoTemplate.updateMulti(query, update, COLLECTION_NAME).getModifiedCount();
+    }
+
+    /***
+     * 克隆文档, 使用新的id和path, 复制缩略图
+     */
+    private Document cloneDocument(Document source, String newPath) {
+        Document document = new Document(source);
+        ObjectId id = new ObjectId();
+        document.put("_id", id);
+        document.put("path", newPath);
+        document.put("updateDate", new Date());
+        document.put(Constants.IS_FAVORITE, false);
+        SHARE_FIELDS.forEach(document::remove);
+        if (!Boolean.TRUE.equals(document.getBoolean(Constants.IS_FOLDER))) {
+            thumbnailService.copy(getId(source), id.toHexString());
+        }
+        return document;
+    }
+
+    /***
+     * 批量插入克隆的文档, 更新上级目录的大小和用户已使用空间, 提交内容索引
+     */
+    private void insert(String userId, List<Document> documentList, SubtreeJobVO job) {
+        if (documentList.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        bulkOperations.insert(documentList);
+        bulkOperations.execute();
+        Map<String, long[]> folderSizeMap = new HashMap<>(16);
+        long totalSize = 0;
+        for (Document document : documentList) {
+            if (Boolean.TRUE.equals(document.getBoolean(Constants.IS_FOLDER))) {
+                continue;
+            }
+            long size = Convert.toLong(document.get("size"), 0L);
+            long[] value = folderSizeMap.computeIfAbsent(document.getString("path"), key -> new long[2]);
+            value[0] += size;
+            value[1]++;
+            totalSize += size;
+            luceneService.indexFile(getId(document), document.getString(Constants.SUFFIX));
+        }
+        folderSizeMap.forEach((path, value) -> folderSizeService.onFileCreated(userId, path, value[0], value[1]));
+        userSpaceService.addDelta(userId, totalSize);
+        job.getProcessed().addAndGet(documentList.size());
+        documentList.clear();
+    }
+
+    /***
+     * 目标目录在共享的文件夹下时, 设置共享属性
+     */
+    private void updateShare(String userId, String fileId, String folderPath, String toPath) {
+        Update update = new Update();
+        commonFileService.checkShareBase(update, toPath);
+        if (update.getUpdateObject().isEmpty()) {
+            return;
+        }
+        updateNodeAndSubtree(userId, fileId, folderPath, update);
+    }
+
+    /***
+     * 修改文件/文件夹本身, 以及文件夹下的所有文件
+     */
+    private void updateNodeAndSubtree(String userId, String fileId, String folderPath, Update update) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(fileId)), update, COLLECTION_NAME);
+        if (folderPath == null) {
+            return;
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(folderPath)));
+        mongoTemplate.updateMulti(query, update, COLLECTION_NAME);
+    }
+
+    private static String getId(Document document) {
+        Object id = document.get("_id");
+        return id instanceof ObjectId objectId ? objectId.toHexString() : String.valueOf(id);
+    }
+}
@@ -0,0 +1,326 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.drew.imaging.ImageMetadataReader;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description 缩略图
+ * 上传、新建图片后异步生成缩略图, 同一文件正在生成时不重复提交,
+ * 按缩略图尺寸降采样解码, 不解码原图的全部像素, 缩略图保存在磁盘上(${chunkFileDir}/${thumbnailCache}), 不再写入fileDocument
+ * @date 2024/1/23 9:48
+ */
+@Service
+@Slf4j
+public class ThumbnailService {
+
+    /***
+     * 缩略图最大边长
+     */
+    public static final int THUMBNAIL_SIZE = 256;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private ExecutorService executorService;
+
+    /***
+     * 正在生成缩略图的文件
+     * key: 文件id
+     * value: 生成过程中是否又收到了生成请求(文件可能已经修改), 是则生成完后再生成一次
+     */
+    private final Map<String, Boolean> inFlightMap = new ConcurrentHashMap<>(64);
+
+    /***
+     * 生成失败的文件, 文件修改前不再重试
+     * key: 文件id:修改时间
+     */
+    private final Cache<String, Boolean> failureCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .build();
+
+    @PostConstruct
+    public void init() {
+        int processors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executorService = ThreadUtil.newFixedExecutor(processors, 1000, "thumbnail", false);
+    }
+
+    /***
+     * 是否需要生成缩略图
+     * @param suffix 文件后缀名
+     */
+    public static boolean isThumbnailType(String suffix) {
+        if ("ico".equals(suffix) || "svg".equals(suffix)) {
+            return false;
+        }
+        return FileContentTypeUtils.getContentType(suffix).startsWith(Constants.CONTENT_TYPE_IMAGE);
+    }
+
+    /***
+     * 异步生成缩略图, 队列已满时放弃, 访问缩略图时再生成
+     * 正在生成时不重复提交, 标记后在当前的生成完成后再生成一次
+     * @param fileId 文件id
+     * @param file 图片文件
+     */
+    public void generateAsync(String fileId, File file) {
+        if (fileId == null || isFailed(fileId, file)) {
+            return;
+        }
+        AtomicBoolean submit = new AtomicBoolean(false);
+        inFlightMap.compute(fileId, (key, dirty) -> {
+            if (dirty == null) {
+                submit.set(true);
+                return false;
+            }
+            return true;
+        });
+        if (!submit.get()) {
+            return;
+        }
+        try {
+            executorService.execute(() -> {
+                boolean rerun;
+                do {
+                    generate(fileId, file);
+                    rerun = inFlightMap.computeIfPresent(fileId, (key, dirty) -> Boolean.TRUE.equals(dirty) ? false : null) != null;
+                } while (rerun);
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightMap.remove(fileId);
+            log.warn("缩略图队列已满, 跳过: {}", file.getAbsolutePath());
+        }
+    }
+
+    /***
+     * 读取缩略图, 还没有生成时提交生成, 由异步任务写入缓存
+     * @param fileId 文件id
+     * @param file 原图
+     * @return 缩略图, 还没有生成、生成失败或原图不存在时返回null; 不生成缩略图的图片(svg、ico)返回原图
+     */
+    public byte[] getThumbnail(String fileId, File file) {
+        Path thumbnailPath = getThumbnailPath(fileId);
+        if (Files.exists(thumbnailPath)) {
+            return PathUtil.readBytes(thumbnailPath);
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        String suffix = FileUtil.extName(file);
+        if (isThumbnailType(suffix)) {
+            generateAsync(fileId, file);
+            return null;
+        }
+        if (FileContentTypeUtils.getContentType(suffix).startsWith(Constants.CONTENT_TYPE_IMAGE)) {
+            return FileUtil.readBytes(file);
+        }
+        return null;
+    }
+
+    /***
+     * 删除缩略图
+     * @param fileId 文件id
+     */
+    public void delete(String fileId) {
+        if (fileId == null) {
+            return;
+        }
+        PathUtil.del(getThumbnailPath(fileId));
+    }
+
+    /***
+     * 删除文件夹下所有文件的缩略图, 在删除fileDocument之前调用
+     * @param query 文件夹下所有文件的查询条件
+     */
+    public void deleteAll(Query query) {
+        Query idQuery = Query.of(query);
+        idQuery.fields().include("_id");
+        try (Stream<Document> stream = mongoTemplate.stream(idQuery, Document.class, CommonFileService.COLLECTION_NAME)) {
+            stream.forEach(document -> delete(document.get("_id").toString()));
+        }
+    }
+
+    /***
+     * 复制文件时复制缩略图, 不再重新生成, 优先使用硬链接
+     * @param fromFileId 原文件id
+     * @param toFileId 新文件id
+     */
+    public void copy(String fromFileId, String toFileId) {
+        Path fromPath = getThumbnailPath(fromFileId);
+        if (!Files.exists(fromPath)) {
+            return;
+        }
+        Path toPath = getThumbnailPath(toFileId);
+        try {
+            PathUtil.mkParentDirs(toPath);
+            try {
+                Files.createLink(toPath, fromPath);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(fromPath, toPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("复制缩略图失败, {}, {}", fromFileId, e.getMessage());
+        }
+    }
+
+    private void generate(String fileId, File file) {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(file)) {
+            if (imageInputStream == null) {
+                return;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                failureCache.put(getFailureKey(fileId, file), true);
+                return;
+            }
+            ImageReader reader = readers.next();
+            int width;
+            int height;
+            BufferedImage image;
+            try {
+                reader.setInput(imageInputStream, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                // 降采样解码, 解码后的长边不小于缩略图尺寸的2倍, 再缩放到缩略图尺寸
+                int sampling = Math.max(1, Math.max(width, height) / (THUMBNAIL_SIZE * 2));
+                ImageReadParam imageReadParam = reader.getDefaultReadParam();
+                imageReadParam.setSourceSubsampling(sampling, sampling, 0, 0);
+                image = reader.read(0, imageReadParam);
+            } finally {
+                reader.dispose();
+            }
+            Path thumbnailPath = getThumbnailPath(fileId);
+            PathUtil.mkParentDirs(thumbnailPath);
+            Path tempPath = thumbnailPath.resolveSibling(fileId + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tempPath)) {
+                Thumbnails.of(image)
+                        .size(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
+                        .rotate(getRotation(file))
+                        .outputFormat(image.getColorModel().hasAlpha() ? "png" : "jpg")
+                        .toOutputStream(outputStream);
+            }
+            Files.move(tempPath, thumbnailPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Update update = new Update();
+            update.set("w", width);
+            update.set("h", height);
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(fileId)), update, CommonFileService.COLLECTION_NAME);
+        } catch (Exception e) {
+            failureCache.put(getFailureKey(fileId, file), true);
+            log.warn("生成缩略图失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private boolean isFailed(String fileId, File file) {
+        return failureCache.getIfPresent(getFailureKey(fileId, file)) != null;
+    }
+
+    private static String getFailureKey(String fileId, File file) {
+        return fileId + ":" + file.lastModified();
+    }
+
+    /***
+     * 根据exif方向信息旋转
+     */
+    private static double getRotation(File file) {
+        String suffix = FileUtil.extName(file);
+        if (!"jpg".equalsIgnoreCase(suffix) && !"jpeg".equalsIgnoreCase(suffix)) {
+            return 0;
+        }
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(file);
+            ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            if (directory == null || !directory.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) {
+                return 0;
+            }
+            return switch (directory.getInt(ExifIFD0Directory.TAG_ORIENTATION)) {
+                case 3 -> 180;
+                case 6 -> 90;
+                case 8 -> 270;
+                default -> 0;
+            };
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /***
+     * 缩略图路径, 按id的后两位分目录
+     */
+    public Path getThumbnailPath(String fileId) {
+        String dir = fileId.length() > 2 ? fileId.substring(fileId.length() - 2) : fileId;
+        return Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getThumbnailCache(), dir, fileId);
+    }
+
+    /***
+     * 每周一凌晨3点清理已删除文件的缩略图
+     */
+    @Scheduled(cron = "0 0 3 * * MON")
+    private void cleanOrphan() {
+        Path thumbnailDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getThumbnailCache());
+        if (!Files.isDirectory(thumbnailDir)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(thumbnailDir)) {
+            List<Path> batch = new ArrayList<>(1000);
+            Iterator<Path> iterator = stream.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() >= 1000 || !iterator.hasNext()) {
+                    deleteOrphan(batch);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            log.error("清理缩略图失败, {}", e.getMessage(), e);
+        }
+    }
+
+    private void deleteOrphan(List<Path> thumbnailList) {
+        Map<String, Path> pathMap = new HashMap<>(thumbnailList.size());
+        thumbnailList.forEach(path -> pathMap.put(path.getFileName().toString(), path));
+        Query query = new Query(Criteria.where("_id").in(pathMap.keySet()));
+        query.fields().include("_id");
+        mongoTemplate.find(query, Document.class, CommonFileService.COLLECTION_NAME).forEach(document -> pathMap.remove(document.getObjectId("_id").toHexString()));
+        pathMap.values().forEach(PathUtil::del);
+    }
+}
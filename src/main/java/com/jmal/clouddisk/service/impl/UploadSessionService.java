@@ -0,0 +1,346 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.UploadApiParamDTO;
+import com.jmal.clouddisk.model.UploadSessionDO;
+import com.jmal.clouddisk.util.TimeUntils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description 分片上传会话
+ * 每个会话在mongo(uploadSession)中保存一条记录: 已完成分片的位图、分片大小、文件总大小,
+ * 内存中只缓存活跃的会话(数量有上限), 已完成的分片每隔2秒批量写回, 重启或被淘汰后从mongo恢复,
+ * 超过 uploadSessionExpireDays 没有上传分片的会话连同临时文件一起清理
+ * @date 2024/1/26 16:40
+ */
+@Service
+@Slf4j
+public class UploadSessionService {
+
+    public static final String COLLECTION_NAME = "uploadSession";
+
+    /***
+     * 上传会话的临时文件目录, 位于 ${chunkFileDir}/uploadSession/${username}/${identifier}
+     */
+    public static final String SESSION_DIR = "uploadSession";
+
+    /***
+     * 内存中最多缓存的会话数
+     */
+    private static final int MAX_CACHED_SESSIONS = 10000;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /***
+     * 活跃的会话
+     * key: username/identifier
+     */
+    private final Cache<String, UploadSession> sessionCache = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_SESSIONS)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    /***
+     * 有分片还未写回mongo的会话
+     */
+    private final Map<String, UploadSession> dirtyMap = new ConcurrentHashMap<>(16);
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document("updateDate", 1));
+    }
+
+    /***
+     * 获取上传会话, 不在缓存中时从mongo恢复, 没有记录时创建并按文件总大小预分配目标文件
+     * @param upload UploadApiParamDTO
+     */
+    public UploadSession getSession(UploadApiParamDTO upload) throws IOException {
+        return getSession(upload, true);
+    }
+
+    /***
+     * 获取上传会话
+     * @param upload UploadApiParamDTO
+     * @param create 没有记录时是否创建
+     * @return UploadSession, 不创建并且没有记录时返回null
+     */
+    public UploadSession getSession(UploadApiParamDTO upload, boolean create) throws IOException {
+        String id = upload.getUsername() + "/" + upload.getIdentifier();
+        try {
+            return sessionCache.get(id, key -> {
+                try {
+                    return open(key, upload, create);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /***
+     * 标记分片已完成
+     * @param session UploadSession
+     * @param chunkNumber 分片序号, 从1开始
+     */
+    public void markDone(UploadSession session, int chunkNumber) {
+        if (session.markDone(chunkNumber)) {
+            dirtyMap.put(session.id, session);
+        }
+    }
+
+    /***
+     * 上传完成或取消后删除会话
+     * @param session UploadSession
+     */
+    public void remove(UploadSession session) {
+        sessionCache.invalidate(session.id);
+        dirtyMap.remove(session.id);
+        mongoTemplate.remove(getQuery(session.id), COLLECTION_NAME);
+        PathUtil.del(session.dir);
+    }
+
+    private UploadSession open(String id, UploadApiParamDTO upload, boolean create) throws IOException {
+        Path dir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), SESSION_DIR, upload.getUsername(), upload.getIdentifier());
+        UploadSession session = new UploadSession(id, dir, upload.getTotalChunks(), upload.getChunkSize(), upload.getTotalSize());
+        UploadSessionDO uploadSessionDO = mongoTemplate.findById(id, UploadSessionDO.class, COLLECTION_NAME);
+        boolean resume = uploadSessionDO != null
+                && Files.exists(session.file)
+                && uploadSessionDO.getTotalChunks() == session.totalChunks
+                && uploadSessionDO.getChunkSize() == session.chunkSize
+                && uploadSessionDO.getTotalSize() == session.totalSize;
+        if (resume) {
+            // 断点恢复
+            if (uploadSessionDO.getChunks() != null) {
+                BitSet bitSet = BitSet.valueOf(uploadSessionDO.getChunks());
+                bitSet.stream().filter(i -> i < session.totalChunks).forEach(i -> session.markDone(i + 1));
+            }
+            return session;
+        }
+        if (!create) {
+            return null;
+        }
+        Files.createDirectories(dir);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(session.file.toFile(), "rw")) {
+            // 预分配, 分片可以按任意顺序写入
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(session.totalSize);
+        }
+        uploadSessionDO = new UploadSessionDO();
+        uploadSessionDO.setId(id);
+        uploadSessionDO.setUsername(upload.getUsername());
+        uploadSessionDO.setIdentifier(upload.getIdentifier());
+        uploadSessionDO.setTotalChunks(session.totalChunks);
+        uploadSessionDO.setChunkSize(session.chunkSize);
+        uploadSessionDO.setTotalSize(session.totalSize);
+        uploadSessionDO.setUpdateDate(LocalDateTime.now(TimeUntils.ZONE_ID));
+        mongoTemplate.save(uploadSessionDO, COLLECTION_NAME);
+        return session;
+    }
+
+    /***
+     * 每2秒把已完成的分片写回mongo
+     */
+    @Scheduled(fixedDelay = 2000, initialDelay = 2000)
+    public void flush() {
+        Iterator<UploadSession> iterator = dirtyMap.values().iterator();
+        while (iterator.hasNext()) {
+            UploadSession session = iterator.next();
+            iterator.remove();
+            Update update = new Update();
+            update.set("chunks", session.toByteArray());
+            update.set("updateDate", LocalDateTime.now(TimeUntils.ZONE_ID));
+            mongoTemplate.updateFirst(getQuery(session.id), update, COLLECTION_NAME);
+        }
+    }
+
+    /***
+     * 每小时清理过期的会话和没有会话记录的临时文件
+     */
+    @Scheduled(cron = "0 0 * * * ?")
+    public void cleanExpired() {
+        LocalDateTime expireDate = LocalDateTime.now(TimeUntils.ZONE_ID).minusDays(fileProperties.getUploadSessionExpireDays());
+        Query query = new Query(Criteria.where("updateDate").lt(expireDate));
+        query.fields().include("_id");
+        List<String> expiredList = mongoTemplate.find(query, UploadSessionDO.class, COLLECTION_NAME).stream().map(UploadSessionDO::getId).toList();
+        for (String id : expiredList) {
+            UploadSession session = sessionCache.getIfPresent(id);
+            if (session != null) {
+                remove(session);
+            } else {
+                mongoTemplate.remove(getQuery(id), COLLECTION_NAME);
+                PathUtil.del(Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), SESSION_DIR).resolve(id));
+            }
+        }
+        if (!expiredList.isEmpty()) {
+            log.info("清理过期的上传会话: {}", expiredList.size());
+        }
+        cleanOrphan(expireDate);
+    }
+
+    /***
+     * 清理没有会话记录的临时文件(例如写入记录前异常中断)
+     */
+    private void cleanOrphan(LocalDateTime expireDate) {
+        Path sessionRoot = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), SESSION_DIR);
+        if (!Files.isDirectory(sessionRoot)) {
+            return;
+        }
+        long expireMillis = expireDate.atZone(TimeUntils.ZONE_ID).toInstant().toEpochMilli();
+        try (Stream<Path> stream = Files.list(sessionRoot)) {
+            stream.filter(Files::isDirectory).forEach(userDir -> {
+                File[] sessionDirs = userDir.toFile().listFiles(File::isDirectory);
+                if (sessionDirs == null) {
+                    return;
+                }
+                for (File sessionDir : sessionDirs) {
+                    String id = userDir.getFileName() + "/" + sessionDir.getName();
+                    if (sessionDir.lastModified() < expireMillis && !mongoTemplate.exists(getQuery(id), COLLECTION_NAME)) {
+                        PathUtil.del(sessionDir.toPath());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log.error("清理上传会话临时文件失败, {}", e.getMessage(), e);
+        }
+    }
+
+    private static Query getQuery(String id) {
+        return new Query(Criteria.where("_id").is(id));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+    }
+
+    /***
+     * 上传会话, 用位图记录已完成的分片, 并行写入的分片之间不加锁
+     */
+    static class UploadSession {
+
+        final String id;
+
+        final Path dir;
+
+        /***
+         * 目标文件, 分片直接写入对应的位置
+         */
+        final Path file;
+
+        final int totalChunks;
+
+        final long chunkSize;
+
+        final long totalSize;
+
+        /***
+         * 已完成的分片, 第n个分片对应第n-1位
+         */
+        private final AtomicLongArray chunks;
+
+        private final AtomicInteger doneCount = new AtomicInteger();
+
+        /***
+         * 按顺序计算摘要的锁
+         */
+        final Lock digestLock = new ReentrantLock();
+
+        /***
+         * 已计算摘要的分片数
+         */
+        int digestedChunks = 0;
+
+        UploadSession(String id, Path dir, int totalChunks, long chunkSize, long totalSize) {
+            this.id = id;
+            this.dir = dir;
+            this.file = dir.resolve("file");
+            this.totalChunks = totalChunks;
+            this.chunkSize = chunkSize;
+            this.totalSize = totalSize;
+            this.chunks = new AtomicLongArray((totalChunks + 63) / 64);
+        }
+
+        /***
+         * 标记分片已完成
+         * @return 是否为首次完成
+         */
+        boolean markDone(int chunkNumber) {
+            int index = chunkNumber - 1;
+            long mask = 1L << (index & 63);
+            while (true) {
+                long value = chunks.get(index >> 6);
+                if ((value & mask) != 0) {
+                    return false;
+                }
+                if (chunks.compareAndSet(index >> 6, value, value | mask)) {
+                    doneCount.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        boolean isDone(int chunkNumber) {
+            int index = chunkNumber - 1;
+            return (chunks.get(index >> 6) & (1L << (index & 63))) != 0;
+        }
+
+        boolean isComplete() {
+            return doneCount.get() >= totalChunks;
+        }
+
+        List<Integer> getDoneChunks() {
+            List<Integer> list = new ArrayList<>(doneCount.get());
+            for (int chunkNumber = 1; chunkNumber <= totalChunks; chunkNumber++) {
+                if (isDone(chunkNumber)) {
+                    list.add(chunkNumber);
+                }
+            }
+            return list;
+        }
+
+        byte[] toByteArray() {
+            long[] words = new long[chunks.length()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = chunks.get(i);
+            }
+            return BitSet.valueOf(words).toByteArray();
+        }
+    }
+}
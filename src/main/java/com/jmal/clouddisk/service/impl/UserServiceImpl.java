@@ -78,6 +78,9 @@ public class UserServiceImpl implements IUserService {
     @Autowired
     private FileMonitor fileMonitor;
 
+    @Autowired
+    private UserSpaceService userSpaceService;
+
     @Override
     public ConsumerDO add(ConsumerDTO consumerDTO) {
         String username = consumerDTO.getUsername();
@@ -216,6 +219,10 @@ public class UserServiceImpl implements IUserService {
             // 修改用户角色后更新相关角色用户的权限缓存
             ThreadUtil.execute(() -> roleService.updateUserCacheByRole(user.getRoles()));
         }
+        if (quota != null) {
+            // 修改配额后重新检查空间是否已满
+            userSpaceService.refreshQuota(consumerDO.getId());
+        }
         return ResultUtil.success(fileId);
     }
 
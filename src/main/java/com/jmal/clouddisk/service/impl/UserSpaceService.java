@@ -0,0 +1,321 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.model.rbac.ConsumerDO;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.CaffeineUtil;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.model.IndexOptions;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonNull;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * @author jmal
+ * @Description 用户已使用空间计数器
+ * 文件新建、修改、删除时按差值增量更新内存中的计数, 定时批量写回mongo(userSpace),
+ * 推送消息和空间配额检查直接读取计数, 不再每次对用户的所有文件做$group聚合
+ * @date 2024/1/17 14:05
+ */
+@Service
+@Slf4j
+public class UserSpaceService {
+
+    public static final String COLLECTION_NAME = "userSpace";
+
+    private static final String SPACE = "space";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private IUserService userService;
+
+    /***
+     * 已使用空间
+     * key: userId
+     * value: 已使用空间(byte)
+     */
+    private final Map<String, AtomicLong> spaceCache = new ConcurrentHashMap<>(16);
+
+    /***
+     * 还未写回mongo的差值
+     * key: userId
+     * value: 差值(byte)
+     */
+    private final Map<String, AtomicLong> pendingDeltaCache = new ConcurrentHashMap<>(16);
+
+    /***
+     * 用户级别的锁, 校正时阻塞该用户的增量更新, 统计期间的差值在校正后再加上
+     * key: userId
+     */
+    private final Map<String, Object> userLockMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 写回差值和校正互斥, 避免已经取出的差值在校正后再$inc一次
+     */
+    private final Object flushLock = new Object();
+
+    /***
+     * 用户空间配额(byte), 避免每次检查都查询用户信息
+     */
+    private final Cache<String, Long> quotaCache = Caffeine.newBuilder().expireAfterWrite(60, TimeUnit.SECONDS).build();
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document(IUserService.USER_ID, 1), new IndexOptions().unique(true));
+    }
+
+    /***
+     * 获取用户已使用的空间
+     * @param userId userId
+     * @return 已使用空间(byte)
+     */
+    public long getSpace(String userId) {
+        if (CharSequenceUtil.isBlank(userId)) {
+            return 0;
+        }
+        return getSpaceCounter(userId).get();
+    }
+
+    /***
+     * 增加(减少)用户已使用的空间
+     * @param userId userId
+     * @param delta 差值(byte)
+     */
+    public void addDelta(String userId, long delta) {
+        if (CharSequenceUtil.isBlank(userId) || delta == 0) {
+            return;
+        }
+        long space;
+        synchronized (getUserLock(userId)) {
+            if (!spaceCache.containsKey(userId) && !mongoTemplate.exists(getQuery(userId), COLLECTION_NAME)) {
+                // 首次统计时已经包含了本次的变化
+                checkQuota(userId, getSpace(userId));
+                return;
+            }
+            space = getSpaceCounter(userId).addAndGet(delta);
+            pendingDeltaCache.computeIfAbsent(userId, key -> new AtomicLong()).addAndGet(delta);
+        }
+        checkQuota(userId, space);
+    }
+
+    /***
+     * 删除用户的计数
+     * @param userId userId
+     */
+    public void remove(String userId) {
+        userLockMap.remove(userId);
+        spaceCache.remove(userId);
+        pendingDeltaCache.remove(userId);
+        quotaCache.invalidate(userId);
+        CaffeineUtil.removeSpaceFull(userId);
+        mongoTemplate.remove(getQuery(userId), COLLECTION_NAME);
+    }
+
+    /***
+     * 用户配额修改后重新检查空间是否已满
+     * @param userId userId
+     */
+    public void refreshQuota(String userId) {
+        if (CharSequenceUtil.isBlank(userId)) {
+            return;
+        }
+        quotaCache.invalidate(userId);
+        checkQuota(userId, getSpace(userId));
+    }
+
+    private Object getUserLock(String userId) {
+        return userLockMap.computeIfAbsent(userId, key -> new Object());
+    }
+
+    private static Query getQuery(String userId) {
+        return new Query(Criteria.where(IUserService.USER_ID).is(userId));
+    }
+
+    private AtomicLong getSpaceCounter(String userId) {
+        AtomicLong counter = spaceCache.get(userId);
+        if (counter == null) {
+            counter = spaceCache.computeIfAbsent(userId, key -> new AtomicLong(loadSpace(key)));
+            checkQuota(userId, counter.get());
+        }
+        return counter;
+    }
+
+    /***
+     * 从mongo读取计数, 不存在时聚合统计一次并保存
+     */
+    private long loadSpace(String userId) {
+        Document document = mongoTemplate.findOne(getQuery(userId), Document.class, COLLECTION_NAME);
+        if (document != null) {
+            return Convert.toLong(document.get(SPACE), 0L);
+        }
+        long space = aggregateSpace(userId);
+        mongoTemplate.upsert(getQuery(userId), new Update().set(SPACE, space), COLLECTION_NAME);
+        return space;
+    }
+
+    /***
+     * 聚合统计用户已使用的空间
+     */
+    private long aggregateSpace(String userId) {
+        List<Bson> list = Arrays.asList(
+                match(eq(IUserService.USER_ID, userId)),
+                group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
+        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(CommonFileService.COLLECTION_NAME).aggregate(list);
+        Document doc = aggregateIterable.first();
+        if (doc != null) {
+            return Convert.toLong(doc.get(Constants.TOTAL_SIZE), 0L);
+        }
+        return 0;
+    }
+
+    /***
+     * 获取用户剩余的空间
+     * @param userId userId
+     * @return 剩余空间(byte), 没有配额时返回Long.MAX_VALUE
+     */
+    public long getRemaining(String userId) {
+        long quota = getQuota(userId);
+        if (quota < 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, quota - getSpace(userId));
+    }
+
+    /***
+     * 用户空间配额(byte), -1 表示没有配额
+     */
+    private long getQuota(String userId) {
+        Long quota = quotaCache.get(userId, key -> {
+            ConsumerDO consumerDO = userService.userInfoById(key);
+            if (consumerDO == null || consumerDO.getQuota() == null) {
+                return -1L;
+            }
+            return consumerDO.getQuota() * 1024L * 1024L * 1024L;
+        });
+        return quota == null ? -1 : quota;
+    }
+
+    private void checkQuota(String userId, long space) {
+        long quota = getQuota(userId);
+        if (quota < 0) {
+            return;
+        }
+        if (space >= quota) {
+            // 空间已满
+            CaffeineUtil.setSpaceFull(userId);
+        } else {
+            if (CaffeineUtil.spaceFull(userId)) {
+                CaffeineUtil.removeSpaceFull(userId);
+            }
+        }
+    }
+
+    /***
+     * 每5秒把差值批量写回mongo
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public void flush() {
+        synchronized (flushLock) {
+            BulkOperations bulkOperations = null;
+            for (Map.Entry<String, AtomicLong> entry : pendingDeltaCache.entrySet()) {
+                long delta = entry.getValue().getAndSet(0);
+                if (delta == 0) {
+                    continue;
+                }
+                if (bulkOperations == null) {
+                    bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+                }
+                bulkOperations.upsert(getQuery(entry.getKey()), new Update().inc(SPACE, delta));
+            }
+            if (bulkOperations != null) {
+                bulkOperations.execute();
+            }
+        }
+    }
+
+    /***
+     * 每天凌晨4点校正计数, 修复绕过增量更新(直接写库、异常中断等)产生的偏差
+     */
+    @Scheduled(cron = "0 0 4 * * ?")
+    private void reconcile() {
+        flush();
+        List<String> userIdList = new ArrayList<>(spaceCache.keySet());
+        mongoTemplate.findDistinct(new Query(), IUserService.USER_ID, COLLECTION_NAME, String.class).forEach(userId -> {
+            if (!spaceCache.containsKey(userId)) {
+                userIdList.add(userId);
+            }
+        });
+        for (String userId : userIdList) {
+            try {
+                reconcile(userId);
+            } catch (Exception e) {
+                log.error("校正用户已使用空间失败, userId: {}, {}", userId, e.getMessage(), e);
+            }
+        }
+    }
+
+    /***
+     * 重新统计某个用户已使用的空间
+     * 统计期间该用户的addDelta等待, 统计完成后再加到新的计数上, 不会被覆盖
+     * @param userId userId
+     */
+    public void reconcile(String userId) {
+        long space;
+        long old;
+        synchronized (flushLock) {
+            synchronized (getUserLock(userId)) {
+                space = aggregateSpace(userId);
+                AtomicLong pending = pendingDeltaCache.get(userId);
+                // 统计结果已经包含了还未写回的差值
+                if (pending != null) {
+                    pending.set(0);
+                }
+                mongoTemplate.upsert(getQuery(userId), new Update().set(SPACE, space), COLLECTION_NAME);
+                AtomicLong counter = spaceCache.get(userId);
+                if (counter == null) {
+                    return;
+                }
+                old = counter.getAndSet(space);
+            }
+        }
+        if (old != space) {
+            log.info("校正用户已使用空间, userId: {}, {} -> {}", userId, old, space);
+        }
+        checkQuota(userId, space);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+    }
+}
@@ -0,0 +1,284 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.service.Constants;
+import com.luciad.imageio.webp.WebPWriteParam;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @author jmal
+ * @Description 图片转webp
+ * 解码和编码都需要完整的像素数据, 同时转换的数量由信号量限制, 并按像素数估算内存, 总的内存预算为最大堆内存的1/4,
+ * 超出预算的图片等待其他转换完成, 单张就超出预算的图片不转换, 保留原图;
+ * 先申请内存再申请并发数, 等待超时后不再阻塞上传, 由调用者改为后台转换
+ * @date 2024/1/24 15:30
+ */
+@Service
+@Slf4j
+public class WebpService {
+
+    /***
+     * 转换时每个像素大约占用的内存(字节), 解码后的图片和编码器的缓冲区
+     */
+    private static final int BYTES_PER_PIXEL = 8;
+
+    /***
+     * 后台转换模式
+     */
+    public static final String MODE_DEFERRED = "deferred";
+
+    /***
+     * 等待内存预算和并发数的最长时间(秒)
+     */
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 10;
+
+    /***
+     * 转换结果
+     */
+    private enum Result {
+        /***
+         * 已转换
+         */
+        CONVERTED,
+        /***
+         * 不是图片或超出了内存预算, 不转换
+         */
+        SKIPPED,
+        /***
+         * 等待内存预算或并发数超时
+         */
+        BUSY
+    }
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    /***
+     * 同时转换的数量
+     */
+    private Semaphore concurrencySemaphore;
+
+    /***
+     * 内存预算(MB)
+     */
+    private Semaphore memorySemaphore;
+
+    private int memoryBudget;
+
+    /***
+     * 后台转换的线程池(deferred)
+     */
+    private ExecutorService executorService;
+
+    /***
+     * 正在后台转换的文件
+     */
+    private final Set<String> inFlightSet = ConcurrentHashMap.newKeySet(64);
+
+    @PostConstruct
+    public void init() {
+        int concurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        concurrencySemaphore = new Semaphore(concurrency, true);
+        memoryBudget = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
+        memorySemaphore = new Semaphore(memoryBudget, true);
+        executorService = ThreadUtil.newFixedExecutor(concurrency, 1000, "webp", false);
+    }
+
+    /***
+     * 是否为后台转换模式
+     */
+    public boolean isDeferred() {
+        return MODE_DEFERRED.equals(fileProperties.getWebpMode());
+    }
+
+    /***
+     * 转换成webp, 转换成功后删除原图
+     * @param file 原图
+     * @return webp文件, 转换失败时返回原图, 等待内存预算或并发数超时返回null, 调用者可以改为后台转换
+     */
+    public File toWebp(File file) {
+        File outputFile = new File(file.getPath() + Constants.POINT_SUFFIX_WEBP);
+        // 先写入临时目录, 避免文件监控读到不完整的文件
+        Path tempPath = getTempPath(outputFile);
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(file)) {
+            Result result = encode(imageInputStream, tempPath.toFile());
+            if (result == Result.BUSY) {
+                return null;
+            }
+            if (result != Result.CONVERTED) {
+                return file;
+            }
+            Files.move(tempPath, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            FileUtil.del(file);
+            return outputFile;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return file;
+        } catch (Exception e) {
+            log.error("转换webp失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+            return file;
+        } finally {
+            PathUtil.del(tempPath);
+        }
+    }
+
+    /***
+     * 把输入流中的图片转换成webp
+     * @param inputStream 图片输入流
+     * @param outputFile webp文件
+     * @throws IOException 不是图片、超出了内存预算或者等待超时
+     */
+    public void toWebp(InputStream inputStream, File outputFile) throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            Result result = encode(imageInputStream, outputFile);
+            if (result == Result.BUSY) {
+                throw new IOException("转换webp繁忙, 请稍后再试");
+            }
+            if (result != Result.CONVERTED) {
+                throw new IOException("转换webp失败");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /***
+     * 后台转换成webp, 先保留原图
+     * @param file 原图
+     * @param callback 转换完成后的回调, 参数为webp文件, 回调成功后再删除原图
+     */
+    public void toWebpAsync(File file, Consumer<File> callback) {
+        String key = file.getAbsolutePath();
+        if (!inFlightSet.add(key)) {
+            return;
+        }
+        try {
+            executorService.execute(() -> {
+                File outputFile = new File(file.getPath() + Constants.POINT_SUFFIX_WEBP);
+                Path tempPath = getTempPath(outputFile);
+                try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(file)) {
+                    Result result = encode(imageInputStream, tempPath.toFile());
+                    if (result == Result.BUSY) {
+                        log.warn("等待webp转换超时, 保留原图: {}", file.getAbsolutePath());
+                        return;
+                    }
+                    if (result != Result.CONVERTED || !file.exists()) {
+                        return;
+                    }
+                    Files.move(tempPath, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    callback.accept(outputFile);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("后台转换webp失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+                } finally {
+                    PathUtil.del(tempPath);
+                    inFlightSet.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightSet.remove(key);
+            log.warn("webp转换队列已满, 保留原图: {}", file.getAbsolutePath());
+        }
+    }
+
+    /***
+     * 解码并编码成webp
+     * 先申请内存预算再申请并发数, 不在占用并发数时等待内存, 都有等待的超时时间
+     */
+    private Result encode(ImageInputStream imageInputStream, File outputFile) throws IOException, InterruptedException {
+        if (imageInputStream == null) {
+            return Result.SKIPPED;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+        if (!readers.hasNext()) {
+            return Result.SKIPPED;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(imageInputStream, true, true);
+            // 只读取图片头, 按像素数申请内存
+            long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+            int memory = (int) Math.max(1, pixels * BYTES_PER_PIXEL / 1024 / 1024);
+            if (memory > memoryBudget) {
+                log.warn("图片太大({}像素), 不转换webp", pixels);
+                return Result.SKIPPED;
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ACQUIRE_TIMEOUT_SECONDS);
+            if (!memorySemaphore.tryAcquire(memory, ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return Result.BUSY;
+            }
+            try {
+                if (!concurrencySemaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    return Result.BUSY;
+                }
+                try {
+                    BufferedImage image = reader.read(0);
+                    write(image, outputFile);
+                    return Result.CONVERTED;
+                } finally {
+                    concurrencySemaphore.release();
+                }
+            } finally {
+                memorySemaphore.release(memory);
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static void write(BufferedImage image, File outputFile) throws IOException {
+        // 获取一个WebP ImageWriter实例
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType(Constants.CONTENT_TYPE_WEBP).next();
+        try (FileImageOutputStream output = new FileImageOutputStream(outputFile)) {
+            // 配置编码参数
+            WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
+            writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+            writer.setOutput(output);
+            // 编码
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /***
+     * 转换时的临时文件, 位于 ${chunkFileDir} 下, 文件监控忽略该目录
+     */
+    private Path getTempPath(File outputFile) {
+        Path tempDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
+        PathUtil.mkdir(tempDir);
+        return tempDir.resolve(Integer.toHexString(outputFile.getAbsolutePath().hashCode()) + "-" + Thread.currentThread().getId() + Constants.POINT_SUFFIX_WEBP);
+    }
+}
@@ -1,18 +1,15 @@
 package com.jmal.clouddisk.util;
 
-import cn.hutool.core.util.URLUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.oss.BucketInfo;
-import com.jmal.clouddisk.webdav.MyWebdavServlet;
+import com.jmal.clouddisk.oss.OssMountTable;
 import jakarta.annotation.PostConstruct;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -29,13 +26,6 @@ public class CaffeineUtil {
      */
     private static final Cache<String, Boolean> THUMBNAIL_REQUEST_CACHE = Caffeine.newBuilder().expireAfterWrite(60, TimeUnit.SECONDS).build();
 
-    /**
-     * 用户oss存储路径前缀缓存
-     * key: 路径前缀，例如：/jmal/aliyunStorage ,其中jmal为用户名,aliyunStorage 为oss存储的挂载文件夹名称，由用户自定义
-     * value: BucketInfo
-     */
-    private static final Cache<String, BucketInfo> OSS_DIAMETER_PREFIX_CACHE = Caffeine.newBuilder().build();
-
     private static final Cache<String, Long> LAST_ACCESS_TIME_CACHE = Caffeine.newBuilder().build();
 
     /***
@@ -50,26 +40,6 @@ public class CaffeineUtil {
      */
     public static final Cache<String, ConsumerDO> CONSUMER_USERNAME = Caffeine.newBuilder().build();
 
-    /***
-     * 已上传的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> resumeCache;
-
-    /***
-     * 已写入的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> writtenCache;
-
-    /***
-     * 未写入(已上传)的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> unWrittenCache;
-
-    /***
-     * 分片写锁
-     */
-    private static Cache<String, Lock> chunkWriteLockCache;
-
     /***
      * 上传文件夹锁
      */
@@ -135,51 +105,11 @@ public class CaffeineUtil {
     }
 
     public static void initMyCache(){
-        if(resumeCache == null){
-            resumeCache = Caffeine.newBuilder().build();
-        }
-        if(writtenCache == null){
-            writtenCache = Caffeine.newBuilder().build();
-        }
-        if(unWrittenCache == null){
-            unWrittenCache = Caffeine.newBuilder().build();
-        }
-        if(chunkWriteLockCache == null){
-            chunkWriteLockCache = Caffeine.newBuilder().build();
-        }
         if(uploadFolderLockCache == null) {
             uploadFolderLockCache = Caffeine.newBuilder().expireAfterWrite(30, TimeUnit.MINUTES).build();
         }
     }
 
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getResumeCache(){
-        if(resumeCache == null){
-            initMyCache();
-        }
-        return resumeCache;
-    }
-
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getWrittenCache(){
-        if(writtenCache == null){
-            initMyCache();
-        }
-        return writtenCache;
-    }
-
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getUnWrittenCacheCache(){
-        if(unWrittenCache == null){
-            initMyCache();
-        }
-        return unWrittenCache;
-    }
-
-    public static Cache<String, Lock> getChunkWriteLockCache(){
-        if(chunkWriteLockCache == null){
-            initMyCache();
-        }
-        return chunkWriteLockCache;
-    }
-
     public static Cache<String, Lock> getUploadFolderLockCache(){
         if(uploadFolderLockCache == null){
             initMyCache();
@@ -235,16 +165,21 @@ public class CaffeineUtil {
         LAST_ACCESS_TIME_CACHE.put("lastAccessTime", System.currentTimeMillis());
     }
 
+    /**
+     * 用户oss存储路径前缀
+     * @param path 路径前缀，例如：/jmal/aliyunStorage ,其中jmal为用户名,aliyunStorage 为oss存储的挂载文件夹名称，由用户自定义
+     * @param bucketInfo BucketInfo
+     */
     public static void setOssDiameterPrefixCache(String path, BucketInfo bucketInfo) {
-        OSS_DIAMETER_PREFIX_CACHE.put(path, bucketInfo);
+        OssMountTable.put(path, bucketInfo);
     }
 
     public static BucketInfo getOssDiameterPrefixCache(String path) {
-        return OSS_DIAMETER_PREFIX_CACHE.getIfPresent(path);
+        return OssMountTable.get(path);
     }
 
     public static void removeOssDiameterPrefixCache(String path) {
-        OSS_DIAMETER_PREFIX_CACHE.invalidate(path);
+        OssMountTable.remove(path);
     }
 
     /**
@@ -253,19 +188,17 @@ public class CaffeineUtil {
      * @return oss path
      */
     public static String getOssPath(Path path) {
-        path = Paths.get(URLUtil.decode(path.toString()));
-        String prePath;
-        if (path.getNameCount() >= 2) {
-            prePath = MyWebdavServlet.PATH_DELIMITER + path.subpath(0, 2);
-        } else {
-            return null;
-        }
-        for (String prefixPath : OSS_DIAMETER_PREFIX_CACHE.asMap().keySet()) {
-            if (prePath.equals(prefixPath)){
-                return prefixPath;
-            }
-        }
-        return null;
+        return OssMountTable.resolve(path.toString(), 0);
+    }
+
+    /**
+     * 获取oss path
+     * @param uri 请求的uri, 例如：/webDAV/jmal/aliyunStorage/a.txt
+     * @param skip 跳过开头的几级目录
+     * @return oss path
+     */
+    public static String getOssPath(String uri, int skip) {
+        return OssMountTable.resolve(uri, skip);
     }
 
     public static Boolean hasThumbnailRequestCache(String id) {
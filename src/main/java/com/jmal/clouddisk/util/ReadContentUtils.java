@@ -0,0 +1,305 @@
+package com.jmal.clouddisk.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serial;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * @author jmal
+ * @Description 读取文件的文本内容, 用于全文索引
+ * 流式读取: pdf逐页读取, docx/pptx/xlsx用SAX解析, 文本文件按行读取,
+ * 超过最大长度或超时后停止读取, 返回已经读取的内容
+ * @date 2024/1/25 10:30
+ */
+@Slf4j
+public class ReadContentUtils {
+
+    /***
+     * 超过这个大小的文件不读取内容
+     */
+    public static final long MAX_FILE_SIZE = 100L * 1024 * 1024;
+
+    /***
+     * 最多读取的字符数
+     */
+    public static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+
+    /***
+     * 单个文件最长的读取时间(毫秒)
+     */
+    public static final long TIMEOUT_MILLIS = 30000;
+
+    /***
+     * 支持读取内容的文档类型, 文本类型另外判断
+     */
+    private static final Set<String> DOCUMENT_SET = Set.of("pdf", "docx", "xlsx", "pptx");
+
+    private static final Pattern SLIDE_PATTERN = Pattern.compile("/ppt/slides/slide\\d+\\.xml");
+
+    private ReadContentUtils() {
+    }
+
+    /***
+     * 是否支持读取内容
+     * @param suffix 后缀名
+     * @param simText 文本类型
+     */
+    public static boolean isSupported(String suffix, String[] simText) {
+        if (suffix == null) {
+            return false;
+        }
+        suffix = suffix.toLowerCase();
+        if (DOCUMENT_SET.contains(suffix)) {
+            return true;
+        }
+        for (String text : simText) {
+            if (text.equals(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***
+     * 读取文件内容
+     * @param file 文件
+     * @param suffix 后缀名
+     * @return 文本内容, 读取失败时返回null
+     */
+    public static String read(File file, String suffix) {
+        if (!file.isFile() || file.length() > MAX_FILE_SIZE) {
+            return null;
+        }
+        ContentCollector collector = new ContentCollector();
+        try {
+            switch (suffix.toLowerCase()) {
+                case "pdf" -> readPdf(file, collector);
+                case "docx" -> readOoxml(file, "w:t", "w:p", partName -> "/word/document.xml".equals(partName), collector);
+                case "pptx" -> readOoxml(file, "a:t", "a:p", partName -> SLIDE_PATTERN.matcher(partName).matches(), collector);
+                case "xlsx" -> readXlsx(file, collector);
+                default -> readText(file, collector);
+            }
+        } catch (StopReadException e) {
+            log.debug("停止读取, {}, {}", file.getAbsolutePath(), e.getMessage());
+        } catch (Exception e) {
+            log.warn("读取文件内容失败, {}, {}", file.getAbsolutePath(), e.getMessage());
+            return collector.isEmpty() ? null : collector.toString();
+        }
+        return collector.toString();
+    }
+
+    /***
+     * pdf, 逐页读取, 超出内存的部分使用临时文件
+     */
+    private static void readPdf(File file, ContentCollector collector) throws Exception {
+        try (PDDocument document = PDDocument.load(file, MemoryUsageSetting.setupMixed(16L * 1024 * 1024))) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            int pages = document.getNumberOfPages();
+            for (int page = 1; page <= pages; page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                collector.append(stripper.getText(document));
+            }
+        }
+    }
+
+    /***
+     * docx, pptx, 用SAX解析xml中的文本节点
+     * @param textTag 文本节点
+     * @param paragraphTag 段落节点, 段落结束后换行
+     * @param partFilter 需要解析的部件
+     */
+    private static void readOoxml(File file, String textTag, String paragraphTag, Predicate<String> partFilter, ContentCollector collector) throws Exception {
+        try (OPCPackage opcPackage = OPCPackage.open(file, PackageAccess.READ)) {
+            List<PackagePart> partList = opcPackage.getParts().stream()
+                    .filter(part -> partFilter.test(part.getPartName().getName()))
+                    .sorted(Comparator.comparing(part -> part.getPartName().getName(), ReadContentUtils::compareNatural))
+                    .toList();
+            XMLReader parser = XMLHelper.newXMLReader();
+            parser.setContentHandler(new OoxmlTextHandler(textTag, paragraphTag, collector));
+            for (PackagePart part : partList) {
+                try (InputStream inputStream = part.getInputStream()) {
+                    parser.parse(new InputSource(inputStream));
+                }
+            }
+        }
+    }
+
+    /***
+     * xlsx, 用SAX逐行解析
+     */
+    private static void readXlsx(File file, ContentCollector collector) throws Exception {
+        try (OPCPackage opcPackage = OPCPackage.open(file, PackageAccess.READ)) {
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(opcPackage);
+            XSSFReader xssfReader = new XSSFReader(opcPackage);
+            XSSFSheetXMLHandler handler = new XSSFSheetXMLHandler(xssfReader.getStylesTable(), null, strings, new SheetHandler(collector), new DataFormatter(), false);
+            XMLReader parser = XMLHelper.newXMLReader();
+            parser.setContentHandler(handler);
+            Iterator<InputStream> sheets = xssfReader.getSheetsData();
+            while (sheets.hasNext()) {
+                try (InputStream inputStream = sheets.next()) {
+                    parser.parse(new InputSource(inputStream));
+                }
+            }
+        }
+    }
+
+    /***
+     * 文本文件, 按行读取
+     */
+    private static void readText(File file, ContentCollector collector) throws Exception {
+        // InputStreamReader遇到无法解码的字节时替换, 不抛出异常
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), MyFileUtils.getFileCharset(file)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                collector.append(line);
+                collector.append("\n");
+            }
+        }
+    }
+
+    /***
+     * slide2.xml排在slide10.xml前面
+     */
+    private static int compareNatural(String a, String b) {
+        if (a.length() != b.length()) {
+            return Integer.compare(a.length(), b.length());
+        }
+        return a.compareTo(b);
+    }
+
+    /***
+     * 收集读取的内容, 超过最大长度或超时后抛出StopReadException停止读取
+     */
+    private static class ContentCollector {
+
+        private final StringBuilder builder = new StringBuilder();
+
+        private final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        void append(String text) {
+            if (text == null || text.isEmpty()) {
+                return;
+            }
+            int remaining = MAX_CONTENT_LENGTH - builder.length();
+            if (remaining <= 0) {
+                throw new StopReadException("超过最大长度");
+            }
+            builder.append(text, 0, Math.min(remaining, text.length()));
+            if (System.currentTimeMillis() > deadline) {
+                throw new StopReadException("读取超时");
+            }
+        }
+
+        boolean isEmpty() {
+            return builder.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+    }
+
+    private static class StopReadException extends RuntimeException {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        StopReadException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static class OoxmlTextHandler extends DefaultHandler {
+
+        private final String textTag;
+
+        private final String paragraphTag;
+
+        private final ContentCollector collector;
+
+        private boolean inText = false;
+
+        OoxmlTextHandler(String textTag, String paragraphTag, ContentCollector collector) {
+            this.textTag = textTag;
+            this.paragraphTag = paragraphTag;
+            this.collector = collector;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (textTag.equals(qName)) {
+                inText = true;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (textTag.equals(qName)) {
+                inText = false;
+            } else if (paragraphTag.equals(qName)) {
+                collector.append("\n");
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText) {
+                collector.append(new String(ch, start, length));
+            }
+        }
+    }
+
+    private static class SheetHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        private final ContentCollector collector;
+
+        SheetHandler(ContentCollector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            // 每一行一个段落
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            collector.append("\n");
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            collector.append(formattedValue);
+            collector.append(" ");
+        }
+    }
+}
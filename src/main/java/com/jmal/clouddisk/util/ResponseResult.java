@@ -17,4 +17,8 @@ public class ResponseResult<T> {
 	private Object message;
 	private T data;
 	private Object count;
+	/***
+	 * 下一页的游标
+	 */
+	private String nextCursor;
 }
@@ -10,6 +10,7 @@ import com.jmal.clouddisk.oss.AbstractOssObject;
 import com.jmal.clouddisk.oss.IOssService;
 import com.jmal.clouddisk.oss.OssConfigService;
 import com.jmal.clouddisk.oss.OssInputStream;
+import com.jmal.clouddisk.oss.OssRangeDownloader;
 import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.util.CaffeineUtil;
@@ -47,6 +48,8 @@ public class MyWebdavServlet extends WebdavServlet {
 
     private final transient IFileService fileService;
 
+    private final transient OssRangeDownloader ossRangeDownloader;
+
     public static final String PATH_DELIMITER = "/";
 
     private static final Cache<String, Long> REQUEST_URI_GET_MAP = Caffeine.newBuilder().expireAfterWrite(3L, TimeUnit.SECONDS).build();
@@ -82,12 +85,8 @@ public class MyWebdavServlet extends WebdavServlet {
      */
     private static boolean filterTooManyRequest(HttpServletRequest request, HttpServletResponse response, String method) throws IOException {
         String uri = request.getRequestURI();
-        Path uriPath = Paths.get(uri);
-        if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath == null) {
-                return false;
-            }
+        if (CaffeineUtil.getOssPath(uri, 1) == null) {
+            return false;
         }
         // MAC & OSS & GET
         String userAgent = request.getHeader(HttpHeaders.USER_AGENT);
@@ -108,20 +107,36 @@ public class MyWebdavServlet extends WebdavServlet {
 
     @Override
     protected void copy(WebResource resource, long length, ServletOutputStream outStream, Ranges.Entry range) throws IOException {
-        Path prePath = Paths.get(resource.getWebappPath());
-        String ossPath = CaffeineUtil.getOssPath(prePath);
+        String ossPath = CaffeineUtil.getOssPath(resource.getWebappPath(), 0);
         if (ossPath != null) {
+            Path prePath = Paths.get(resource.getWebappPath());
             long rangeStart = getStart(range, length);
             long rangeEnd = getEnd(range, length);
             IOssService ossService = OssConfigService.getOssStorageService(ossPath);
             String objectName = WebOssService.getObjectName(prePath, ossPath, false);
-            AbstractOssObject rangeObject = ossService.getAbstractOssObject(objectName, rangeStart, rangeEnd);
-            super.copy(rangeObject.getInputStream(), outStream);
+            // 文件修改后不再使用之前预读的数据
+            String fileKey = resource.getWebappPath() + ":" + resource.getLastModified() + ":" + length;
+            ossRangeDownloader.copyRange(ossService, fileKey, objectName, rangeStart, rangeEnd, length, outStream);
         } else {
             super.copy(resource, length, outStream, range);
         }
     }
 
+    /**
+     * 大文件分段并行下载, 不再使用已经打开的输入流
+     */
+    private void parallelCopy(AbstractOssObject abstractOssObject, InputStream is, ServletOutputStream outStream) throws IOException {
+        // 每一段都校验和已经打开的object相同的eTag
+        String eTag = abstractOssObject.getFileInfo().getETag();
+        try {
+            abstractOssObject.closeObject();
+            is.close();
+        } catch (IOException e) {
+            Console.error(e.getMessage());
+        }
+        ossRangeDownloader.copy(abstractOssObject.getOssService(), abstractOssObject.getKey(), eTag, 0, abstractOssObject.getContentLength() - 1, outStream);
+    }
+
     private static long getStart(Ranges.Entry range, long length) {
         long start = range.getStart();
         if (start == -1L) {
@@ -143,6 +158,10 @@ public class MyWebdavServlet extends WebdavServlet {
         AbstractOssObject abstractOssObject = null;
         if (is instanceof OssInputStream ossInputStream) {
             abstractOssObject = ossInputStream.getAbstractOssObject();
+            if (abstractOssObject != null && ossRangeDownloader.isParallel(abstractOssObject)) {
+                parallelCopy(abstractOssObject, is, outStream);
+                return;
+            }
         }
         InputStream inStream = new BufferedInputStream(is, input);
         exception = copyRange(inStream, outStream);
@@ -170,14 +189,11 @@ public class MyWebdavServlet extends WebdavServlet {
     @Override
     protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String uri = req.getRequestURI();
-        Path uriPath = Paths.get(uri);
-        if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath != null && uri.endsWith(ossPath + PATH_DELIMITER)) {
-                // 禁止删除oss根目录
-                sendNotAllowed(req, resp);
-                return;
-            }
+        String ossPath = CaffeineUtil.getOssPath(uri, 1);
+        if (ossPath != null && uri.endsWith(ossPath + PATH_DELIMITER)) {
+            // 禁止删除oss根目录
+            sendNotAllowed(req, resp);
+            return;
         }
         super.doDelete(req, resp);
         deleteFile(req, resp);
@@ -193,7 +209,7 @@ public class MyWebdavServlet extends WebdavServlet {
         String uri = URLUtil.decode(req.getRequestURI());
         Path uriPath = Paths.get(uri);
         if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
+            String ossPath = CaffeineUtil.getOssPath(uri, 1);
             if (ossPath == null && resp.getStatus() == 204) {
                 // 普通文件 && 删除成功
                 String username = uriPath.getName(1).toString();
@@ -208,7 +224,7 @@ public class MyWebdavServlet extends WebdavServlet {
         String uri = URLUtil.decode(req.getRequestURI());
         Path uriPath = Paths.get(uri);
         if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
+            String ossPath = CaffeineUtil.getOssPath(uri, 1);
             if (ossPath == null && resp.getStatus() == 201) {
                 // 普通文件 && 上传成功
                 String username = uriPath.getName(1).toString();
@@ -0,0 +1,172 @@
+package com.jmal.clouddisk.oss;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description OssMetadataCache 更新、失效和淘汰
+ * @date 2024/2/8 10:30
+ */
+class OssMetadataCacheTest {
+
+    @Test
+    void cachedListing() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        CountingLoader loader = new CountingLoader(3);
+        List<FileInfo> listing = cache.getListing("a/", loader);
+        assertEquals(3, listing.size());
+        assertSame(listing, cache.getListing("a/", loader));
+        assertEquals(1, loader.count("a/"));
+        assertNotNull(cache.getFileInfo("a/1.txt"));
+        // 根节点 + 目录节点 + 列表中的3个条目 + 3个子节点
+        assertEquals(8, cache.size());
+    }
+
+    @Test
+    void onCreatedAndOnDeleted() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        CountingLoader loader = new CountingLoader(3);
+        cache.getListing("a/", loader);
+
+        cache.onCreated("a/4.txt", new FileInfo("a/4.txt", "e4", 4, new Date()));
+        List<FileInfo> listing = cache.getListing("a/", loader);
+        assertEquals(4, listing.size());
+        assertTrue(names(listing).contains("a/4.txt"));
+
+        cache.onDeleted("a/1.txt");
+        listing = cache.getListing("a/", loader);
+        assertEquals(3, listing.size());
+        assertFalse(names(listing).contains("a/1.txt"));
+        assertNull(cache.getFileInfo("a/1.txt"));
+        assertEquals(1, loader.count("a/"));
+    }
+
+    @Test
+    void onCreatedInNewFolder() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        CountingLoader loader = new CountingLoader(2);
+        cache.getListing("", loader);
+        // 新目录不在根目录的列表中, 根目录的列表失效
+        cache.onCreated("new/a.txt", new FileInfo("new/a.txt", "e", 1, new Date()));
+        cache.getListing("", loader);
+        assertEquals(2, loader.count(""));
+    }
+
+    @Test
+    void invalidate() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        CountingLoader loader = new CountingLoader(3);
+        cache.getListing("a/", loader);
+        cache.getListing("a/b/", loader);
+
+        // 文件失效时上级目录的列表失效
+        cache.invalidate("a/1.txt");
+        cache.getListing("a/", loader);
+        assertEquals(2, loader.count("a/"));
+        assertEquals(1, loader.count("a/b/"));
+
+        // 目录失效时整个子树失效
+        cache.invalidate("a/");
+        assertNull(cache.getFileInfo("a/b/1.txt"));
+        cache.getListing("a/b/", loader);
+        assertEquals(2, loader.count("a/b/"));
+
+        // 没有缓存的路径使最近的上级目录失效
+        cache.invalidate("a/b/c/d.txt");
+        cache.getListing("a/b/", loader);
+        assertEquals(3, loader.count("a/b/"));
+    }
+
+    @Test
+    void setLastModified() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        CountingLoader loader = new CountingLoader(2);
+        List<FileInfo> oldListing = cache.getListing("a/", loader);
+        FileInfo oldFileInfo = cache.getFileInfo("a/1.txt");
+        Date lastModified = new Date(oldFileInfo.getLastModified().getTime() + 60000);
+
+        cache.setLastModified("a/1.txt", lastModified);
+        assertEquals(lastModified, cache.getFileInfo("a/1.txt").getLastModified());
+        FileInfo listed = cache.getListing("a/", loader).stream().filter(f -> "a/1.txt".equals(f.getKey())).findFirst().orElseThrow();
+        assertEquals(lastModified, listed.getLastModified());
+        // 已经返回的对象不变
+        assertNotEquals(lastModified, oldFileInfo.getLastModified());
+        assertNotEquals(lastModified, oldListing.get(0).getLastModified());
+    }
+
+    @Test
+    void failedLoadNotCached() {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 1000);
+        AtomicInteger count = new AtomicInteger();
+        Function<String, List<FileInfo>> failing = dirKey -> {
+            count.incrementAndGet();
+            throw new IllegalStateException("list failed");
+        };
+        assertThrows(IllegalStateException.class, () -> cache.getListing("a/", failing));
+        assertThrows(IllegalStateException.class, () -> cache.getListing("a/", failing));
+        assertEquals(2, count.get());
+        CountingLoader loader = new CountingLoader(1);
+        assertEquals(1, cache.getListing("a/", loader).size());
+    }
+
+    @Test
+    void evictLeastRecentlyAccessed() throws InterruptedException {
+        OssMetadataCache cache = new OssMetadataCache(3600, 3600, 10);
+        CountingLoader loader = new CountingLoader(3);
+        cache.getListing("a/", loader);
+        Thread.sleep(5);
+        // a/ 和 b/ 共15个条目, 超过10, 淘汰最久没有访问的a/
+        cache.getListing("b/", loader);
+        assertTrue(cache.size() <= 10);
+        assertNull(cache.getFileInfo("a/1.txt"));
+        assertNotNull(cache.getFileInfo("b/1.txt"));
+
+        cache.getListing("b/", loader);
+        assertEquals(1, loader.count("b/"));
+        Thread.sleep(5);
+        cache.getListing("a/", loader);
+        assertEquals(2, loader.count("a/"));
+        assertTrue(cache.size() <= 10);
+    }
+
+    private static List<String> names(List<FileInfo> listing) {
+        return listing.stream().map(FileInfo::getKey).toList();
+    }
+
+    /***
+     * 每个目录返回n个文件, 记录每个目录的获取次数
+     */
+    private static class CountingLoader implements Function<String, List<FileInfo>> {
+
+        private final int n;
+
+        private final List<String> calls = new ArrayList<>();
+
+        CountingLoader(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public synchronized List<FileInfo> apply(String dirKey) {
+            calls.add(dirKey);
+            List<FileInfo> listing = new ArrayList<>(n);
+            for (int i = 1; i <= n; i++) {
+                String key = dirKey + i + ".txt";
+                listing.add(new FileInfo(key, "e" + i, i, new Date(1706000000000L)));
+            }
+            return listing;
+        }
+
+        synchronized long count(String dirKey) {
+            return calls.stream().filter(dirKey::equals).count();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.jmal.clouddisk.oss;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jmal
+ * @Description OssMountTable.resolve 的基准测试, 挂载1000个oss存储
+ * 运行main方法, 或者 mvn test-compile 后用 org.openjdk.jmh.Main 运行
+ * @date 2024/2/4 10:10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OssMountTableBenchmark {
+
+    private static final int MOUNTS = 1000;
+
+    private String[] ossPaths;
+
+    private String[] localPaths;
+
+    private String[] webDavUris;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        ossPaths = new String[MOUNTS];
+        localPaths = new String[MOUNTS];
+        webDavUris = new String[MOUNTS];
+        for (int i = 0; i < MOUNTS; i++) {
+            String username = "user" + (i % 100);
+            String folderName = "bucket" + i;
+            BucketInfo bucketInfo = new BucketInfo();
+            bucketInfo.setUsername(username);
+            bucketInfo.setFolderName(folderName);
+            bucketInfo.setBucketName(folderName);
+            OssMountTable.put("/" + username + "/" + folderName, bucketInfo);
+            ossPaths[i] = "/" + username + "/" + folderName + "/photos/2024/IMG_" + i + ".jpg";
+            localPaths[i] = "/" + username + "/documents/work/report" + i + ".docx";
+            webDavUris[i] = "/webDAV/" + username + "/" + folderName + "/%E6%96%87%E6%A1%A3/a" + i + ".txt";
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < MOUNTS; i++) {
+            OssMountTable.remove("/user" + (i % 100) + "/bucket" + i);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) % MOUNTS;
+        return index;
+    }
+
+    @Benchmark
+    public void resolveOssPath(Blackhole blackhole) {
+        blackhole.consume(OssMountTable.resolve(ossPaths[next()], 0));
+    }
+
+    @Benchmark
+    public void resolveLocalPath(Blackhole blackhole) {
+        blackhole.consume(OssMountTable.resolve(localPaths[next()], 0));
+    }
+
+    @Benchmark
+    public void resolveWebDavUri(Blackhole blackhole) {
+        blackhole.consume(OssMountTable.resolve(webDavUris[next()], 1));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(OssMountTableBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
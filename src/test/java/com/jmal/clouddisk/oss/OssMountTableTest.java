@@ -0,0 +1,90 @@
+package com.jmal.clouddisk.oss;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description OssMountTable 查询挂载点
+ * @date 2024/2/8 10:20
+ */
+class OssMountTableTest {
+
+    private static final String ALIYUN = "/jmal/aliyunStorage";
+
+    private static final String CHINESE = "/jmal/腾讯云";
+
+    @BeforeEach
+    void setUp() {
+        OssMountTable.put(ALIYUN, bucketInfo("jmal", "aliyunStorage"));
+        OssMountTable.put(CHINESE, bucketInfo("jmal", "腾讯云"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        OssMountTable.remove(ALIYUN);
+        OssMountTable.remove(CHINESE);
+    }
+
+    @Test
+    void resolve() {
+        assertEquals(ALIYUN, OssMountTable.resolve("/jmal/aliyunStorage", 0));
+        assertEquals(ALIYUN, OssMountTable.resolve("/jmal/aliyunStorage/", 0));
+        assertEquals(ALIYUN, OssMountTable.resolve("/jmal/aliyunStorage/a/b.txt", 0));
+        assertEquals(ALIYUN, OssMountTable.resolve("jmal/aliyunStorage", 0));
+        assertEquals(ALIYUN, OssMountTable.resolve("//jmal//aliyunStorage//a", 0));
+        assertEquals(CHINESE, OssMountTable.resolve("/jmal/腾讯云/文档/a.txt", 0));
+    }
+
+    @Test
+    void notMounted() {
+        assertNull(OssMountTable.resolve(null, 0));
+        assertNull(OssMountTable.resolve("", 0));
+        assertNull(OssMountTable.resolve("/jmal", 0));
+        assertNull(OssMountTable.resolve("/jmal/aliyun", 0));
+        assertNull(OssMountTable.resolve("/jmal/aliyunStorage2/a.txt", 0));
+        assertNull(OssMountTable.resolve("/other/aliyunStorage/a.txt", 0));
+        assertNull(OssMountTable.resolve("/a/jmal/aliyunStorage", 0));
+    }
+
+    @Test
+    void skip() {
+        assertEquals(ALIYUN, OssMountTable.resolve("/webDAV/jmal/aliyunStorage/a.txt", 1));
+        assertNull(OssMountTable.resolve("/webDAV/jmal/aliyunStorage/a.txt", 0));
+    }
+
+    @Test
+    void encoded() {
+        assertEquals(CHINESE, OssMountTable.resolve("/webDAV/jmal/%E8%85%BE%E8%AE%AF%E4%BA%91/a.txt", 1));
+        assertNull(OssMountTable.resolve("/webDAV/jmal/%E8%85%BE%E8%AE%AF/a.txt", 1));
+    }
+
+    @Test
+    void putAndRemove() {
+        int size = OssMountTable.size();
+        for (int i = 0; i < 100; i++) {
+            OssMountTable.put("/user" + i + "/bucket", bucketInfo("user" + i, "bucket"));
+        }
+        assertEquals(size + 100, OssMountTable.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("/user" + i + "/bucket", OssMountTable.resolve("/user" + i + "/bucket/a.txt", 0));
+        }
+        for (int i = 0; i < 100; i++) {
+            OssMountTable.remove("/user" + i + "/bucket");
+        }
+        assertEquals(size, OssMountTable.size());
+        assertNull(OssMountTable.resolve("/user1/bucket/a.txt", 0));
+        assertEquals(ALIYUN, OssMountTable.resolve("/jmal/aliyunStorage/a.txt", 0));
+    }
+
+    private static BucketInfo bucketInfo(String username, String folderName) {
+        BucketInfo bucketInfo = new BucketInfo();
+        bucketInfo.setUsername(username);
+        bucketInfo.setFolderName(folderName);
+        bucketInfo.setBucketName(folderName);
+        return bucketInfo;
+    }
+}
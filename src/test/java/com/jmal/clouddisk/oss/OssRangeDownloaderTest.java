@@ -0,0 +1,324 @@
+package com.jmal.clouddisk.oss;
+
+import com.jmal.clouddisk.config.FileProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author jmal
+ * @Description OssRangeDownloader 分段、按顺序拼接、重试、取消、eTag固定版本和预读
+ * @date 2024/2/9 15:00
+ */
+class OssRangeDownloaderTest {
+
+    private static final String OBJECT_NAME = "a/big.bin";
+
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+
+    private static final int CONCURRENCY = 4;
+
+    private OssRangeDownloader downloader;
+
+    private FakeOss fakeOss;
+
+    private IOssService ossService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileProperties fileProperties = new FileProperties();
+        fileProperties.setOssDownloadConcurrency(CONCURRENCY);
+        downloader = new OssRangeDownloader(fileProperties);
+        // 8段多一点, 超过并行下载的阈值, 而且段数大于环的大小
+        byte[] data = new byte[(int) OssRangeDownloader.PARALLEL_THRESHOLD + 12345];
+        new Random(1).nextBytes(data);
+        fakeOss = new FakeOss(data);
+        ossService = mock(IOssService.class);
+        when(ossService.getAbstractOssObject(eq(OBJECT_NAME), anyLong(), anyLong(), any()))
+                .thenAnswer(invocation -> fakeOss.get(invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        downloader.shutdown();
+    }
+
+    @Test
+    void rangeSplitting() throws IOException {
+        long start = 100;
+        long end = fakeOss.data.length - 50L;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        downloader.copy(ossService, OBJECT_NAME, start, end, outputStream);
+        assertArrayEquals(Arrays.copyOfRange(fakeOss.data, (int) start, (int) end + 1), outputStream.toByteArray());
+
+        List<Request> requests = fakeOss.sortedRequests();
+        int chunks = (int) ((end - start + 1 + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        assertEquals(chunks, requests.size());
+        for (int i = 0; i < chunks; i++) {
+            Request request = requests.get(i);
+            assertEquals(start + (long) i * CHUNK_SIZE, request.start);
+            assertEquals(Math.min(end, start + (long) (i + 1) * CHUNK_SIZE - 1), request.end);
+            // 第一段没有eTag, 之后的每一段都带上第一段响应的eTag
+            assertEquals(i == 0 ? null : FakeOss.ETAG, request.eTag);
+        }
+    }
+
+    @Test
+    void knownETagUsedForEveryRange() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        downloader.copy(ossService, OBJECT_NAME, FakeOss.ETAG, 0, fakeOss.data.length - 1L, outputStream);
+        assertArrayEquals(fakeOss.data, outputStream.toByteArray());
+        assertTrue(fakeOss.sortedRequests().stream().allMatch(request -> FakeOss.ETAG.equals(request.eTag)));
+    }
+
+    @Test
+    void inOrderAcrossRing() throws IOException {
+        // 每段的响应时间随机, 后面的段可能先完成
+        fakeOss.randomDelay = true;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream);
+        assertArrayEquals(fakeOss.data, outputStream.toByteArray());
+        // 缓冲区在环中复用后, 第二次下载的结果也正确
+        outputStream.reset();
+        downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream);
+        assertArrayEquals(fakeOss.data, outputStream.toByteArray());
+    }
+
+    @Test
+    void retry() throws IOException {
+        long failedStart = 3L * CHUNK_SIZE;
+        fakeOss.failures.put(failedStart, new AtomicInteger(2));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream);
+        assertArrayEquals(fakeOss.data, outputStream.toByteArray());
+        assertEquals(3, fakeOss.sortedRequests().stream().filter(request -> request.start == failedStart).count());
+    }
+
+    @Test
+    void failure() {
+        long failedStart = 3L * CHUNK_SIZE;
+        fakeOss.failures.put(failedStart, new AtomicInteger(Integer.MAX_VALUE));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertThrows(IOException.class, () -> downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream));
+        // 失败的段之前的内容已经写出, 之后的没有写出
+        assertEquals(failedStart, outputStream.size());
+        assertEquals(3, fakeOss.sortedRequests().stream().filter(request -> request.start == failedStart).count());
+    }
+
+    @Test
+    void objectChanged() {
+        // 第一段之后object被修改, If-Match不满足, 不重试
+        fakeOss.changeAfterFirst = true;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertThrows(ObjectChangedException.class, () -> downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream));
+        assertTrue(outputStream.size() <= CHUNK_SIZE);
+        Map<Long, Long> attempts = new HashMap<>();
+        fakeOss.sortedRequests().forEach(request -> attempts.merge(request.start, 1L, Long::sum));
+        assertTrue(attempts.values().stream().allMatch(count -> count == 1));
+    }
+
+    @Test
+    void responseETagMismatch() {
+        // 服务端忽略If-Match时, 按响应的eTag判断
+        fakeOss.ignoreIfMatch = true;
+        fakeOss.changeAfterFirst = true;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertThrows(ObjectChangedException.class, () -> downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, outputStream));
+    }
+
+    @Test
+    void cancelOnClientAbort() throws InterruptedException {
+        fakeOss.block = true;
+        OutputStream abortedStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // 等其他段都开始获取后再断开
+                try {
+                    fakeOss.blocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Broken pipe");
+            }
+        };
+        // 第一段先获取, 写出时客户端已经断开, 还在获取的段被取消
+        assertThrows(IOException.class, () -> downloader.copy(ossService, OBJECT_NAME, 0, fakeOss.data.length - 1L, abortedStream));
+        assertTrue(fakeOss.interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(CONCURRENCY, fakeOss.sortedRequests().size());
+    }
+
+    @Test
+    void readAhead() throws IOException {
+        String fileKey = OBJECT_NAME + ":1:" + fakeOss.data.length;
+        long size = fakeOss.data.length;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        downloader.copyRange(ossService, fileKey, OBJECT_NAME, 0, 999, size, outputStream);
+        assertEquals(1, fakeOss.sortedRequests().size());
+
+        // 顺序读取的下一个Range从预读的数据中返回
+        downloader.copyRange(ossService, fileKey, OBJECT_NAME, 1000, 4095, size, outputStream);
+        assertEquals(1, fakeOss.sortedRequests().size());
+        assertArrayEquals(Arrays.copyOfRange(fakeOss.data, 0, 4096), outputStream.toByteArray());
+
+        // 跨过预读数据末尾, 剩余部分带上预读数据的eTag获取
+        outputStream.reset();
+        long start = 1024 * 1024;
+        downloader.copyRange(ossService, fileKey, OBJECT_NAME, start, start + 9999, size, outputStream);
+        assertArrayEquals(Arrays.copyOfRange(fakeOss.data, (int) start, (int) start + 10000), outputStream.toByteArray());
+        List<Request> requests = fakeOss.sortedRequests();
+        assertEquals(2, requests.size());
+        assertEquals(1000 + 1024 * 1024, requests.get(1).start);
+        assertEquals(FakeOss.ETAG, requests.get(1).eTag);
+
+        // 文件修改后(fileKey不同)不使用之前预读的数据
+        outputStream.reset();
+        downloader.copyRange(ossService, OBJECT_NAME + ":2:" + size, OBJECT_NAME, start + 10000, start + 10999, size, outputStream);
+        assertEquals(3, fakeOss.sortedRequests().size());
+        assertArrayEquals(Arrays.copyOfRange(fakeOss.data, (int) start + 10000, (int) start + 11000), outputStream.toByteArray());
+    }
+
+    @Test
+    void sameETag() {
+        assertTrue(OssRangeDownloader.sameETag("\"5B3C1A2E\"", "5b3c1a2e"));
+        assertFalse(OssRangeDownloader.sameETag("5b3c1a2e", "5b3c1a2f"));
+    }
+
+    private record Request(long start, long end, String eTag) {
+    }
+
+    /***
+     * 模拟oss, 记录每个Range请求, 可以注入失败、延迟、阻塞和版本变化
+     */
+    private static class FakeOss {
+
+        static final String ETAG = "\"etag-1\"";
+
+        static final String CHANGED_ETAG = "\"etag-2\"";
+
+        final byte[] data;
+
+        final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+
+        final Map<Long, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+        final CountDownLatch blocked = new CountDownLatch(CONCURRENCY - 1);
+
+        final CountDownLatch interrupted = new CountDownLatch(CONCURRENCY - 1);
+
+        volatile boolean randomDelay;
+
+        volatile boolean block;
+
+        volatile boolean changeAfterFirst;
+
+        volatile boolean ignoreIfMatch;
+
+        FakeOss(byte[] data) {
+            this.data = data;
+        }
+
+        AbstractOssObject get(long start, long end, String eTag) throws IOException {
+            requests.add(new Request(start, end, eTag));
+            String current = changeAfterFirst && requests.size() > 1 ? CHANGED_ETAG : ETAG;
+            if (eTag != null && !ignoreIfMatch && !eTag.equals(current)) {
+                throw new ObjectChangedException(OBJECT_NAME, eTag);
+            }
+            AtomicInteger failure = failures.get(start);
+            if (failure != null && failure.getAndDecrement() > 0) {
+                throw new IOException("fetch failed: " + start);
+            }
+            if (block && start > 0) {
+                blocked.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (randomDelay) {
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(20));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return new RangeObject(Arrays.copyOfRange(data, (int) start, (int) end + 1), current);
+        }
+
+        List<Request> sortedRequests() {
+            synchronized (requests) {
+                List<Request> list = new ArrayList<>(requests);
+                list.sort(Comparator.comparingLong(Request::start));
+                return list;
+            }
+        }
+    }
+
+    private static class RangeObject extends AbstractOssObject {
+
+        private final byte[] data;
+
+        private final String eTag;
+
+        RangeObject(byte[] data, String eTag) {
+            this.data = data;
+            this.eTag = eTag;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public void closeObject() {
+            // 没有需要释放的资源
+        }
+
+        @Override
+        public String getKey() {
+            return OBJECT_NAME;
+        }
+
+        @Override
+        public IOssService getOssService() {
+            return null;
+        }
+
+        @Override
+        public FileInfo getFileInfo() {
+            return new FileInfo(OBJECT_NAME, eTag, data.length, new Date());
+        }
+
+        @Override
+        public long getContentLength() {
+            return data.length;
+        }
+
+        @Override
+        public void close() {
+            closeObject();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.jmal.clouddisk.service.impl;
+
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.model.FileIntroVO;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description ArchiveIndexService 压缩包索引和按条目读取
+ * @date 2024/2/8 11:00
+ */
+class ArchiveIndexServiceTest {
+
+    private static final String STORED = "stored content";
+
+    private static final String DEFLATED = "deflated content ".repeat(1000);
+
+    private static final String CHINESE = "中文内容";
+
+    @TempDir
+    Path tempDir;
+
+    private final ArchiveIndexService archiveIndexService = new ArchiveIndexService();
+
+    @Test
+    void isSupported() {
+        assertTrue(ArchiveIndexService.isSupported("a.zip"));
+        assertTrue(ArchiveIndexService.isSupported("a.JAR"));
+        assertTrue(ArchiveIndexService.isSupported("a.tar"));
+        assertTrue(ArchiveIndexService.isSupported("a.tar.gz"));
+        assertTrue(ArchiveIndexService.isSupported("a.tgz"));
+        assertTrue(ArchiveIndexService.isSupported("a.tar.bz2"));
+        assertFalse(ArchiveIndexService.isSupported("a.rar"));
+        assertFalse(ArchiveIndexService.isSupported(null));
+    }
+
+    @Test
+    void listZip() throws IOException {
+        File zip = createZip();
+        List<FileIntroVO> root = archiveIndexService.list(zip, "", "/test.zip");
+        assertEquals(Set.of("stored.txt", "dir"), names(root));
+        FileIntroVO dir = root.stream().filter(f -> "dir".equals(f.getName())).findFirst().orElseThrow();
+        assertTrue(dir.getIsFolder());
+        assertEquals("/test.zip/dir", dir.getPath());
+
+        // 没有单独条目的上级目录也能列出
+        assertEquals(Set.of("deflated.txt", "子目录"), names(archiveIndexService.list(zip, "dir", "/test.zip")));
+        List<FileIntroVO> sub = archiveIndexService.list(zip, "/dir/子目录/", "/test.zip");
+        assertEquals(Set.of("中文.txt"), names(sub));
+        assertEquals("/test.zip/dir/子目录/中文.txt", sub.get(0).getPath());
+        assertEquals(CHINESE.getBytes(StandardCharsets.UTF_8).length, sub.get(0).getSize());
+
+        // 包含".."的条目不显示
+        assertFalse(archiveIndexService.getEntries(zip).stream().anyMatch(entry -> entry.name.contains("..")));
+        assertTrue(archiveIndexService.isRandomAccess(zip));
+    }
+
+    @Test
+    void readZipEntry() throws IOException {
+        File zip = createZip();
+        assertEquals(STORED, read(zip, "stored.txt"));
+        assertEquals(DEFLATED, read(zip, "dir/deflated.txt"));
+        assertEquals(CHINESE, read(zip, "dir/子目录/中文.txt"));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        archiveIndexService.writeEntry(zip, "/dir/deflated.txt", response);
+        assertEquals(DEFLATED, response.getContentAsString(StandardCharsets.UTF_8));
+        assertEquals(DEFLATED.length(), response.getContentLengthLong());
+
+        assertThrows(CommonException.class, () -> archiveIndexService.writeEntry(zip, "dir", new MockHttpServletResponse()));
+        assertThrows(CommonException.class, () -> archiveIndexService.writeEntry(zip, "missing.txt", new MockHttpServletResponse()));
+    }
+
+    @Test
+    void tar() throws IOException {
+        File tar = tempDir.resolve("test.tar").toFile();
+        try (OutputStream outputStream = new FileOutputStream(tar)) {
+            writeTar(outputStream);
+        }
+        assertEquals(Set.of("a.txt", "dir"), names(archiveIndexService.list(tar, "", "/test.tar")));
+        assertTrue(archiveIndexService.isRandomAccess(tar));
+        assertEquals(STORED, read(tar, "a.txt"));
+        assertEquals(DEFLATED, read(tar, "dir/b.txt"));
+    }
+
+    @Test
+    void tarGz() throws IOException {
+        File tarGz = tempDir.resolve("test.tar.gz").toFile();
+        try (OutputStream outputStream = new GzipCompressorOutputStream(new FileOutputStream(tarGz))) {
+            writeTar(outputStream);
+        }
+        assertEquals(Set.of("b.txt"), names(archiveIndexService.list(tarGz, "dir", "/test.tar.gz")));
+        assertFalse(archiveIndexService.isRandomAccess(tarGz));
+        assertEquals(DEFLATED, read(tarGz, "dir/b.txt"));
+
+        Map<String, String> scanned = new HashMap<>();
+        archiveIndexService.scan(tarGz, (entry, inputStream) -> scanned.put(entry.name, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8)));
+        assertEquals(Map.of("a.txt", STORED, "dir/b.txt", DEFLATED), scanned);
+    }
+
+    @Test
+    void modifiedArchiveReindexed() throws IOException {
+        File zip = createZip();
+        assertEquals(2, archiveIndexService.list(zip, "", "").size());
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zip))) {
+            zipOutputStream.putNextEntry(new ZipEntry("only.txt"));
+            zipOutputStream.write(STORED.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+        }
+        assertTrue(zip.setLastModified(zip.lastModified() + 2000));
+        assertEquals(Set.of("only.txt"), names(archiveIndexService.list(zip, "", "")));
+    }
+
+    @Test
+    void notArchive() throws IOException {
+        File file = Files.writeString(tempDir.resolve("a.zip"), "not a zip").toFile();
+        assertThrows(CommonException.class, () -> archiveIndexService.list(file, "", ""));
+        File txt = Files.writeString(tempDir.resolve("a.txt"), "text").toFile();
+        assertThrows(CommonException.class, () -> archiveIndexService.list(txt, "", ""));
+        assertThrows(CommonException.class, () -> archiveIndexService.list(tempDir.resolve("missing.zip").toFile(), "", ""));
+    }
+
+    private File createZip() throws IOException {
+        File zip = tempDir.resolve("test.zip").toFile();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zip), StandardCharsets.UTF_8)) {
+            byte[] stored = STORED.getBytes(StandardCharsets.UTF_8);
+            ZipEntry storedEntry = new ZipEntry("stored.txt");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            storedEntry.setCompressedSize(stored.length);
+            CRC32 crc32 = new CRC32();
+            crc32.update(stored);
+            storedEntry.setCrc(crc32.getValue());
+            zipOutputStream.putNextEntry(storedEntry);
+            zipOutputStream.write(stored);
+            zipOutputStream.closeEntry();
+
+            zipOutputStream.putNextEntry(new ZipEntry("dir/deflated.txt"));
+            zipOutputStream.write(DEFLATED.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+
+            zipOutputStream.putNextEntry(new ZipEntry("dir/子目录/中文.txt"));
+            zipOutputStream.write(CHINESE.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+
+            zipOutputStream.putNextEntry(new ZipEntry("../evil.txt"));
+            zipOutputStream.write(STORED.getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+        }
+        return zip;
+    }
+
+    private static void writeTar(OutputStream outputStream) throws IOException {
+        TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(outputStream);
+        tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        putTarEntry(tarOutputStream, "a.txt", STORED);
+        putTarEntry(tarOutputStream, "dir/b.txt", DEFLATED);
+        tarOutputStream.finish();
+    }
+
+    private static void putTarEntry(TarArchiveOutputStream tarOutputStream, String name, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tarOutputStream.putArchiveEntry(entry);
+        tarOutputStream.write(data);
+        tarOutputStream.closeArchiveEntry();
+    }
+
+    private String read(File file, String name) throws IOException {
+        ArchiveIndexService.ArchiveEntryInfo entry = archiveIndexService.getEntries(file).stream()
+                .filter(e -> name.equals(e.name)).findFirst().orElseThrow();
+        try (InputStream inputStream = archiveIndexService.openEntry(file, entry)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Set<String> names(List<FileIntroVO> list) {
+        Set<String> names = new HashSet<>();
+        for (FileIntroVO fileIntroVO : list) {
+            names.add(fileIntroVO.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,70 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.crypto.SecureUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description BlobService 摘要格式和持有证明
+ * @date 2024/2/9 10:40
+ */
+class BlobServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void normalize() {
+        String hash = "A".repeat(64);
+        assertEquals("a".repeat(64), BlobService.normalize(hash));
+        assertNull(BlobService.normalize("a".repeat(63)));
+        assertNull(BlobService.normalize("g".repeat(64)));
+        assertNull(BlobService.normalize("../" + "a".repeat(61)));
+        assertNull(BlobService.normalize(null));
+    }
+
+    @Test
+    void digest() throws IOException {
+        byte[] data = new byte[300 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        Path file = Files.write(tempDir.resolve("blob"), data);
+        List<long[]> ranges = List.of(new long[]{10, 99}, new long[]{100 * 1024, 200 * 1024 - 1}, new long[]{0, 0});
+
+        // nonce + 按顺序拼接的各个范围的内容
+        byte[] expected = concat("nonce".getBytes(StandardCharsets.UTF_8),
+                Arrays.copyOfRange(data, 10, 100),
+                Arrays.copyOfRange(data, 100 * 1024, 200 * 1024),
+                Arrays.copyOfRange(data, 0, 1));
+        assertArrayEquals(SecureUtil.sha256().digest(expected), BlobService.digest(file, "nonce", ranges));
+        // nonce不同摘要不同, 不能重放
+        assertFalse(Arrays.equals(BlobService.digest(file, "nonce", ranges), BlobService.digest(file, "other", ranges)));
+        // 超出文件末尾
+        assertThrows(IOException.class, () -> BlobService.digest(file, "nonce", List.<long[]>of(new long[]{data.length - 1, data.length})));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package com.jmal.clouddisk.service.impl;
+
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.UploadApiParamDTO;
+import com.jmal.clouddisk.service.Constants;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description FileCursorService 游标分页的条件
+ * @date 2024/2/8 10:40
+ */
+class FileCursorServiceTest {
+
+    private static final String ID = "65c0a1b2c3d4e5f601234567";
+
+    @Test
+    void afterAscending() {
+        List<Sort.Order> orderList = List.of(Sort.Order.desc(Constants.IS_FOLDER), Sort.Order.asc("name"), Sort.Order.asc("_id"));
+        Document cursor = new Document(Constants.IS_FOLDER, true).append("name", "b.txt").append("_id", ID);
+        Document criteria = FileCursorService.after(orderList, cursor).getCriteriaObject();
+
+        List<?> or = (List<?>) criteria.get("$or");
+        assertEquals(3, or.size());
+        // isFolder < true
+        assertEquals(List.of(new Document(Constants.IS_FOLDER, new Document("$lt", true))), and(or.get(0)));
+        // isFolder = true and name > b.txt
+        assertEquals(List.of(new Document(Constants.IS_FOLDER, true),
+                new Document("name", new Document("$gt", "b.txt"))), and(or.get(1)));
+        // isFolder = true and name = b.txt and _id > ID
+        assertEquals(List.of(new Document(Constants.IS_FOLDER, true),
+                new Document("name", "b.txt"),
+                new Document("_id", new Document("$gt", ID))), and(or.get(2)));
+    }
+
+    @Test
+    void afterDescending() {
+        List<Sort.Order> orderList = List.of(Sort.Order.desc("size"), Sort.Order.desc("_id"));
+        Document cursor = new Document("size", 100L).append("_id", ID);
+        Document criteria = FileCursorService.after(orderList, cursor).getCriteriaObject();
+
+        List<?> or = (List<?>) criteria.get("$or");
+        assertEquals(2, or.size());
+        assertEquals(List.of(new Document("size", new Document("$lt", 100L))), and(or.get(0)));
+        assertEquals(List.of(new Document("size", 100L),
+                new Document("_id", new Document("$lt", ID))), and(or.get(1)));
+    }
+
+    @Test
+    void nextCursorAndPage() {
+        FileCursorService fileCursorService = new FileCursorService();
+        UploadApiParamDTO upload = new UploadApiParamDTO();
+        upload.setPageSize(2);
+        upload.setPageIndex(3);
+
+        FileDocument first = new FileDocument();
+        first.setId("65c0a1b2c3d4e5f601234560");
+        first.setIsFolder(true);
+        first.setName("a");
+        FileDocument last = new FileDocument();
+        last.setId(ID);
+        last.setIsFolder(false);
+        last.setName("b.txt");
+
+        // 不满一页时没有下一页
+        assertNull(fileCursorService.nextCursor(upload, List.of(first)));
+        String next = fileCursorService.nextCursor(upload, List.of(first, last));
+        assertNotNull(next);
+
+        upload.setCursor(next);
+        Query query = new Query(Criteria.where("path").is("/"));
+        fileCursorService.page(upload, query);
+        // 有游标时不再skip
+        assertEquals(0, query.getSkip());
+        assertEquals(2, query.getLimit());
+        assertTrue(query.getCollation().isPresent());
+        assertNotNull(query.getQueryObject().get("$or"));
+        assertEquals(new Document(Constants.IS_FOLDER, -1).append("name", 1).append("_id", 1), query.getSortObject());
+    }
+
+    @Test
+    void cursorOfOtherSortIgnored() {
+        FileCursorService fileCursorService = new FileCursorService();
+        UploadApiParamDTO upload = new UploadApiParamDTO();
+        upload.setPageSize(2);
+        upload.setPageIndex(3);
+        FileDocument fileDocument = new FileDocument();
+        fileDocument.setId(ID);
+        fileDocument.setIsFolder(false);
+        fileDocument.setName("b.txt");
+        upload.setCursor(fileCursorService.nextCursor(upload, List.of(fileDocument, fileDocument)));
+
+        // 排序条件变化后游标无效, 按pageIndex跳过
+        upload.setSortableProp("size");
+        upload.setOrder("descending");
+        Query query = new Query(Criteria.where("isFavorite").is(true));
+        fileCursorService.page(upload, query);
+        assertEquals(4, query.getSkip());
+        assertNull(query.getQueryObject().get("$or"));
+        // 不是目录列表时不使用排序规则
+        assertFalse(query.getCollation().isPresent());
+
+        upload.setCursor("not a cursor");
+        query = new Query(Criteria.where("path").is("/"));
+        fileCursorService.page(upload, query);
+        assertEquals(4, query.getSkip());
+    }
+
+    private static List<?> and(Object criteria) {
+        return (List<?>) ((Document) criteria).get("$and");
+    }
+}
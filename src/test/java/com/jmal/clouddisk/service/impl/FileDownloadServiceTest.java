@@ -0,0 +1,106 @@
+package com.jmal.clouddisk.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description FileDownloadService 解析Range
+ * @date 2024/2/8 10:10
+ */
+class FileDownloadServiceTest {
+
+    private static final String ETAG = "\"1a-64-18d\"";
+
+    private static final long LAST_MODIFIED = 1706000000000L;
+
+    private static final long SIZE = 100;
+
+    @Test
+    void noRange() {
+        assertNull(getRanges(null, null));
+        assertNull(getRanges("items=0-1", null));
+    }
+
+    @Test
+    void singleRange() {
+        assertRanges(getRanges("bytes=0-9", null), 0, 9);
+        assertRanges(getRanges("bytes=90-", null), 90, 99);
+        assertRanges(getRanges("bytes=-10", null), 90, 99);
+        // 超过文件大小的结束位置截断到最后一个字节
+        assertRanges(getRanges("bytes=50-1000", null), 50, 99);
+        // 后缀长度超过文件大小时返回整个文件
+        assertRanges(getRanges("bytes=-1000", null), 0, 99);
+    }
+
+    @Test
+    void multipleRanges() {
+        assertRanges(getRanges("bytes=0-9, 20-29,-5", null), 0, 9, 20, 29, 95, 99);
+    }
+
+    @Test
+    void unsatisfiable() {
+        List<long[]> ranges = getRanges("bytes=100-200", null);
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+        // 不可满足的区间被忽略
+        assertRanges(getRanges("bytes=100-200,0-0", null), 0, 0);
+    }
+
+    @Test
+    void invalid() {
+        assertNull(getRanges("bytes=5-3", null));
+        assertNull(getRanges("bytes=abc", null));
+        assertNull(getRanges("bytes=a-b", null));
+        StringBuilder tooMany = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 16; i++) {
+            tooMany.append(',').append(i).append('-').append(i);
+        }
+        assertNull(getRanges(tooMany.toString(), null));
+    }
+
+    @Test
+    void ifRange() {
+        assertRanges(getRanges("bytes=0-9", ETAG), 0, 9);
+        assertNull(getRanges("bytes=0-9", "\"other\""));
+        // 弱ETag不能用于If-Range
+        assertNull(getRanges("bytes=0-9", "W/" + ETAG));
+    }
+
+    @Test
+    void ifRangeDate() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED);
+        assertRanges(FileDownloadService.getRanges(request, ETAG, LAST_MODIFIED, SIZE), 0, 9);
+
+        request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED - 60000);
+        assertNull(FileDownloadService.getRanges(request, ETAG, LAST_MODIFIED, SIZE));
+    }
+
+    private static List<long[]> getRanges(String range, String ifRange) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        if (ifRange != null) {
+            request.addHeader(HttpHeaders.IF_RANGE, ifRange);
+        }
+        return FileDownloadService.getRanges(request, ETAG, LAST_MODIFIED, SIZE);
+    }
+
+    private static void assertRanges(List<long[]> ranges, long... expected) {
+        assertNotNull(ranges);
+        assertEquals(expected.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(new long[]{expected[i * 2], expected[i * 2 + 1]}, ranges.get(i));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.jmal.clouddisk.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description UploadSessionService.UploadSession 已完成分片的位图
+ * @date 2024/2/8 10:50
+ */
+class UploadSessionTest {
+
+    @Test
+    void markDone() {
+        UploadSessionService.UploadSession session = newSession(130);
+        assertFalse(session.isComplete());
+        assertTrue(session.markDone(1));
+        assertFalse(session.markDone(1));
+        assertTrue(session.markDone(64));
+        assertTrue(session.markDone(65));
+        assertTrue(session.markDone(130));
+        assertTrue(session.isDone(1));
+        assertFalse(session.isDone(2));
+        assertTrue(session.isDone(64));
+        assertTrue(session.isDone(65));
+        assertTrue(session.isDone(130));
+        assertEquals(List.of(1, 64, 65, 130), session.getDoneChunks());
+    }
+
+    @Test
+    void complete() {
+        UploadSessionService.UploadSession session = newSession(3);
+        session.markDone(3);
+        session.markDone(1);
+        session.markDone(1);
+        assertFalse(session.isComplete());
+        session.markDone(2);
+        assertTrue(session.isComplete());
+    }
+
+    @Test
+    void toByteArray() {
+        UploadSessionService.UploadSession session = newSession(200);
+        for (int chunkNumber : new int[]{1, 8, 9, 64, 65, 128, 200}) {
+            session.markDone(chunkNumber);
+        }
+        // 与UploadSessionDO.chunks的格式一致, 第n个分片对应第n-1位
+        BitSet bitSet = BitSet.valueOf(session.toByteArray());
+        assertEquals(7, bitSet.cardinality());
+        UploadSessionService.UploadSession restored = newSession(200);
+        bitSet.stream().forEach(i -> restored.markDone(i + 1));
+        assertEquals(session.getDoneChunks(), restored.getDoneChunks());
+    }
+
+    @Test
+    void concurrentMarkDone() throws InterruptedException {
+        int totalChunks = 1000;
+        UploadSessionService.UploadSession session = newSession(totalChunks);
+        AtomicInteger firstDone = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        // 每个分片被标记两次, 只有一次是首次完成
+        for (int n = 0; n < 2; n++) {
+            for (int chunkNumber = 1; chunkNumber <= totalChunks; chunkNumber++) {
+                int c = chunkNumber;
+                executorService.execute(() -> {
+                    if (session.markDone(c)) {
+                        firstDone.incrementAndGet();
+                    }
+                });
+            }
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(totalChunks, firstDone.get());
+        assertTrue(session.isComplete());
+        assertEquals(totalChunks, session.getDoneChunks().size());
+    }
+
+    private static UploadSessionService.UploadSession newSession(int totalChunks) {
+        return new UploadSessionService.UploadSession("jmal/id", Paths.get("/tmp/uploadSession/jmal/id"), totalChunks, 1024, totalChunks * 1024L);
+    }
+}